@@ -6,6 +6,10 @@
 package org.codemancer;
 
 import java.io.RandomAccessFile;
+import java.io.FileReader;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
@@ -13,59 +17,95 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
-import org.codemancer.cpudl.BitString;
 import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
-import org.codemancer.cpudl.ShortBitString;
+import org.codemancer.cpudl.ByteBufferReader;
 import org.codemancer.cpudl.Architecture;
 import org.codemancer.cpudl.FeatureSet;
 import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.DecodeCache;
+import org.codemancer.cpudl.type.DecoderProfile;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Constant;
 
 public class Disassemble {
+	/** The digits used when formatting hexadecimal numbers. */
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/** Append a number to a string builder in hexadecimal.
+	 * This has the same effect as formatting with %0<width>X.
+	 * @param out the string builder
+	 * @param value the number, which must not be negative
+	 * @param width the minimum number of digits
+	 */
+	private static void appendHex(StringBuilder out, long value, int width) {
+		int count = 1;
+		while ((count < 16) && ((value >>> (4 * count)) != 0)) {
+			++count;
+		}
+		for (int i = Math.max(count, width) - 1; i >= 0; --i) {
+			out.append((i < count) ? HEX_DIGITS[(int)((value >>> (4 * i)) & 0xF)] : '0');
+		}
+	}
+
 	/** Disassemble raw binary file from the command line.
-	 * Usage: java org.codemancer.Disassemble <architecture> <pathname>
-	 * The disassembled code is written to stdout.
+	 * Usage: java org.codemancer.Disassemble <architecture> <pathname> [<profile>]
+	 * The disassembled code is written to stdout. If a decoder profile is
+	 * given then it is used to speed up decoding of common instructions.
 	 */
 	public static final void main(String args[]) throws Exception {
 		String architectureName = args[0];
 		String pathname = args[1];
+		DecoderProfile profile = null;
+		if (args.length > 2) {
+			FileReader in = new FileReader(args[2]);
+			profile = new DecoderProfile(in);
+			in.close();
+		}
 
-		Architecture arch = Architecture.makeArchitecture(architectureName);
+		Architecture arch = Architecture.makeArchitecture(architectureName, true, profile);
 		Type start = arch.getStart();
+		DecodeCache decodeCache = arch.getDecodeCache();
 		FeatureSet features = new FeatureSet(arch);
 
 		RandomAccessFile file = new RandomAccessFile(pathname, "r");
 		ByteBuffer image = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		BitReader codeReader = new ByteBufferReader(image, arch.isBigEndian());
+		List<BitReader> codeReaders = new ArrayList<BitReader>();
+		codeReaders.add(codeReader);
+
+		// Each line is built in a reusable string builder, then written
+		// through a single buffered writer.
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+		StringBuilder line = new StringBuilder();
 		int addr = 0;
 		while (addr < image.limit()) {
-			BitString code = new ShortBitString();
-			int j = addr + 8;
-			if (j > image.limit()) j = image.limit();
-			for (int i = addr; i < j; ++i) {
-				code = code.concat(new ShortBitString(image.get(i), 8, arch.isBigEndian()));
-			}
-			BitReader codeReader = new BitStringReader(code);
-			List<BitReader> codeReaders = new ArrayList<BitReader>();
-			codeReaders.add(codeReader);
+			codeReader.seek((long)addr << 3);
 
-			Expression expr = start.decode(codeReaders, features);
-			if (codeReader.tell() % 8 != 0) {
-				System.out.printf("Error: instruction not a whole number of bytes\n");
+			Expression expr = decodeCache.decode(codeReaders, features);
+			long bitCount = codeReader.tell() - ((long)addr << 3);
+			line.setLength(0);
+			if (bitCount % 8 != 0) {
+				line.append("Error: instruction not a whole number of bytes\n");
 				expr = null;
 			}
+			appendHex(line, addr, 4);
+			line.append('\t');
 			if (expr != null) {
 				Map<String, Expression> registers = new HashMap<String, Expression>();
 				registers.put("PC", new Constant(null, addr));
-				expr = expr.resolveReferences(null, null);
-				expr = expr.resolveRegisters(registers).simplify();
-				System.out.printf("%04X\t%s\t%s\n", addr, start.unparse(0, expr), start.unparse(1, expr));
-				addr += codeReader.tell() / 8;
+				expr = expr.resolve(null, null, registers);
+				start.unparse(line, 0, expr);
+				line.append('\t');
+				start.unparse(line, 1, expr);
+				addr += bitCount / 8;
 			} else {
-				System.out.printf("%04X\t.byte\t%02X\n", addr, image.get(addr));
+				line.append(".byte\t");
+				appendHex(line, image.get(addr) & 0xFF, 2);
 				addr += 1;
 			}
+			line.append('\n');
+			out.append(line);
 		}
+		out.flush();
 	}
 }
@@ -0,0 +1,233 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.io.IOException;
+
+import org.codemancer.loader.ObjectFile;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.db.Database;
+
+/** A class for running the analysis passes as the stages of a pipeline.
+ * As opposed to running each pass over the whole of the object file
+ * before starting the next, each stage processes the facts made by the
+ * stage before it as soon as they become available. Results for the
+ * first regions of code to be disassembled therefore become visible
+ * long before analysis of the whole file is complete.
+ *
+ * The database is not safe for use by more than one thread, so the
+ * stages are interleaved on the calling thread. Priority is given to
+ * the stage furthest downstream which has work to do, and a stage may
+ * take only a limited number of steps before the stages downstream of
+ * it are given the opportunity to run. The amount of work in progress
+ * between any two stages is therefore bounded, and any stage which is
+ * unable to keep up throttles the stages upstream of it. The iterative
+ * disassembler may nevertheless decode instructions in parallel if an
+ * executor is supplied. In that case each step follows a batch of up to
+ * BATCH_SIZE pending references, so one step is taken at a time.
+ *
+ * Basic blocks are made by the iterative disassembler as it goes, so
+ * that instructions need not be decoded a second time to find them.
+ * The basic block detector remains as a stage of the pipeline, but only
+ * has work to do if the disassembler leaves lines without a block.
+ *
+ * A stage which reaches the end of its pending work after making
+ * progress is run again, since it may have added to that work. A stage
+ * which has no work to do is not run again until a stage upstream of it
+ * has made progress. Processing is complete once every stage has no work
+ * to do. The current revision is committed at regular intervals while
+ * processing, and on completion.
+ */
+public class AnalysisPipeline {
+	/** The maximum number of steps which a stage may take before the
+	 * stages downstream of it are given the opportunity to run. */
+	private static final int BATCH_SIZE = 256;
+
+	/** A class to represent one stage of the pipeline. */
+	private static abstract class Stage {
+		/** The maximum number of steps which this stage may take before
+		 * the stages downstream of it are given the opportunity to run. */
+		final int maxSteps;
+
+		/** True if this stage had no work when last run, and no stage
+		 * upstream of it has made progress since, otherwise false. */
+		boolean idle = false;
+
+		/** True if this stage has made progress since it last reached
+		 * the end of its pending work, otherwise false. */
+		boolean progressed = false;
+
+		/** Construct stage which may take up to BATCH_SIZE steps at a time. */
+		Stage() {
+			this(BATCH_SIZE);
+		}
+
+		/** Construct stage.
+		 * @param maxSteps the maximum number of steps which may be taken at a time
+		 */
+		Stage(int maxSteps) {
+			this.maxSteps = maxSteps;
+		}
+
+		/** Take one step.
+		 * A return value of true indicates that the stage has reached the
+		 * end of its pending work. If it made progress before doing so then
+		 * it may have work which it has yet to fetch, so the stage is only
+		 * considered to have no work to do if it returns true twice with no
+		 * progress in between.
+		 * @return true if there was no work to do, otherwise false
+		 */
+		abstract boolean step() throws InterruptedException;
+	}
+
+	/** The database corresponding to the object file. */
+	private final Database db;
+
+	/** The iterative disassembler. */
+	private final IterativeDisassembler disasm;
+
+	/** The basic block detector. */
+	private final BasicBlockDetector bbDetector;
+
+	/** The extended basic block detector. */
+	private final ExtendedBasicBlockDetector ebbDetector;
+
+	/** The subroutine detector. */
+	private final SubroutineDetector subDetector;
+
+	/** The SSA mapper. */
+	private final SsaMapper mapper;
+
+	/** The comment generator. */
+	private final CommentGenerator commenter;
+
+	/** The number of revisions committed. */
+	private long commitCount = 0;
+
+	/** Construct analysis pipeline.
+	 * @param obj the object file to be analysed
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions between stages
+	 * @param deps a record of dependencies between facts, shared between stages
+	 */
+	public AnalysisPipeline(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps) throws IOException {
+
+		this.db = db;
+		this.disasm = new IterativeDisassembler(obj, db, arch, store, deps, new BasicBlockBuilder(db, deps));
+		this.bbDetector = new BasicBlockDetector(obj, db, arch, store, deps);
+		this.ebbDetector = new ExtendedBasicBlockDetector(obj, db, arch, deps);
+		this.subDetector = new SubroutineDetector(obj, db, arch, deps);
+		this.mapper = new SsaMapper(obj, db, arch, store, deps);
+		this.commenter = new CommentGenerator(obj, db, arch, store, deps);
+	}
+
+	/** Get the number of revisions committed.
+	 * @return the number of revisions
+	 */
+	public final long getCommitCount() {
+		return commitCount;
+	}
+
+	/** Run the pipeline until every stage has no work to do.
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param executor the executor with which to decode instructions, or null
+	 *  to decode them on the calling thread
+	 * @param commitInterval the minimum interval between commits, in milliseconds
+	 */
+	public void run(final Register pc, final List<Expression> links, final ExecutorService executor,
+		long commitInterval) throws InterruptedException {
+
+		Stage[] stages = new Stage[] {
+			new Stage((executor != null) ? 1 : BATCH_SIZE) {
+				boolean step() throws InterruptedException {
+					return (executor != null) ?
+						disasm.process(pc, links, executor, BATCH_SIZE) :
+						disasm.process(pc, links);
+				}
+			},
+			new Stage() {
+				boolean step() {
+					return bbDetector.detectNext(pc, links);
+				}
+			},
+			new Stage() {
+				boolean step() {
+					return ebbDetector.detectNext(pc, links);
+				}
+			},
+			new Stage() {
+				boolean step() {
+					return subDetector.detectNext(pc, links);
+				}
+			},
+			new Stage() {
+				boolean step() {
+					return mapper.mapNext(pc, links);
+				}
+			},
+			new Stage() {
+				boolean step() {
+					return commenter.commentNext(pc, links);
+				}
+			}
+		};
+
+		long lastCommit = System.currentTimeMillis();
+		int index = stages.length - 1;
+		while (index >= 0) {
+			Stage stage = stages[index];
+			if (stage.idle) {
+				index -= 1;
+				continue;
+			}
+
+			// Run this stage until it has no work to do, or until it has
+			// taken as many steps as it is allowed.
+			int count = 0;
+			while (count != stage.maxSteps) {
+				if (stage.step()) {
+					if (!stage.progressed) {
+						stage.idle = true;
+						break;
+					}
+					stage.progressed = false;
+				} else {
+					stage.progressed = true;
+					count += 1;
+				}
+			}
+
+			// If progress was made then the stages downstream of this one
+			// may have work to do, and take priority over it.
+			if (count != 0) {
+				for (int i = index + 1; i != stages.length; ++i) {
+					stages[i].idle = false;
+				}
+				index = stages.length - 1;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastCommit >= commitInterval) {
+				commit();
+				lastCommit = now;
+			}
+		}
+		commit();
+	}
+
+	/** Commit the current revision. */
+	private void commit() {
+		db.getNextRevision().commit();
+		commitCount += 1;
+	}
+}
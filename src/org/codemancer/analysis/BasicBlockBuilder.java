@@ -0,0 +1,301 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.codemancer.db.Fact;
+import org.codemancer.db.Line;
+import org.codemancer.db.BasicBlock;
+import org.codemancer.db.Database;
+
+/** A class for making basic blocks while disassembling.
+ * The iterative disassembler passes each line to this object as it is
+ * made, together with the destination address of each reference that
+ * it makes or processes. Lines are grouped into basic blocks using the
+ * same rules as the basic block detector, but without decoding them a
+ * second time or querying the database for the next destination.
+ *
+ * A block is ended by a branch or return instruction, or by an address
+ * which is known to be the destination of a reference. If a destination
+ * is found later which lies within a block already made, then that block
+ * is retired and replaced by two blocks which meet at the destination.
+ * The blocks and lines seen are kept in memory, indexed by address, so
+ * that this can be done without searching the database.
+ *
+ * The lines are also grouped into extents, each of which is a range of
+ * addresses covered by adjoining lines. Blocks are only made within an
+ * extent in which no lines overlap, and no destination lies within a
+ * line. If an extent is found to violate these conditions then any
+ * blocks already made within it are retired, and its lines are left
+ * unprocessed for the basic block detector to deal with in the normal
+ * way. The same is done for any block ending with an instruction which
+ * neither falls through nor branches. Only the destinations passed to
+ * this object are known to it, so references processed before it was
+ * constructed are disregarded.
+ */
+public class BasicBlockBuilder {
+	/** A class to represent a range of addresses covered by adjoining lines. */
+	private static class Extent {
+		/** The first address covered. */
+		long minAddr;
+
+		/** The last address covered. */
+		long maxAddr;
+
+		/** True if blocks may be made within this extent, otherwise false. */
+		boolean clean = true;
+
+		/** Construct extent.
+		 * @param minAddr the first address covered
+		 * @param maxAddr the last address covered
+		 */
+		Extent(long minAddr, long maxAddr) {
+			this.minAddr = minAddr;
+			this.maxAddr = maxAddr;
+		}
+	}
+
+	/** The database in which blocks are made. */
+	private final Database db;
+
+	/** A record of the dependencies between facts. */
+	private final FactDependencies deps;
+
+	/** The blocks made by this object which are still current, indexed by first address. */
+	private final TreeMap<Long, BasicBlock> blocks = new TreeMap<Long, BasicBlock>();
+
+	/** The lines seen so far, indexed by first address. */
+	private final TreeMap<Long, Line> lines = new TreeMap<Long, Line>();
+
+	/** The extents covered by the lines seen so far, indexed by first address. */
+	private final TreeMap<Long, Extent> extents = new TreeMap<Long, Extent>();
+
+	/** The destination addresses of the references seen so far. */
+	private final TreeSet<Long> destinations = new TreeSet<Long>();
+
+	/** The lines of the block currently being built, in order of address. */
+	private List<Line> openLines = new ArrayList<Line>();
+
+	/** True if the last line of the block being built can fall through, otherwise false. */
+	private boolean openFallThrough = false;
+
+	/** True if the block being built can be made, or false if its lines
+	 * must be left for the basic block detector. */
+	private boolean openValid = true;
+
+	/** Construct basic block builder.
+	 * @param db the database in which blocks are to be made
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public BasicBlockBuilder(Database db, FactDependencies deps) {
+		this.db = db;
+		this.deps = deps;
+	}
+
+	/** Record the destination address of a reference.
+	 * If the address lies within a block that has already been made, or
+	 * is being built, then that block is split so that a new block starts
+	 * at the destination.
+	 * @param addr the destination address
+	 */
+	public final void addDestination(long addr) {
+		if (!destinations.add(addr)) return;
+		Extent extent = getExtent(addr);
+		if ((extent == null) || !extent.clean) return;
+		if (!lines.containsKey(addr)) {
+			markDirty(extent);
+			return;
+		}
+
+		// Split the block being built, if it contains the destination.
+		if (!openLines.isEmpty() && (addr > openLines.get(0).getMinAddr()) &&
+			(addr <= openLines.get(openLines.size() - 1).getMaxAddr())) {
+
+			if (openValid) {
+				int index = indexOf(openLines, addr);
+				make(openLines.subList(0, index), true);
+				openLines = new ArrayList<Line>(openLines.subList(index, openLines.size()));
+			}
+			return;
+		}
+
+		// Split any block already made which contains the destination.
+		Map.Entry<Long, BasicBlock> entry = blocks.lowerEntry(addr);
+		if ((entry == null) || (entry.getValue().getMaxAddr() < addr)) return;
+		BasicBlock block = entry.getValue();
+		blocks.remove(entry.getKey());
+		deps.retire(block);
+		make(new ArrayList<Line>(lines.subMap(block.getMinAddr(), true, addr, false).values()), true);
+		make(new ArrayList<Line>(lines.subMap(addr, true, block.getMaxAddr(), true).values()),
+			block.canFallThrough());
+	}
+
+	/** Add a line to the block currently being built.
+	 * Lines must be added in order of address, with no gaps, until the
+	 * chain to which they belong is ended.
+	 * @param line the line
+	 * @param canFallThrough true if the instruction can fall through, otherwise false
+	 * @param endsBlock true if the instruction is a branch or return, otherwise false
+	 */
+	public final void addLine(Line line, boolean canFallThrough, boolean endsBlock) {
+		long minAddr = line.getMinAddr();
+		long maxAddr = line.getMaxAddr();
+		if (!openLines.isEmpty() && destinations.contains(minAddr)) {
+			closeBlock();
+		}
+
+		lines.put(minAddr, line);
+		Extent extent = addExtent(minAddr, maxAddr);
+		Long innerAddr = destinations.higher(minAddr);
+		if (extent.clean && (innerAddr != null) && (innerAddr <= maxAddr)) {
+			markDirty(extent);
+		}
+
+		openLines.add(line);
+		openFallThrough = canFallThrough;
+		if (!extent.clean) {
+			openValid = false;
+		}
+		if (endsBlock) {
+			closeBlock();
+		} else if (!canFallThrough) {
+			// The basic block detector would continue past an instruction
+			// which neither falls through nor branches, so the outcome
+			// cannot be determined from the lines alone.
+			openValid = false;
+		}
+	}
+
+	/** End the chain of lines currently being added.
+	 * If the chain was ended because it reached a line which had already
+	 * been disassembled, then the block being built can only be made if
+	 * the basic block detector would have ended it at the same point.
+	 * Otherwise, the detector would continue into the extent containing
+	 * that line, so neither extent can be relied upon.
+	 * @param nextAddr the address following the last line added
+	 * @param stopAddr the address of the line which ended the chain, or null
+	 *  if the chain was ended by the last line added or by an instruction
+	 *  which could not be decoded
+	 */
+	public final void endChain(long nextAddr, Long stopAddr) {
+		if ((stopAddr != null) && !openLines.isEmpty() && !destinations.contains(nextAddr) &&
+			((nextAddr == stopAddr) || !destinations.contains(stopAddr))) {
+
+			markDirty(getExtent(nextAddr - 1));
+			markDirty(getExtent(stopAddr));
+		}
+		closeBlock();
+	}
+
+	/** Get the extent containing a given address.
+	 * @param addr the address
+	 * @return the extent, or null if none
+	 */
+	private Extent getExtent(long addr) {
+		Map.Entry<Long, Extent> entry = extents.floorEntry(addr);
+		if ((entry == null) || (entry.getValue().maxAddr < addr)) {
+			return null;
+		}
+		return entry.getValue();
+	}
+
+	/** Add the range of addresses covered by a line to the extents.
+	 * Any extents which the line overlaps or adjoins are merged with it.
+	 * The result is not clean if the line overlaps an existing extent
+	 * (and therefore an existing line), or if any of the extents merged
+	 * were not clean.
+	 * @param minAddr the first address covered by the line
+	 * @param maxAddr the last address covered by the line
+	 * @return the extent containing the line
+	 */
+	private Extent addExtent(long minAddr, long maxAddr) {
+		Extent extent = new Extent(minAddr, maxAddr);
+		boolean clean = true;
+		Map.Entry<Long, Extent> entry = extents.floorEntry(maxAddr + 1);
+		while ((entry != null) && (entry.getValue().maxAddr + 1 >= minAddr)) {
+			Extent other = entry.getValue();
+			if (!other.clean || ((other.maxAddr >= minAddr) && (other.minAddr <= maxAddr))) {
+				clean = false;
+			}
+			extent.minAddr = Math.min(extent.minAddr, other.minAddr);
+			extent.maxAddr = Math.max(extent.maxAddr, other.maxAddr);
+			extents.remove(entry.getKey());
+			entry = extents.lowerEntry(entry.getKey());
+		}
+		extents.put(extent.minAddr, extent);
+		if (!clean) {
+			markDirty(extent);
+		}
+		return extent;
+	}
+
+	/** Leave the lines of an extent for the basic block detector.
+	 * Any blocks already made within the extent are retired, as is the
+	 * block being built if it lies within the extent.
+	 * @param extent the extent
+	 */
+	private void markDirty(Extent extent) {
+		extent.clean = false;
+		List<BasicBlock> retired = new ArrayList<BasicBlock>(
+			blocks.subMap(extent.minAddr, true, extent.maxAddr, true).values());
+		for (BasicBlock block: retired) {
+			blocks.remove(block.getMinAddr());
+			deps.retire(block);
+		}
+		if (!openLines.isEmpty() && (openLines.get(0).getMinAddr() >= extent.minAddr) &&
+			(openLines.get(0).getMinAddr() <= extent.maxAddr)) {
+
+			openValid = false;
+		}
+	}
+
+	/** Make a block from the lines currently being built, if they are valid,
+	 * and begin a new one. */
+	private void closeBlock() {
+		if (!openLines.isEmpty() && openValid) {
+			make(openLines, openFallThrough);
+		}
+		openLines = new ArrayList<Line>();
+		openValid = true;
+	}
+
+	/** Make a block from a list of lines.
+	 * @param lines the lines, in order of address
+	 * @param fallThrough true if the last line can fall through, otherwise false
+	 */
+	private void make(List<Line> lines, boolean fallThrough) {
+		long minAddr = lines.get(0).getMinAddr();
+		long maxAddr = lines.get(lines.size() - 1).getMaxAddr();
+		BasicBlock bb = db.getBasicBlocks().make(minAddr, maxAddr, fallThrough);
+		for (Line line: lines) {
+			line.setProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR);
+			deps.addDerived(line, bb, Fact.DONE_BASIC_BLOCK_DETECTOR);
+		}
+		blocks.put(minAddr, bb);
+	}
+
+	/** Find the line which starts at a given address.
+	 * @param lines the lines to be searched, in order of address
+	 * @param addr the address
+	 * @return the index of the line, or -1 if there is none
+	 */
+	private static int indexOf(List<Line> lines, long addr) {
+		for (int i = 0; i != lines.size(); ++i) {
+			long minAddr = lines.get(i).getMinAddr();
+			if (minAddr == addr) {
+				return i;
+			} else if (minAddr > addr) {
+				break;
+			}
+		}
+		return -1;
+	}
+}
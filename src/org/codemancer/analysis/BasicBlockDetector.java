@@ -7,8 +7,6 @@ package org.codemancer.analysis;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -16,14 +14,7 @@ import org.codemancer.loader.ObjectFile;
 import org.codemancer.loader.ObjectFileReader;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Register;
-import org.codemancer.cpudl.expr.Constant;
-import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.Architecture;
-import org.codemancer.cpudl.FeatureSet;
-import org.codemancer.cpudl.BitString;
-import org.codemancer.cpudl.ShortBitString;
-import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
 import org.codemancer.db.Fact;
 import org.codemancer.db.Line;
 import org.codemancer.db.Reference;
@@ -44,8 +35,11 @@ public class BasicBlockDetector {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
-	/** The feature set to be used when disassembling. */
-	private FeatureSet features;
+	/** A store for decoded instructions. */
+	private DecodedInstructionStore store;
+
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
 
 	/** A list of pending unprocessed lines. */
 	private List<Line> pendingList = new ArrayList<Line>();
@@ -61,11 +55,35 @@ public class BasicBlockDetector {
 	 * @param arch the architecture
 	 */
 	public BasicBlockDetector(ObjectFile obj, Database db, Architecture arch) throws IOException {
+		this(obj, db, arch, new DecodedInstructionStore(obj, arch));
+	}
+
+	/** Construct basic block detector.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 */
+	public BasicBlockDetector(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store) throws IOException {
+		this(obj, db, arch, store, new FactDependencies(db));
+	}
+
+	/** Construct basic block detector.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public BasicBlockDetector(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps) throws IOException {
+
 		this.obj = obj;
 		this.reader = new ObjectFileReader(obj);
 		this.db = db;
 		this.arch = arch;
-		this.features = new FeatureSet(arch);
+		this.store = store;
+		this.deps = deps;
 	}
 
 	/** Make a basic block starting at a given address.
@@ -74,12 +92,6 @@ public class BasicBlockDetector {
 	 * @param links a list of possible expressions for a subroutine return address
 	 */
 	public void detect(long addr, Register pc, List<Expression> links) {
-		Type start = arch.getStart();
-
-		// Initialise buffer.
-		BitString buffer = new ShortBitString();
-		reader.seek(addr);
-
 		// Determine address at which disassembly would stop as a result of
 		// reaching the destination of a branch or call instruction.
 		Long stopAddr = db.getReferences().findNextDestination(addr);
@@ -88,53 +100,27 @@ public class BasicBlockDetector {
 		long startAddr = addr;
 		boolean fallThrough = false;
 		while ((stopAddr == null) || (addr < stopAddr)) {
-			// Fill/refill buffer.
-			while ((buffer.length() < 64) && ((stopAddr == null) || (reader.tell() < stopAddr))) {
-				byte newByte = reader.get();
-				BitString newBits = new ShortBitString(newByte, 8, arch.isBigEndian());
-				buffer = buffer.concat(newBits);
+			// Fetch the next instruction, which must not overlap the stop address.
+			DecodedInstructionStore.Instruction decoded = store.get(addr, pc, links);
+			if (decoded == null) {
+				break;
 			}
-
-			// Decode the next instruction.
-			BitReader codeReader = new BitStringReader(buffer);
-			List<BitReader> codeReaders = new ArrayList<BitReader>();
-			codeReaders.add(codeReader);
-			Expression instr = start.decode(codeReaders, features);
-			if (instr == null) {
+			long byteCount = decoded.getLength();
+			if ((stopAddr != null) && (addr + byteCount > stopAddr)) {
 				break;
 			}
 
-			// Resolve references within instruction.
-			instr = instr.resolveReferences(null, null);
-
 			// Classify this instruction.
-			// This must be done /before/ resolving any registers.
-			InstructionClassifier classifier = new InstructionClassifier(instr, pc, links);
+			InstructionClassifier classifier = decoded.getClassifier();
 			fallThrough = classifier.canFallThrough();
 
-			// Resolve the instruction counter.
-			Map<String, Expression> registers = new HashMap<String, Expression>();
-			registers.put("PC", new Constant(null, addr));
-			instr = instr.resolveRegisters(registers).simplify();
-
-			// Calculate the length of this instruction.
-			long bitCount = codeReader.tell();
-			if ((bitCount & 7) != 0) {
-				throw new IllegalArgumentException("instruction not a whole number of bytes");
-			}
-			long byteCount = bitCount >> 3;
-
 			// Advance the address to the next instruction.
-			// (The reader will already have been advanced while decoding the instruction.)
 			addr += byteCount;
 
 			// Detect instructions which would terminate the basic block.
 			if (classifier.isBranch() || classifier.isReturn()) {
 				break;
 			}
-
-			// Remove any bits which have been disassembled.
-			buffer = buffer.substring(bitCount, buffer.length());
 		}
 
 		if (addr > startAddr) {
@@ -142,6 +128,7 @@ public class BasicBlockDetector {
 			List<Line> lines = db.getLines().getMembersOf(bb);
 			for (Line line: lines) {
 				line.setProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR);
+				deps.addDerived(line, bb, Fact.DONE_BASIC_BLOCK_DETECTOR);
 			}
 		}
 	}
@@ -166,6 +153,11 @@ public class BasicBlockDetector {
 		if (!line.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR)) {
 			long addr = line.getMinAddr();
 			detect(addr, pc, links);
+
+			// If no block could be made starting at this line (for example,
+			// because it overlaps the destination of a reference) then it
+			// should not be found again.
+			line.setProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR);
 		}
 		pendingIndex += 1;
 		return false;
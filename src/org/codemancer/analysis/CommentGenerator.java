@@ -6,7 +6,6 @@
 package org.codemancer.analysis;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
@@ -20,13 +19,7 @@ import org.codemancer.loader.ObjectFileReader;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Register;
 import org.codemancer.cpudl.expr.Constant;
-import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.Architecture;
-import org.codemancer.cpudl.FeatureSet;
-import org.codemancer.cpudl.BitString;
-import org.codemancer.cpudl.ShortBitString;
-import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
 import org.codemancer.db.Fact;
 import org.codemancer.db.BasicBlock;
 import org.codemancer.db.ExtendedBasicBlock;
@@ -48,8 +41,11 @@ public class CommentGenerator {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
-	/** The feature set to be used when disassembling. */
-	private FeatureSet features;
+	/** A store for decoded instructions. */
+	private DecodedInstructionStore store;
+
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
 
 	/** A queue of basis blocks waiting to be processed. */
 	private Queue<BasicBlock> pendingBlocks = new ArrayDeque<BasicBlock>();
@@ -60,11 +56,35 @@ public class CommentGenerator {
 	 * @param arch the architecture
 	 */
 	public CommentGenerator(ObjectFile obj, Database db, Architecture arch) throws IOException {
+		this(obj, db, arch, new DecodedInstructionStore(obj, arch));
+	}
+
+	/** Construct comment generator.
+	 * @param obj the object file to be commented
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 */
+	public CommentGenerator(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store) throws IOException {
+		this(obj, db, arch, store, new FactDependencies(db));
+	}
+
+	/** Construct comment generator.
+	 * @param obj the object file to be commented
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public CommentGenerator(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps) throws IOException {
+
 		this.obj = obj;
 		this.reader = new ObjectFileReader(obj);
 		this.db = db;
 		this.arch = arch;
-		this.features = new FeatureSet(arch);
+		this.store = store;
+		this.deps = deps;
 	}
 
 	/** Generate comments for a given basic block
@@ -73,52 +93,29 @@ public class CommentGenerator {
 	 * @param links a list of possible expressions for a subroutine return address
 	 */
 	private void comment(BasicBlock block, Register pc, List<Expression> links) {
-		Type start = arch.getStart();
-
-		// Initialise buffer.
-		BitString buffer = new ShortBitString();
-		reader.seek(block.getMinAddr());
-
 		// Disassemble each instruction in the basic block.
 		long addr = block.getMinAddr();
 		while (addr <= block.getMaxAddr()) {
-			// Fill/refill buffer.
-			while ((buffer.length() < 64) && (reader.tell() <= block.getMaxAddr())) {
-				byte newByte = reader.get();
-				BitString newBits = new ShortBitString(newByte, 8, arch.isBigEndian());
-				buffer = buffer.concat(newBits);
-			}
-
-			// Decode the next instruction.
-			BitReader codeReader = new BitStringReader(buffer);
-			List<BitReader> codeReaders = new ArrayList<BitReader>();
-			codeReaders.add(codeReader);
-			Expression instr = start.decode(codeReaders, features);
-			if (instr == null) {
+			// Fetch the next instruction, which must lie within the block.
+			DecodedInstructionStore.Instruction decoded = store.get(addr, pc, links);
+			if (decoded == null) {
 				break;
 			}
-
-			// Resolve references within instruction.
-			instr = instr.resolveReferences(null, null);
-
-			// Calculate the length of the instruction.
-			long bitCount = codeReader.tell();
-			if ((bitCount & 7) != 0) {
-				throw new IllegalArgumentException("instruction not a whole number of bytes");
+			long byteCount = decoded.getLength();
+			if (addr + byteCount - 1 > block.getMaxAddr()) {
+				break;
 			}
-			long byteCount = bitCount >> 3;
+			Expression instr = decoded.getInstruction();
 
 			// Evaluate the effect of this instruction.
 			SsaStatePlayer state = new SsaStatePlayer(reader, db, arch, addr);
 			instr.evaluate(state);
 			String commentString = state.getComment();
 			Comment comment = db.getComments().make(addr, true, commentString);
+			deps.addDerived(block, comment, Fact.DONE_COMMENT_GENERATOR);
 
 			// Advance the address to the next instruction.
 			addr += byteCount;
-
-			// Remove any bits which have been disassembled.
-			buffer = buffer.substring(bitCount, buffer.length());
 		}
 	}
 
@@ -130,8 +127,18 @@ public class CommentGenerator {
 	public boolean commentNext(Register pc, List<Expression> links) {
 		// If the pending blocks queue is empty then attempt to refill it.
 		if (pendingBlocks.isEmpty()) {
-			// Attempt to refill the blocks queue.
-			pendingBlocks.addAll(db.getBasicBlocks().getUnprocessed(Fact.DONE_COMMENT_GENERATOR));
+			// Attempt to refill the blocks queue. Comments are generated
+			// from SSA mappings, so only blocks for which these have been
+			// made can be commented. A block which is awaiting reassignment
+			// to an extended basic block may still refer to its old one.
+			for (BasicBlock block: db.getBasicBlocks().getUnprocessed(Fact.DONE_COMMENT_GENERATOR)) {
+				ExtendedBasicBlock ebb = block.getExtendedBasicBlock();
+				if (block.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR) &&
+					(ebb != null) && ebb.isProcessed(Fact.DONE_SSA_MAPPER)) {
+
+					pendingBlocks.add(block);
+				}
+			}
 
 			// If the queue is still empty then stop because there is nothing to do.
 			if (pendingBlocks.isEmpty()) return true;
@@ -142,6 +149,12 @@ public class CommentGenerator {
 			BasicBlock block = pendingBlocks.remove();
 			comment(block, pc, links);
 			block.setProcessed(Fact.DONE_COMMENT_GENERATOR);
+
+			// The comments depend on the SSA mappings of the extended basic block.
+			ExtendedBasicBlock ebb = block.getExtendedBasicBlock();
+			if (ebb != null) {
+				deps.addUse(ebb, block, Fact.DONE_COMMENT_GENERATOR);
+			}
 		}
 		return false;
 	}
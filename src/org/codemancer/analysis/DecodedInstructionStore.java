@@ -0,0 +1,286 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.lang.ref.SoftReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.Reference;
+import java.io.IOException;
+
+import org.codemancer.loader.ObjectFile;
+import org.codemancer.loader.ObjectFileReader;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.cpudl.expr.ExpressionInterner;
+import org.codemancer.cpudl.type.DecodeCache;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+
+/** A class for storing decoded instructions, indexed by address.
+ * Each address is decoded at most once for as long as its entry remains
+ * in the store, allowing the result to be shared between analysis passes.
+ * Entries are held by soft reference, so the store will shrink if memory
+ * is needed elsewhere, in which case the affected addresses are decoded
+ * again on demand. Addresses which could not be decoded are recorded by
+ * entries of the same kind, so are subject to the same limit.
+ *
+ * The store may be used by more than one thread at once. Instructions are
+ * decoded and classified without holding the lock on the store, so that
+ * threads fetching different addresses do not wait for each other.
+ */
+public class DecodedInstructionStore {
+	/** A class to represent a decoded instruction. */
+	public static class Instruction {
+		/** The address of the instruction. */
+		private final long addr;
+
+		/** The length of the instruction, in bytes. */
+		private final long length;
+
+		/** The instruction, with references (but not registers) resolved. */
+		private final Expression instr;
+
+		/** The classification of the instruction. */
+		private final InstructionClassifier classifier;
+
+		/** The program counter used to classify the instruction. */
+		private final Register pc;
+
+		/** The list of subroutine return addresses used to classify the instruction. */
+		private final List<Expression> links;
+
+		/** Construct decoded instruction.
+		 * @param addr the address of the instruction
+		 * @param length the length of the instruction, in bytes
+		 * @param instr the instruction, with references resolved
+		 * @param pc the program counter
+		 * @param links a list of possible expressions for a subroutine return address
+		 * @param interner the interner to be used when classifying the instruction
+		 */
+		Instruction(long addr, long length, Expression instr, Register pc, List<Expression> links,
+			ExpressionInterner interner) {
+
+			this.addr = addr;
+			this.length = length;
+			this.instr = instr;
+			this.classifier = new InstructionClassifier(instr, pc, links, interner);
+			this.pc = pc;
+			this.links = links;
+		}
+
+		/** Construct a placeholder for an address which could not be decoded.
+		 * @param addr the address
+		 */
+		private Instruction(long addr) {
+			this.addr = addr;
+			this.length = 0;
+			this.instr = null;
+			this.classifier = null;
+			this.pc = null;
+			this.links = null;
+		}
+
+		/** Get the address of this instruction.
+		 * @return the address
+		 */
+		public final long getAddr() {
+			return addr;
+		}
+
+		/** Get the length of this instruction.
+		 * @return the length, in bytes
+		 */
+		public final long getLength() {
+			return length;
+		}
+
+		/** Get this instruction as an expression.
+		 * References will have been resolved, but registers will not.
+		 * @return the instruction
+		 */
+		public final Expression getInstruction() {
+			return instr;
+		}
+
+		/** Get the classification of this instruction.
+		 * @return the classifier
+		 */
+		public final InstructionClassifier getClassifier() {
+			return classifier;
+		}
+	}
+
+	/** A soft reference to an entry in the store, which remembers its address. */
+	private static class Entry extends SoftReference<Instruction> {
+		/** The address of the entry. */
+		final long addr;
+
+		/** Construct store entry.
+		 * @param addr the address of the entry
+		 * @param instr the decoded instruction
+		 * @param queue the queue with which the reference is to be registered
+		 */
+		Entry(long addr, Instruction instr, ReferenceQueue<Instruction> queue) {
+			super(instr, queue);
+			this.addr = addr;
+		}
+	}
+
+	/** A reader for the object file. */
+	private final ObjectFileReader reader;
+
+	/** The architecture to be used when decoding. */
+	private final Architecture arch;
+
+	/** The feature set to be used when decoding. */
+	private final FeatureSet features;
+
+	/** The entries in this store, indexed by address. An address which
+	 * could not be decoded has an entry for a placeholder instruction. */
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	/** A queue of entries which have been cleared by the garbage collector. */
+	private final ReferenceQueue<Instruction> queue = new ReferenceQueue<Instruction>();
+
+	/** The interner used when classifying instructions, so that structurally
+	 * equal expressions are shared between them. */
+	private final ExpressionInterner interner = new ExpressionInterner();
+
+	/** The number of instructions which have been decoded. */
+	private long decodeCount = 0;
+
+	/** Construct decoded instruction store.
+	 * @param obj the object file containing the instructions
+	 * @param arch the architecture
+	 */
+	public DecodedInstructionStore(ObjectFile obj, Architecture arch) throws IOException {
+		this.reader = new ObjectFileReader(obj);
+		this.arch = arch;
+		this.features = new FeatureSet(arch);
+	}
+
+	/** Get the instruction at a given address, decoding it if necessary.
+	 * The instruction is classified using the given program counter and
+	 * subroutine return addresses. If these differ from the ones used
+	 * when the instruction was first stored then it is reclassified.
+	 * @param addr the address of the instruction
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @return the instruction, or null if the address could not be decoded
+	 */
+	public Instruction get(long addr, Register pc, List<Expression> links) {
+		Instruction instr;
+		synchronized (this) {
+			purge();
+			Entry entry = entries.get(addr);
+			instr = (entry != null) ? entry.get() : null;
+			if ((instr != null) && (instr.instr == null)) {
+				return null;
+			}
+			if ((instr != null) && (instr.pc == pc) && (instr.links == links)) {
+				return instr;
+			}
+		}
+
+		// Decode or reclassify the instruction without holding the lock.
+		// If another thread does the same at the same time then the first
+		// result to be stored is the one which is kept.
+		if (instr == null) {
+			instr = decode(addr, pc, links);
+		} else {
+			instr = new Instruction(addr, instr.length, instr.instr, pc, links, interner);
+		}
+
+		synchronized (this) {
+			if (instr == null) {
+				entries.put(addr, new Entry(addr, new Instruction(addr), queue));
+				return null;
+			}
+			Entry entry = entries.get(addr);
+			Instruction existing = (entry != null) ? entry.get() : null;
+			if ((existing != null) && (existing.pc == pc) && (existing.links == links)) {
+				return existing;
+			}
+			entries.put(addr, new Entry(addr, instr, queue));
+		}
+		return instr;
+	}
+
+	/** Get the number of instructions which have been decoded.
+	 * This includes any which have been decoded more than once as a
+	 * result of having been cleared from the store.
+	 * @return the number of instructions decoded
+	 */
+	public synchronized long getDecodeCount() {
+		return decodeCount;
+	}
+
+	/** Decode the instruction at a given address.
+	 * @param addr the address of the instruction
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @return the instruction, or null if the address could not be decoded
+	 */
+	private Instruction decode(long addr, Register pc, List<Expression> links) {
+		if (!reader.isMapped(addr)) {
+			return null;
+		}
+
+		// Read directly from the content of the segment.
+		BitReader codeReader = new ByteBufferReader(reader.getContent(addr, Long.MAX_VALUE), arch.isBigEndian());
+		List<BitReader> codeReaders = new ArrayList<BitReader>();
+		codeReaders.add(codeReader);
+
+		DecodeCache decodeCache = arch.getDecodeCache();
+		Expression instr = decodeCache.decode(codeReaders, features);
+		synchronized (this) {
+			decodeCount += 1;
+		}
+		if (instr == null) {
+			return null;
+		}
+
+		// Resolve references within instruction.
+		instr = instr.resolveReferences(null, null);
+
+		// Calculate the length of the instruction.
+		long bitCount = codeReader.tell();
+		if ((bitCount & 7) != 0) {
+			throw new IllegalArgumentException("instruction not a whole number of bytes");
+		}
+		return new Instruction(addr, bitCount >> 3, instr, pc, links, interner);
+	}
+
+	/** Clear the entry for a given address, as the garbage collector would
+	 * if memory were needed elsewhere.
+	 * @param addr the address
+	 */
+	synchronized void clear(long addr) {
+		Entry entry = entries.get(addr);
+		if (entry != null) {
+			entry.clear();
+			entry.enqueue();
+		}
+	}
+
+	/** Remove any entries which have been cleared by the garbage collector. */
+	private void purge() {
+		Reference<? extends Instruction> ref = queue.poll();
+		while (ref != null) {
+			Entry entry = (Entry)ref;
+			if (entries.get(entry.addr) == entry) {
+				entries.remove(entry.addr);
+			}
+			ref = queue.poll();
+		}
+	}
+}
@@ -32,6 +32,9 @@ public class ExtendedBasicBlockDetector {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
+
 	/** A list of pending unprocessed blocks. */
 	private List<BasicBlock> pendingList = new ArrayList<BasicBlock>();
 
@@ -41,7 +44,8 @@ public class ExtendedBasicBlockDetector {
 	private int pendingIndex = 0;
 
 	/** True if processing will be finished once the end of the pending list
-	 * is reached, otherwise false. */
+	 * is reached, otherwise false. Once finished, processing resumes on the
+	 * next call in case further blocks have become available. */
 	private boolean done = false;
 
 	/** Construct extended basic block detector.
@@ -50,9 +54,20 @@ public class ExtendedBasicBlockDetector {
 	 * @param arch the architecture
 	 */
 	public ExtendedBasicBlockDetector(ObjectFile obj, Database db, Architecture arch) {
+		this(obj, db, arch, new FactDependencies(db));
+	}
+
+	/** Construct extended basic block detector.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public ExtendedBasicBlockDetector(ObjectFile obj, Database db, Architecture arch, FactDependencies deps) {
 		this.obj = obj;
 		this.db = db;
 		this.arch = arch;
+		this.deps = deps;
 	}
 
 	/** Process the next unprocessed basic block.
@@ -62,7 +77,10 @@ public class ExtendedBasicBlockDetector {
 	 */
 	public boolean detectNext(Register pc, List<Expression> links) {
 		if (pendingIndex == pendingList.size()) {
-			if (done) return true;
+			if (done) {
+				done = false;
+				return true;
+			}
 			pendingList = db.getBasicBlocks().getUnprocessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
 			pendingIndex = 0;
 			if (pendingList.size() == 0) return true;
@@ -88,6 +106,9 @@ public class ExtendedBasicBlockDetector {
 
 			if (ebb == null) {
 				ebb = db.getExtendedBasicBlocks().make(addr);
+				deps.addDerived(block, ebb, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+			} else {
+				deps.addUse(prevBlock, block, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
 			}
 			block.setExtendedBasicBlock(ebb);
 			block.setProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
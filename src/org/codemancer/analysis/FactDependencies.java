@@ -0,0 +1,228 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Deque;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.codemancer.db.Fact;
+import org.codemancer.db.Reference;
+import org.codemancer.db.BasicBlock;
+import org.codemancer.db.Database;
+
+/** A class for tracking which facts depend on which others.
+ * Each analysis pass records dependencies as it processes facts, so
+ * that when a fact is later found to be out of date, only the facts
+ * which depend on it need to be retired or reprocessed.
+ *
+ * Two kinds of dependency are recorded, each with the level of the
+ * pass which gave rise to it:
+ * - a fact is derived from another if it was made by the pass while
+ *   processing the other fact. It is retired if that fact is retired,
+ *   or must be reprocessed by the pass. Conversely, if it is retired
+ *   then that fact must be reprocessed by the pass so that a replacement
+ *   can be made.
+ * - a fact uses another if the outcome of processing it by the pass
+ *   depended on the other fact. It must be reprocessed by the pass if
+ *   the other fact is retired, or must itself be reprocessed by the
+ *   pass or an earlier one.
+ *
+ * A fact is reprocessed by lowering its processed level, whereupon it
+ * will be found by the pass concerned in the normal way. Dependencies
+ * are recorded only for facts processed through this object, so facts
+ * made before it was constructed are never retired by it.
+ */
+public class FactDependencies {
+	/** A class to represent a dependency on a fact. */
+	private static class Dependency {
+		/** The fact at the other end of the dependency. */
+		final Fact fact;
+
+		/** The level of the pass which gave rise to the dependency. */
+		final int level;
+
+		/** Construct dependency.
+		 * @param fact the fact at the other end of the dependency
+		 * @param level the level of the pass which gave rise to the dependency
+		 */
+		Dependency(Fact fact, int level) {
+			this.fact = fact;
+			this.level = level;
+		}
+	}
+
+	/** The level used in place of a pass level to indicate that a fact
+	 * is to be retired, as opposed to reprocessed. */
+	private static final int RETIRE = -1;
+
+	/** The database in which facts are retired. */
+	private final Database db;
+
+	/** The facts derived from each fact. */
+	private final Map<Fact, List<Dependency>> derived = new HashMap<Fact, List<Dependency>>();
+
+	/** The facts from which each fact was derived. */
+	private final Map<Fact, List<Dependency>> sources = new HashMap<Fact, List<Dependency>>();
+
+	/** The facts which use each fact. */
+	private final Map<Fact, List<Dependency>> users = new HashMap<Fact, List<Dependency>>();
+
+	/** True if any basic blocks have been recorded, otherwise false. */
+	private boolean blocksTracked = false;
+
+	/** Construct fact dependencies.
+	 * @param db the database in which facts are to be retired
+	 */
+	public FactDependencies(Database db) {
+		this.db = db;
+	}
+
+	/** Add a dependency to a map.
+	 * @param map the map
+	 * @param key the fact to which the dependency is attached
+	 * @param fact the fact at the other end of the dependency
+	 * @param level the level of the pass which gave rise to the dependency
+	 */
+	private static void add(Map<Fact, List<Dependency>> map, Fact key, Fact fact, int level) {
+		List<Dependency> deps = map.get(key);
+		if (deps == null) {
+			deps = new ArrayList<Dependency>(1);
+			map.put(key, deps);
+		}
+		deps.add(new Dependency(fact, level));
+	}
+
+	/** Remove the dependencies attached to a fact at or above a given level.
+	 * @param map the map from which to remove them
+	 * @param key the fact to which the dependencies are attached
+	 * @param level the lowest level to be removed
+	 * @return the dependencies removed
+	 */
+	private static List<Dependency> remove(Map<Fact, List<Dependency>> map, Fact key, int level) {
+		List<Dependency> removed = new ArrayList<Dependency>();
+		List<Dependency> deps = map.get(key);
+		if (deps != null) {
+			Iterator<Dependency> iter = deps.iterator();
+			while (iter.hasNext()) {
+				Dependency dep = iter.next();
+				if (dep.level >= level) {
+					removed.add(dep);
+					iter.remove();
+				}
+			}
+			if (deps.isEmpty()) {
+				map.remove(key);
+			}
+		}
+		return removed;
+	}
+
+	/** Record that one fact was derived from another.
+	 * @param input the fact being processed
+	 * @param output the fact made while processing it
+	 * @param level the level of the pass which made it
+	 */
+	public final void addDerived(Fact input, Fact output, int level) {
+		add(derived, input, output, level);
+		add(sources, output, input, level);
+		if (level == Fact.DONE_BASIC_BLOCK_DETECTOR) {
+			blocksTracked = true;
+		}
+	}
+
+	/** Record that the outcome of processing one fact depended on another.
+	 * @param used the fact on which the outcome depended
+	 * @param user the fact being processed
+	 * @param level the level of the pass which processed it
+	 */
+	public final void addUse(Fact used, Fact user, int level) {
+		add(users, used, user, level);
+	}
+
+	/** Test whether a fact was made while processing a fact recorded here.
+	 * @param fact the fact to be tested
+	 * @return true if it was, otherwise false
+	 */
+	public final boolean isTracked(Fact fact) {
+		return sources.containsKey(fact);
+	}
+
+	/** Require a fact to be reprocessed from a given level onwards.
+	 * Facts derived from it at or above that level are retired, and facts
+	 * which used it at or above that level must be reprocessed too.
+	 * @param fact the fact to be reprocessed
+	 * @param level the level of the first pass which must reprocess it
+	 */
+	public final void invalidate(Fact fact, int level) {
+		propagate(new Dependency(fact, level));
+	}
+
+	/** Retire a fact, together with any facts which depend on it.
+	 * Facts from which it was derived must be reprocessed by the pass
+	 * which derived it, so that a replacement can be made.
+	 * @param fact the fact to be retired
+	 */
+	public final void retire(Fact fact) {
+		propagate(new Dependency(fact, RETIRE));
+	}
+
+	/** Retire or reprocess a fact, then each fact which is affected in turn.
+	 * A chain of dependencies can be as long as the code is large, so the
+	 * affected facts are held in a worklist as opposed to being visited
+	 * recursively.
+	 * @param first the first fact, with the level from which it must be
+	 *  reprocessed or RETIRE if it is to be retired
+	 */
+	private void propagate(Dependency first) {
+		Deque<Dependency> work = new ArrayDeque<Dependency>();
+		work.push(first);
+		while (!work.isEmpty()) {
+			Dependency item = work.pop();
+			Fact fact = item.fact;
+			if (fact.getMaxRev() != -1) continue;
+			if (item.level == RETIRE) {
+				fact.retire(db.getCurrentRevision().get());
+				work.addAll(remove(sources, fact, Fact.DONE_NOTHING));
+				for (Dependency dep: remove(derived, fact, Fact.DONE_NOTHING)) {
+					work.push(new Dependency(dep.fact, RETIRE));
+				}
+				work.addAll(remove(users, fact, Fact.DONE_NOTHING));
+			} else {
+				fact.setNotProcessed(item.level);
+				for (Dependency dep: remove(derived, fact, item.level)) {
+					work.push(new Dependency(dep.fact, RETIRE));
+				}
+				work.addAll(remove(users, fact, item.level));
+			}
+		}
+	}
+
+	/** Invalidate any facts affected by a new code reference.
+	 * If the destination address lies within a basic block then that
+	 * block must be split, so it is retired. If it is the start of a
+	 * basic block then the extended basic block and subroutine to which
+	 * that block belongs may change, so it must be reprocessed from the
+	 * extended basic block detector onwards. Basic blocks which were
+	 * not made while processing facts recorded here are unaffected.
+	 * @param reference the reference
+	 */
+	public final void addReference(Reference reference) {
+		if (!reference.isCodeRef() || !blocksTracked) return;
+		long addr = reference.getDstAddr();
+		BasicBlock block = db.getBasicBlocks().getContaining(addr);
+		if ((block == null) || !isTracked(block)) return;
+		if (block.getMinAddr() != addr) {
+			retire(block);
+		} else {
+			invalidate(block, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Assignment;
 import org.codemancer.cpudl.expr.Fragment;
+import org.codemancer.cpudl.expr.ExpressionInterner;
 
 /** A class for classifying instructions according to how they affect the flow of control. */
 public class InstructionClassifier {
@@ -66,10 +67,29 @@ public class InstructionClassifier {
 	 * @param links a list of possible expressions for a subroutine return address
 	 */
 	public InstructionClassifier(Expression effect, Expression pc, List<Expression> links) {
+		this(effect, pc, links, null);
+	}
+
+	/** Create a classifier for a given instruction, interning the simplified effect.
+	 * Interning allows the destination addresses to be shared with those
+	 * of other instructions, and allows most comparisons against the
+	 * program counter and return addresses to succeed by identity.
+	 * @param effect the resolved effect of the instruction
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param interner the interner to be used, or null if none, which is locked while in use
+	 */
+	public InstructionClassifier(Expression effect, Expression pc, List<Expression> links, ExpressionInterner interner) {
 		if (effect instanceof Fragment) {
 			effect = ((Fragment)effect).getEffect();
 		}
 		effect = effect.simplify();
+		if (interner != null) {
+			// The interner may be shared by classifiers on other threads.
+			synchronized (interner) {
+				effect = interner.intern(effect);
+			}
+		}
 		List<Assignment> uncond = new ArrayList<Assignment>();
 		List<Assignment> cond = new ArrayList<Assignment>();
 		effect.listAssignments(uncond, cond, false);
@@ -7,8 +7,11 @@ package org.codemancer.analysis;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.io.IOException;
 
 import org.codemancer.loader.ObjectFile;
@@ -18,11 +21,6 @@ import org.codemancer.cpudl.expr.Constant;
 import org.codemancer.cpudl.expr.Register;
 import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.Architecture;
-import org.codemancer.cpudl.FeatureSet;
-import org.codemancer.cpudl.BitString;
-import org.codemancer.cpudl.ShortBitString;
-import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
 import org.codemancer.cpudl.EphemeralState;
 import org.codemancer.db.Fact;
 import org.codemancer.db.Line;
@@ -31,8 +29,209 @@ import org.codemancer.db.Database;
 
 /** A class for iteratively disassembling a supplied object file.
  * Usage is to repeatedly call process() until it returns true.
+ *
+ * In parallel mode, each call to process() handles a batch of pending
+ * references. The chain of instructions which follows each reference in
+ * the batch is first decoded, classified and unparsed by a pool of
+ * threads, each of which stops when it reaches a line already in the
+ * database or an address already claimed by another thread. The results
+ * are then committed to the database by the calling thread, in the same
+ * order and subject to the same termination conditions as in sequential
+ * mode, and discarded once the batch is complete. The database is
+ * therefore only accessed by one thread, and its content does not depend
+ * on the number of threads used or the size of the batches.
+ *
+ * If a basic block builder is supplied then basic blocks are made as
+ * the instructions are disassembled, as opposed to by a separate pass
+ * of the basic block detector. The detector should still be run
+ * afterwards to deal with any lines which the builder left unprocessed.
  */
 public class IterativeDisassembler {
+	/** A class to represent the outcome of disassembling one instruction. */
+	private static class Step {
+		/** The length of the instruction, in bytes, or 0 if it could not be decoded. */
+		final long length;
+
+		/** The disassembled instruction, or null if it could not be decoded. */
+		final String asm;
+
+		/** True if the instruction can fall through to the next one, otherwise false. */
+		final boolean canFallThrough;
+
+		/** The constant destination addresses of the instruction. */
+		final long[] dstAddrs;
+
+		/** True if the destination addresses refer to code, otherwise false. */
+		final boolean isCode;
+
+		/** True if the destination addresses refer to subroutines, otherwise false. */
+		final boolean isSub;
+
+		/** True if the instruction is a branch or return, and so ends a basic block, otherwise false. */
+		final boolean endsBlock;
+
+		/** The exception thrown when disassembling the instruction, or null if none. */
+		final RuntimeException failure;
+
+		/** Construct step.
+		 * @param length the length of the instruction, in bytes, or 0 if it could not be decoded
+		 * @param asm the disassembled instruction, or null if it could not be decoded
+		 * @param canFallThrough true if the instruction can fall through, otherwise false
+		 * @param dstAddrs the constant destination addresses
+		 * @param isCode true if the destinations refer to code, otherwise false
+		 * @param isSub true if the destinations refer to subroutines, otherwise false
+		 * @param endsBlock true if the instruction ends a basic block, otherwise false
+		 */
+		Step(long length, String asm, boolean canFallThrough, long[] dstAddrs, boolean isCode, boolean isSub,
+			boolean endsBlock) {
+
+			this.length = length;
+			this.asm = asm;
+			this.canFallThrough = canFallThrough;
+			this.dstAddrs = dstAddrs;
+			this.isCode = isCode;
+			this.isSub = isSub;
+			this.endsBlock = endsBlock;
+			this.failure = null;
+		}
+
+		/** Construct step for an instruction which could not be disassembled
+		 * because an exception was thrown.
+		 * @param failure the exception
+		 */
+		Step(RuntimeException failure) {
+			this.length = 0;
+			this.asm = null;
+			this.canFallThrough = false;
+			this.dstAddrs = new long[0];
+			this.isCode = false;
+			this.isSub = false;
+			this.endsBlock = false;
+			this.failure = failure;
+		}
+	}
+
+	/** A step to represent an address which could not be decoded. */
+	private static final Step UNDECODABLE = new Step(0, null, false, new long[0], false, false, false);
+
+	/** A step to mark an address which has been claimed by a thread but not yet disassembled. */
+	private static final Step CLAIMED = new Step(0, null, false, new long[0], false, false, false);
+
+	/** A class for exploring the chains of instructions which follow a set of addresses in parallel. */
+	private class Explorer {
+		/** The executor used to run exploration tasks. */
+		private final ExecutorService executor;
+
+		/** The program counter. */
+		private final Register pc;
+
+		/** A list of possible expressions for a subroutine return address. */
+		private final List<Expression> links;
+
+		/** The steps which have been disassembled, indexed by address. */
+		final ConcurrentHashMap<Long, Step> steps = new ConcurrentHashMap<Long, Step>();
+
+		/** The number of tasks which have been submitted but not yet finished. */
+		private int outstanding = 0;
+
+		/** The first exception thrown by a task, or null if none. */
+		private RuntimeException failure = null;
+
+		/** Construct explorer.
+		 * @param executor the executor used to run exploration tasks
+		 * @param pc the program counter
+		 * @param links a list of possible expressions for a subroutine return address
+		 */
+		Explorer(ExecutorService executor, Register pc, List<Expression> links) {
+			this.executor = executor;
+			this.pc = pc;
+			this.links = links;
+		}
+
+		/** Submit a task to explore from a given address.
+		 * @param addr the address from which to explore
+		 * @param stopAddr the address at which to stop exploring
+		 */
+		synchronized void submit(final long addr, final long stopAddr) {
+			outstanding += 1;
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							explore(addr, stopAddr);
+						} catch (RuntimeException ex) {
+							fail(ex);
+						} finally {
+							finish();
+						}
+					}
+				});
+			} catch (RuntimeException ex) {
+				// The task will never run (for example, because the
+				// executor has been shut down), so it must not be waited for.
+				fail(ex);
+				finish();
+			}
+		}
+
+		/** Record that a task has thrown an exception.
+		 * @param ex the exception
+		 */
+		private synchronized void fail(RuntimeException ex) {
+			if (failure == null) {
+				failure = ex;
+			}
+		}
+
+		/** Record that a task has finished. */
+		private synchronized void finish() {
+			outstanding -= 1;
+			if (outstanding == 0) {
+				notifyAll();
+			}
+		}
+
+		/** Wait until every task has finished.
+		 * If any task threw an exception then the first such exception is rethrown.
+		 */
+		synchronized void await() throws InterruptedException {
+			while (outstanding != 0) {
+				wait();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/** Disassemble a chain of instructions, starting from a given address.
+		 * The chain ends when an instruction is encountered which does not
+		 * fall through, or which cannot be decoded, or whose address has
+		 * already been claimed, or when the stop address is reached.
+		 *
+		 * Exploration can reach instructions which would not have been
+		 * reached in sequential mode, so if disassembling an instruction
+		 * throws an exception then it is recorded as part of the step, and
+		 * rethrown only if the step is committed.
+		 * @param addr the address from which to explore
+		 * @param stopAddr the address at which to stop exploring
+		 */
+		private void explore(long addr, long stopAddr) {
+			while ((addr < stopAddr) && reader.isMapped(addr) && (steps.putIfAbsent(addr, CLAIMED) == null)) {
+				Step step;
+				try {
+					step = makeStep(addr, pc, links);
+				} catch (RuntimeException ex) {
+					step = new Step(ex);
+				}
+				steps.put(addr, step);
+				if (!step.canFallThrough) {
+					break;
+				}
+				addr += step.length;
+			}
+		}
+	}
+
 	/** The object file to be disassembled. */
 	private ObjectFile obj;
 
@@ -45,8 +244,14 @@ public class IterativeDisassembler {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
-	/** The feature set to be used when disassembling. */
-	private FeatureSet features;
+	/** A store for decoded instructions. */
+	private DecodedInstructionStore store;
+
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
+
+	/** The builder with which to make basic blocks, or null if none. */
+	private BasicBlockBuilder builder;
 
 	/** A list of pending unprocessed references. */
 	private List<Reference> pendingList = new ArrayList<Reference>();
@@ -62,99 +267,175 @@ public class IterativeDisassembler {
 	 * @param arch the architecture
 	 */
 	public IterativeDisassembler(ObjectFile obj, Database db, Architecture arch) throws IOException {
+		this(obj, db, arch, new DecodedInstructionStore(obj, arch));
+	}
+
+	/** Construct iterative disassembler object.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 */
+	public IterativeDisassembler(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store) throws IOException {
+		this(obj, db, arch, store, new FactDependencies(db));
+	}
+
+	/** Construct iterative disassembler object.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public IterativeDisassembler(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps) throws IOException {
+
+		this(obj, db, arch, store, deps, null);
+	}
+
+	/** Construct iterative disassembler object.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 * @param builder the builder with which to make basic blocks while disassembling,
+	 *  or null to leave them to the basic block detector
+	 */
+	public IterativeDisassembler(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps, BasicBlockBuilder builder) throws IOException {
+
 		this.obj = obj;
 		this.reader = new ObjectFileReader(obj);
 		this.db = db;
 		this.arch = arch;
-		this.features = new FeatureSet(arch);
+		this.store = store;
+		this.deps = deps;
+		this.builder = builder;
 	}
 
-	/** Disassemble from a given address.
+	/** Disassemble from the destination address of a given reference.
 	 * The caller is responsible for embedding this operation within a transaction.
 	 * The sequence ends when an instruction is encountered which does not fall through,
 	 * or which cannot be decoded, or which has already been decoded.
-	 * @param addr the start address from which to disassemble
+	 * @param reference the reference being processed
 	 * @param pc the program counter
 	 * @param links a list of possible expressions for a subroutine return address
+	 * @param steps the steps disassembled in advance, indexed by address, or null if none
 	 */
-	private void disassemble(long addr, Register pc, List<Expression> links) {
-		Type start = arch.getStart();
-
-		// Initialise buffer.
-		BitString buffer = new ShortBitString();
-		reader.seek(addr);
+	private void disassemble(Reference reference, Register pc, List<Expression> links, Map<Long, Step> steps) {
+		// Any basic block containing the destination address may need to
+		// be split, or reassigned to a different extended basic block.
+		deps.addReference(reference);
+		long addr = reference.getDstAddr();
 
 		// Determine address at which disassembly should stop as a result of
 		// reaching an address which has already been disassembled.
 		Long stopAddr = db.getLines().findFirstAddr(addr);
 
 		// Disassemble until one of the termination conditions is met.
+		boolean overlaps = false;
 		while ((stopAddr == null) || (addr < stopAddr)) {
-			// Fill/refill buffer.
-			while ((buffer.length() < 64) && ((stopAddr == null) || (reader.tell() < stopAddr))) {
-				byte newByte = reader.get();
-				BitString newBits = new ShortBitString(newByte, 8, arch.isBigEndian());
-				buffer = buffer.concat(newBits);
-			}
-
-			// Decode the next instruction.
-			BitReader codeReader = new BitStringReader(buffer);
-			List<BitReader> codeReaders = new ArrayList<BitReader>();
-			codeReaders.add(codeReader);
-			Expression instr = start.decode(codeReaders, features);
-			if (instr == null) {
+			// Fetch the next instruction, which must not overlap the stop address.
+			// Use the result of parallel exploration if there is one.
+			Step step = (steps != null) ? steps.get(addr) : null;
+			if (step == null) {
+				step = makeStep(addr, pc, links);
+			} else if (step.failure != null) {
+				throw step.failure;
+			}
+			if (step.asm == null) {
 				break;
 			}
-
-			// Resolve references within instruction.
-			instr = instr.resolveReferences(null, null);
-
-			// Classify this instruction.
-			// This must be done /before/ resolving any registers.
-			InstructionClassifier classifier = new InstructionClassifier(instr, pc, links);
-
-			// Resolve the instruction counter.
-			Map<String, Expression> registers = new HashMap<String, Expression>();
-			registers.put("PC", new Constant(null, addr));
-			instr = instr.resolveRegisters(registers).simplify();
-
-			// Disassemble the instruction and calculate its length.
-			String asm = start.unparse(0, instr) + "\t" + start.unparse(1, instr);
-			long bitCount = codeReader.tell();
-			if ((bitCount & 7) != 0) {
-				throw new IllegalArgumentException("instruction not a whole number of bytes");
+			long byteCount = step.length;
+			if ((stopAddr != null) && (addr + byteCount > stopAddr)) {
+				overlaps = true;
+				break;
 			}
-			long byteCount = bitCount >> 3;
 
 			// Record the instruction as a line object.
-			db.getLines().make(addr, addr + byteCount - 1, asm);
+			Line line = db.getLines().make(addr, addr + byteCount - 1, step.asm);
+			deps.addDerived(reference, line, Fact.DONE_ITERATIVE_DISASSEMBLER);
+			if (builder != null) {
+				builder.addLine(line, step.canFallThrough, step.endsBlock);
+			}
 
 			// Record branches and subroutine calls.
-			for (Expression dst: classifier.getDestinationAddresses()) {
-				dst = dst.resolveRegisters(registers).simplify();
-				if (dst instanceof Constant) {
-					Constant dstConstant = (Constant)dst;
-					long dstAddr = dstConstant.getValue();
-					boolean isSub = classifier.isCall();
-					boolean isCode = isSub | classifier.isBranch();
-					db.getReferences().make(addr, dstAddr, true, false, isCode, isSub);
+			for (long dstAddr: step.dstAddrs) {
+				db.getReferences().make(addr, dstAddr, true, false, step.isCode, step.isSub);
+				if (builder != null) {
+					builder.addDestination(dstAddr);
 				}
 			}
 
 			// Advance the address to the next instruction.
-			// (The reader will already have been advanced while decoding the instruction.)
 			addr += byteCount;
 
 			// Break out of the loop of this instruction cannot fall through to the next one.
-			if (!classifier.canFallThrough()) {
+			if (!step.canFallThrough) {
 				break;
 			}
+		}
 
-			// Remove any bits which have been disassembled.
-			buffer = buffer.substring(bitCount, buffer.length());
+		// Make the basic block containing the last instruction, if it
+		// ended the chain, noting whether it was ended by an instruction
+		// which had already been disassembled.
+		if (builder != null) {
+			boolean blocked = overlaps || ((stopAddr != null) && (addr >= stopAddr));
+			builder.endChain(addr, (blocked) ? stopAddr : null);
 		}
 	}
 
+	/** Disassemble the instruction at a given address.
+	 * This does not access the database, so it may be called by more than
+	 * one thread at once.
+	 * @param addr the address of the instruction
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @return the outcome, which is UNDECODABLE if the address could not be decoded
+	 */
+	private Step makeStep(long addr, Register pc, List<Expression> links) {
+		// References within the instruction will already have been resolved,
+		// and it will already have been classified.
+		DecodedInstructionStore.Instruction decoded = store.get(addr, pc, links);
+		if (decoded == null) {
+			return UNDECODABLE;
+		}
+		Expression instr = decoded.getInstruction();
+		InstructionClassifier classifier = decoded.getClassifier();
+
+		// Resolve the instruction counter.
+		Map<String, Expression> registers = new HashMap<String, Expression>();
+		registers.put("PC", new Constant(null, addr));
+		instr = instr.resolve(null, null, registers);
+
+		// Disassemble the instruction.
+		Type start = arch.getStart();
+		StringBuilder asm = new StringBuilder();
+		start.unparse(asm, 0, instr);
+		asm.append('\t');
+		start.unparse(asm, 1, instr);
+
+		// Find the destinations of branches and subroutine calls.
+		List<Expression> dsts = classifier.getDestinationAddresses();
+		long[] dstAddrs = new long[dsts.size()];
+		int dstCount = 0;
+		for (Expression dst: dsts) {
+			dst = dst.resolve(null, null, registers);
+			if (dst instanceof Constant) {
+				dstAddrs[dstCount++] = ((Constant)dst).getValue();
+			}
+		}
+		if (dstCount != dstAddrs.length) {
+			dstAddrs = Arrays.copyOf(dstAddrs, dstCount);
+		}
+		boolean isSub = classifier.isCall();
+		boolean isCode = isSub | classifier.isBranch();
+		boolean endsBlock = classifier.isBranch() || classifier.isReturn();
+		return new Step(decoded.getLength(), asm.toString(), classifier.canFallThrough(), dstAddrs, isCode, isSub,
+			endsBlock);
+	}
+
 	/** Disassemble next unprocessed reference.
 	 * This function should be called repeatedly until it returns true.
 	 * The caller is responsible for embedding this operation within a transaction.
@@ -172,11 +453,83 @@ public class IterativeDisassembler {
 		}
 		Reference reference = pendingList.get(pendingIndex);
 		long addr = reference.getDstAddr();
+		if (builder != null) {
+			builder.addDestination(addr);
+		}
 		if (reference.isCodeRef() && reader.isMapped(addr)) {
-			disassemble(reference.getDstAddr(), pc, links);
+			disassemble(reference, pc, links, null);
 		}
 		reference.setProcessed(Fact.DONE_ITERATIVE_DISASSEMBLER);
 		pendingIndex += 1;
 		return false;
 	}
+
+	/** Disassemble all pending references, decoding in parallel.
+	 * This function should be called repeatedly until it returns true.
+	 * The caller is responsible for embedding this operation within a
+	 * transaction, and for shutting down the executor once finished with it.
+	 * Only the calling thread accesses the database, and the result is the
+	 * same as would be obtained by calling process without an executor.
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param executor the executor with which to decode instructions
+	 * @return true if all pending references have been processed, otherwise false.
+	 */
+	public boolean process(Register pc, List<Expression> links, ExecutorService executor) throws InterruptedException {
+		return process(pc, links, executor, Integer.MAX_VALUE);
+	}
+
+	/** Disassemble a batch of pending references, decoding in parallel.
+	 * This function should be called repeatedly until it returns true.
+	 * The caller is responsible for embedding this operation within a
+	 * transaction, and for shutting down the executor once finished with it.
+	 * Only the calling thread accesses the database, and the result is the
+	 * same as would be obtained by calling process without an executor.
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param executor the executor with which to decode instructions
+	 * @param batchSize the maximum number of references to be processed
+	 * @return true if all pending references have been processed, otherwise false.
+	 */
+	public boolean process(Register pc, List<Expression> links, ExecutorService executor, int batchSize)
+		throws InterruptedException {
+
+		if (pendingIndex == pendingList.size()) {
+			pendingList = db.getReferences().getUnprocessed(Fact.DONE_ITERATIVE_DISASSEMBLER);
+			pendingIndex = 0;
+		}
+		if (pendingIndex == pendingList.size()) {
+			return true;
+		}
+		int batchEnd = pendingIndex + Math.min(batchSize, pendingList.size() - pendingIndex);
+		List<Reference> batch = pendingList.subList(pendingIndex, batchEnd);
+
+		// Explore the chain which follows each reference in parallel. This
+		// may include instructions which will not be committed, but it
+		// includes every one which will unless it is found to be
+		// undecodable first.
+		Explorer explorer = new Explorer(executor, pc, links);
+		for (Reference reference: batch) {
+			long addr = reference.getDstAddr();
+			if (reference.isCodeRef() && reader.isMapped(addr)) {
+				Long stopAddr = db.getLines().findFirstAddr(addr);
+				explorer.submit(addr, (stopAddr != null) ? stopAddr : Long.MAX_VALUE);
+			}
+		}
+		explorer.await();
+
+		// Commit the batch in order.
+		for (Reference reference: batch) {
+			long addr = reference.getDstAddr();
+			if (builder != null) {
+				builder.addDestination(addr);
+			}
+			if (reference.isCodeRef() && reader.isMapped(addr)) {
+				disassemble(reference, pc, links, explorer.steps);
+			}
+			reference.setProcessed(Fact.DONE_ITERATIVE_DISASSEMBLER);
+		}
+		pendingIndex = batchEnd;
+		return false;
+	}
 }
@@ -0,0 +1,311 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+import org.codemancer.loader.ObjectFile;
+import org.codemancer.loader.Segment;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Fragment;
+import org.codemancer.cpudl.expr.Prefix;
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.db.Database;
+
+/** A class for speculatively disassembling an object file at every byte offset.
+ * This is intended for images with little symbol information, where
+ * recursive descent from the symbols would miss much of the code.
+ *
+ * Each mapped segment is swept in two passes. The first decodes an
+ * instruction at every offset, recording its length and whether it can
+ * fall through to the next instruction. Offsets are independent of one
+ * another, so this pass is divided into chunks which are decoded in
+ * parallel. The second pass determines which offsets begin a viable
+ * chain of instructions: one which reaches either an instruction that
+ * does not fall through or the end of the segment, without first reaching
+ * an offset that cannot be decoded. It then sweeps forwards through the segment,
+ * following viable chains and skipping any offset which is not viable,
+ * and the address at which each chain begins is recorded as a code
+ * reference for use as a seed by the iterative disassembler.
+ */
+public class LinearSweep {
+	/** The number of offsets to be decoded by each task. */
+	private static final int CHUNK_SIZE = 4096;
+
+	/** The maximum length of an instruction which can be recorded, in bytes. */
+	private static final int MAX_LENGTH = 127;
+
+	/** A class to represent the result of sweeping one region of memory. */
+	public static class Result {
+		/** The address of the first offset. */
+		private final long addr;
+
+		/** The length of the instruction at each offset in bytes, or 0 if it could not be decoded. */
+		private final byte[] lengths;
+
+		/** True for each offset if the instruction there can fall through, otherwise false. */
+		private final boolean[] fallThrough;
+
+		/** True for each offset if it begins a viable chain of instructions, otherwise false. */
+		private final boolean[] viable;
+
+		/** Construct result.
+		 * @param addr the address of the first offset
+		 * @param size the number of offsets
+		 */
+		Result(long addr, int size) {
+			this.addr = addr;
+			this.lengths = new byte[size];
+			this.fallThrough = new boolean[size];
+			this.viable = new boolean[size];
+		}
+
+		/** Get the address of the first offset.
+		 * @return the address
+		 */
+		public final long getAddr() {
+			return addr;
+		}
+
+		/** Get the number of offsets.
+		 * @return the number of offsets
+		 */
+		public final int size() {
+			return lengths.length;
+		}
+
+		/** Get the length of the instruction at a given address.
+		 * @param addr the address, which must be within the region swept
+		 * @return the length in bytes, or 0 if no instruction could be decoded
+		 */
+		public final int getLength(long addr) {
+			return lengths[(int)(addr - this.addr)];
+		}
+
+		/** Test whether the instruction at a given address can fall through.
+		 * @param addr the address, which must be within the region swept
+		 * @return true if it can fall through, otherwise false
+		 */
+		public final boolean canFallThrough(long addr) {
+			return fallThrough[(int)(addr - this.addr)];
+		}
+
+		/** Test whether a given address begins a viable chain of instructions.
+		 * @param addr the address, which must be within the region swept
+		 * @return true if viable, otherwise false
+		 */
+		public final boolean isViable(long addr) {
+			return viable[(int)(addr - this.addr)];
+		}
+
+		/** Determine which offsets begin a viable chain of instructions.
+		 * The chain beginning at an offset can only continue to a higher
+		 * offset, so each offset can be resolved in a single backward pass.
+		 */
+		void resolveChains() {
+			for (int i = lengths.length - 1; i >= 0; --i) {
+				int length = lengths[i];
+				if (length == 0) continue;
+				int next = i + length;
+				viable[i] = !fallThrough[i] || (next == lengths.length) || viable[next];
+			}
+		}
+
+		/** Get the addresses at which chains begin when sweeping forwards.
+		 * The sweep starts at the first offset, follows each viable chain
+		 * to its end, and skips one byte at a time over offsets which are
+		 * not viable.
+		 * @return the addresses, in ascending order
+		 */
+		public final List<Long> getChainStarts() {
+			List<Long> starts = new ArrayList<Long>();
+			boolean inChain = false;
+			int i = 0;
+			while (i < lengths.length) {
+				if (viable[i]) {
+					if (!inChain) {
+						starts.add(addr + i);
+					}
+					inChain = fallThrough[i];
+					i += lengths[i];
+				} else {
+					inChain = false;
+					i += 1;
+				}
+			}
+			return starts;
+		}
+	}
+
+	/** A task for decoding a range of offsets. */
+	private static class SweepTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The architecture to be used when decoding. */
+		private final Architecture arch;
+
+		/** The features to be used when decoding. */
+		private final FeatureSet features;
+
+		/** The content of the region being swept. */
+		private final ByteBuffer content;
+
+		/** The program counter. */
+		private final Expression pc;
+
+		/** A list of possible expressions for a subroutine return address. */
+		private final List<Expression> links;
+
+		/** The result to which the decoded offsets are written. */
+		private final Result result;
+
+		/** The first offset to be decoded. */
+		private final int minOffset;
+
+		/** The offset following the last to be decoded. */
+		private final int maxOffset;
+
+		/** Construct sweep task.
+		 * @param arch the architecture
+		 * @param features the features to be used when decoding
+		 * @param content the content of the region being swept
+		 * @param pc the program counter
+		 * @param links a list of possible expressions for a subroutine return address
+		 * @param result the result to which the decoded offsets are to be written
+		 * @param minOffset the first offset to be decoded
+		 * @param maxOffset the offset following the last to be decoded
+		 */
+		SweepTask(Architecture arch, FeatureSet features, ByteBuffer content, Expression pc,
+			List<Expression> links, Result result, int minOffset, int maxOffset) {
+
+			this.arch = arch;
+			this.features = features;
+			this.content = content;
+			this.pc = pc;
+			this.links = links;
+			this.result = result;
+			this.minOffset = minOffset;
+			this.maxOffset = maxOffset;
+		}
+
+		protected void compute() {
+			if (maxOffset - minOffset > CHUNK_SIZE) {
+				int midOffset = (minOffset + maxOffset) >>> 1;
+				invokeAll(
+					new SweepTask(arch, features, content, pc, links, result, minOffset, midOffset),
+					new SweepTask(arch, features, content, pc, links, result, midOffset, maxOffset));
+				return;
+			}
+
+			// Decode using the start type directly, as opposed to through
+			// the decode cache, so that tasks do not contend for its lock.
+			Type start = arch.getStart();
+			BitReader reader = new ByteBufferReader(content.duplicate(), arch.isBigEndian());
+			List<BitReader> readers = new ArrayList<BitReader>(1);
+			readers.add(reader);
+			for (int offset = minOffset; offset != maxOffset; ++offset) {
+				long position = (long)offset << 3;
+				reader.seek(position);
+				Expression instr = start.decode(readers, features);
+				if ((instr == null) || (instr instanceof Prefix)) continue;
+				long bitCount = reader.tell() - position;
+				long byteCount = bitCount >> 3;
+				if ((bitCount == 0) || ((bitCount & 7) != 0) || (byteCount > MAX_LENGTH) ||
+					(offset + byteCount > result.size())) continue;
+				result.lengths[offset] = (byte)byteCount;
+				result.fallThrough[offset] = canFallThrough(instr);
+			}
+		}
+
+		/** Determine whether a decoded instruction can fall through.
+		 * An instruction whose effect is unknown, or cannot be classified,
+		 * is presumed to fall through.
+		 * @param instr the decoded instruction
+		 * @return true if it can fall through, otherwise false
+		 */
+		private boolean canFallThrough(Expression instr) {
+			instr = instr.resolveReferences(null, null);
+			if ((instr instanceof Fragment) && (((Fragment)instr).getEffect() == null)) {
+				return true;
+			}
+			try {
+				return new InstructionClassifier(instr, pc, links).canFallThrough();
+			} catch (UnsupportedOperationException ex) {
+				return true;
+			}
+		}
+	}
+
+	/** The object file to be swept. */
+	private final ObjectFile obj;
+
+	/** A database corresponding to the object file. */
+	private final Database db;
+
+	/** The architecture to be used when disassembling. */
+	private final Architecture arch;
+
+	/** Construct linear sweep.
+	 * @param obj the object file to be swept
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 */
+	public LinearSweep(ObjectFile obj, Database db, Architecture arch) {
+		this.obj = obj;
+		this.db = db;
+		this.arch = arch;
+	}
+
+	/** Sweep a region of memory.
+	 * @param arch the architecture
+	 * @param addr the address of the region
+	 * @param content the content of the region
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param pool the pool with which to decode
+	 * @return the result of the sweep
+	 */
+	public static Result sweep(Architecture arch, long addr, ByteBuffer content, Expression pc,
+		List<Expression> links, ForkJoinPool pool) {
+
+		Result result = new Result(addr, content.limit());
+		pool.invoke(new SweepTask(arch, new FeatureSet(arch), content, pc, links, result, 0, result.size()));
+		result.resolveChains();
+		return result;
+	}
+
+	/** Sweep every mapped segment of the object file, and record the start
+	 * of each chain of instructions found as a code reference.
+	 * The caller is responsible for embedding this operation within a transaction.
+	 * @param pc the program counter
+	 * @param links a list of possible expressions for a subroutine return address
+	 * @param pool the pool with which to decode
+	 * @return the number of references made
+	 */
+	public int seed(Expression pc, List<Expression> links, ForkJoinPool pool) throws IOException {
+		int count = 0;
+		for (Segment segment: obj.getAddressMap().values()) {
+			if (!segment.isMapped()) continue;
+			ByteBuffer content = segment.getContent();
+			if (content == null) continue;
+			Result result = sweep(arch, segment.getAddress(), content, pc, links, pool);
+			for (Long start: result.getChainStarts()) {
+				db.getReferences().make(-1, start, false, false, true, false);
+				count += 1;
+			}
+		}
+		return count;
+	}
+}
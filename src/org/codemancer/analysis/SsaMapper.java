@@ -6,7 +6,6 @@
 package org.codemancer.analysis;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
@@ -20,13 +19,7 @@ import org.codemancer.loader.ObjectFileReader;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Register;
 import org.codemancer.cpudl.expr.Constant;
-import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.Architecture;
-import org.codemancer.cpudl.FeatureSet;
-import org.codemancer.cpudl.BitString;
-import org.codemancer.cpudl.ShortBitString;
-import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
 import org.codemancer.db.Fact;
 import org.codemancer.db.BasicBlock;
 import org.codemancer.db.ExtendedBasicBlock;
@@ -68,8 +61,14 @@ public class SsaMapper {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
-	/** The feature set to be used when disassembling. */
-	private FeatureSet features;
+	/** A store for decoded instructions. */
+	private DecodedInstructionStore store;
+
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
+
+	/** The facts made while mapping the current extended basic block. */
+	private List<Fact> madeFacts = null;
 
 	/** The set of basic blocks in the current extended basic block
 	 * for which paths have not yet been created. */
@@ -93,11 +92,35 @@ public class SsaMapper {
 	 * @param arch the architecture
 	 */
 	public SsaMapper(ObjectFile obj, Database db, Architecture arch) throws IOException {
+		this(obj, db, arch, new DecodedInstructionStore(obj, arch));
+	}
+
+	/** Construct SSA mapper.
+	 * @param obj the object file to be mapped
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 */
+	public SsaMapper(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store) throws IOException {
+		this(obj, db, arch, store, new FactDependencies(db));
+	}
+
+	/** Construct SSA mapper.
+	 * @param obj the object file to be mapped
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param store a store for sharing decoded instructions with other passes
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public SsaMapper(ObjectFile obj, Database db, Architecture arch, DecodedInstructionStore store,
+		FactDependencies deps) throws IOException {
+
 		this.obj = obj;
 		this.reader = new ObjectFileReader(obj);
 		this.db = db;
 		this.arch = arch;
-		this.features = new FeatureSet(arch);
+		this.store = store;
+		this.deps = deps;
 	}
 
 	/** Map registers values for a given path of control
@@ -108,44 +131,20 @@ public class SsaMapper {
 	private void map(ControlPath path, Register pc, List<Expression> links) {
 		BasicBlock block = path.block;
 		SsaStateRecorder state = path.state;
-		Type start = arch.getStart();
-
-		// Initialise buffer.
-		BitString buffer = new ShortBitString();
-		reader.seek(block.getMinAddr());
-
 		// Disassemble each instruction in the basic block.
 		long addr = block.getMinAddr();
 		while (addr <= block.getMaxAddr()) {
-			// Fill/refill buffer.
-			while ((buffer.length() < 64) && (reader.tell() <= block.getMaxAddr())) {
-				byte newByte = reader.get();
-				BitString newBits = new ShortBitString(newByte, 8, arch.isBigEndian());
-				buffer = buffer.concat(newBits);
-			}
-
-			// Decode the next instruction.
-			BitReader codeReader = new BitStringReader(buffer);
-			List<BitReader> codeReaders = new ArrayList<BitReader>();
-			codeReaders.add(codeReader);
-			Expression instr = start.decode(codeReaders, features);
-			if (instr == null) {
+			// Fetch the next instruction, which must lie within the block.
+			DecodedInstructionStore.Instruction decoded = store.get(addr, pc, links);
+			if (decoded == null) {
 				break;
 			}
-
-			// Resolve references within instruction.
-			instr = instr.resolveReferences(null, null);
-
-			// Classify this instruction.
-			// This must be done /before/ resolving any registers.
-			InstructionClassifier classifier = new InstructionClassifier(instr, pc, links);
-
-			// Calculate the length of the instruction.
-			long bitCount = codeReader.tell();
-			if ((bitCount & 7) != 0) {
-				throw new IllegalArgumentException("instruction not a whole number of bytes");
+			long byteCount = decoded.getLength();
+			if (addr + byteCount - 1 > block.getMaxAddr()) {
+				break;
 			}
-			long byteCount = bitCount >> 3;
+			Expression instr = decoded.getInstruction();
+			InstructionClassifier classifier = decoded.getClassifier();
 
 			// Evaluate the effect of this instruction.
 			state.setAddr(addr, addr + byteCount);
@@ -166,7 +165,7 @@ public class SsaMapper {
 				registers.put("PC", new Constant(null, addr));
 				registers.put("PC+", new Constant(null, addr + byteCount));
 				for (Expression dst: classifier.getDestinationAddresses()) {
-					dst = dst.resolveRegisters(registers).simplify();
+					dst = dst.resolve(null, null, registers);
 					if (dst instanceof Constant) {
 						Constant dstConstant = (Constant)dst;
 						long dstAddr = dstConstant.getValue();
@@ -183,9 +182,6 @@ public class SsaMapper {
 
 			// Advance the address to the next instruction.
 			addr += byteCount;
-
-			// Remove any bits which have been disassembled.
-			buffer = buffer.substring(bitCount, buffer.length());
 		}
 
 		// If this block can fall through, and if the next block is part of the current
@@ -202,6 +198,21 @@ public class SsaMapper {
 		state.invalidate();
 	}
 
+	/** Determine whether the membership of an extended basic block is settled.
+	 * When the passes are run as a pipeline, a basic block can be detached
+	 * from an extended basic block some time before it is reassigned.
+	 * @param ebb the extended basic block
+	 * @return true if every member has been assigned, otherwise false
+	 */
+	private boolean isSettled(ExtendedBasicBlock ebb) {
+		for (BasicBlock block: db.getBasicBlocks().getMembersOf(ebb)) {
+			if (!block.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/** Map the next unprocessed basic block.
 	 * @param pc the program counter
 	 * @param links a list of possible expressions for a subroutine return address
@@ -210,8 +221,14 @@ public class SsaMapper {
 	public boolean mapNext(Register pc, List<Expression> links) {
 		// If the pending blocks queue is empty then attempt to refill it.
 		if (pendingBlocks.isEmpty()) {
-			// Attempt to refill the blocks queue.
-			pendingBlocks.addAll(db.getExtendedBasicBlocks().getUnprocessed(Fact.DONE_SSA_MAPPER));
+			// Attempt to refill the blocks queue. SSA names are allocated by
+			// subroutine, so only blocks which have been assigned to one can
+			// be mapped, and only once every member has been settled.
+			for (ExtendedBasicBlock ebb: db.getExtendedBasicBlocks().getUnprocessed(Fact.DONE_SSA_MAPPER)) {
+				if (ebb.isProcessed(Fact.DONE_SUBROUTINE_DETECTOR) && isSettled(ebb)) {
+					pendingBlocks.add(ebb);
+				}
+			}
 
 			// If the queue is still empty then stop because there is nothing to do.
 			if (pendingBlocks.isEmpty()) return true;
@@ -234,11 +251,15 @@ public class SsaMapper {
 			SsaStateRecorder state = new SsaStateRecorder(db, firstBlock.getSubroutine());
 			ControlPath path = new ControlPath(firstBlock, state);
 			pendingPaths.add(path);
+			madeFacts = state.getMadeFacts();
 
 			// Record the addresses of the other basic blocks which are part of this EBB.
+			// The mappings depend on the membership of the EBB, so must be remade
+			// if any of those blocks is reprocessed.
 			unencounteredBlocks.clear();
 			for (BasicBlock block: db.getBasicBlocks().getMembersOf(ebb)) {
 				unencounteredBlocks.add(block.getMinAddr());
+				deps.addUse(block, ebb, Fact.DONE_SSA_MAPPER);
 			}
 			unencounteredBlocks.remove(addr);
 		}
@@ -253,6 +274,10 @@ public class SsaMapper {
 			if (pendingPaths.isEmpty()) {
 				ExtendedBasicBlock ebb = pendingBlocks.remove();
 				ebb.setProcessed(Fact.DONE_SSA_MAPPER);
+				for (Fact fact: madeFacts) {
+					deps.addDerived(ebb, fact, Fact.DONE_SSA_MAPPER);
+				}
+				madeFacts = null;
 			}
 		}
 		return false;
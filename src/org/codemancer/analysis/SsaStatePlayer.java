@@ -9,16 +9,15 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.nio.ByteBuffer;
 
 import org.codemancer.loader.ObjectFileReader;
 import org.codemancer.cpudl.Architecture;
 import org.codemancer.cpudl.FeatureSet;
 import org.codemancer.cpudl.State;
 import org.codemancer.cpudl.Style;
-import org.codemancer.cpudl.BitString;
-import org.codemancer.cpudl.ShortBitString;
 import org.codemancer.cpudl.BitReader;
-import org.codemancer.cpudl.BitStringReader;
+import org.codemancer.cpudl.ByteBufferReader;
 import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.expr.Expression;
 import org.codemancer.cpudl.expr.Constant;
@@ -114,19 +113,11 @@ public class SsaStatePlayer implements State {
 		if (!objReader.isMapped(memAddr.getValue())) return null;
 
 		// Fetch bits from memory.
-		long tell = objReader.tell();
-		objReader.seek(memAddr.getValue());
 		long width = (type.getFixedWidth(0) + 7) / 8;
-		BitString bits = new ShortBitString(0, 0, false);
-		for (long i = 0; i != width; ++i) {
-			byte newByte = objReader.get();
-			BitString newBits = new ShortBitString(newByte, 8, arch.isBigEndian());
-			bits = bits.concat(newBits);
-		}
-		objReader.seek(tell);
+		ByteBuffer content = objReader.getContent(memAddr.getValue(), memAddr.getValue() + width - 1);
 
 		// Transform bits into expression using type.
-		BitStringReader reader = new BitStringReader(bits);
+		BitReader reader = new ByteBufferReader(content, arch.isBigEndian());
 		List<BitReader> readers = new ArrayList<BitReader>();
 		readers.add(reader);
 		return type.decode(readers, new FeatureSet(arch));
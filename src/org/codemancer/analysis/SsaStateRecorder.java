@@ -7,6 +7,8 @@ package org.codemancer.analysis;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Arrays;
@@ -19,6 +21,7 @@ import org.codemancer.cpudl.expr.Register;
 import org.codemancer.cpudl.expr.Memory;
 import org.codemancer.cpudl.expr.Temporary;
 import org.codemancer.cpudl.expr.NamedValue;
+import org.codemancer.db.Fact;
 import org.codemancer.db.Subroutine;
 import org.codemancer.db.SsaExpression;
 import org.codemancer.db.SsaMapping;
@@ -52,6 +55,9 @@ public class SsaStateRecorder implements State {
 	/** The address of the next instruction. */
 	private long nextAddr;
 
+	/** The facts made by this state, and by any state copied from it. */
+	private List<Fact> madeFacts;
+
 	/** Construct empty SSA state representation.
 	 * @param db the database in which mappings are to be recorded
 	 * @param subroutine the subroutine used to allocate any SSA names
@@ -61,6 +67,7 @@ public class SsaStateRecorder implements State {
 		this.subroutine = subroutine;
 		this.liveExpressions = new HashMap<String, SsaExpression>();
 		this.liveTemporaries = new HashMap<String, Expression>();
+		this.madeFacts = new ArrayList<Fact>();
 	}
 
 	/** Copy SSA state representation.
@@ -71,6 +78,16 @@ public class SsaStateRecorder implements State {
 		this.subroutine = state.subroutine;
 		this.liveExpressions = (HashMap<String, SsaExpression>)state.liveExpressions.clone();
 		this.liveTemporaries = new HashMap<String, Expression>();
+		this.madeFacts = state.madeFacts;
+	}
+
+	/** Get the facts made by this state.
+	 * The list is shared with any state copied from this one, or from
+	 * which this one was copied.
+	 * @return a list of SSA expressions and SSA mappings
+	 */
+	public final List<Fact> getMadeFacts() {
+		return madeFacts;
 	}
 
 	/** Set address of current and next instruction.
@@ -97,9 +114,11 @@ public class SsaStateRecorder implements State {
 		if (expr == null) {
 			String ssaName = subroutine.allocateSsaName();
 			expr = db.getSsaExpressions().make(subroutine, ssaName);
+			madeFacts.add(expr);
 			liveExpressions.put(regName, expr);
 		}
 		SsaMapping mapping = db.getSsaMappings().make(curAddr, true, regName, expr);
+		madeFacts.add(mapping);
 		return new NamedValue(register.getType(), expr.getName());
 	}
 
@@ -114,9 +133,11 @@ public class SsaStateRecorder implements State {
 		} else {
 			String ssaName = subroutine.allocateSsaName();
 			expr = db.getSsaExpressions().make(subroutine, ssaName);
+			madeFacts.add(expr);
 		}
 		liveExpressions.put(regName, expr);
 		SsaMapping mapping = db.getSsaMappings().make(curAddr, false, regName, expr);
+		madeFacts.add(mapping);
 	}
 
 	public final Expression get(Memory memory) {
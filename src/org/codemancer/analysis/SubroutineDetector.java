@@ -32,6 +32,9 @@ public class SubroutineDetector {
 	/** The architecture to be used when disassembling. */
 	private Architecture arch;
 
+	/** A record of the dependencies between facts. */
+	private FactDependencies deps;
+
 	/** A list of pending unprocessed blocks. */
 	private List<ExtendedBasicBlock> pendingList = new ArrayList<ExtendedBasicBlock>();
 
@@ -41,7 +44,8 @@ public class SubroutineDetector {
 	private int pendingIndex = 0;
 
 	/** True if processing will be finished once the end of the pending list
-	 * is reached, otherwise false. */
+	 * is reached, otherwise false. Once finished, processing resumes on the
+	 * next call in case further blocks have become available. */
 	private boolean done = false;
 
 	/** Construct subroutine detector.
@@ -50,9 +54,20 @@ public class SubroutineDetector {
 	 * @param arch the architecture
 	 */
 	public SubroutineDetector(ObjectFile obj, Database db, Architecture arch) {
+		this(obj, db, arch, new FactDependencies(db));
+	}
+
+	/** Construct subroutine detector.
+	 * @param obj the object file to be disassembled
+	 * @param db the database corresponding to the object file
+	 * @param arch the architecture
+	 * @param deps a record of dependencies between facts, shared with other passes
+	 */
+	public SubroutineDetector(ObjectFile obj, Database db, Architecture arch, FactDependencies deps) {
 		this.obj = obj;
 		this.db = db;
 		this.arch = arch;
+		this.deps = deps;
 	}
 
 
@@ -77,7 +92,7 @@ public class SubroutineDetector {
 			for (ExtendedBasicBlock subBlock: subBlocks) {
 				if (subBlock.getEntryAddr() != subroutine.getEntryAddr()) {
 					subBlock.setSubroutine(null);
-					subBlock.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
+					deps.invalidate(subBlock, Fact.DONE_SUBROUTINE_DETECTOR);
 				}
 			}
 		}
@@ -85,6 +100,7 @@ public class SubroutineDetector {
 		// Now create a new subroutine object for the current block.
 		subroutine = db.getSubroutines().make(block.getEntryAddr());
 		block.setSubroutine(subroutine);
+		deps.addDerived(block, subroutine, Fact.DONE_SUBROUTINE_DETECTOR);
 	}
 
 	/** Process the next unprocessed extended basic block.
@@ -93,93 +109,110 @@ public class SubroutineDetector {
 	 * @return true if all pending blocks have been processed, otherwise false
 	 */
 	public boolean detectNext(Register pc, List<Expression> links) {
-		if (pendingIndex == pendingList.size()) {
-			if (done) return true;
-			pendingList = db.getExtendedBasicBlocks().getUnprocessed(Fact.DONE_SUBROUTINE_DETECTOR);
-			pendingIndex = 0;
-			if (pendingList.size() == 0) return true;
-			done = true;
-		}
-
-		ExtendedBasicBlock block = pendingList.get(pendingIndex);
-		if (!block.isProcessed(Fact.DONE_SUBROUTINE_DETECTOR)) {
-			// Determine whether there are any references to this block which
-			// directly indicate that it the entry point to a subroutine.
-			// These could be:
-			// - internal references from subroutine calls, or
-			// - external references to what are assumed to be subroutines.
-			long addr = block.getEntryAddr();
-			List<Reference> references = db.getReferences().getByDstAddr(addr, addr);
-			boolean subEntry = false;
-			for (Reference reference: references) {
-				if (reference.isSubRef()) {
-					subEntry = true;
+		// Blocks which cannot yet be assigned to a subroutine are passed over,
+		// so that a return value of false always indicates progress.
+		while (true) {
+			if (pendingIndex == pendingList.size()) {
+				if (done) {
+					done = false;
+					return true;
 				}
+				pendingList = db.getExtendedBasicBlocks().getUnprocessed(Fact.DONE_SUBROUTINE_DETECTOR);
+				pendingIndex = 0;
+				if (pendingList.size() == 0) return true;
+				done = true;
 			}
 
-			if (subEntry) {
-				// If this block is directly referred to as a subroutine entry
-				// point then ensure that it is marked as such.
-				makeSubroutineEntryBlock(block);
-				block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
+			ExtendedBasicBlock block = pendingList.get(pendingIndex);
+			pendingIndex += 1;
+			if (!block.isProcessed(Fact.DONE_SUBROUTINE_DETECTOR) && detect(block)) {
 				done = false;
-			} else {
-				// If this block is not directly referred to as a subroutine
-				// entry point then determine whether it is reachable from any
-				// other blocks that are known to be parts of subroutines.
-
-				// First, consider fallthrough from a previous block.
-				Subroutine subroutine = null;
-				BasicBlock prevBlock = db.getBasicBlocks().getPrevious(addr);
-				if ((prevBlock != null) && prevBlock.canFallThrough()) {
-					subroutine = prevBlock.getSubroutine();
-				}
+				return false;
+			}
+		}
+	}
+
+	/** Attempt to assign an extended basic block to a subroutine.
+	 * @param block the block to be assigned
+	 * @return true if the block was assigned, otherwise false
+	 */
+	private boolean detect(ExtendedBasicBlock block) {
+		// Determine whether there are any references to this block which
+		// directly indicate that it the entry point to a subroutine.
+		// These could be:
+		// - internal references from subroutine calls, or
+		// - external references to what are assumed to be subroutines.
+		long addr = block.getEntryAddr();
+		List<Reference> references = db.getReferences().getByDstAddr(addr, addr);
+		boolean subEntry = false;
+		for (Reference reference: references) {
+			if (reference.isSubRef()) {
+				subEntry = true;
+			}
+		}
+
+		if (subEntry) {
+			// If this block is directly referred to as a subroutine entry
+			// point then ensure that it is marked as such.
+			makeSubroutineEntryBlock(block);
+			block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
+			return true;
+		} else {
+			// If this block is not directly referred to as a subroutine
+			// entry point then determine whether it is reachable from any
+			// other blocks that are known to be parts of subroutines.
+
+			// First, consider fallthrough from a previous block.
+			Subroutine subroutine = null;
+			BasicBlock prevBlock = db.getBasicBlocks().getPrevious(addr);
+			if ((prevBlock != null) && prevBlock.canFallThrough()) {
+				subroutine = prevBlock.getSubroutine();
+			}
 
-				// Then, consider explicit branches from other blocks to this block.
-				boolean conflict = false;
-				for (Reference reference: references) {
-					// Interested only in internal references.
-					if (!reference.isInternal()) continue;
-
-					// Interested only in code references which are not subroutine calls.
-					if (!reference.isCodeRef() || reference.isSubRef()) continue;
-
-					// Disregard jumps originating from within this block.
-					BasicBlock refBlock = db.getBasicBlocks().getContaining(reference.getSrcAddr());
-					if (refBlock.getExtendedBasicBlock() == block) continue;
-
-					// Disregard jumps originating from a block which as not yet been
-					// assigned to a subroutine.
-					if (refBlock.getSubroutine() == null) continue;
-
-					// Either make this part of the same subroutine or declare a conflict.
-					if (subroutine == null) {
-						subroutine = refBlock.getSubroutine();
-					} else if (refBlock.getSubroutine() != null) {
-						if (subroutine != refBlock.getSubroutine()) {
-							conflict = true;
-						}
+			// Then, consider explicit branches from other blocks to this block.
+			boolean conflict = false;
+			for (Reference reference: references) {
+				// Interested only in internal references.
+				if (!reference.isInternal()) continue;
+
+				// Interested only in code references which are not subroutine calls.
+				if (!reference.isCodeRef() || reference.isSubRef()) continue;
+
+				// Disregard jumps originating from within this block.
+				BasicBlock refBlock = db.getBasicBlocks().getContaining(reference.getSrcAddr());
+				if (refBlock.getExtendedBasicBlock() == block) continue;
+
+				// Disregard jumps originating from a block which as not yet been
+				// assigned to a subroutine.
+				if (refBlock.getSubroutine() == null) continue;
+
+				// Either make this part of the same subroutine or declare a conflict.
+				if (subroutine == null) {
+					subroutine = refBlock.getSubroutine();
+				} else if (refBlock.getSubroutine() != null) {
+					if (subroutine != refBlock.getSubroutine()) {
+						conflict = true;
 					}
 				}
+			}
 
-				if (conflict) {
-					// If this block is part of more than one subroutine then assume
-					// that this was caused by tail call optimisation, in which case
-					// it should be considered a separate subroutine (even if it is
-					// not itself the subject of a subroutine call).
-					makeSubroutineEntryBlock(block);
-					block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
-					done = false;
-				} else if (subroutine != null) {
-					// Otherwise, if this block has been found to be part of an
-					// existing subroutine then mark it accordingly.
-					block.setSubroutine(subroutine);
-					block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
-					done = false;
-				}
+			if (conflict) {
+				// If this block is part of more than one subroutine then assume
+				// that this was caused by tail call optimisation, in which case
+				// it should be considered a separate subroutine (even if it is
+				// not itself the subject of a subroutine call).
+				makeSubroutineEntryBlock(block);
+				block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
+				return true;
+			} else if (subroutine != null) {
+				// Otherwise, if this block has been found to be part of an
+				// existing subroutine then mark it accordingly.
+				block.setSubroutine(subroutine);
+				block.setProcessed(Fact.DONE_SUBROUTINE_DETECTOR);
+				deps.addUse(subroutine, block, Fact.DONE_SUBROUTINE_DETECTOR);
+				return true;
 			}
 		}
-		pendingIndex += 1;
 		return false;
 	}
 }
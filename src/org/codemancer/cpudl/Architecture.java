@@ -8,6 +8,10 @@ package org.codemancer.cpudl;
 import java.io.FileReader;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
@@ -22,15 +26,34 @@ import org.xml.sax.helpers.XMLReaderFactory;
 import org.codemancer.cpudl.type.Type;
 import org.codemancer.cpudl.type.IntegerType;
 import org.codemancer.cpudl.type.Choice;
+import org.codemancer.cpudl.type.DecodeCache;
+import org.codemancer.cpudl.type.DecoderProfile;
 import org.codemancer.cpudl.expr.Register;
 
-/** A class to represent an instruction set architecture. */
+/** A class to represent an instruction set architecture.
+ * An architecture is not modified once it has been constructed, with the
+ * exception of the specialised start types, which are created on demand
+ * under a lock. It may therefore be shared between threads without
+ * further synchronisation, and the same applies to the types, registers
+ * and stylesheet reachable from it. Decoding with the start type (or any
+ * specialisation of it) may be performed by more than one thread at once.
+ */
 public class Architecture {
 	/** True if the default byte order is big-endian, false if little-endian. */
 	private final boolean bigEndian;
 
+	/** True if instruction patterns should be compiled for faster decoding,
+	 * false if they should be interpreted. */
+	private final boolean compiled;
+
+	/** The maximum number of entries in the decode cache. */
+	private static final int DECODE_CACHE_CAPACITY = 65536;
+
 	/** A type which describes any instruction of this architecture. */
-	private Type start = null;
+	private final Type start;
+
+	/** A cache for decoding instructions using the start type. */
+	private final DecodeCache decodeCache;
 
 	/** The fragment types defined by this architecture, indexed by name. */
 	private final HashMap<String, Type> types = new HashMap<String, Type>();
@@ -48,12 +71,50 @@ public class Architecture {
 	private final HashMap<String, FeatureSet> cpus = new HashMap<String, FeatureSet>();
 
 	/** The stylesheet for this architecture. */
-	private Stylesheet stylesheet = new Stylesheet();
+	private final Stylesheet stylesheet = new Stylesheet();
+
+	/** The decoder profile used to construct this architecture, or null if none. */
+	private final DecoderProfile profile;
+
+	/** Start types which have been specialised for particular CPUs, indexed by CPU name. */
+	private final HashMap<String, Type> specialisedStarts = new HashMap<String, Type>();
+
+	/** The choices belonging to this architecture, in order of construction. */
+	private final ArrayList<Choice> choices = new ArrayList<Choice>();
+
+	/** True once construction is complete, after which no further features
+	 * may be defined. */
+	private final boolean complete;
 
 	/** Construct architecture from XML.
 	 * @param element the required content as an XML element
 	 */
 	public Architecture(Element element) throws CpudlParseException {
+		this(element, false);
+	}
+
+	/** Construct architecture from XML, optionally compiling instruction patterns.
+	 * Compiled patterns extract their fields using precomputed masks and
+	 * shifts, as opposed to decoding each field through its own type.
+	 * The result of decoding is the same in either case.
+	 * @param element the required content as an XML element
+	 * @param compiled true if instruction patterns should be compiled, otherwise false
+	 */
+	public Architecture(Element element, boolean compiled) throws CpudlParseException {
+		this(element, compiled, null);
+	}
+
+	/** Construct architecture from XML, optionally using a decoder profile.
+	 * The profile is used to arrange each decoder trie so that frequently
+	 * matched alternatives can be reached more quickly. The result of
+	 * decoding is the same with or without a profile.
+	 * @param element the required content as an XML element
+	 * @param compiled true if instruction patterns should be compiled, otherwise false
+	 * @param profile the decoder profile, or null if none
+	 */
+	public Architecture(Element element, boolean compiled, DecoderProfile profile) throws CpudlParseException {
+		this.compiled = compiled;
+		this.profile = profile;
 		String endian = Context.parseStringAttribute("endian", element);
 		if (endian.equals("big")) {
 			bigEndian = true;
@@ -64,6 +125,7 @@ public class Architecture {
 		}
 
 		Context ctx = new Context(this);
+		Type start = null;
 		Node child = element.getFirstChild();
 		while (child != null) {
 			if (child instanceof Element) {
@@ -91,6 +153,9 @@ public class Architecture {
 		if (start == null) {
 			throw new CpudlParseException(element, "missing <start> element");
 		}
+		this.start = start;
+		decodeCache = new DecodeCache(start, DECODE_CACHE_CAPACITY);
+		complete = true;
 	}
 
 	private void parseRegisterDefinition(Element element) throws CpudlParseException {
@@ -143,11 +208,51 @@ public class Architecture {
 		return bigEndian;
 	}
 
+	/** Test whether instruction patterns are compiled.
+	 * @return true if compiled, false if interpreted
+	 */
+	public final boolean isCompiled() {
+		return compiled;
+	}
+
 	/** Get the start type for this architecture. */
 	public final Type getStart() {
 		return start;
 	}
 
+	/** Get the start type, specialised for a given CPU.
+	 * Alternatives which are not available on that CPU are removed, and the
+	 * effect of each prefix is determined in advance. The result must only
+	 * be used to decode with the feature set returned by getFeatureSet for
+	 * the same CPU, but will then give the same result as getStart.
+	 * Each specialisation is made when first requested, and is then shared
+	 * by all callers.
+	 * @param cpuName the name of the CPU
+	 * @return the specialised start type, or null if the CPU was not found
+	 */
+	public final Type getStart(String cpuName) {
+		synchronized (specialisedStarts) {
+			Type type = specialisedStarts.get(cpuName);
+			if (type == null) {
+				FeatureSet features = cpus.get(cpuName);
+				if (features == null) {
+					return null;
+				}
+				type = (start instanceof Choice) ? ((Choice)start).specialise(features) : start;
+				specialisedStarts.put(cpuName, type);
+			}
+			return type;
+		}
+	}
+
+	/** Get the decode cache for this architecture.
+	 * The cache decodes instructions using the start type.
+	 * @return the decode cache
+	 */
+	public final DecodeCache getDecodeCache() {
+		return decodeCache;
+	}
+
 	/** Get named type.
 	 * @param typeName the required type name
 	 * @return the corresponding type, or null if not found
@@ -156,6 +261,42 @@ public class Architecture {
 		return types.get(typeName);
 	}
 
+	/** Get the decoder profile used to construct this architecture.
+	 * @return the decoder profile, or null if none
+	 */
+	public final DecoderProfile getDecoderProfile() {
+		return profile;
+	}
+
+	/** Add a choice to the list of choices belonging to this architecture.
+	 * This is called as each choice is constructed, so that the choices
+	 * can be identified by number within a decoder profile. Once
+	 * construction is complete the list of choices is fixed.
+	 * @param choice the choice to be added
+	 */
+	public final void addChoice(Choice choice) {
+		if (complete) {
+			throw new IllegalStateException("architecture already constructed");
+		}
+		choices.add(choice);
+	}
+
+	/** Get the choices belonging to this architecture.
+	 * The list cannot be modified, and does not change once construction
+	 * is complete.
+	 * @return the choices, in order of construction
+	 */
+	public final List<Choice> getChoices() {
+		return Collections.unmodifiableList(choices);
+	}
+
+	/** Get the names of the types defined by this architecture.
+	 * @return the type names, in alphabetical order
+	 */
+	public final Set<String> getTypeNames() {
+		return new TreeSet<String>(types.keySet());
+	}
+
 	/** Get register.
 	 * @param registerName the required register name
 	 * @return the corresponding register, or null if not found
@@ -165,15 +306,21 @@ public class Architecture {
 	}
 
 	/** Get feature ID given name.
+	 * A feature is defined when it is first referred to while the
+	 * architecture is being constructed. Once construction is complete
+	 * the set of features is fixed.
 	 * @param featureName the feature name
 	 * @return the corresponding feature ID
 	 */
 	public final int getFeatureId(String featureName) {
 		Integer id = featuresByName.get(featureName);
 		if (id == null) {
-			featuresByName.put(featureName, featuresById.size());
+			if (complete) {
+				throw new IllegalArgumentException("undefined feature '" + featureName + "'");
+			}
+			id = featuresById.size();
+			featuresByName.put(featureName, id);
 			featuresById.add(featureName);
-			id = featuresByName.get(featureName);
 		}
 		return id;
 	}
@@ -208,6 +355,25 @@ public class Architecture {
 	 * @return the architecture
 	 */
 	public static Architecture makeArchitecture(String architectureName) throws Exception {
+		return makeArchitecture(architectureName, false);
+	}
+
+	/** Make architecture from CPUDL file, optionally compiling instruction patterns.
+	 * @param architectureName the name of the required architecture
+	 * @param compiled true if instruction patterns should be compiled, otherwise false
+	 * @return the architecture
+	 */
+	public static Architecture makeArchitecture(String architectureName, boolean compiled) throws Exception {
+		return makeArchitecture(architectureName, compiled, null);
+	}
+
+	/** Make architecture from CPUDL file, optionally using a decoder profile.
+	 * @param architectureName the name of the required architecture
+	 * @param compiled true if instruction patterns should be compiled, otherwise false
+	 * @param profile the decoder profile, or null if none
+	 * @return the architecture
+	 */
+	public static Architecture makeArchitecture(String architectureName, boolean compiled, DecoderProfile profile) throws Exception {
 
 		// Create InputSource to read from CPUDL file.
 		String architectureSystemId = "cpus/" + architectureName + ".cpu";
@@ -229,6 +395,6 @@ public class Architecture {
 		// Build architecture from DOM tree.
 		Document document = (Document)result.getNode();
 		Element root = document.getDocumentElement();
-		return new Architecture(root);
+		return new Architecture(root, compiled, profile);
 	}
 }
@@ -17,12 +17,30 @@ public interface BitReader {
 	 */
 	public BitString read(long count);
 
+	/** Skip over a number of bits from this source without reading them.
+	 * This has the same effect on the position as read, but does not
+	 * construct a bitstring.
+	 * If there are insufficient bits remaining then this function will
+	 * skip all of the remaining bits.
+	 * @param count the number of bits to skip
+	 * @return the number of bits skipped
+	 */
+	public long skip(long count);
+
 	/** Inspect a single bit from this source without consuming it.
 	 * @param offset the offset with respect to the current position in the stream
 	 * @return the value of the bit at the given offset
 	 */
 	public abstract int peek(long offset);
 
+	/** Inspect a number of bits from this source without consuming them.
+	 * Bits which lie beyond the end of the source are presented as zeros.
+	 * @param offset the offset of the first bit with respect to the current position in the stream
+	 * @param count the number of bits to inspect, which must not exceed 57
+	 * @return the bits, as a little-endian integer
+	 */
+	public abstract long peek(long offset, int count);
+
 	/** Get the current absolute position.
 	 * @return the current absolute position
 	 */
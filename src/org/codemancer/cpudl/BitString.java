@@ -175,14 +175,22 @@ public abstract class BitString {
 	}
 
 	public int hashCode() {
-		int hash = 0;
-		long offset = 0;
+		// Combine the content one 64-bit word at a time, then apply the
+		// MurmurHash3 finalisation step so that every bit of the content
+		// has a chance of affecting every bit of the result.
 		long length = this.length();
-		while (offset + 32 <= length) {
-			hash += getBits(offset, 32, false);
-			offset += 32;
+		long hash = length;
+		long offset = 0;
+		while (offset + 64 <= length) {
+			hash = (hash * 0x9E3779B97F4A7C15L) ^ getBits(offset, 64, false);
+			offset += 64;
 		}
-		hash += getBits(offset, length - offset, false);
-		return hash;
+		hash = (hash * 0x9E3779B97F4A7C15L) ^ getBits(offset, length - offset, false);
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return (int)hash;
 	}
 }
@@ -5,7 +5,10 @@
 
 package org.codemancer.cpudl;
 
-/** An abstract class for reading bits from a bitstring. */
+/** An abstract class for reading bits from a bitstring.
+ * Bits beyond the end of the bitstring cannot be read, and are presented
+ * as zeros if peeked.
+ */
 public class BitStringReader implements BitReader {
 	/** The underlying bitstring. */
 	private final BitString bits;
@@ -29,8 +32,31 @@ public class BitStringReader implements BitReader {
 		return result;
 	}
 
+	public final long skip(long count) {
+		if (count > bits.length() - position) {
+			count = bits.length() - position;
+		}
+		position += count;
+		return count;
+	}
+
 	public final int peek(long offset) {
-		return bits.getBit(position + offset);
+		long index = position + offset;
+		if ((index < 0) || (index >= bits.length())) {
+			return 0;
+		}
+		return bits.getBit(index);
+	}
+
+	public final long peek(long offset, int count) {
+		// Bits beyond the end of the bitstring are presented as zeros,
+		// which are the most significant bits of the result.
+		long index = position + offset;
+		if ((index < 0) || (index >= bits.length())) {
+			return 0;
+		}
+		long available = Math.min(count, bits.length() - index);
+		return bits.getBits(index, available, false);
 	}
 
 	public final void seek(long position) {
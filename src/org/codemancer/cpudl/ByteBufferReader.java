@@ -0,0 +1,140 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** A class for reading bits directly from a ByteBuffer.
+ * The bits are read in place, without first being copied into a bitstring,
+ * and in the same order as they would be if each byte were converted into
+ * an 8-bit ShortBitString with the given endianness then concatenated.
+ * Positions are measured in bits from the start of the buffer (index 0,
+ * not the buffer position). Bits at or beyond the limit of the buffer
+ * cannot be read, and are presented as zeros if peeked.
+ */
+public class ByteBufferReader implements BitReader {
+	/** The underlying buffer. */
+	private final ByteBuffer buffer;
+
+	/** True if bits are numbered from the most significant end of each byte,
+	 * false if from the least significant end. */
+	private final boolean bigEndian;
+
+	/** The number of bits available in the underlying buffer. */
+	private final long size;
+
+	/** The current position within the underlying buffer, in bits. */
+	private long position = 0;
+
+	/** Construct a ByteBufferReader from a ByteBuffer.
+	 * @param buffer a buffer containing the data to be read
+	 * @param bigEndian true if the architecture is big-endian, otherwise false
+	 */
+	public ByteBufferReader(ByteBuffer buffer, boolean bigEndian) {
+		this.buffer = buffer;
+		this.bigEndian = bigEndian;
+		this.size = (long)buffer.limit() << 3;
+	}
+
+	/** Fetch up to 57 bits from a given position, as a little-endian long integer.
+	 * Bytes at or beyond the limit of the buffer are treated as zeros.
+	 * @param index the position of the first bit to fetch
+	 * @param count the number of bits to fetch
+	 * @return the bits, as a little-endian long integer
+	 */
+	private long fetch(long index, long count) {
+		int byteIndex = (int)(index >> 3);
+		int bitIndex = (int)(index & 7);
+		int limit = buffer.limit();
+
+		// Load the (up to) eight bytes covering the required bits into
+		// a word, with the first byte in the most significant position.
+		long word;
+		if (byteIndex + 8 <= limit) {
+			word = buffer.getLong(byteIndex);
+			if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+				word = Long.reverseBytes(word);
+			}
+		} else {
+			word = 0;
+			for (int i = 0; i != 8; ++i) {
+				word <<= 8;
+				if (byteIndex + i < limit) {
+					word |= buffer.get(byteIndex + i) & 0xFFL;
+				}
+			}
+		}
+
+		// Rearrange the word so that the first bit is the least
+		// significant, then discard any unwanted bits.
+		long bits = (bigEndian) ?
+			Long.reverse(word << bitIndex) :
+			Long.reverseBytes(word) >>> bitIndex;
+		long mask = (count < 64) ? ((1L << count) - 1) : -1;
+		return bits & mask;
+	}
+
+	public final BitString read(long count) {
+		if (count > size - position) {
+			count = size - position;
+		}
+		BitString result;
+		if (count <= 57) {
+			result = new ShortBitString(fetch(position, count), count, false);
+		} else if (count <= 64) {
+			long low = fetch(position, 32);
+			long high = fetch(position + 32, count - 32);
+			result = new ShortBitString(low | (high << 32), count, false);
+		} else {
+			long[] content = new long[(int)((count + 63) / 64)];
+			for (int i = 0; i != content.length; ++i) {
+				long offset = (long)i << 6;
+				long remaining = Math.min(count - offset, 64);
+				long low = fetch(position + offset, Math.min(remaining, 32));
+				long high = (remaining > 32) ? fetch(position + offset + 32, remaining - 32) : 0;
+				content[i] = low | (high << 32);
+			}
+			result = new LongBitString(content, count);
+		}
+		position += count;
+		return result;
+	}
+
+	public final long skip(long count) {
+		if (count > size - position) {
+			count = size - position;
+		}
+		position += count;
+		return count;
+	}
+
+	public final int peek(long offset) {
+		long index = position + offset;
+		if ((index < 0) || (index >= size)) {
+			return 0;
+		}
+		int b = buffer.get((int)(index >> 3));
+		int shift = (bigEndian) ? (7 - (int)(index & 7)) : (int)(index & 7);
+		return (b >> shift) & 1;
+	}
+
+	public final long peek(long offset, int count) {
+		long index = position + offset;
+		if ((index < 0) || (index >= size)) {
+			return 0;
+		}
+		return fetch(index, count);
+	}
+
+	public final void seek(long position) {
+		this.position = position;
+	}
+
+	public final long tell() {
+		return this.position;
+	}
+}
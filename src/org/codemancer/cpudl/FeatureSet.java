@@ -64,4 +64,15 @@ public class FeatureSet {
 	public final boolean containsAny(FeatureSet that) {
 		return (that.features & features) != 0;
 	}
+
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!(that instanceof FeatureSet)) return false;
+		FeatureSet featureSet = (FeatureSet)that;
+		return (arch == featureSet.arch) && (features == featureSet.features);
+	}
+
+	public int hashCode() {
+		return (int)(features ^ (features >>> 32));
+	}
 }
@@ -12,7 +12,7 @@ import org.w3c.dom.Element;
 /** A class to represent a CPUDL stylesheet. */
 public class Stylesheet {
 	/** The properties of this stylesheet, indexed by class then name. */
-	private HashMap<String, HashMap<String, String>> properties =
+	private final HashMap<String, HashMap<String, String>> properties =
 		new HashMap<String, HashMap<String, String>>();
 
 	/** Construct empty stylesheet. */
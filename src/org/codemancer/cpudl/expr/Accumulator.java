@@ -16,7 +16,8 @@ public class Accumulator {
 	/** The result type for this accumulator. */
 	Type type;
 
-	/** The accumulated non-constant terms, indexed by expression. */
+	/** The accumulated non-constant terms, indexed by expression.
+	 * Terms which are structurally equal are merged. */
 	Map<Expression, Long> terms = new HashMap<Expression, Long>();
 
 	/** The accumulated constant term. */
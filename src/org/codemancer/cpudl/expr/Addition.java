@@ -31,7 +31,7 @@ public class Addition extends BinaryExpression {
 		return "+";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Accumulator acc = new Accumulator(getLhs().getType());
 		accumulate(acc, 1);
 		return acc.simplify();
@@ -71,6 +71,17 @@ public abstract class BinaryExpression extends Expression {
 		return partialClone(resolvedLhs, resolvedRhs);
 	}
 
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedLhs = lhs.substitute(frag, args, registers);
+		Expression substitutedRhs = rhs.substitute(frag, args, registers);
+		if ((substitutedLhs == lhs) && (substitutedRhs == rhs)) {
+			return this;
+		}
+		return partialClone(substitutedLhs, substitutedRhs);
+	}
+
 	public Expression evaluate(State state) {
 		Expression evaluatedLhs = lhs.evaluate(state);
 		Expression evaluatedRhs = rhs.evaluate(state);
@@ -82,11 +93,20 @@ public abstract class BinaryExpression extends Expression {
 		rhs.listAssignments(uncond, cond, isCond);
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append(lhs.unparse(style));
-		result.append(getSymbol());
-		result.append(rhs.unparse(style));
-		return result.toString();
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		BinaryExpression thatExpr = (BinaryExpression)that;
+		return thatExpr.lhs.equals(lhs) && thatExpr.rhs.equals(rhs);
+	}
+
+	protected int calculateHashCode() {
+		return (baseHashCode() * 31 + lhs.hashCode()) * 31 + rhs.hashCode();
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		lhs.unparse(out, style);
+		out.append(getSymbol());
+		rhs.unparse(out, style);
 	}
 }
@@ -31,7 +31,7 @@ public class BitwiseAnd extends BinaryExpression {
 		return "&";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		// Detect and handle:
 		// x & 0 == 0
 		// x & -1 == x
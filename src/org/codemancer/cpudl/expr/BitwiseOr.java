@@ -31,7 +31,7 @@ public class BitwiseOr extends BinaryExpression {
 		return "|";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		// Detect and handle:
 		// x | 0 == x
 		// x | -1 == -1
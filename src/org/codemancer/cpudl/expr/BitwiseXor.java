@@ -31,7 +31,7 @@ public class BitwiseXor extends BinaryExpression {
 		return "^";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		// Detect and handle:
 		// x ^ 0 == x
 		// x ^ x == 0
@@ -30,7 +30,7 @@ public abstract class Comparison extends BinaryExpression {
 	 */
 	public abstract boolean compare(long diff);
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression diff = new Subtraction(getLhs().getType(), getLhs(), getRhs());
 		diff = diff.simplify();
 		if (diff instanceof Constant) {
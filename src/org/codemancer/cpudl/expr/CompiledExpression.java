@@ -0,0 +1,432 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.IntegerType;
+
+/** A class for evaluating an expression over the members of a fragment
+ * without constructing intermediate expressions.
+ * A compiled expression gives the same result as resolving references
+ * within the original expression then simplifying it, in the case where
+ * every member on which it depends is a constant. It can be used only if
+ * canEvaluate returns true, otherwise the symbolic method must be used.
+ * Expressions which would not simplify to a constant, for example because
+ * they refer to registers, cannot be compiled at all.
+ */
+public final class CompiledExpression {
+	/** An abstract class to represent a node within a compiled expression. */
+	private static abstract class Node {
+		/** Evaluate this node.
+		 * @param frag the fragment against which references are resolved
+		 * @return the value of this node
+		 */
+		abstract long evaluate(Fragment frag);
+
+		/** Get the type that this node would have once its references had been resolved.
+		 * @param frag the fragment against which references are resolved
+		 * @return the type
+		 */
+		abstract Type getResolvedType(Fragment frag);
+	}
+
+	/** A node to represent a constant. */
+	private static class ConstantNode extends Node {
+		private final Constant constant;
+
+		ConstantNode(Constant constant) {
+			this.constant = constant;
+		}
+
+		long evaluate(Fragment frag) {
+			return constant.getValue();
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return constant.getType();
+		}
+	}
+
+	/** A node to represent a reference to a fragment member. */
+	private static class ReferenceNode extends Node {
+		private final String name;
+
+		ReferenceNode(String name) {
+			this.name = name;
+		}
+
+		long evaluate(Fragment frag) {
+			return ((Constant)frag.get(name)).getValue();
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return frag.get(name).getType();
+		}
+	}
+
+	/** A node to represent a flattened sum of terms, as collected by a CompiledSum. */
+	private static class SumNode extends Node {
+		/** The node from which the type of the accumulator is taken. */
+		private final Node typeSource;
+
+		/** The static type of the expression from which this node was compiled. */
+		private final Type type;
+
+		/** The non-constant terms. */
+		private final Node[] terms;
+
+		/** The multiplier for each term. */
+		private final long[] multipliers;
+
+		/** The constant term. */
+		private final long constantTerm;
+
+		SumNode(Node typeSource, Type type, CompiledSum<Node> sum) {
+			this.typeSource = typeSource;
+			this.type = type;
+			this.terms = sum.getTerms().toArray(new Node[sum.getTerms().size()]);
+			this.multipliers = sum.getMultipliers();
+			this.constantTerm = sum.getConstantTerm();
+		}
+
+		long evaluate(Fragment frag) {
+			long sum = constantTerm;
+			for (int i = 0; i != terms.length; ++i) {
+				sum += multipliers[i] * terms[i].evaluate(frag);
+			}
+			Type accType = typeSource.getResolvedType(frag);
+			if (accType instanceof IntegerType) {
+				int size = ((IntegerType)accType).getSize();
+				if (size < 64) {
+					sum &= (1L << size) - 1;
+				}
+			}
+			return sum;
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return type;
+		}
+	}
+
+	/** A node to represent a comparison between two values. */
+	private static class ComparisonNode extends Node {
+		private final Comparison comparison;
+
+		private final SumNode diff;
+
+		ComparisonNode(Comparison comparison, SumNode diff) {
+			this.comparison = comparison;
+			this.diff = diff;
+		}
+
+		long evaluate(Fragment frag) {
+			return (comparison.compare(diff.evaluate(frag))) ? 1 : 0;
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return null;
+		}
+	}
+
+	/** A node to represent a multiplication. */
+	private static class ProductNode extends Node {
+		private final Type type;
+
+		private final Node lhs;
+
+		private final Node rhs;
+
+		ProductNode(Type type, Node lhs, Node rhs) {
+			this.type = type;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Fragment frag) {
+			return lhs.evaluate(frag) * rhs.evaluate(frag);
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return type;
+		}
+	}
+
+	/** A node to represent a bitwise AND, OR or XOR operation. */
+	private static class BitwiseNode extends Node {
+		private final BinaryExpression expr;
+
+		private final Node lhs;
+
+		private final Node rhs;
+
+		BitwiseNode(BinaryExpression expr, Node lhs, Node rhs) {
+			this.expr = expr;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Fragment frag) {
+			long lhsValue = lhs.evaluate(frag);
+			long rhsValue = rhs.evaluate(frag);
+			if (expr instanceof BitwiseAnd) {
+				return lhsValue & rhsValue;
+			} else if (expr instanceof BitwiseOr) {
+				return lhsValue | rhsValue;
+			} else {
+				return lhsValue ^ rhsValue;
+			}
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return expr.getType();
+		}
+	}
+
+	/** A node to represent a logical shift or a rotation. */
+	private static class ShiftNode extends Node {
+		private final Shift expr;
+
+		private final Node lhs;
+
+		private final Node rhs;
+
+		ShiftNode(Shift expr, Node lhs, Node rhs) {
+			this.expr = expr;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Fragment frag) {
+			int width = expr.getWidth();
+			long mask = (1L << width) - 1L;
+			long constLhs = lhs.evaluate(frag) & mask;
+			long constRhs = rhs.evaluate(frag);
+			if (expr.getMethod() == Shift.LOGICAL) {
+				if (constRhs < 0) {
+					return (constLhs >> -constRhs) & mask;
+				} else {
+					return (constLhs << constRhs) & mask;
+				}
+			}
+			long reducedRhs = constRhs % width;
+			if (reducedRhs < 0) reducedRhs += width;
+			return ((constLhs << reducedRhs) | (constLhs >> (width - reducedRhs))) & mask;
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return expr.getType();
+		}
+	}
+
+	/** A node to represent a slice. */
+	private static class SliceNode extends Node {
+		private final Slice expr;
+
+		private final Node operand;
+
+		SliceNode(Slice expr, Node operand) {
+			this.expr = expr;
+			this.operand = operand;
+		}
+
+		long evaluate(Fragment frag) {
+			int size = expr.getSize();
+			long mask = (size < 64) ? ((1L << size) - 1) : -1;
+			return ((operand.evaluate(frag) >> expr.getIndex()) & mask) << expr.getOffset();
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return operand.getResolvedType(frag);
+		}
+	}
+
+	/** A node to represent an extension. */
+	private static class ExtensionNode extends Node {
+		private final Type type;
+
+		private final Node arg;
+
+		ExtensionNode(Type type, Node arg) {
+			this.type = type;
+			this.arg = arg;
+		}
+
+		long evaluate(Fragment frag) {
+			return arg.evaluate(frag);
+		}
+
+		Type getResolvedType(Fragment frag) {
+			return type;
+		}
+	}
+
+	/** The root node of this compiled expression. */
+	private final Node root;
+
+	/** The names of the fragment members on which this expression depends. */
+	private final String[] references;
+
+	/** Construct compiled expression.
+	 * @param root the root node
+	 * @param references the names of the fragment members on which the expression depends
+	 */
+	private CompiledExpression(Node root, List<String> references) {
+		this.root = root;
+		this.references = references.toArray(new String[references.size()]);
+	}
+
+	/** Compile an expression.
+	 * @param expr the expression to be compiled
+	 * @return the compiled expression, or null if it cannot be compiled
+	 */
+	public static CompiledExpression compile(Expression expr) {
+		List<String> references = new ArrayList<String>();
+		Node root = compile(expr, references);
+		return (root != null) ? new CompiledExpression(root, references) : null;
+	}
+
+	/** Compile an expression to a node.
+	 * @param expr the expression to be compiled
+	 * @param references a list to which referenced member names are added
+	 * @return the node, or null if the expression cannot be compiled
+	 */
+	private static Node compile(Expression expr, List<String> references) {
+		if (expr instanceof Constant) {
+			return new ConstantNode((Constant)expr);
+		} else if (expr instanceof Reference) {
+			// Only plain member names can be compiled. The arguments of a
+			// reference affect the result only if it refers to a fragment,
+			// which is not a constant.
+			String name = ((Reference)expr).getName();
+			if (name.indexOf('.') >= 0) return null;
+			if (!references.contains(name)) {
+				references.add(name);
+			}
+			return new ReferenceNode(name);
+		} else if ((expr instanceof Addition) || (expr instanceof Subtraction)) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			Node typeSource = compile(binary.getLhs(), references);
+			if (typeSource == null) return null;
+			return compileSum(binary.getLhs(), binary.getRhs(), (expr instanceof Subtraction) ? -1 : 1,
+				typeSource, expr.getType(), references);
+		} else if (expr instanceof Comparison) {
+			Comparison comparison = (Comparison)expr;
+			Node typeSource = compile(comparison.getLhs(), references);
+			if (typeSource == null) return null;
+			SumNode diff = compileSum(comparison.getLhs(), comparison.getRhs(), -1,
+				typeSource, comparison.getLhs().getType(), references);
+			return (diff != null) ? new ComparisonNode(comparison, diff) : null;
+		} else if (expr instanceof Multiplication) {
+			Multiplication product = (Multiplication)expr;
+			Node lhs = compile(product.getLhs(), references);
+			Node rhs = compile(product.getRhs(), references);
+			return ((lhs != null) && (rhs != null)) ? new ProductNode(expr.getType(), lhs, rhs) : null;
+		} else if ((expr instanceof BitwiseAnd) || (expr instanceof BitwiseOr) || (expr instanceof BitwiseXor)) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			Node lhs = compile(binary.getLhs(), references);
+			Node rhs = compile(binary.getRhs(), references);
+			return ((lhs != null) && (rhs != null)) ? new BitwiseNode(binary, lhs, rhs) : null;
+		} else if (expr instanceof Shift) {
+			// Only logical shifts and rotations simplify to a constant.
+			Shift shift = (Shift)expr;
+			if (shift.getMethod() == Shift.ROTATION) {
+				if (shift.getWidth() == 0) return null;
+			} else if (shift.getMethod() != Shift.LOGICAL) {
+				return null;
+			}
+			Node lhs = compile(shift.getLhs(), references);
+			Node rhs = compile(shift.getRhs(), references);
+			return ((lhs != null) && (rhs != null)) ? new ShiftNode(shift, lhs, rhs) : null;
+		} else if (expr instanceof Slice) {
+			Slice slice = (Slice)expr;
+			Node operand = compile(slice.getOperand(), references);
+			return (operand != null) ? new SliceNode(slice, operand) : null;
+		} else if (expr instanceof Extension) {
+			Extension extension = (Extension)expr;
+			Node arg = compile(extension.getArg(), references);
+			return (arg != null) ? new ExtensionNode(expr.getType(), arg) : null;
+		}
+		return null;
+	}
+
+	/** Compile the sum or difference of two expressions.
+	 * @param lhs the left-hand operand
+	 * @param rhs the right-hand operand
+	 * @param sign 1 for an addition, -1 for a subtraction
+	 * @param typeSource the node from which the type of the accumulator is taken
+	 * @param type the static type of the expression being compiled
+	 * @param references a list to which referenced member names are added
+	 * @return the node, or null if the expression cannot be compiled
+	 */
+	private static SumNode compileSum(Expression lhs, Expression rhs, long sign, Node typeSource,
+		Type type, final List<String> references) {
+
+		CompiledSum<Node> sum = new CompiledSum<Node>() {
+			protected Node compileTerm(Expression expr) {
+				return compile(expr, references);
+			}
+		};
+		if (!sum.collect(lhs, rhs, sign)) return null;
+		return new SumNode(typeSource, type, sum);
+	}
+
+	/** Test whether this expression can be evaluated for a given fragment.
+	 * This is the case if every member on which it depends is a constant.
+	 * @param frag the fragment
+	 * @return true if the expression can be evaluated, otherwise false
+	 */
+	public final boolean canEvaluate(Fragment frag) {
+		for (int i = 0; i != references.length; ++i) {
+			if (!(frag.get(references[i]) instanceof Constant)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Evaluate this expression for a given fragment.
+	 * The result is the value of the constant to which the original
+	 * expression would simplify, once its references had been resolved.
+	 * This may only be called if canEvaluate returns true.
+	 * @param frag the fragment against which references are resolved
+	 * @return the value
+	 */
+	public final long evaluate(Fragment frag) {
+		return root.evaluate(frag);
+	}
+
+	/** Get a constant to stand in place of the original expression once
+	 * its references have been resolved. It has the value to which the
+	 * expression would simplify, and the type that it would have before
+	 * being simplified. Where the expression is a constant or a reference
+	 * to a member, the existing constant is returned.
+	 * This may only be called if canEvaluate returns true.
+	 * @param frag the fragment against which references are resolved
+	 * @return the constant
+	 */
+	public final Constant getConstant(Fragment frag) {
+		if (root instanceof ConstantNode) {
+			return ((ConstantNode)root).constant;
+		} else if (root instanceof ReferenceNode) {
+			return (Constant)frag.get(((ReferenceNode)root).name);
+		}
+		return new Constant(root.getResolvedType(frag), root.evaluate(frag));
+	}
+
+	/** Get the type that the original expression would have, once its
+	 * references had been resolved but before it had been simplified.
+	 * This may only be called if canEvaluate returns true.
+	 * @param frag the fragment against which references are resolved
+	 * @return the type
+	 */
+	public final Type getResolvedType(Fragment frag) {
+		return root.getResolvedType(frag);
+	}
+}
@@ -0,0 +1,91 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import java.util.List;
+import java.util.ArrayList;
+
+/** A class for collecting the terms of a sum or difference when compiling it.
+ * Nested additions and subtractions are flattened in the same way as by an
+ * Accumulator, so that the compiled result need only be masked once. Unlike
+ * an Accumulator, terms are not merged, and each non-constant term is passed
+ * to compileTerm so that the caller can compile it into a node of its own.
+ * @param <N> the type of the compiled nodes
+ */
+public abstract class CompiledSum<N> {
+	/** The non-constant terms. */
+	private final List<N> terms = new ArrayList<N>();
+
+	/** The multiplier for each non-constant term. */
+	private final List<Long> multipliers = new ArrayList<Long>();
+
+	/** The constant term. */
+	private long constantTerm = 0;
+
+	/** Compile a term which is neither a sum, a difference nor a constant.
+	 * @param expr the term
+	 * @return the compiled node, or null if the term cannot be compiled
+	 */
+	protected abstract N compileTerm(Expression expr);
+
+	/** Collect the terms of the sum or difference of two expressions.
+	 * @param lhs the left-hand operand
+	 * @param rhs the right-hand operand
+	 * @param sign 1 for an addition, -1 for a subtraction
+	 * @return true if successful, or false if a term could not be compiled
+	 */
+	public final boolean collect(Expression lhs, Expression rhs, long sign) {
+		return accumulate(lhs, 1) && accumulate(rhs, sign);
+	}
+
+	/** Accumulate the terms of an expression.
+	 * @param expr the expression
+	 * @param multiplier the multiplier to be applied to the expression
+	 * @return true if successful, or false if a term could not be compiled
+	 */
+	private boolean accumulate(Expression expr, long multiplier) {
+		if (expr instanceof Addition) {
+			Addition sum = (Addition)expr;
+			return accumulate(sum.getLhs(), multiplier) && accumulate(sum.getRhs(), multiplier);
+		} else if (expr instanceof Subtraction) {
+			Subtraction diff = (Subtraction)expr;
+			return accumulate(diff.getLhs(), multiplier) && accumulate(diff.getRhs(), -multiplier);
+		} else if (expr instanceof Constant) {
+			constantTerm += multiplier * ((Constant)expr).getValue();
+			return true;
+		}
+		N term = compileTerm(expr);
+		if (term == null) return false;
+		terms.add(term);
+		multipliers.add(multiplier);
+		return true;
+	}
+
+	/** Get the non-constant terms.
+	 * @return the terms, in the order in which they were found
+	 */
+	public final List<N> getTerms() {
+		return terms;
+	}
+
+	/** Get the multiplier for each non-constant term.
+	 * @return the multipliers, in the same order as the terms
+	 */
+	public final long[] getMultipliers() {
+		long[] result = new long[multipliers.size()];
+		for (int i = 0; i != result.length; ++i) {
+			result[i] = multipliers.get(i);
+		}
+		return result;
+	}
+
+	/** Get the constant term.
+	 * @return the sum of the constant terms, each with its multiplier applied
+	 */
+	public final long getConstantTerm() {
+		return constantTerm;
+	}
+}
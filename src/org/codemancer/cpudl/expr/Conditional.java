@@ -39,14 +39,46 @@ public class Conditional extends Expression {
 		this.whenFalse = whenFalse;
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append(condition.unparse(style));
-		result.append("?");
-		result.append(whenTrue.unparse(style));
-		result.append(":");
-		result.append(whenFalse.unparse(style));
-		return result.toString();
+	/** Get the condition.
+	 * @return the condition to be tested
+	 */
+	public final Expression getCondition() {
+		return condition;
+	}
+
+	/** Get the result when the condition is satisfied.
+	 * @return the result when the condition is satisfied
+	 */
+	public final Expression getWhenTrue() {
+		return whenTrue;
+	}
+
+	/** Get the result when the condition is not satisfied.
+	 * @return the result when the condition is not satisfied
+	 */
+	public final Expression getWhenFalse() {
+		return whenFalse;
+	}
+
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		Conditional thatExpr = (Conditional)that;
+		return thatExpr.condition.equals(condition) && thatExpr.whenTrue.equals(whenTrue) &&
+			thatExpr.whenFalse.equals(whenFalse);
+	}
+
+	protected int calculateHashCode() {
+		int h = baseHashCode() * 31 + condition.hashCode();
+		return (h * 31 + whenTrue.hashCode()) * 31 + whenFalse.hashCode();
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		condition.unparse(out, style);
+		out.append("?");
+		whenTrue.unparse(out, style);
+		out.append(":");
+		whenFalse.unparse(out, style);
 	}
 
 	public Expression resolveReferences(Fragment frag, Map<String, Expression> args) {
@@ -63,6 +95,19 @@ public class Conditional extends Expression {
 		return new Conditional(resolvedCondition, resolvedWhenTrue, resolvedWhenFalse);
 	}
 
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedCondition = condition.substitute(frag, args, registers);
+		Expression substitutedWhenTrue = whenTrue.substitute(frag, args, registers);
+		Expression substitutedWhenFalse = whenFalse.substitute(frag, args, registers);
+		if ((substitutedCondition == condition) && (substitutedWhenTrue == whenTrue) &&
+			(substitutedWhenFalse == whenFalse)) {
+			return this;
+		}
+		return new Conditional(substitutedCondition, substitutedWhenTrue, substitutedWhenFalse);
+	}
+
 	public Expression evaluate(State state) {
 		Expression evalCondition = condition.evaluate(state).simplify();
 		if (evalCondition instanceof Constant) {
@@ -94,7 +139,7 @@ public class Conditional extends Expression {
 		whenFalse.listAssignments(uncond, cond, true);
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression simpleCondition = condition.simplify();
 		Expression simpleWhenTrue = whenTrue.simplify();
 		Expression simpleWhenFalse = whenFalse.simplify();
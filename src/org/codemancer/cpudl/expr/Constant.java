@@ -32,7 +32,17 @@ public class Constant extends Expression {
 		return value;
 	}
 
-	public String unparse(Style style) {
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		return ((Constant)that).value == value;
+	}
+
+	protected int calculateHashCode() {
+		return baseHashCode() * 31 + (int)(value ^ (value >>> 32));
+	}
+
+	public void unparse(StringBuilder out, Style style) {
 		int base = style.getInteger("base", 10);
 		int width = style.getInteger("width", 0);
 		String prefix = style.get("prefix", "");
@@ -41,7 +51,6 @@ public class Constant extends Expression {
 		if (width > 64) width = 64;
 
 		boolean negative = (value < 0);
-		String sign = (negative) ? "-" : "";
 
 		char[] digits = new char[64];
 		int i = digits.length;
@@ -53,7 +62,10 @@ public class Constant extends Expression {
 			v = v / base;
 			if (width != 0) --width;
 		}
-		return sign + prefix + new String(digits, i, digits.length - i) + suffix;
+		if (negative) out.append('-');
+		out.append(prefix);
+		out.append(digits, i, digits.length - i);
+		out.append(suffix);
 	}
 
 	public void accumulate(Accumulator acc, long multiplier) {
@@ -22,7 +22,19 @@ import org.codemancer.cpudl.type.Type;
  */
 public abstract class Expression {
 	/** The type of this expression. */
-	private Type type;
+	private final Type type;
+
+	/** The cached hash code for this expression, or 0 if not yet calculated. */
+	private int hash = 0;
+
+	/** The simplified form of this expression, or null if not yet calculated.
+	 * This refers to the expression itself if it is known to be in simplified form.
+	 * Like the hash code, it may be calculated more than once if more than one
+	 * thread needs it at the same time, but the result is equivalent. Unlike
+	 * the hash code it refers to another object, which may have fields that
+	 * are not final (such as those of a fragment), so it is volatile in order
+	 * that the object is safely published to other threads. */
+	private volatile Expression simplifiedForm;
 
 	/** Construct an expression of given type.
 	 * @param type the required type
@@ -38,11 +50,71 @@ public abstract class Expression {
 		return type;
 	}
 
+	/** Get the hash code for this expression.
+	 * The hash code is calculated by calculateHashCode when first needed,
+	 * then cached. Expressions do not change once constructed, so it does
+	 * not matter if more than one thread calculates it.
+	 * @return the hash code
+	 */
+	public final int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = calculateHashCode();
+			if (h == 0) h = 1;
+			hash = h;
+		}
+		return h;
+	}
+
+	/** Calculate the hash code for this expression.
+	 * A class which tests for structural equality must override this so
+	 * that it is consistent with equals. By default an expression is equal
+	 * only to itself, so the identity hash code is used.
+	 * @return the hash code
+	 */
+	protected int calculateHashCode() {
+		return System.identityHashCode(this);
+	}
+
+	/** Test whether another object could be structurally equal to this expression.
+	 * This is the case if it is an expression of the same class and type
+	 * with the same hash code. Classes which test for structural equality
+	 * use this as a quick check before comparing their operands.
+	 * @param that the object to be compared
+	 * @return true if the object could be equal, otherwise false
+	 */
+	protected final boolean isSimilar(Object that) {
+		if ((that == null) || (that.getClass() != getClass())) return false;
+		Expression thatExpr = (Expression)that;
+		return (thatExpr.type == type) && (thatExpr.hashCode() == hashCode());
+	}
+
+	/** Calculate a hash code for the class and type of this expression.
+	 * This is consistent with isSimilar, and may be used as the starting
+	 * point for calculateHashCode.
+	 * @return the hash code
+	 */
+	protected final int baseHashCode() {
+		return getClass().hashCode() * 31 + System.identityHashCode(type);
+	}
+
 	/** Convert this expression to a string.
 	 * @param st the required style
 	 * @return this expression as a string
 	 */
-	public abstract String unparse(Style style);
+	public String unparse(Style style) {
+		StringBuilder out = new StringBuilder();
+		unparse(out, style);
+		return out.toString();
+	}
+
+	/** Append this expression to a string builder.
+	 * This allows a larger piece of text, such as a complete listing,
+	 * to be built without constructing intermediate strings.
+	 * @param out the string builder to which this expression is appended
+	 * @param style the required style
+	 */
+	public abstract void unparse(StringBuilder out, Style style);
 
 	/** Recursively resolve references within this expression.
 	 * @param frag the instruction fragment that is currently in scope, or null if none
@@ -61,6 +133,43 @@ public abstract class Expression {
 		return this;
 	}
 
+	/** Resolve references and registers within this expression, then simplify it.
+	 * The result is equivalent to calling resolveReferences, resolveRegisters
+	 * and simplify in turn, but the references and registers are substituted
+	 * in a single walk which shares any subtrees that they do not change.
+	 * Since simplification is memoised, a shared subtree which has already
+	 * been simplified is not simplified again.
+	 *
+	 * Simplification is applied to the substituted tree as a whole rather
+	 * than to each node as it is substituted, because simplifying a nested
+	 * sum on its own would prevent it from being flattened into its parent.
+	 * @param frag the instruction fragment that is currently in scope, or null if none
+	 * @param args the arguments that are currently in scope, or null if none
+	 * @param registers the known register values, or null if registers are not to be resolved
+	 * @return the resolved and simplified expression
+	 */
+	public Expression resolve(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		return substitute(frag, args, registers).simplify();
+	}
+
+	/** Recursively substitute references and registers within this expression.
+	 * This is equivalent to calling resolveReferences followed by
+	 * resolveRegisters. Classes with operands should override it so that
+	 * this is returned if no operand is changed, instead of a copy.
+	 * @param frag the instruction fragment that is currently in scope, or null if none
+	 * @param args the arguments that are currently in scope, or null if none
+	 * @param registers the known register values, or null if registers are not to be resolved
+	 * @return the substituted expression
+	 */
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression resolved = resolveReferences(frag, args);
+		return (registers != null) ? resolved.resolveRegisters(registers) : resolved;
+	}
+
 	/** Recursively evaluate this expression.
 	 * @param state the machine state on which to act
 	 * @return the evaluated expression
@@ -79,6 +188,26 @@ public abstract class Expression {
 	}
 
 	/** Attempt to simplify this expression.
+	 * The simplified form is calculated by calculateSimplified when first
+	 * needed, then remembered, so that simplifying the same expression
+	 * again returns the same result immediately. The result is itself
+	 * marked as being in simplified form, so that subtrees which have
+	 * already been simplified are not simplified again.
+	 * @return a reference to this, or to a simplified equivalent
+	 */
+	public final Expression simplify() {
+		Expression result = simplifiedForm;
+		if (result == null) {
+			result = calculateSimplified();
+			if (result.simplifiedForm == null) {
+				result.simplifiedForm = result;
+			}
+			simplifiedForm = result;
+		}
+		return result;
+	}
+
+	/** Calculate the simplified form of this expression.
 	 * The only hard constraint on the return value is that it
 	 * must be mathematically equivalent to this. The default
 	 * behaviour is to return a reference to this, which is
@@ -88,10 +217,26 @@ public abstract class Expression {
 	 * matter for the implementation.
 	 * @return a reference to this, or to a simplified equivalent
 	 */
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		return this;
 	}
 
+	/** Mark this expression as being in simplified form.
+	 * This is for use by classes which construct an expression from
+	 * operands that have already been simplified.
+	 */
+	final void markSimplified() {
+		simplifiedForm = this;
+	}
+
+	/** Test whether this expression is known to be in simplified form.
+	 * This is the case if it has been returned by simplify.
+	 * @return true if known to be simplified, otherwise false
+	 */
+	public final boolean isSimplified() {
+		return simplifiedForm == this;
+	}
+
 	/** Attempt to solve for a given variable.
 	 * A limitation of the current implementation is that it does
 	 * not correctly handle the case where the value to be solved
@@ -0,0 +1,112 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
+
+import org.codemancer.cpudl.type.IntegerType;
+
+/** A class for giving structurally equal expressions a single canonical instance.
+ * Interning an expression interns each of its operands first, so the
+ * canonical instance shares its subexpressions with every other expression
+ * that has been interned. Two interned expressions are structurally equal
+ * if and only if they are the same object.
+ *
+ * Expressions which do not test for structural equality, such as fragments
+ * and temporaries, are returned unchanged and are not retained. Nor are any
+ * of the canonical instances, which are held by weak reference so that they
+ * can be garbage collected once no longer used elsewhere.
+ *
+ * An interner is not thread-safe, so if it is shared between threads then
+ * access to it must be synchronised externally.
+ */
+public final class ExpressionInterner {
+	/** The canonical instances, indexed by themselves. */
+	private final WeakHashMap<Expression, WeakReference<Expression>> instances =
+		new WeakHashMap<Expression, WeakReference<Expression>>();
+
+	/** Get the canonical instance of an expression.
+	 * @param expr the expression to be interned, or null
+	 * @return the canonical instance, or null if expr was null
+	 */
+	public Expression intern(Expression expr) {
+		if (expr == null) {
+			return null;
+		}
+		if (expr instanceof BinaryExpression) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			Expression lhs = intern(binary.getLhs());
+			Expression rhs = intern(binary.getRhs());
+			if ((lhs != binary.getLhs()) || (rhs != binary.getRhs())) {
+				expr = binary.partialClone(lhs, rhs);
+			}
+		} else if (expr instanceof Slice) {
+			Slice slice = (Slice)expr;
+			Expression operand = intern(slice.getOperand());
+			if (operand != slice.getOperand()) {
+				expr = new Slice(operand, slice.getIndex(), slice.getSize(), slice.getOffset());
+			}
+		} else if (expr instanceof Extension) {
+			Extension extension = (Extension)expr;
+			Expression arg = intern(extension.getArg());
+			if (arg != extension.getArg()) {
+				expr = new Extension((IntegerType)extension.getType(), arg);
+			}
+		} else if (expr instanceof Memory) {
+			Memory memory = (Memory)expr;
+			Expression address = intern(memory.getAddress());
+			if (address != memory.getAddress()) {
+				expr = new Memory(memory.getType(), address);
+			}
+		} else if (expr instanceof Conditional) {
+			Conditional conditional = (Conditional)expr;
+			Expression condition = intern(conditional.getCondition());
+			Expression whenTrue = intern(conditional.getWhenTrue());
+			Expression whenFalse = intern(conditional.getWhenFalse());
+			if ((condition != conditional.getCondition()) || (whenTrue != conditional.getWhenTrue()) ||
+				(whenFalse != conditional.getWhenFalse())) {
+				expr = new Conditional(condition, whenTrue, whenFalse);
+			}
+		} else if (expr instanceof Reference) {
+			Reference ref = (Reference)expr;
+			Map<String, Expression> args = ref.getArgs();
+			if ((args != null) && !args.isEmpty()) {
+				boolean changed = false;
+				Map<String, Expression> internedArgs = new HashMap<String, Expression>();
+				for (Map.Entry<String, Expression> entry: args.entrySet()) {
+					Expression arg = intern(entry.getValue());
+					changed |= (arg != entry.getValue());
+					internedArgs.put(entry.getKey(), arg);
+				}
+				if (changed) {
+					expr = new Reference(ref.getType(), ref.getName(), internedArgs);
+				}
+			}
+		} else if (!(expr instanceof Constant) && !(expr instanceof Register) &&
+			!(expr instanceof NamedValue)) {
+			return expr;
+		}
+
+		WeakReference<Expression> instanceRef = instances.get(expr);
+		Expression instance = (instanceRef != null) ? instanceRef.get() : null;
+		if (instance == null) {
+			instances.put(expr, new WeakReference<Expression>(expr));
+			instance = expr;
+		}
+		return instance;
+	}
+
+	/** Get the number of canonical instances currently held.
+	 * This may decrease as instances are garbage collected.
+	 * @return the number of instances
+	 */
+	public int size() {
+		return instances.size();
+	}
+}
@@ -46,12 +46,19 @@ public class Extension extends Expression {
 		return new Extension((IntegerType)getType(), arg.resolveRegisters(registers));
 	}
 
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedArg = arg.substitute(frag, args, registers);
+		return (substitutedArg == arg) ? this : new Extension((IntegerType)getType(), substitutedArg);
+	}
+
 	public Expression evaluate(State state) {
 		Expression evaluatedArg = arg.evaluate(state);
 		return new Extension((IntegerType)getType(), evaluatedArg);
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression simpleArg = arg.simplify();
 		if (simpleArg instanceof Constant) {
 			return new Constant(getType(), ((Constant)simpleArg).getValue());
@@ -59,14 +66,22 @@ public class Extension extends Expression {
 		return this;
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append("extend(");
-		result.append(arg.unparse(style));
-		result.append(",");
-		result.append(((IntegerType)getType()).getSize());
-		result.append(")");
-		return result.toString();
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		return ((Extension)that).arg.equals(arg);
+	}
+
+	protected int calculateHashCode() {
+		return baseHashCode() * 31 + arg.hashCode();
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		out.append("extend(");
+		arg.unparse(out, style);
+		out.append(",");
+		out.append(((IntegerType)getType()).getSize());
+		out.append(")");
 	}
 
 	/** Make extension expression from XML element.
@@ -7,26 +7,93 @@ package org.codemancer.cpudl.expr;
 
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.codemancer.cpudl.State;
 import org.codemancer.cpudl.Style;
 import org.codemancer.cpudl.CpudlReferenceException;
 import org.codemancer.cpudl.type.Type;
 
-/** An expression class to represent an instruction fragment. */
+/** An expression class to represent an instruction fragment.
+ * The members are held in an array, using a list of member names which
+ * is normally supplied by (and shared with) the fragment type.
+ *
+ * When a fragment is derived from another by resolveReferences,
+ * resolveRegisters or simplify, its members are transformed immediately
+ * but its effect is not: the transformation is recorded, and performed
+ * only when the effect is first requested. Consumers which need only the
+ * members, such as disassemblers listing instructions, therefore do not
+ * pay for copying the effect tree.
+ */
 public class Fragment extends Expression {
-	/** The members of this fragment, indexed by name. */
-	private final Map<String, Expression> members = new HashMap<String, Expression>();
+	/** An empty list of member names. */
+	private static final String[] NO_NAMES = new String[0];
 
-	/** The effect of this fragment. */
+	/** The operation code for a deferred call to resolveReferences. */
+	private static final int RESOLVE_REFERENCES = 0;
+
+	/** The operation code for a deferred call to resolveRegisters. */
+	private static final int RESOLVE_REGISTERS = 1;
+
+	/** The operation code for a deferred call to simplify. */
+	private static final int SIMPLIFY = 2;
+
+	/** The operation code for a deferred call to resolve. */
+	private static final int RESOLVE = 3;
+
+	/** The names of the members of this fragment.
+	 * This array may be shared, so it must not be modified in place. */
+	private String[] names;
+
+	/** The values of the members of this fragment, indexed as for names. */
+	private Expression[] values;
+
+	/** The effect of this fragment, if it has been materialised. */
 	private Expression effect = null;
 
+	/** The fragment from which the effect is to be derived,
+	 * or null if the effect has been materialised. */
+	private volatile Fragment source = null;
+
+	/** The operation by which the effect is to be derived. */
+	private int operation = 0;
+
+	/** The map of arguments or registers for the deferred operation, if any. */
+	private Map<String, Expression> argument = null;
+
+	/** The map of registers for a deferred call to resolve, if any. */
+	private Map<String, Expression> registers = null;
+
 	/** Construct empty fragment.
 	 * @param type the type of this fragment
 	 */
 	public Fragment(Type type) {
+		this(type, NO_NAMES);
+	}
+
+	/** Construct empty fragment with a given list of member names.
+	 * Members with other names may be added later, but it is more
+	 * efficient if the list is complete.
+	 * @param type the type of this fragment
+	 * @param names the names of the members, which must not subsequently be modified
+	 */
+	public Fragment(Type type, String[] names) {
 		super(type);
+		this.names = names;
+		this.values = new Expression[names.length];
+	}
+
+	/** Find the index of a member.
+	 * @param name the name of the member
+	 * @return the index, or -1 if not found
+	 */
+	private int indexOf(String name) {
+		for (int i = 0; i != names.length; ++i) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	/** Get member.
@@ -34,7 +101,8 @@ public class Fragment extends Expression {
 	 * @return the value of the member, or null if not found
 	 */
 	public final Expression get(String name) {
-		return members.get(name);
+		int index = indexOf(name);
+		return (index >= 0) ? values[index] : null;
 	}
 
 	/** Put member.
@@ -42,13 +110,25 @@ public class Fragment extends Expression {
 	 * @param value the required value of that member
 	 */
 	public final void put(String name, Expression value) {
-		members.put(name, value);
+		int index = indexOf(name);
+		if (index < 0) {
+			index = names.length;
+			names = Arrays.copyOf(names, index + 1);
+			names[index] = name;
+			values = Arrays.copyOf(values, index + 1);
+		}
+		values[index] = value;
 	}
 
 	/** Get effect.
+	 * If the effect was derived from that of another fragment then it is
+	 * materialised by this call.
 	 * @return the unresolved effect of this fragment
 	 */
 	public final Expression getEffect() {
+		if (source != null) {
+			materialise();
+		}
 		return effect;
 	}
 
@@ -57,68 +137,145 @@ public class Fragment extends Expression {
 	 */
 	public final void setEffect(Expression effect) {
 		this.effect = effect;
+		this.argument = null;
+		this.registers = null;
+		this.source = null;
 	}
 
-	public Expression resolveReferences(Fragment frag, Map<String, Expression> args)
-		throws CpudlReferenceException {
+	/** Record that the effect of this fragment is to be derived from that of another.
+	 * @param source the fragment from which the effect is to be derived
+	 * @param operation the operation by which it is to be derived
+	 * @param argument the map of arguments or registers for the operation, if any
+	 * @param registers the map of registers for a call to resolve, if any
+	 */
+	private void defer(Fragment source, int operation, Map<String, Expression> argument,
+		Map<String, Expression> registers) {
+
+		if ((source.source == null) && (source.effect == null)) {
+			return;
+		}
+		this.operation = operation;
+		this.argument = argument;
+		this.registers = registers;
+		this.source = source;
+	}
 
-		Fragment resolvedFragment = new Fragment(getType());
-		for (Map.Entry<String, Expression> entry: members.entrySet()) {
-			Expression resolvedValue = entry.getValue().resolveReferences(this, args);
-			resolvedFragment.put(entry.getKey(), resolvedValue);
+	/** Materialise the effect of this fragment from that of its source. */
+	private synchronized void materialise() {
+		Fragment source = this.source;
+		if (source == null) {
+			return;
 		}
-		if (effect != null) {
-			Expression resolvedEffect = effect.resolveReferences(resolvedFragment, args);
-			resolvedFragment.setEffect(resolvedEffect);
+		Expression sourceEffect = source.getEffect();
+		Expression derivedEffect = null;
+		if (sourceEffect != null) {
+			switch (operation) {
+			case RESOLVE_REFERENCES:
+				derivedEffect = sourceEffect.resolveReferences(this, argument);
+				break;
+			case RESOLVE_REGISTERS:
+				derivedEffect = sourceEffect.resolveRegisters(argument);
+				break;
+			case RESOLVE:
+				// References within the effect must be resolved against
+				// members to which the registers have not yet been applied,
+				// otherwise the registers would be applied to them twice.
+				derivedEffect = sourceEffect.resolve(source.resolveMembers(argument),
+					argument, registers);
+				break;
+			default:
+				derivedEffect = sourceEffect.simplify();
+				break;
+			}
+		}
+		effect = derivedEffect;
+		argument = null;
+		registers = null;
+		this.source = null;
+	}
+
+	/** Resolve references within the members of this fragment.
+	 * @param args the arguments that are currently in scope, or null if none
+	 * @return a fragment containing the resolved members, without an effect
+	 */
+	private Fragment resolveMembers(Map<String, Expression> args) {
+		Fragment resolvedFragment = new Fragment(getType(), names);
+		for (int i = 0; i != names.length; ++i) {
+			if (values[i] != null) {
+				resolvedFragment.values[i] = values[i].substitute(this, args, null);
+			}
 		}
 		return resolvedFragment;
 	}
 
+	public Expression resolveReferences(Fragment frag, Map<String, Expression> args)
+		throws CpudlReferenceException {
+
+		Fragment resolvedFragment = resolveMembers(args);
+		resolvedFragment.defer(this, RESOLVE_REFERENCES, args, null);
+		return resolvedFragment;
+	}
+
 	public Expression resolveRegisters(Map<String, Expression> registers) {
-		Fragment resolvedFragment = new Fragment(getType());
-		for (Map.Entry<String, Expression> entry: members.entrySet()) {
-			Expression resolvedValue = entry.getValue().resolveRegisters(registers);
-			resolvedFragment.put(entry.getKey(), resolvedValue);
+		Fragment resolvedFragment = new Fragment(getType(), names);
+		for (int i = 0; i != names.length; ++i) {
+			if (values[i] != null) {
+				resolvedFragment.values[i] = values[i].resolveRegisters(registers);
+			}
 		}
-		if (effect != null) {
-			Expression resolvedEffect = effect.resolveRegisters(registers);
-			resolvedFragment.setEffect(resolvedEffect);
+		resolvedFragment.defer(this, RESOLVE_REGISTERS, registers, null);
+		return resolvedFragment;
+	}
+
+	/** Resolve references and registers within this fragment, then simplify it.
+	 * Each member is resolved and simplified in a single walk, and the
+	 * effect is likewise deferred as a single operation, so only one
+	 * fragment is constructed in place of three.
+	 */
+	public Expression resolve(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Fragment resolvedFragment = new Fragment(getType(), names);
+		for (int i = 0; i != names.length; ++i) {
+			if (values[i] != null) {
+				resolvedFragment.values[i] = values[i].resolve(this, args, registers);
+			}
 		}
+		resolvedFragment.defer(this, RESOLVE, args, registers);
+		resolvedFragment.markSimplified();
 		return resolvedFragment;
 	}
 
 	public Expression evaluate(State state) {
+		Expression effect = getEffect();
 		return (effect != null) ? effect.evaluate(state) : null;
 	}
 
-	public Expression simplify() {
-		Fragment simplifiedFragment = new Fragment(getType());
-		for (Map.Entry<String, Expression> entry: members.entrySet()) {
-			Expression simplifiedValue = entry.getValue().simplify();
-			simplifiedFragment.put(entry.getKey(), simplifiedValue);
-		}
-		if (effect != null) {
-			Expression simplifiedEffect = effect.simplify();
-			simplifiedFragment.setEffect(simplifiedEffect);
+	protected Expression calculateSimplified() {
+		Fragment simplifiedFragment = new Fragment(getType(), names);
+		for (int i = 0; i != names.length; ++i) {
+			if (values[i] != null) {
+				simplifiedFragment.values[i] = values[i].simplify();
+			}
 		}
+		simplifiedFragment.defer(this, SIMPLIFY, null, null);
 		return simplifiedFragment;
 	}
 
 	public void listAssignments(List<Assignment> uncond, List<Assignment> cond, boolean isCond) {
-		effect.listAssignments(uncond, cond, isCond);
+		getEffect().listAssignments(uncond, cond, isCond);
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append("{");
+	public void unparse(StringBuilder out, Style style) {
+		out.append("{");
 		boolean first = true;
-		for (Map.Entry<String, Expression> entry: members.entrySet()) {
-			if (first) first = false; else result.append(";");
-			result.append(entry.getKey());
-			result.append(":");
-			result.append(entry.getValue().unparse(style));
+		for (int i = 0; i != names.length; ++i) {
+			if (values[i] == null) continue;
+			if (first) first = false; else out.append(";");
+			out.append(names[i]);
+			out.append(":");
+			values[i].unparse(out, style);
 		}
-		result.append("}");
-		return result.toString();
+		out.append("}");
 	}
 }
@@ -39,8 +39,20 @@ public class Memory extends Expression {
 		return address;
 	}
 
-	public String unparse(Style style) {
-		return "[" + address.unparse(style) + "]";
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		return ((Memory)that).address.equals(address);
+	}
+
+	protected int calculateHashCode() {
+		return baseHashCode() * 31 + address.hashCode();
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		out.append("[");
+		address.unparse(out, style);
+		out.append("]");
 	}
 
 	public Expression resolveReferences(Fragment frag, Map<String, Expression> args) {
@@ -51,11 +63,18 @@ public class Memory extends Expression {
 		return new Memory(getType(), address.resolveRegisters(registers));
 	}
 
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedAddress = address.substitute(frag, args, registers);
+		return (substitutedAddress == address) ? this : new Memory(getType(), substitutedAddress);
+	}
+
 	public void assign(State state, Expression value) {
 		state.put(this, value);
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		return new Memory(getType(), address.simplify());
 	}
 
@@ -31,7 +31,7 @@ public class Multiplication extends BinaryExpression {
 		return "*";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression simpleLhs = getLhs().simplify();
 		Expression simpleRhs = getRhs().simplify();
 		if ((simpleLhs instanceof Constant) && (simpleRhs instanceof Constant)) {
@@ -32,7 +32,17 @@ public class NamedValue extends Expression {
 		return name;
 	}
 
-	public String unparse(Style style) {
-		return name;
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		return ((NamedValue)that).name.equals(name);
+	}
+
+	protected int calculateHashCode() {
+		return baseHashCode() * 31 + name.hashCode();
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		out.append(name);
 	}
 }
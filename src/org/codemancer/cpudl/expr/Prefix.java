@@ -21,11 +21,9 @@ public class Prefix extends Expression {
 		return ((PrefixType)getType()).getFeatureName();
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append("{prefix:");
-		result.append(getFeatureName());
-		result.append("}");
-		return result.toString();
+	public void unparse(StringBuilder out, Style style) {
+		out.append("{prefix:");
+		out.append(getFeatureName());
+		out.append("}");
 	}
 }
@@ -47,20 +47,38 @@ public class Reference extends Expression {
 		return name;
 	}
 
-	public String unparse(Style style) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("%");
-		sb.append(name);
+	/** Get arguments.
+	 * @return the arguments to be used when resolving this reference, or null if none
+	 */
+	public final Map<String, Expression> getArgs() {
+		return args;
+	}
+
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		Reference thatRef = (Reference)that;
+		if (!thatRef.name.equals(name)) return false;
+		return (args != null) ? args.equals(thatRef.args) : (thatRef.args == null);
+	}
+
+	protected int calculateHashCode() {
+		int h = baseHashCode() * 31 + name.hashCode();
+		return h * 31 + ((args != null) ? args.hashCode() : 0);
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		out.append("%");
+		out.append(name);
 		if ((args != null) && (!args.isEmpty())) {
-			sb.append("(");
+			out.append("(");
 			for (Map.Entry<String, Expression> entry: this.args.entrySet()) {
-				sb.append(entry.getKey());
-				sb.append("=");
-				sb.append(entry.getValue().unparse(style));
+				out.append(entry.getKey());
+				out.append("=");
+				entry.getValue().unparse(out, style);
 			}
-			sb.append(")");
+			out.append(")");
 		}
-		return sb.toString();
 	}
 
 	public Expression resolveReferences(Fragment frag, Map<String, Expression> args) {
@@ -32,12 +32,12 @@ public class Shift extends BinaryExpression {
 	public static final int EXTENDED = 3;
 
 	/** The width of the shift operation, in bits. */
-	private int width;
+	private final int width;
 
 	/** The shift method.
 	 * This must be one of LOGICAL, ARITHMETIC, ROTATION or EXTENDED.
 	 */
-	private int method;
+	private final int method;
 
 	/** Construct shift operation from two arguments.
 	 * @param type the required type of the result
@@ -60,11 +60,35 @@ public class Shift extends BinaryExpression {
 		return new Shift(getType(), width, method, lhs, rhs);
 	}
 
+	/** Get the width of this shift operation.
+	 * @return the width, in bits
+	 */
+	public final int getWidth() {
+		return width;
+	}
+
+	/** Get the shift method.
+	 * @return one of LOGICAL, ARITHMETIC, ROTATION or EXTENDED
+	 */
+	public final int getMethod() {
+		return method;
+	}
+
+	public boolean equals(Object that) {
+		if (!super.equals(that)) return false;
+		Shift thatShift = (Shift)that;
+		return (thatShift.width == width) && (thatShift.method == method);
+	}
+
+	protected int calculateHashCode() {
+		return (super.calculateHashCode() * 31 + width) * 31 + method;
+	}
+
 	public String getSymbol() {
 		return "<<";
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression simpleLhs = getLhs().simplify();
 		Expression simpleRhs = getRhs().simplify();
 		if ((simpleLhs instanceof Constant) && (simpleRhs instanceof Constant)) {
@@ -38,8 +38,10 @@ public class SizeOf extends Expression {
 		this.divisor = divisor;
 	}
 
-	public String unparse(Style style) {
-		return "sizeof(" + expr.unparse(style) + ")";
+	public void unparse(StringBuilder out, Style style) {
+		out.append("sizeof(");
+		expr.unparse(out, style);
+		out.append(")");
 	}
 
 	public Expression resolveReferences(Fragment frag, Map<String, Expression> args) {
@@ -50,7 +52,14 @@ public class SizeOf extends Expression {
 		return new SizeOf(getType(), expr.resolveRegisters(registers), divisor);
 	}
 
-	public Expression simplify() {
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedExpr = expr.substitute(frag, args, registers);
+		return (substitutedExpr == expr) ? this : new SizeOf(getType(), substitutedExpr, divisor);
+	}
+
+	protected Expression calculateSimplified() {
 		Type type = expr.getType();
 		if (type == null) return this;
 		if (type.getChunkCount() != 1) return this;
@@ -28,16 +28,16 @@ import org.codemancer.cpudl.type.Type;
  */
 public class Slice extends Expression {
 	/** The operand to be sliced. */
-	private Expression operand;
+	private final Expression operand;
 
 	/** The starting index of the slice, in bits. */
-	private int index;
+	private final int index;
 
 	/** The size of the slice, in bits. */
-	private int size;
+	private final int size;
 
 	/** The offset by which the result is shifted left, in bits. */
-	private int offset;
+	private final int offset;
 
 	/** Construct slice.
 	 * @param operand the operand to be sliced
@@ -81,7 +81,7 @@ public class Slice extends Expression {
 		return offset;
 	}
 
-	public Expression simplify() {
+	protected Expression calculateSimplified() {
 		Expression simpleOperand = operand.simplify();
 		if (simpleOperand instanceof Constant) {
 			long constOperand = ((Constant)simpleOperand).getValue();
@@ -101,6 +101,16 @@ public class Slice extends Expression {
 		return new Slice(resolvedOperand, index, size, offset);
 	}
 
+	protected Expression substitute(Fragment frag, Map<String, Expression> args,
+		Map<String, Expression> registers) {
+
+		Expression substitutedOperand = operand.substitute(frag, args, registers);
+		if (substitutedOperand == operand) {
+			return this;
+		}
+		return new Slice(substitutedOperand, index, size, offset);
+	}
+
 	public Expression evaluate(State state) {
 		Expression evaluatedOperand = operand.evaluate(state);
 		return new Slice(evaluatedOperand, index, size, offset);
@@ -110,11 +120,28 @@ public class Slice extends Expression {
 		operand.listAssignments(uncond, cond, isCond);
 	}
 
-	public String unparse(Style style) {
-		StringBuffer result = new StringBuffer();
-		result.append(operand.unparse(style));
-		result.append(String.format("[%d:%d:%d]", index, size, offset));
-		return result.toString();
+	public boolean equals(Object that) {
+		if (this == that) return true;
+		if (!isSimilar(that)) return false;
+		Slice thatSlice = (Slice)that;
+		return (thatSlice.index == index) && (thatSlice.size == size) &&
+			(thatSlice.offset == offset) && thatSlice.operand.equals(operand);
+	}
+
+	protected int calculateHashCode() {
+		int h = baseHashCode() * 31 + operand.hashCode();
+		return ((h * 31 + index) * 31 + size) * 31 + offset;
+	}
+
+	public void unparse(StringBuilder out, Style style) {
+		operand.unparse(out, style);
+		out.append("[");
+		out.append(index);
+		out.append(":");
+		out.append(size);
+		out.append(":");
+		out.append(offset);
+		out.append("]");
 	}
 
 	/** Make slice from XML element.
@@ -7,6 +7,7 @@ package org.codemancer.cpudl.expr;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
 
@@ -23,8 +24,10 @@ import org.codemancer.cpudl.type.Type;
  * but different types and values.
  */
 public class Temporary extends Expression {
-	/** The lowest unique ID which has not yet been assigned. */
-	private static long nextId = 0;
+	/** The lowest unique ID which has not yet been assigned.
+	 * Architectures may be constructed by more than one thread at once,
+	 * so this is updated atomically. */
+	private static final AtomicLong nextId = new AtomicLong();
 
 	/** A unique ID for this temporary value. */
 	private final long id;
@@ -38,7 +41,7 @@ public class Temporary extends Expression {
 	 */
 	public Temporary(Type type, String name) {
 		super(type);
-		this.id = nextId++;
+		this.id = nextId.getAndIncrement();
 		this.name = name;
 	}
 
@@ -56,8 +59,8 @@ public class Temporary extends Expression {
 		return name;
 	}
 
-	public String unparse(Style style) {
-		return name;
+	public void unparse(StringBuilder out, Style style) {
+		out.append(name);
 	}
 
 	public void assign(State state, Expression value) {
@@ -0,0 +1,99 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/** A class for finding alternatives within a choice which may be ambiguous.
+ * Two alternatives are reported if they have equal priority, could be
+ * available with the same set of features, and have no fixed bit which
+ * distinguishes between them. If both match then the decoder chooses
+ * whichever was listed first, which may not have been intended.
+ * Constraints and nested choices are not taken into account, so a pair
+ * which is reported may in practice be distinguished by one of those.
+ */
+public class AmbiguityReport {
+	/** The pairs of alternatives which may be ambiguous. */
+	private final List<Choice.TypeInfo[]> pairs = new ArrayList<Choice.TypeInfo[]>();
+
+	/** Find the possibly ambiguous alternatives of a type.
+	 * If the type is not a choice then it has no alternatives, and
+	 * nothing will be reported.
+	 * @param type the type
+	 */
+	public AmbiguityReport(Type type) {
+		if (type instanceof Choice) {
+			List<Choice.TypeInfo> infos = ((Choice)type).infos;
+			int chunkCount = type.getChunkCount();
+			for (int i = 0; i != infos.size(); ++i) {
+				for (int j = i + 1; j != infos.size(); ++j) {
+					Choice.TypeInfo lhs = infos.get(i);
+					Choice.TypeInfo rhs = infos.get(j);
+					if ((lhs.priority == rhs.priority) && canOverlap(lhs, rhs, chunkCount)) {
+						pairs.add(new Choice.TypeInfo[] {lhs, rhs});
+					}
+				}
+			}
+		}
+	}
+
+	/** Test whether two alternatives could both match the same input.
+	 * @param lhs the first alternative
+	 * @param rhs the second alternative
+	 * @param chunkCount the number of chunks
+	 * @return false if the alternatives are distinguished by their features
+	 *  or by a fixed bit, otherwise true
+	 */
+	static boolean canOverlap(Choice.TypeInfo lhs, Choice.TypeInfo rhs, int chunkCount) {
+		if (lhs.requiredFeatures.containsAny(rhs.forbiddenFeatures)) return false;
+		if (rhs.requiredFeatures.containsAny(lhs.forbiddenFeatures)) return false;
+		for (int chunk = 0; chunk != chunkCount; ++chunk) {
+			long width = Math.min(lhs.type.getFixedWidth(chunk), rhs.type.getFixedWidth(chunk));
+			for (long index = 0; index != width; ++index) {
+				int lhsBit = lhs.type.getFixedBit(chunk, index);
+				int rhsBit = rhs.type.getFixedBit(chunk, index);
+				if ((lhsBit >= 0) && (rhsBit >= 0) && (lhsBit != rhsBit)) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Get the pairs of alternatives which may be ambiguous.
+	 * Each pair is listed in the order in which the alternatives were
+	 * listed by the choice, so the first is the one which would be chosen.
+	 * @return a list of pairs
+	 */
+	public final List<Choice.TypeInfo[]> getPairs() {
+		return Collections.unmodifiableList(pairs);
+	}
+
+	/** Describe the fixed bits of a type in human-readable form.
+	 * Each chunk is written as a sequence of bits in the order they are
+	 * read, using x for bits which are not fixed, followed by an ellipsis
+	 * if the chunk is of variable width. Chunks are separated by spaces.
+	 * @param type the type
+	 * @return a description of the type
+	 */
+	public static String describe(Type type) {
+		StringBuilder result = new StringBuilder();
+		for (int chunk = 0; chunk != type.getChunkCount(); ++chunk) {
+			if (chunk != 0) {
+				result.append(' ');
+			}
+			long width = type.getFixedWidth(chunk);
+			for (long index = 0; index != width; ++index) {
+				int bit = type.getFixedBit(chunk, index);
+				result.append((bit < 0) ? 'x' : (char)('0' + bit));
+			}
+			if (type.isVariableWidth(chunk)) {
+				result.append("...");
+			}
+		}
+		return result.toString();
+	}
+}
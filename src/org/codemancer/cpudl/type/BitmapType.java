@@ -242,7 +242,7 @@ public class BitmapType extends Type {
 		return 1;
 	}
 
-	public String unparse(int piece, Expression expr) {
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		if (piece != 0) {
 			throw new IllegalArgumentException("invalid piece number");
 		}
@@ -257,16 +257,17 @@ public class BitmapType extends Type {
 		Constant bitmapConst = (Constant)bitmapExpr;
 		long bitmap = bitmapConst.getValue();
 
-		StringBuilder out = new StringBuilder();
+		boolean first = true;
 		for (BitInfo member: members) {
 			if ((bitmap & 1) != 0) {
-				if (out.length() != 0) {
+				if (first) {
+					first = false;
+				} else {
 					out.append(style.get("separator", ","));
 				}
 				out.append(member.name);
 			}
 			bitmap = bitmap >> 1;
 		}
-		return out.toString();
 	}
 }
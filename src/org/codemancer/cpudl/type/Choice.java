@@ -7,6 +7,8 @@ package org.codemancer.cpudl.type;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
 
@@ -14,6 +16,7 @@ import org.codemancer.cpudl.BitString;
 import org.codemancer.cpudl.ShortBitString;
 import org.codemancer.cpudl.BitReader;
 import org.codemancer.cpudl.Context;
+import org.codemancer.cpudl.Architecture;
 import org.codemancer.cpudl.FeatureSet;
 import org.codemancer.cpudl.CpudlParseException;
 import org.codemancer.cpudl.expr.Expression;
@@ -35,6 +38,14 @@ public class Choice extends Type {
 		/** The features which must not be enabled for this type to be available. */
 		public final FeatureSet forbiddenFeatures;
 
+		/** The expected relative frequency with which this type will be matched,
+		 * or zero if unknown. */
+		long weight = 0;
+
+		/** The number of times this type has been matched while decoder
+		 * statistics were enabled. */
+		long matches = 0;
+
 		/** Construct type information structure.
 		 * @param type the type
 		 * @param priority the priority
@@ -55,6 +66,24 @@ public class Choice extends Type {
 		}
 	}
 
+	/** A structure for recording the outcome of decoding a prefix with a specialised choice. */
+	private static class Transition {
+		/** The choice with which decoding should continue. */
+		public final Choice choice;
+
+		/** The features enabled once the prefix has been decoded. */
+		public final FeatureSet features;
+
+		/** Construct transition.
+		 * @param choice the choice with which decoding should continue
+		 * @param features the features enabled once the prefix has been decoded
+		 */
+		Transition(Choice choice, FeatureSet features) {
+			this.choice = choice;
+			this.features = features;
+		}
+	}
+
 	/** A structure for recording aggregate information about the patterns
 	 * matched by the allowed types. */
 	protected static class PatternInfo {
@@ -96,17 +125,36 @@ public class Choice extends Type {
 	/** Aggregate information about the patterns matched by the allowed types. */
 	private final ArrayList<PatternInfo> patterns = new ArrayList<PatternInfo>();
 
+	/** The types from which the choice can be made, with their associated information. */
+	final ArrayList<TypeInfo> infos = new ArrayList<TypeInfo>();
+
 	/** A decoder for this collection of types. */
-	Decoder decoder;
+	final Decoder decoder;
+
+	/** A jump table compiled from the decoder. */
+	final DecoderTable table;
+
+	/** A decision DAG compiled from the decoder, or null if it would have been too large. */
+	final DecoderDag dag;
+
+	/** For a specialised choice, the transitions to be made when a prefix
+	 * is decoded, indexed by feature name. Null if not specialised. */
+	private Map<String, Transition> transitions = null;
 
 	/** Construct choice from list of type information structures.
+	 * If any of the types have been given a weight by a decoder profile
+	 * then the decoder trie is arranged to favour the heavier types.
 	 * @param types the possible types
 	 */
 	public Choice(List<TypeInfo> types) {
+		boolean weighted = false;
 		for (TypeInfo info: types) {
 			add(info);
+			weighted |= (info.weight != 0);
 		}
-		decoder = new Decoder(types, patterns.size());
+		decoder = new Decoder(types, patterns.size(), weighted);
+		table = DecoderTable.compile(decoder);
+		dag = DecoderDag.compile(decoder);
 	}
 
 	/** Add a type to this choice.
@@ -135,6 +183,7 @@ public class Choice extends Type {
 			}
 		}
 		types.add(info.type);
+		infos.add(info);
 
 		for (int i = 0; i != chunkCount; ++i) {
 			long fixedWidth = info.type.getFixedWidth(i);
@@ -195,22 +244,95 @@ public class Choice extends Type {
 	}
 
 	public Expression decode(List<BitReader> readers, FeatureSet features) {
-		Expression expr = decoder.decode(readers, features);
+		// Decode using the decision DAG if there is one, since it never
+		// backtracks, or otherwise using the jump table. Neither of these
+		// collect statistics, so decode using the trie instead if they
+		// have been requested.
+		Expression expr;
+		if (DecoderStatistics.isEnabled()) {
+			expr = decoder.decode(readers, features);
+		} else if (dag != null) {
+			expr = dag.decode(readers, features);
+		} else {
+			expr = table.decode(readers, features);
+		}
 		if (expr instanceof Prefix) {
 			Prefix prefix = (Prefix)expr;
-			FeatureSet childFeatures = new FeatureSet(features);
-			childFeatures.add(prefix.getFeatureName());
-			expr = decode(readers, childFeatures);
+			if (transitions != null) {
+				Transition transition = transitions.get(prefix.getFeatureName());
+				expr = transition.choice.decode(readers, transition.features);
+			} else {
+				FeatureSet childFeatures = new FeatureSet(features);
+				childFeatures.add(prefix.getFeatureName());
+				expr = decode(readers, childFeatures);
+			}
 		}
 		return expr;
 	}
 
+	/** Make a copy of this choice which has been specialised for a given feature set.
+	 * Alternatives which are not available with that feature set are removed,
+	 * and the feature sets which result from decoding each available prefix
+	 * are determined in advance, along with the corresponding specialised
+	 * choices. The result must only be used for decoding with the given
+	 * feature set, but will then give the same result as this choice.
+	 * @param features the feature set
+	 * @return the specialised choice
+	 */
+	public final Choice specialise(FeatureSet features) {
+		return specialise(new FeatureSet(features), new HashMap<FeatureSet, Choice>());
+	}
+
+	/** Make a copy of this choice which has been specialised for a given feature set,
+	 * reusing existing copies where possible.
+	 * @param features the feature set
+	 * @param specialised the copies which have already been made, indexed by feature set
+	 * @return the specialised choice, or this choice if no alternatives are available
+	 */
+	private Choice specialise(FeatureSet features, Map<FeatureSet, Choice> specialised) {
+		Choice choice = specialised.get(features);
+		if (choice != null) {
+			return choice;
+		}
+
+		List<TypeInfo> available = new ArrayList<TypeInfo>();
+		for (TypeInfo info: infos) {
+			if (!features.containsAll(info.requiredFeatures)) continue;
+			if (features.containsAny(info.forbiddenFeatures)) continue;
+			TypeInfo copy = new TypeInfo(info.type, info.priority, info.requiredFeatures, info.forbiddenFeatures);
+			copy.weight = info.weight;
+			available.add(copy);
+		}
+		if (available.isEmpty()) {
+			specialised.put(features, this);
+			return this;
+		}
+
+		// The new choice must be recorded before its transitions are
+		// determined, since a prefix may lead back to the same feature set.
+		choice = new Choice(available);
+		choice.transitions = new HashMap<String, Transition>();
+		specialised.put(features, choice);
+		for (TypeInfo info: available) {
+			if (info.type instanceof PrefixType) {
+				String featureName = ((PrefixType)info.type).getFeatureName();
+				if (!choice.transitions.containsKey(featureName)) {
+					FeatureSet childFeatures = new FeatureSet(features);
+					childFeatures.add(featureName);
+					Choice childChoice = specialise(childFeatures, specialised);
+					choice.transitions.put(featureName, new Transition(childChoice, childFeatures));
+				}
+			}
+		}
+		return choice;
+	}
+
 	public int getPieceCount() {
 		return pieceCount;
 	}
 
-	public String unparse(int piece, Expression expr) {
-		return expr.getType().unparse(piece, expr);
+	public void unparse(StringBuilder out, int piece, Expression expr) {
+		expr.getType().unparse(out, piece, expr);
 	}
 
 	/** Add children of element to list of choices.
@@ -263,14 +385,21 @@ public class Choice extends Type {
 	 * @return the type or choice of types
 	 */
 	public static Type make(Context ctx, Element element) throws CpudlParseException {
+		Architecture arch = ctx.getArchitecture();
 		List<TypeInfo> types = new ArrayList<TypeInfo>();
-		addElement(ctx, element, 0, new FeatureSet(ctx.getArchitecture()), new FeatureSet(ctx.getArchitecture()), types);
+		addElement(ctx, element, 0, new FeatureSet(arch), new FeatureSet(arch), types);
 		if (types.size() == 0) {
 			throw new CpudlParseException(element, "type expected");
 		} else if ((types.size() == 1) && types.get(0).isPlainType()) {
 			return types.get(0).type;
 		} else {
-			return new Choice(types);
+			DecoderProfile profile = arch.getDecoderProfile();
+			if (profile != null) {
+				profile.apply(arch.getChoices().size(), types);
+			}
+			Choice choice = new Choice(types);
+			arch.addChoice(choice);
+			return choice;
 		}
 	}
 }
@@ -75,12 +75,28 @@ public class ConstantType extends Type {
 		return content;
 	}
 
+	/** Get the binary pattern matched by this type.
+	 * @return the binary pattern
+	 */
+	public final BitString getContent() {
+		return content;
+	}
+
 	public Expression decode(List<BitReader> readers, FeatureSet features) {
 		if (readers.size() != 1) {
 			throw new IllegalArgumentException("incorrect number of chunks");
 		}
-		BitString bits = readers.get(0).read(content.length());
-		if (!bits.equals(content)) return null;
+		BitReader reader = readers.get(0);
+		long length = content.length();
+		if (length <= 57) {
+			// Short patterns can be matched without copying the bits.
+			long bits = reader.peek(0, (int)length);
+			if (bits != content.getBits(0, length, false)) return null;
+			if (reader.skip(length) < length) return null;
+		} else {
+			BitString bits = reader.read(length);
+			if (!bits.equals(content)) return null;
+		}
 		// It would be possible to return a value more relevant to the content,
 		// however there does not appear to be any need to do so currently.
 		return new Constant(this, 0);
@@ -0,0 +1,285 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import org.codemancer.cpudl.BitString;
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+/** A class for caching the results of decoding instructions.
+ * Each entry is keyed by the bits on which the result of decoding
+ * depended (that is, every bit read or inspected by the decoder)
+ * together with the features enabled at the time. Unsuccessful
+ * results are cached in the same way as successful ones, except where
+ * the input ended before all of the bits inspected were available. Cached
+ * expressions are as returned by Type.decode, so they have not had
+ * any references or registers resolved, and may be shared between
+ * callers. The least recently used entry is evicted once the cache
+ * is full.
+ */
+public class DecodeCache {
+	/** A class to act as the key for a cache entry. */
+	private static class Key {
+		/** The bits on which the result depended. */
+		private final BitString bits;
+
+		/** The features enabled at the time of decoding. */
+		private final FeatureSet features;
+
+		/** Construct cache key.
+		 * @param bits the bits on which the result depended
+		 * @param features the features enabled at the time of decoding
+		 */
+		Key(BitString bits, FeatureSet features) {
+			this.bits = bits;
+			this.features = features;
+		}
+
+		public boolean equals(Object that) {
+			if (this == that) return true;
+			if (!(that instanceof Key)) return false;
+			Key key = (Key)that;
+			return bits.equals(key.bits) && features.equals(key.features);
+		}
+
+		public int hashCode() {
+			return bits.hashCode() * 31 + features.hashCode();
+		}
+	}
+
+	/** A class to act as the value for a cache entry. */
+	private static class Entry {
+		/** The decoded expression, or null if decoding failed. */
+		public final Expression expr;
+
+		/** The number of bits consumed by decoding. */
+		public final long length;
+
+		/** Construct cache entry.
+		 * @param expr the decoded expression, or null if decoding failed
+		 * @param length the number of bits consumed
+		 */
+		Entry(Expression expr, long length) {
+			this.expr = expr;
+			this.length = length;
+		}
+	}
+
+	/** A class for recording the furthest extent of the bits accessed through a reader. */
+	private static class TrackingReader implements BitReader {
+		/** The underlying reader. */
+		private final BitReader reader;
+
+		/** The position of the underlying reader when tracking began. */
+		private final long start;
+
+		/** The number of bits from the start which have been accessed. */
+		long extent = 0;
+
+		/** Construct tracking reader.
+		 * @param reader the underlying reader
+		 */
+		TrackingReader(BitReader reader) {
+			this.reader = reader;
+			this.start = reader.tell();
+		}
+
+		/** Record that bits have been accessed.
+		 * @param end the absolute position following the last bit accessed
+		 */
+		private void access(long end) {
+			if (end - start > extent) {
+				extent = end - start;
+			}
+		}
+
+		public final BitString read(long count) {
+			access(reader.tell() + count);
+			return reader.read(count);
+		}
+
+		public final long skip(long count) {
+			// The bits skipped are treated as having been accessed, since
+			// the number which could be skipped may affect the result.
+			access(reader.tell() + count);
+			return reader.skip(count);
+		}
+
+		public final int peek(long offset) {
+			access(reader.tell() + offset + 1);
+			return reader.peek(offset);
+		}
+
+		public final long peek(long offset, int count) {
+			access(reader.tell() + offset + count);
+			return reader.peek(offset, count);
+		}
+
+		public final void seek(long position) {
+			reader.seek(position);
+		}
+
+		public final long tell() {
+			return reader.tell();
+		}
+	}
+
+	/** The type to be decoded. */
+	private final Type type;
+
+	/** The cache entries, in order of least recent use. */
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/** The distinct extents of the keys held by the cache, in order of first occurrence. */
+	private final List<Long> extents = new ArrayList<Long>();
+
+	/** The largest extent held by the cache. */
+	private long maxExtent = 0;
+
+	/** The number of lookups which found a successfully decoded expression. */
+	private long hits = 0;
+
+	/** The number of lookups which found a record of unsuccessful decoding. */
+	private long negativeHits = 0;
+
+	/** The number of lookups which found nothing. */
+	private long misses = 0;
+
+	/** The number of entries which have been evicted. */
+	private long evictions = 0;
+
+	/** Construct decode cache.
+	 * @param type the type to be decoded
+	 * @param capacity the maximum number of entries to be held
+	 */
+	public DecodeCache(Type type, final int capacity) {
+		if (type.getChunkCount() != 1) {
+			throw new IllegalArgumentException("cannot cache types with more than one chunk");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("cache capacity must be positive");
+		}
+		this.type = type;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (size() > capacity) {
+					evictions += 1;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/** Attempt to decode a bit sequence, using a cached result if available.
+	 * This function has the same semantics as Type.decode.
+	 * @param readers a source of bits, which must be a list of length one
+	 * @param features the features enabled at the time of decoding
+	 * @return an expression corresponding to the bit sequence, or null if it did not match
+	 */
+	public Expression decode(List<BitReader> readers, FeatureSet features) {
+		if (readers.size() != 1) {
+			throw new IllegalArgumentException("incorrect number of chunks");
+		}
+		BitReader reader = readers.get(0);
+		long start = reader.tell();
+
+		// Look for an entry matching any of the extents currently
+		// held by the cache.
+		synchronized (this) {
+			if (!extents.isEmpty()) {
+				BitString bits = reader.read(maxExtent);
+				reader.seek(start);
+				for (Long extent: extents) {
+					// Entries are only made from complete extents, so one
+					// which is longer than the available input cannot match.
+					if (extent.longValue() > bits.length()) continue;
+					Entry entry = entries.get(new Key(bits.substring(0, extent.longValue()), features));
+					if (entry != null) {
+						if (entry.expr != null) {
+							hits += 1;
+							reader.seek(start + entry.length);
+						} else {
+							negativeHits += 1;
+						}
+						return entry.expr;
+					}
+				}
+			}
+			misses += 1;
+		}
+
+		// Otherwise, decode the bit sequence while tracking the extent of
+		// the bits on which the result depends, then cache the result.
+		// The extent is rounded up to a whole number of bytes in order to
+		// limit the number of distinct extents that must be searched.
+		// If the input ended before the extent then the result is not
+		// cached, because a longer input with the same prefix may decode
+		// differently.
+		TrackingReader tracker = new TrackingReader(reader);
+		List<BitReader> trackers = new ArrayList<BitReader>(1);
+		trackers.add(tracker);
+		Expression expr = type.decode(trackers, features);
+		long length = (expr != null) ? reader.tell() - start : 0;
+		long extent = (tracker.extent + 7) & ~7L;
+		reader.seek(start);
+		BitString bits = reader.read(extent);
+		reader.seek(start + length);
+		if (bits.length() < extent) {
+			return expr;
+		}
+
+		synchronized (this) {
+			if (!extents.contains(Long.valueOf(extent))) {
+				extents.add(Long.valueOf(extent));
+				maxExtent = Math.max(maxExtent, extent);
+			}
+			entries.put(new Key(bits, new FeatureSet(features)), new Entry(expr, length));
+		}
+		return expr;
+	}
+
+	/** Get the number of entries currently held by this cache.
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Get the number of lookups which found a successfully decoded expression.
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Get the number of lookups which found a record of unsuccessful decoding.
+	 * @return the number of negative hits
+	 */
+	public synchronized long getNegativeHits() {
+		return negativeHits;
+	}
+
+	/** Get the number of lookups which found nothing.
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Get the number of entries which have been evicted.
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,175 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+
+/** A class for supplying the scratch structures needed when decoding.
+ * Decoding is recursive, so each kind of structure is held on a stack:
+ * a caller takes a mark, allocates what it needs above that mark, and
+ * releases everything above the mark when it has finished. Structures are
+ * retained once released so that they can be reused by later calls.
+ * Each thread has its own context, obtained by calling get, so no
+ * synchronisation is needed.
+ */
+public final class DecodeContext {
+	/** The context belonging to each thread. */
+	private static final ThreadLocal<DecodeContext> contexts = new ThreadLocal<DecodeContext>() {
+		protected DecodeContext initialValue() {
+			return new DecodeContext();
+		}
+	};
+
+	/** A stack of saved reader positions. */
+	private long[] positions = new long[64];
+
+	/** The number of positions currently in use. */
+	private int positionCount = 0;
+
+	/** A stack of assembly buffers. */
+	private final ArrayList<ArrayList<BitReader>> buffers = new ArrayList<ArrayList<BitReader>>();
+
+	/** The number of assembly buffers currently in use. */
+	private int bufferCount = 0;
+
+	/** A stack of lists of assembly buffers. */
+	private final ArrayList<ArrayList<ArrayList<BitReader>>> bufferLists = new ArrayList<ArrayList<ArrayList<BitReader>>>();
+
+	/** The number of lists of assembly buffers currently in use. */
+	private int bufferListCount = 0;
+
+	/** A stack of reader lists. */
+	private final ArrayList<ArrayList<BitReader>> readerLists = new ArrayList<ArrayList<BitReader>>();
+
+	/** The number of reader lists currently in use. */
+	private int readerListCount = 0;
+
+	/** A stack of window readers. */
+	private final ArrayList<WindowReader> windows = new ArrayList<WindowReader>();
+
+	/** The number of window readers currently in use. */
+	private int windowCount = 0;
+
+	/** Construct decode context. */
+	private DecodeContext() {}
+
+	/** Get the decode context for the current thread.
+	 * @return the decode context
+	 */
+	public static DecodeContext get() {
+		return contexts.get();
+	}
+
+	/** Save the positions of a list of readers.
+	 * @param readers the readers
+	 * @return a mark identifying the saved positions
+	 */
+	int savePositions(List<BitReader> readers) {
+		int mark = positionCount;
+		int count = readers.size();
+		if (mark + count > positions.length) {
+			long[] newPositions = new long[Math.max(positions.length * 2, mark + count)];
+			System.arraycopy(positions, 0, newPositions, 0, mark);
+			positions = newPositions;
+		}
+		for (int i = 0; i != count; ++i) {
+			positions[mark + i] = readers.get(i).tell();
+		}
+		positionCount = mark + count;
+		return mark;
+	}
+
+	/** Restore the positions of a list of readers.
+	 * @param readers the readers
+	 * @param mark the mark returned when the positions were saved
+	 */
+	void restorePositions(List<BitReader> readers, int mark) {
+		for (int i = 0; i != readers.size(); ++i) {
+			readers.get(i).seek(positions[mark + i]);
+		}
+	}
+
+	/** Release saved positions.
+	 * @param mark the mark returned when the positions were saved
+	 */
+	void releasePositions(int mark) {
+		positionCount = mark;
+	}
+
+	/** Take a mark for the structures allocated by allocateBuffers,
+	 * allocateReaderList and allocateWindow.
+	 * The mark packs the depth of each of the four stacks into a single
+	 * value, allowing up to 65535 entries per stack.
+	 * @return the mark
+	 */
+	long mark() {
+		return ((long)bufferCount << 48) | ((long)bufferListCount << 32) |
+			((long)readerListCount << 16) | windowCount;
+	}
+
+	/** Release the structures allocated since a mark was taken.
+	 * @param mark the mark
+	 */
+	void release(long mark) {
+		bufferCount = (int)(mark >>> 48);
+		bufferListCount = (int)((mark >>> 32) & 0xFFFF);
+		readerListCount = (int)((mark >>> 16) & 0xFFFF);
+		windowCount = (int)(mark & 0xFFFF);
+	}
+
+	/** Allocate a list of empty assembly buffers.
+	 * @param count the number of buffers required
+	 * @return a list of empty buffers
+	 */
+	ArrayList<ArrayList<BitReader>> allocateBuffers(int count) {
+		if (bufferListCount == bufferLists.size()) {
+			bufferLists.add(new ArrayList<ArrayList<BitReader>>());
+		}
+		ArrayList<ArrayList<BitReader>> result = bufferLists.get(bufferListCount++);
+		result.clear();
+		for (int i = 0; i != count; ++i) {
+			if (bufferCount == buffers.size()) {
+				buffers.add(new ArrayList<BitReader>());
+			}
+			ArrayList<BitReader> buffer = buffers.get(bufferCount++);
+			buffer.clear();
+			result.add(buffer);
+		}
+		return result;
+	}
+
+	/** Allocate a list containing a single reader.
+	 * @param reader the reader
+	 * @return a list containing the reader
+	 */
+	List<BitReader> allocateReaderList(BitReader reader) {
+		if (readerListCount == readerLists.size()) {
+			readerLists.add(new ArrayList<BitReader>());
+		}
+		ArrayList<BitReader> list = readerLists.get(readerListCount++);
+		list.clear();
+		list.add(reader);
+		return list;
+	}
+
+	/** Allocate a reader for a fixed range of bits within another reader.
+	 * @param reader the underlying reader
+	 * @param start the absolute position of the start of the range
+	 * @param length the number of bits in the range
+	 * @return a reader for the range
+	 */
+	BitReader allocateWindow(BitReader reader, long start, long length) {
+		if (windowCount == windows.size()) {
+			windows.add(new WindowReader());
+		}
+		WindowReader window = windows.get(windowCount++);
+		window.set(reader, start, length);
+		return window;
+	}
+}
@@ -7,17 +7,18 @@ package org.codemancer.cpudl.type;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 import org.codemancer.cpudl.BitString;
 import org.codemancer.cpudl.BitReader;
 import org.codemancer.cpudl.FeatureSet;
-import org.codemancer.cpudl.type.Choice.TypeInfo;
 import org.codemancer.cpudl.expr.Expression;
 
 /** A class for decoding a bit pattern to yield an instruction fragment. */
 public class Decoder {
 	/** A constant for indexing the branch corresponding to a bit value of either one or zero. */
-	private static final int EITHER = 2;
+	static final int EITHER = 2;
 
 	/** The number of branches in the decoder trie (zeros, ones and either). */
 	private static final int NUM_BRANCHES = 3;
@@ -36,9 +37,15 @@ public class Decoder {
 		/** The number of fragments that would be inserted into each branch of the decoder trie. */
 		private final int[] counts;
 
+		/** The total weight of the fragments that would be inserted into each branch of the decoder trie. */
+		private final double[] weights = new double[NUM_BRANCHES];
+
 		/** The minimum number of fragments that a trie node for this bit number would eliminate. */
 		private int eliminates = 0;
 
+		/** The merit of a trie node for this bit number, after taking account of any weights. */
+		private double score = 0;
+
 		/** Construct bit_info structure.
 		 * @param chunk the chunk number to which this structure refers
 		 * @param cindex the chunk-relative bit number to which this structure refers
@@ -53,19 +60,30 @@ public class Decoder {
 		}
 
 		/** Accumulate fragment into counts.
-		 * @param frag the fragment to accumulate
+		 * @param info the fragment to accumulate
 		 */
-		public final void accumulate(Type type) {
-			int value = type.getFixedBit(chunk, cindex);
-			counts[(value < 0) ? EITHER : value] += 1;
+		public final void accumulate(Choice.TypeInfo info) {
+			int value = info.type.getFixedBit(chunk, cindex);
+			int branch = (value < 0) ? EITHER : value;
+			counts[branch] += 1;
+			weights[branch] += info.weight + 1;
 		}
 
 		/** Complete the accumulation of fragments.
 		 * This function should be called once following the final call to accumulate,
 		 * but before any calls to better_than.
+		 * @param weighted true if the score should take account of weights, otherwise false
 		 */
-		public final void complete() {
+		public final void complete(boolean weighted) {
 			eliminates = Math.min(counts[0], counts[1]);
+			if (weighted) {
+				// The expected weight eliminated, assuming that fragments
+				// occur in proportion to their weights.
+				double total = weights[0] + weights[1];
+				score = (total != 0) ? 2 * weights[0] * weights[1] / total : 0;
+			} else {
+				score = eliminates;
+			}
 		}
 
 		/** Test whether this bit is a better choice than another bit.
@@ -74,16 +92,23 @@ public class Decoder {
 		 */
 		boolean betterThan(BitInfo other) {
 			if ((counts[EITHER] < other.counts[EITHER]) && (eliminates > 0)) return true;
-			if ((counts[EITHER] == other.counts[EITHER]) && (eliminates > other.eliminates)) return true;
+			if ((counts[EITHER] == other.counts[EITHER]) && (score > other.score)) return true;
 			return false;
 		}
 	}
 
+	/** A comparator for ordering fragments by descending priority. */
+	private static final Comparator<Choice.TypeInfo> PRIORITY_ORDER = new Comparator<Choice.TypeInfo>() {
+		public int compare(Choice.TypeInfo lhs, Choice.TypeInfo rhs) {
+			return (lhs.priority > rhs.priority) ? -1 : ((lhs.priority < rhs.priority) ? 1 : 0);
+		}
+	};
+
 	/** The chunk number to be inspected by this decoder. */
-	private final int chunk;
+	final int chunk;
 
 	/** The chunk-relative bit index to be inspected by this decoder. */
-	private final int cindex;
+	final int cindex;
 
 	/** The fragment-relative bit index to be inspected by this decoder. */
 	private final int findex;
@@ -99,11 +124,31 @@ public class Decoder {
 	/** A list of types that cannot be distinguished further using the trie. */
 	ArrayList<Choice.TypeInfo> types = new ArrayList<Choice.TypeInfo>();
 
+	/** The number of times this node has been visited.
+	 * This and the other counters are updated only if statistics collection
+	 * has been enabled using DecoderStatistics.setEnabled.
+	 */
+	long visits = 0;
+
+	/** The number of visits which returned a successful match. */
+	long matches = 0;
+
+	/** The number of times the either-value branch was tried after the
+	 * branch for the inspected bit value had failed. */
+	long backtracks = 0;
+
+	/** The number of leaf candidates which were eligible to be decoded. */
+	long attempts = 0;
+
+	/** The number of leaf candidates which were decoded successfully. */
+	long decoded = 0;
+
 	/** Construct a decoder for a given list of types.
 	 * @param types the list of instruction fragments
 	 * @param chunkCount the number of chunks that the decoder will handle
+	 * @param weighted true if the types should be weighted by expected frequency, otherwise false
 	 */
-	Decoder(List<Choice.TypeInfo> types, int chunkCount) {
+	Decoder(List<Choice.TypeInfo> types, int chunkCount, boolean weighted) {
 		if (types.size() == 0) {
 			throw new IllegalArgumentException("cannot decode an empty list of types");
 		}
@@ -112,7 +157,10 @@ public class Decoder {
 		// The choice made here will affect the efficiency of the decoder, but
 		// should not detract from its correctness. Current policy is to first
 		// minimise backtracking, then maximise the number of fragments
-		// eliminated at this level of the trie.
+		// eliminated at this level of the trie. If the fragments are
+		// weighted then the second criterion is instead to maximise the
+		// expected weight eliminated, which moves frequently occurring
+		// fragments closer to the root.
 		int k = 0;
 		BitInfo bestBit = new BitInfo(0, 0, 0, Integer.MAX_VALUE);
 		for (int i = 0; i != chunkCount; ++i) {
@@ -133,9 +181,9 @@ public class Decoder {
 			for (int j = 0; j != minFixedWidth; ++j) {
 				BitInfo currentBit = new BitInfo(i, j, k++, 0);
 				for (Choice.TypeInfo info: types) {
-					currentBit.accumulate(info.type);
+					currentBit.accumulate(info);
 				}
-				currentBit.complete();
+				currentBit.complete(weighted);
 				if (currentBit.betterThan(bestBit)) {
 					bestBit = currentBit;
 				}
@@ -150,9 +198,14 @@ public class Decoder {
 
 		if (bestBit.eliminates == 0) {
 			// If inspecting that bit would not eliminate any fragments then make this a leaf node.
+			// The fragments are sorted by descending priority, so that decoding can stop at the
+			// first match. The sort is stable, so fragments of equal priority remain in the
+			// order in which they were listed, and the earliest of them continues to be chosen
+			// if more than one would match.
 			for (Choice.TypeInfo info: types) {
 				this.types.add(info);
 			}
+			Collections.sort(this.types, PRIORITY_ORDER);
 		} else {
 			// Otherwise, partition the fragment list into three sub-lists:
 			// one for each possible value of the bit, and one for if it could
@@ -171,7 +224,7 @@ public class Decoder {
 			// Create decoders for any of the lists that are non-empty.
 			for (int i = 0; i != listBranches.size(); ++i) {
 				if (!listBranches.get(i).isEmpty()) {
-					branches[i] = new Decoder(listBranches.get(i), chunkCount);
+					branches[i] = new Decoder(listBranches.get(i), chunkCount, weighted);
 				}
 			}
 		}
@@ -184,55 +237,69 @@ public class Decoder {
 	 * @return an expression corresponding to the bit sequences, or null if they did not match
 	 */
 	Expression decode(List<BitReader> readers, FeatureSet features) {
-		// Record the positions of the bit readers to allow them to be reset.
-		long positions[] = new long[readers.size()];
-		for (int i = 0; i != readers.size(); ++i) {
-			positions[i] = readers.get(i).tell();
+		if (DecoderStatistics.isEnabled()) {
+			visits += 1;
+			Expression expr = decodeNode(readers, features);
+			if (expr != null) {
+				matches += 1;
+			}
+			return expr;
 		}
+		return decodeNode(readers, features);
+	}
+
+	/** Attempt to decode a collection of bit sequences, starting from this node.
+	 * @param readers sources of bits, one for each chunk
+	 * @param features the features enabled at the time of decoding
+	 * @return an expression corresponding to the bit sequences, or null if they did not match
+	 */
+	private Expression decodeNode(List<BitReader> readers, FeatureSet features) {
+		boolean collect = DecoderStatistics.isEnabled();
 
 		// If this is a leaf node then try matching each of the listed candidates,
 		// choosing the one with the highest priority if there are several.
+		// Since the candidates are sorted by priority, the first to match is
+		// the one required.
 		if (!types.isEmpty()) {
-			TypeInfo bestInfo = null;
-			Expression bestExpr = null;
-			long bestPositions[] = new long[readers.size()];
-			for (Choice.TypeInfo info: types) {
-				if (!features.containsAll(info.requiredFeatures)) continue;
-				if (features.containsAny(info.forbiddenFeatures)) continue;
-				Expression expr = info.type.decode(readers, features);
-				if (expr != null) {
-					if ((bestInfo == null) || (info.priority > bestInfo.priority)) {
-						bestInfo = info;
-						bestExpr = expr;
-						for (int i = 0; i != readers.size(); ++i) {
-							bestPositions[i] = readers.get(i).tell();
+			// Record the positions of the bit readers to allow them to be reset.
+			DecodeContext ctx = DecodeContext.get();
+			int mark = ctx.savePositions(readers);
+			try {
+				for (int k = 0; k != types.size(); ++k) {
+					Choice.TypeInfo info = types.get(k);
+					if (!features.containsAll(info.requiredFeatures)) continue;
+					if (features.containsAny(info.forbiddenFeatures)) continue;
+					Expression expr = info.type.decode(readers, features);
+					if (collect) {
+						attempts += 1;
+					}
+					if (expr != null) {
+						if (collect) {
+							decoded += 1;
+							info.matches += 1;
 						}
+						return expr;
 					}
+					ctx.restorePositions(readers, mark);
 				}
-				for (int i = 0; i != readers.size(); ++i) {
-					readers.get(i).seek(positions[i]);
-				}
-			}
-
-			if (bestInfo != null) {
-				Type type = bestInfo.type;
-				for (int i = 0; i != readers.size(); ++i) {
-					readers.get(i).seek(bestPositions[i]);
-				}
-				return bestExpr;
+				return null;
+			} finally {
+				ctx.releasePositions(mark);
 			}
 		}
 
 		// For interior nodes, first isolate the bit to be extracted and follow
-		// the relevant branch.
+		// the relevant branch. A branch which fails to match leaves the bit
+		// readers at their original positions, so there is no need to reset
+		// them here.
 		int bit = readers.get(chunk).peek(cindex);
 		if (branches[bit] != null) {
 			Expression expr = branches[bit].decode(readers, features);
 			if (expr != null) {
 				return expr;
 			}
-			for (int i = 0; i != readers.size(); ++i) {
-				readers.get(i).seek(positions[i]);
+			if (collect && (branches[EITHER] != null)) {
+				backtracks += 1;
 			}
 		}
 
@@ -243,9 +310,6 @@ public class Decoder {
 			if (expr != null) {
 				return expr;
 			}
-			for (int i = 0; i != readers.size(); ++i) {
-				readers.get(i).seek(positions[i]);
-			}
 		}
 
 		// If nothing found on either of the branches above then return null
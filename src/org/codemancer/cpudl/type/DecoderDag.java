@@ -0,0 +1,192 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+/** A class for decoding a bit pattern using a decision DAG.
+ * A DecoderDag is compiled from a Decoder trie, and gives the same result
+ * for any given input, but never backtracks between interior nodes.
+ * Each DAG node corresponds to the sequence of trie nodes which would be
+ * tried in turn, starting with a single root. Inspecting a bit replaces
+ * every trie node in the sequence which inspects that bit with its branch
+ * for the value found followed by its either-value branch, so that the
+ * either-value candidates are merged into both concrete branches. This
+ * continues until the sequence consists only of leaves, which are then
+ * tried in turn. Identical sequences share a single DAG node.
+ */
+class DecoderDag {
+	/** The maximum number of nodes in a DAG. */
+	static final int MAX_NODES = 4096;
+
+	/** The chunk number to be inspected by this node. */
+	private final int chunk;
+
+	/** The chunk-relative bit index to be inspected by this node. */
+	private final int cindex;
+
+	/** The nodes to follow for each value of the inspected bit, or null if this is a leaf. */
+	private final DecoderDag[] branches;
+
+	/** The trie leaves to be tried in turn, or null if this is an interior node. */
+	private final Decoder[] leaves;
+
+	/** Compile a decoder trie into a decision DAG.
+	 * A DAG is only produced if the trie is capable of backtracking, since
+	 * otherwise it would offer no advantage over the trie or a jump table.
+	 * @param decoder the root of the decoder trie
+	 * @return the corresponding DAG, or null if it would have no advantage or
+	 *  would have more than MAX_NODES nodes
+	 */
+	static DecoderDag compile(Decoder decoder) {
+		if (!canBacktrack(decoder)) {
+			return null;
+		}
+		List<Decoder> nodes = new ArrayList<Decoder>();
+		nodes.add(decoder);
+		return compile(nodes, new HashMap<List<Decoder>, DecoderDag>());
+	}
+
+	/** Test whether a decoder trie is capable of backtracking.
+	 * @param node the root of the trie
+	 * @return true if any interior node has an either-value branch, otherwise false
+	 */
+	private static boolean canBacktrack(Decoder node) {
+		if (!node.types.isEmpty()) {
+			return false;
+		}
+		if (node.branches[Decoder.EITHER] != null) {
+			return true;
+		}
+		for (Decoder branch: node.branches) {
+			if ((branch != null) && canBacktrack(branch)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Compile a sequence of trie nodes into a decision DAG, reusing existing DAG nodes where possible.
+	 * @param nodes the trie nodes to be tried in turn
+	 * @param dags the DAG nodes which have already been compiled, indexed by trie node sequence
+	 * @return the corresponding DAG, or null if the size limit was exceeded
+	 */
+	private static DecoderDag compile(List<Decoder> nodes, Map<List<Decoder>, DecoderDag> dags) {
+		DecoderDag dag = dags.get(nodes);
+		if (dag != null) {
+			return dag;
+		}
+		if (dags.size() >= MAX_NODES) {
+			return null;
+		}
+
+		// Inspect the bit used by the first interior node in the sequence.
+		// If there are none then this is a leaf.
+		Decoder first = null;
+		for (Decoder node: nodes) {
+			if (node.types.isEmpty()) {
+				first = node;
+				break;
+			}
+		}
+		if (first == null) {
+			dag = new DecoderDag(nodes.toArray(new Decoder[nodes.size()]));
+		} else {
+			DecoderDag[] branches = new DecoderDag[2];
+			for (int value = 0; value != 2; ++value) {
+				List<Decoder> branchNodes = new ArrayList<Decoder>();
+				for (Decoder node: nodes) {
+					expand(node, first.chunk, first.cindex, value, branchNodes);
+				}
+				branches[value] = compile(branchNodes, dags);
+				if (branches[value] == null) {
+					return null;
+				}
+			}
+			dag = new DecoderDag(first.chunk, first.cindex, branches);
+		}
+		dags.put(nodes, dag);
+		return dag;
+	}
+
+	/** Determine the sequence of trie nodes to be tried once a given bit is known.
+	 * Nodes which inspect that bit are replaced by their branches; any other
+	 * nodes are appended to the sequence unchanged. A node which is already
+	 * present in the sequence is not appended again, since it would give
+	 * the same result as before.
+	 * @param node the node from which to start
+	 * @param chunk the chunk number of the known bit
+	 * @param cindex the chunk-relative index of the known bit
+	 * @param value the value of the known bit
+	 * @param nodes the list to which the nodes should be appended
+	 */
+	private static void expand(Decoder node, int chunk, int cindex, int value, List<Decoder> nodes) {
+		if (node.types.isEmpty() && (node.chunk == chunk) && (node.cindex == cindex)) {
+			Decoder branch = node.branches[value];
+			if (branch != null) {
+				expand(branch, chunk, cindex, value, nodes);
+			}
+			Decoder either = node.branches[Decoder.EITHER];
+			if (either != null) {
+				expand(either, chunk, cindex, value, nodes);
+			}
+		} else if (!nodes.contains(node)) {
+			nodes.add(node);
+		}
+	}
+
+	/** Construct interior DAG node.
+	 * @param chunk the chunk number to be inspected
+	 * @param cindex the chunk-relative bit index to be inspected
+	 * @param branches the nodes to follow for each value of the inspected bit
+	 */
+	private DecoderDag(int chunk, int cindex, DecoderDag[] branches) {
+		this.chunk = chunk;
+		this.cindex = cindex;
+		this.branches = branches;
+		this.leaves = null;
+	}
+
+	/** Construct leaf DAG node.
+	 * @param leaves the trie leaves to be tried in turn
+	 */
+	private DecoderDag(Decoder[] leaves) {
+		this.chunk = 0;
+		this.cindex = 0;
+		this.branches = null;
+		this.leaves = leaves;
+	}
+
+	/** Attempt to decode a collection of bit sequences.
+	 * This function has the same semantics as Type.decode.
+	 * @param readers sources of bits, one for each chunk
+	 * @param features the features enabled at the time of decoding
+	 * @return an expression corresponding to the bit sequences, or null if they did not match
+	 */
+	Expression decode(List<BitReader> readers, FeatureSet features) {
+		DecoderDag dag = this;
+		while (dag.leaves == null) {
+			dag = dag.branches[readers.get(dag.chunk).peek(dag.cindex)];
+		}
+
+		// Leaves that fail to match leave the readers at their original
+		// positions, so there is no need to reset them here.
+		for (Decoder leaf: dag.leaves) {
+			Expression expr = leaf.decode(readers, features);
+			if (expr != null) {
+				return expr;
+			}
+		}
+		return null;
+	}
+}
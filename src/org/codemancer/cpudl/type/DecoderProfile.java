@@ -0,0 +1,127 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.io.Reader;
+import java.io.Writer;
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import org.codemancer.cpudl.Architecture;
+
+/** A class to record how often each alternative of each choice was matched.
+ * A profile is gathered by decoding a representative corpus with decoder
+ * statistics enabled, and can then be supplied when an architecture is
+ * loaded so that frequently matched alternatives are placed closer to the
+ * root of each decoder trie. Choices are identified by the order in which
+ * they were constructed, so a profile is only valid for the CPUDL file
+ * from which it was gathered.
+ */
+public class DecoderProfile {
+	/** The match counts for each alternative, indexed by choice number. */
+	private final TreeMap<Integer, long[]> counts = new TreeMap<Integer, long[]>();
+
+	/** Construct empty profile. */
+	public DecoderProfile() {}
+
+	/** Construct profile from text.
+	 * Each line consists of a choice number followed by the match count
+	 * for each alternative of that choice, separated by whitespace.
+	 * Blank lines, and lines beginning with a hash character, are ignored.
+	 * @param in the reader from which the profile should be read
+	 */
+	public DecoderProfile(Reader in) throws IOException {
+		BufferedReader br = new BufferedReader(in);
+		String line = br.readLine();
+		while (line != null) {
+			line = line.trim();
+			if ((line.length() != 0) && (line.charAt(0) != '#')) {
+				String[] fields = line.split("\\s+");
+				try {
+					long[] choiceCounts = new long[fields.length - 1];
+					for (int i = 0; i != choiceCounts.length; ++i) {
+						choiceCounts[i] = Long.parseLong(fields[i + 1]);
+						if (choiceCounts[i] < 0) {
+							throw new IllegalArgumentException("negative count in decoder profile");
+						}
+					}
+					counts.put(Integer.valueOf(fields[0]), choiceCounts);
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("invalid line in decoder profile: " + line);
+				}
+			}
+			line = br.readLine();
+		}
+	}
+
+	/** Write this profile as text, in the format accepted by the constructor.
+	 * @param out the writer to which the profile should be written
+	 */
+	public final void write(Writer out) throws IOException {
+		for (Map.Entry<Integer, long[]> entry: counts.entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(entry.getKey());
+			for (long count: entry.getValue()) {
+				sb.append(' ');
+				sb.append(count);
+			}
+			sb.append('\n');
+			out.write(sb.toString());
+		}
+		out.flush();
+	}
+
+	/** Add the match counts collected by the decoder tries of an architecture.
+	 * Counts are only collected while decoder statistics are enabled.
+	 * @param arch the architecture
+	 */
+	public final void gather(Architecture arch) {
+		List<Choice> choices = arch.getChoices();
+		for (int i = 0; i != choices.size(); ++i) {
+			List<Choice.TypeInfo> infos = choices.get(i).infos;
+			long[] choiceCounts = counts.get(i);
+			if (choiceCounts == null) {
+				choiceCounts = new long[infos.size()];
+				counts.put(i, choiceCounts);
+			} else if (choiceCounts.length != infos.size()) {
+				throw new IllegalArgumentException("decoder profile does not match architecture");
+			}
+			for (int j = 0; j != infos.size(); ++j) {
+				choiceCounts[j] += infos.get(j).matches;
+			}
+		}
+	}
+
+	/** Get the match count for an alternative of a choice.
+	 * @param choice the choice number
+	 * @param index the index of the alternative within the choice
+	 * @return the match count, or zero if none recorded
+	 */
+	public final long getCount(int choice, int index) {
+		long[] choiceCounts = counts.get(choice);
+		return ((choiceCounts != null) && (index < choiceCounts.length)) ? choiceCounts[index] : 0;
+	}
+
+	/** Apply this profile to the alternatives of a choice which is about to be constructed.
+	 * @param choice the choice number
+	 * @param infos the alternatives
+	 */
+	void apply(int choice, List<Choice.TypeInfo> infos) {
+		long[] choiceCounts = counts.get(choice);
+		if (choiceCounts == null) {
+			return;
+		}
+		if (choiceCounts.length != infos.size()) {
+			throw new IllegalArgumentException("decoder profile does not match architecture");
+		}
+		for (int i = 0; i != infos.size(); ++i) {
+			infos.get(i).weight = choiceCounts[i];
+		}
+	}
+}
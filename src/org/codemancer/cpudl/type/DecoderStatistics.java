@@ -0,0 +1,282 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.Set;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+/** A class for summarising the shape and usage of a decoder trie.
+ * The static shape of the trie is always available. Dynamic counts are
+ * collected only while statistics collection is enabled, in which case
+ * choices are decoded using the trie as opposed to the equivalent jump
+ * table. Collection is not synchronised, so the counts are unreliable
+ * if decoding is performed by more than one thread at once.
+ */
+public class DecoderStatistics {
+	/** True if statistics are to be collected, otherwise false. */
+	private static volatile boolean enabled = false;
+
+	/** The number of nodes in the trie. */
+	private long nodeCount = 0;
+
+	/** The number of leaf nodes in the trie. */
+	private long leafCount = 0;
+
+	/** The number of interior nodes in the trie. */
+	private long interiorCount = 0;
+
+	/** The total number of branches from interior nodes. */
+	private long branchCount = 0;
+
+	/** The maximum depth of any node, counting the root as depth zero. */
+	private int maxDepth = 0;
+
+	/** The total depth of all leaf nodes. */
+	private long totalLeafDepth = 0;
+
+	/** The largest number of candidates listed by any leaf node. */
+	private int maxLeafSize = 0;
+
+	/** The largest number of candidates that could be tried when decoding any one input. */
+	private long worstCaseCandidates = 0;
+
+	/** The number of times that the trie has been used. */
+	private long decodes = 0;
+
+	/** The number of times that the trie has returned a successful match. */
+	private long matches = 0;
+
+	/** The total number of node visits. */
+	private long visits = 0;
+
+	/** The total number of leaf node visits. */
+	private long leafVisits = 0;
+
+	/** The total number of candidates listed by the leaf nodes visited. */
+	private long candidates = 0;
+
+	/** The total number of times the either-value branch was tried after another branch failed. */
+	private long backtracks = 0;
+
+	/** The total number of leaf candidates which were eligible to be decoded. */
+	private long attempts = 0;
+
+	/** The total number of leaf candidates which were decoded successfully. */
+	private long decoded = 0;
+
+	/** Enable or disable the collection of statistics.
+	 * @param enabled true to enable collection, false to disable it
+	 */
+	public static void setEnabled(boolean enabled) {
+		DecoderStatistics.enabled = enabled;
+	}
+
+	/** Test whether statistics are being collected.
+	 * @return true if enabled, otherwise false
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Gather statistics for the decoder trie belonging to a type.
+	 * If the type is not a choice then it has no trie, and all of the
+	 * statistics will be zero.
+	 * @param type the type
+	 */
+	public DecoderStatistics(Type type) {
+		if (type instanceof Choice) {
+			Decoder root = ((Choice)type).decoder;
+			worstCaseCandidates = gather(root, 0, Collections.newSetFromMap(new IdentityHashMap<Decoder, Boolean>()));
+			decodes = root.visits;
+			matches = root.matches;
+		}
+	}
+
+	/** Reset the dynamic counts for the decoder trie belonging to a type.
+	 * @param type the type
+	 */
+	public static void reset(Type type) {
+		if (type instanceof Choice) {
+			reset(((Choice)type).decoder);
+		}
+	}
+
+	/** Reset the dynamic counts for a decoder trie.
+	 * @param node the root of the trie
+	 */
+	private static void reset(Decoder node) {
+		node.visits = 0;
+		node.matches = 0;
+		node.backtracks = 0;
+		node.attempts = 0;
+		node.decoded = 0;
+		for (Choice.TypeInfo info: node.types) {
+			info.matches = 0;
+		}
+		for (Decoder branch: node.branches) {
+			if (branch != null) {
+				reset(branch);
+			}
+		}
+	}
+
+	/** Accumulate statistics for a decoder trie.
+	 * @param node the root of the trie
+	 * @param depth the depth of the root
+	 * @param seen the nodes which have already been accumulated
+	 * @return the largest number of candidates that could be tried when decoding any one input
+	 */
+	private long gather(Decoder node, int depth, Set<Decoder> seen) {
+		boolean first = seen.add(node);
+		if (first) {
+			nodeCount += 1;
+			maxDepth = Math.max(maxDepth, depth);
+			visits += node.visits;
+			backtracks += node.backtracks;
+			attempts += node.attempts;
+			decoded += node.decoded;
+		}
+
+		if (!node.types.isEmpty()) {
+			if (first) {
+				leafCount += 1;
+				totalLeafDepth += depth;
+				maxLeafSize = Math.max(maxLeafSize, node.types.size());
+				leafVisits += node.visits;
+				candidates += node.visits * node.types.size();
+			}
+			return node.types.size();
+		}
+
+		// The worst case follows whichever of the zero and one branches
+		// is more costly, then backtracks into the either-value branch.
+		long[] worst = new long[node.branches.length];
+		for (int i = 0; i != node.branches.length; ++i) {
+			Decoder branch = node.branches[i];
+			if (branch != null) {
+				if (first) {
+					branchCount += 1;
+				}
+				worst[i] = gather(branch, depth + 1, seen);
+			}
+		}
+		if (first) {
+			interiorCount += 1;
+		}
+		return Math.max(worst[0], worst[1]) + worst[Decoder.EITHER];
+	}
+
+	/** Get the number of nodes in the trie.
+	 * @return the number of nodes
+	 */
+	public final long getNodeCount() {
+		return nodeCount;
+	}
+
+	/** Get the number of leaf nodes in the trie.
+	 * @return the number of leaf nodes
+	 */
+	public final long getLeafCount() {
+		return leafCount;
+	}
+
+	/** Get the maximum depth of the trie.
+	 * @return the maximum depth, counting the root as depth zero
+	 */
+	public final int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/** Get the average depth of the leaf nodes in the trie.
+	 * @return the average leaf depth
+	 */
+	public final double getAverageLeafDepth() {
+		return (leafCount != 0) ? (double)totalLeafDepth / leafCount : 0;
+	}
+
+	/** Get the average number of branches from each interior node.
+	 * @return the average fan-out, between one and three
+	 */
+	public final double getAverageFanOut() {
+		return (interiorCount != 0) ? (double)branchCount / interiorCount : 0;
+	}
+
+	/** Get the largest number of candidates listed by any leaf node.
+	 * @return the maximum leaf size
+	 */
+	public final int getMaxLeafSize() {
+		return maxLeafSize;
+	}
+
+	/** Get the largest number of candidates that could be tried when
+	 * decoding any one input, taking account of backtracking.
+	 * @return the worst-case number of candidates
+	 */
+	public final long getWorstCaseCandidates() {
+		return worstCaseCandidates;
+	}
+
+	/** Get the number of times that the trie has been used.
+	 * @return the number of decodes
+	 */
+	public final long getDecodes() {
+		return decodes;
+	}
+
+	/** Get the number of times that the trie has returned a successful match.
+	 * @return the number of matches
+	 */
+	public final long getMatches() {
+		return matches;
+	}
+
+	/** Get the total number of node visits.
+	 * @return the number of visits
+	 */
+	public final long getVisits() {
+		return visits;
+	}
+
+	/** Get the total number of leaf node visits.
+	 * @return the number of leaf visits
+	 */
+	public final long getLeafVisits() {
+		return leafVisits;
+	}
+
+	/** Get the total number of candidates listed by the leaf nodes visited.
+	 * @return the number of candidates
+	 */
+	public final long getCandidates() {
+		return candidates;
+	}
+
+	/** Get the number of times that the either-value branch was tried
+	 * after the branch for the inspected bit value had failed.
+	 * @return the number of backtracks
+	 */
+	public final long getBacktracks() {
+		return backtracks;
+	}
+
+	/** Get the number of leaf candidates which were eligible to be decoded.
+	 * Candidates excluded by the enabled feature set are not counted.
+	 * @return the number of attempts
+	 */
+	public final long getAttempts() {
+		return attempts;
+	}
+
+	/** Get the number of leaf candidates which were decoded successfully.
+	 * Decoding at a leaf stops with the first candidate to match, so this
+	 * is normally equal to the number of matches.
+	 * @return the number of candidates decoded
+	 */
+	public final long getDecoded() {
+		return decoded;
+	}
+}
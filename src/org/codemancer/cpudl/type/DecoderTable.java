@@ -0,0 +1,222 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.TreeSet;
+import java.util.LinkedList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+/** A class for decoding a bit pattern using multi-bit jump tables.
+ * A DecoderTable is compiled from a Decoder trie, and gives the same
+ * result for any given input, but inspects several bits of the input
+ * at each node instead of one. For each possible value of those bits,
+ * the table lists the lower-level nodes which the Decoder trie would
+ * have visited, in the order in which it would have visited them
+ * (including any nodes reached by backtracking into either-value
+ * branches). These are tried in turn until one of them succeeds.
+ */
+class DecoderTable {
+	/** The maximum number of bits to be inspected by a single table. */
+	private static final int MAX_STRIDE = 8;
+
+	/** The maximum distance between the first and last bit inspected by a single table. */
+	private static final int MAX_SPAN = 57;
+
+	/** An empty list of nodes. */
+	private static final DecoderTable[] NO_NODES = new DecoderTable[0];
+
+	/** The leaf decoder, or null if this is an interior node. */
+	private final Decoder leaf;
+
+	/** The chunk number to be inspected by this table. */
+	private final int chunk;
+
+	/** The chunk-relative index of the first bit to be inspected. */
+	private final long base;
+
+	/** The number of bits to be fetched, starting from the base. */
+	private final int width;
+
+	/** The base-relative indices of the bits which make up the table index,
+	 * from least significant to most significant. */
+	private final int[] offsets;
+
+	/** True if the offsets are consecutive, allowing the index to be
+	 * extracted using a single shift and mask. */
+	private final boolean consecutive;
+
+	/** The nodes to be tried for each possible table index. */
+	private final DecoderTable[][] entries;
+
+	/** Compile a decoder trie into a jump table.
+	 * @param decoder the root of the decoder trie
+	 * @return the corresponding jump table
+	 */
+	static DecoderTable compile(Decoder decoder) {
+		return compile(decoder, new IdentityHashMap<Decoder, DecoderTable>());
+	}
+
+	/** Compile a decoder trie into a jump table, reusing existing tables where possible.
+	 * @param decoder the root of the decoder trie
+	 * @param tables the tables which have already been compiled, indexed by decoder
+	 * @return the corresponding jump table
+	 */
+	private static DecoderTable compile(Decoder decoder, Map<Decoder, DecoderTable> tables) {
+		DecoderTable table = tables.get(decoder);
+		if (table == null) {
+			table = new DecoderTable(decoder, tables);
+			tables.put(decoder, table);
+		}
+		return table;
+	}
+
+	/** Construct jump table for a given decoder trie node.
+	 * @param decoder the decoder trie node
+	 * @param tables the tables which have already been compiled, indexed by decoder
+	 */
+	private DecoderTable(Decoder decoder, Map<Decoder, DecoderTable> tables) {
+		if (!decoder.types.isEmpty()) {
+			this.leaf = decoder;
+			this.chunk = 0;
+			this.base = 0;
+			this.width = 0;
+			this.offsets = null;
+			this.consecutive = false;
+			this.entries = null;
+			return;
+		}
+		this.leaf = null;
+		this.chunk = decoder.chunk;
+
+		// Choose the bits to be inspected by visiting the interior nodes of
+		// the trie in breadth-first order, collecting the bits which they
+		// inspect until either the stride or the span limit is reached.
+		// Nodes which inspect a different chunk, or a bit which cannot
+		// be added, are left to be handled by lower-level tables.
+		TreeSet<Long> bits = new TreeSet<Long>();
+		LinkedList<Decoder> pending = new LinkedList<Decoder>();
+		pending.add(decoder);
+		while (!pending.isEmpty()) {
+			Decoder node = pending.removeFirst();
+			if (!node.types.isEmpty() || (node.chunk != chunk)) continue;
+			Long bit = Long.valueOf(node.cindex);
+			if (!bits.contains(bit)) {
+				if (bits.size() == MAX_STRIDE) continue;
+				if (!bits.isEmpty()) {
+					long first = Math.min(bits.first().longValue(), node.cindex);
+					long last = Math.max(bits.last().longValue(), node.cindex);
+					if (last - first >= MAX_SPAN) continue;
+				}
+				bits.add(bit);
+			}
+			for (Decoder branch: node.branches) {
+				if (branch != null) {
+					pending.add(branch);
+				}
+			}
+		}
+
+		this.base = bits.first().longValue();
+		this.width = (int)(bits.last().longValue() - base + 1);
+		this.offsets = new int[bits.size()];
+		int k = 0;
+		for (Long bit: bits) {
+			offsets[k++] = (int)(bit.longValue() - base);
+		}
+		this.consecutive = (width == offsets.length);
+
+		// For each possible value of the inspected bits, determine the
+		// sequence of nodes which the trie would have visited. Identical
+		// sequences are shared.
+		Map<List<Decoder>, DecoderTable[]> sequences = new HashMap<List<Decoder>, DecoderTable[]>();
+		this.entries = new DecoderTable[1 << offsets.length][];
+		for (int index = 0; index != entries.length; ++index) {
+			List<Decoder> nodes = new ArrayList<Decoder>();
+			expand(decoder, index, nodes);
+			DecoderTable[] entry = sequences.get(nodes);
+			if (entry == null) {
+				entry = (nodes.isEmpty()) ? NO_NODES : new DecoderTable[nodes.size()];
+				for (int i = 0; i != nodes.size(); ++i) {
+					entry[i] = compile(nodes.get(i), tables);
+				}
+				sequences.put(nodes, entry);
+			}
+			entries[index] = entry;
+		}
+	}
+
+	/** Determine the sequence of nodes which the trie would visit for a given table index.
+	 * Nodes which inspect one of the bits belonging to this table are followed;
+	 * any other nodes are appended to the sequence.
+	 * @param node the node from which to start
+	 * @param index the table index
+	 * @param nodes the list to which the nodes should be appended
+	 */
+	private void expand(Decoder node, int index, List<Decoder> nodes) {
+		int k = -1;
+		if (node.types.isEmpty() && (node.chunk == chunk)) {
+			for (int i = 0; i != offsets.length; ++i) {
+				if (node.cindex == base + offsets[i]) {
+					k = i;
+				}
+			}
+		}
+		if (k < 0) {
+			nodes.add(node);
+			return;
+		}
+
+		Decoder branch = node.branches[(index >> k) & 1];
+		if (branch != null) {
+			expand(branch, index, nodes);
+		}
+		Decoder either = node.branches[Decoder.EITHER];
+		if (either != null) {
+			expand(either, index, nodes);
+		}
+	}
+
+	/** Attempt to decode a collection of bit sequences.
+	 * This function has the same semantics as Type.decode.
+	 * @param readers sources of bits, one for each chunk
+	 * @param features the features enabled at the time of decoding
+	 * @return an expression corresponding to the bit sequences, or null if they did not match
+	 */
+	Expression decode(List<BitReader> readers, FeatureSet features) {
+		if (leaf != null) {
+			return leaf.decode(readers, features);
+		}
+
+		long bits = readers.get(chunk).peek(base, width);
+		int index;
+		if (consecutive) {
+			index = (int)bits;
+		} else {
+			index = 0;
+			for (int i = 0; i != offsets.length; ++i) {
+				index |= (int)((bits >>> offsets[i]) & 1) << i;
+			}
+		}
+
+		// Nodes that fail to match leave the readers at their original
+		// positions, so there is no need to reset them here.
+		for (DecoderTable node: entries[index]) {
+			Expression expr = node.decode(readers, features);
+			if (expr != null) {
+				return expr;
+			}
+		}
+		return null;
+	}
+}
@@ -23,6 +23,7 @@ import org.codemancer.cpudl.expr.Constant;
 import org.codemancer.cpudl.expr.Sequence;
 import org.codemancer.cpudl.expr.Fragment;
 import org.codemancer.cpudl.expr.IsEqual;
+import org.codemancer.cpudl.expr.CompiledExpression;
 
 /** A class to represent a type of instruction fragment. */
 public class FragmentType extends Type {
@@ -42,6 +43,9 @@ public class FragmentType extends Type {
 		/** An expression for deducing the value of this member, or null if none available. */
 		public Expression solution;
 
+		/** The solution in compiled form, or null if it could not be compiled. */
+		CompiledExpression compiledSolution;
+
 		/** Construct member information.
 		 * @param type the type of this member
 		 * @param buffer the assembly buffer index for this subfragment
@@ -52,12 +56,16 @@ public class FragmentType extends Type {
 			this.chunk = 0;
 			this.piece = 0;
 			this.solution = null;
+			this.compiledSolution = null;
 		}
 	}
 
 	/** The members of this fragment, indexed by name. */
 	private final SortedMap<String, MemberInfo> members = new TreeMap<String, MemberInfo>();
 
+	/** The names of the members of this fragment, in order, for use when constructing instances. */
+	private final String[] memberNames;
+
 	/** The patterns that are matched by this fragment, indexed by chunk number. */
 	private final List<Pattern> patterns = new ArrayList<Pattern>();
 
@@ -70,9 +78,16 @@ public class FragmentType extends Type {
 	/** A list of constraints which instances of this type must satisfy. */
 	private final List<Expression> constraints = new ArrayList<Expression>();
 
+	/** The constraints in compiled form, indexed as for constraints.
+	 * An entry is null if the corresponding constraint could not be compiled. */
+	private final CompiledExpression[] compiledConstraints;
+
 	/** The number of bitstring assembly buffers needed to decode this compound fragment. */
 	private int bufferCount = 1;
 
+	/** True if all of the patterns for this fragment have been compiled, otherwise false. */
+	private boolean compiled = true;
+
 	/** Construct fragment type from XML.
 	 * @param ctx the context of this type
 	 * @param element this fragment type as an XML element
@@ -98,6 +113,11 @@ public class FragmentType extends Type {
 			child = child.getNextSibling();
 		}
 
+		for (Pattern pattern: patterns) {
+			compiled &= pattern.isCompiled();
+		}
+		memberNames = members.keySet().toArray(new String[members.size()]);
+
 		// The following method selects the first constraint capable of providing
 		// a solution for a missing fragment member without checking that any other
 		// members referenced by the solution are available. It is therefore
@@ -120,6 +140,19 @@ public class FragmentType extends Type {
 				}
 			}
 		}
+
+		// Compile the constraints and solutions, so that in the common case
+		// where the members on which they depend are constants they can be
+		// evaluated without constructing any intermediate expressions.
+		compiledConstraints = new CompiledExpression[constraints.size()];
+		for (int i = 0; i != constraints.size(); ++i) {
+			compiledConstraints[i] = CompiledExpression.compile(constraints.get(i));
+		}
+		for (MemberInfo member: members.values()) {
+			if (member.solution != null) {
+				member.compiledSolution = CompiledExpression.compile(member.solution);
+			}
+		}
 	}
 
 	/** Parse member.
@@ -170,7 +203,13 @@ public class FragmentType extends Type {
 			String name = entry.getKey();
 			MemberInfo member = entry.getValue();
 			if (frag.get(name) == null) {
-				Expression value = member.solution.resolveReferences(frag, null);
+				CompiledExpression compiled = member.compiledSolution;
+				Expression value;
+				if ((compiled != null) && compiled.canEvaluate(frag)) {
+					value = compiled.getConstant(frag);
+				} else {
+					value = member.solution.resolveReferences(frag, null);
+				}
 				frag.put(name, value);
 			}
 		}
@@ -181,8 +220,14 @@ public class FragmentType extends Type {
 	 * @return true if all constraints are satisfied, otherwise false
 	 */
 	boolean check(Fragment frag) {
-		for (Expression constraint: constraints) {
-			Expression result = constraint.resolveReferences(frag, null).simplify();
+		for (int i = 0; i != constraints.size(); ++i) {
+			CompiledExpression compiled = compiledConstraints[i];
+			if ((compiled != null) && compiled.canEvaluate(frag)) {
+				if (compiled.evaluate(frag) == 0) return false;
+				continue;
+			}
+			Expression constraint = constraints.get(i);
+			Expression result = constraint.resolve(frag, null, null);
 			if (!(result instanceof Constant)) return false;
 			Constant constResult = (Constant)result;
 			if (constResult.getValue() == 0) return false;
@@ -216,32 +261,45 @@ public class FragmentType extends Type {
 	}
 
 	public Expression decode(List<BitReader> readers, FeatureSet features) {
-		ArrayList<ArrayList<BitReader>> buffers = new ArrayList<ArrayList<BitReader>>(bufferCount);
-		for (int i = 0; i != bufferCount; ++i) {
-			buffers.add(new ArrayList<BitReader>());
-		}
-
-		Fragment frag = new Fragment(this);
+		// Reject the input early if any compiled pattern cannot match it,
+		// so that no fragment need be constructed.
 		for (int i = 0; i != patterns.size(); ++i) {
-			if (!patterns.get(i).decode(readers.get(i), features, buffers, frag)) {
+			if (patterns.get(i).rejects(readers.get(i))) {
 				return null;
 			}
 		}
-		frag.setEffect(effect);
-		deduce(frag);
-		if (!check(frag)) return null;
-		return frag;
+
+		// Scratch structures, such as assembly buffers, are taken from the
+		// decode context. Assembly buffers are not needed if all of the
+		// patterns have been compiled.
+		DecodeContext ctx = DecodeContext.get();
+		long mark = ctx.mark();
+		try {
+			ArrayList<ArrayList<BitReader>> buffers = (compiled) ? null : ctx.allocateBuffers(bufferCount);
+			Fragment frag = new Fragment(this, memberNames);
+			for (int i = 0; i != patterns.size(); ++i) {
+				if (!patterns.get(i).decode(readers.get(i), features, buffers, frag)) {
+					return null;
+				}
+			}
+			frag.setEffect(effect);
+			deduce(frag);
+			if (!check(frag)) return null;
+			return frag;
+		} finally {
+			ctx.release(mark);
+		}
 	}
 
 	public int getPieceCount() {
 		return phrases.size();
 	}
 
-	public String unparse(int piece, Expression expr) {
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		if ((piece < 0) || (piece >= phrases.size())) {
 			throw new IllegalArgumentException("invalid piece number");
 		}
-		return phrases.get(piece).unparse(expr);
+		phrases.get(piece).unparse(out, expr);
 	}
 
 	public Expression getEffect() {
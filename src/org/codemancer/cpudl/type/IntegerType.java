@@ -122,12 +122,33 @@ public class IntegerType extends Type {
 		if (readers.size() != 1) {
 			throw new IllegalArgumentException("incorrect number of chunks");
 		}
-		BitString bits = readers.get(0).read(size);
+		BitReader reader = readers.get(0);
+		if (size <= 57) {
+			// Short values can be decoded without copying the bits.
+			long bits = reader.peek(0, size);
+			if (reader.skip(size) < size) {
+				return null;
+			}
+			return decode(bits);
+		}
+		BitString bits = reader.read(size);
 		if (bits.length() < size) {
 			return null;
 		}
 
-		long value = bits.getBits(0, size, bigEndian);
+		return decode(bits.getBits(0, size, false));
+	}
+
+	/** Decode a value from a bit pattern which has already been read.
+	 * @param bits the bits of the pattern, in the order they were read,
+	 *  as a little-endian integer
+	 * @return the corresponding value
+	 */
+	final Expression decode(long bits) {
+		long value = bits;
+		if (bigEndian && (size != 0)) {
+			value = Long.reverse(value) >>> (64 - size);
+		}
 		switch (encoding) {
 		case UNSIGNED:
 			break;
@@ -143,10 +164,10 @@ public class IntegerType extends Type {
 		return 1;
 	}
 
-	public String unparse(int piece, Expression expr) {
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		if (piece != 0) {
 			throw new IllegalArgumentException("invalid piece number");
 		}
-		return expr.unparse(style);
+		expr.unparse(out, style);
 	}
 }
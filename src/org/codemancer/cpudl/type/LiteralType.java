@@ -28,10 +28,17 @@ public class LiteralType extends Type {
 		return 1;
 	}
 
-	public String unparse(int piece, Expression expr) {
+	/** Get the piece of assembly language that is matched by this fragment.
+	 * @return the content
+	 */
+	public final String getContent() {
+		return content;
+	}
+
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		if (piece != 0) {
 			throw new IllegalArgumentException("invalid piece number");
 		}
-		return content;
+		out.append(content);
 	}
 }
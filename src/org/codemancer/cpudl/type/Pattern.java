@@ -5,6 +5,7 @@
 
 package org.codemancer.cpudl.type;
 
+import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.SortedMap;
@@ -46,19 +47,25 @@ public class Pattern {
 		/** True if this is the final chunk of the fragment, otherwise false. */
 		public final boolean isFinal;
 
+		/** The offset of this chunk from the start of the pattern in bits,
+		 * or -1 if it follows a variable-width region. */
+		public final long offset;
+
 		/** Construct chunk information.
 		 * @param name the name of this chunk
 		 * @param type the type of this chunk
 		 * @param index the chunk number
 		 * @param buffer the assembly buffer index
 		 * @param isFinal true if this is the final chunk, otherwise false
+		 * @param offset the offset of this chunk, or -1 if not known
 		 */
-		ChunkInfo(String name, Type type, int index, int buffer, boolean isFinal) {
+		ChunkInfo(String name, Type type, int index, int buffer, boolean isFinal, long offset) {
 			this.name = name;
 			this.type = type;
 			this.index = index;
 			this.buffer = buffer;
 			this.isFinal = isFinal;
+			this.offset = offset;
 		}
 	}
 
@@ -78,6 +85,21 @@ public class Pattern {
 	/** True if the width of this pattern is variable, otherwise false. */
 	boolean variableWidth;
 
+	/** True if this pattern has been compiled, otherwise false. */
+	private boolean compiled = false;
+
+	/** For a compiled pattern, a mask selecting the bits which must match constants. */
+	private long constantMask = 0;
+
+	/** For a compiled pattern, the required values of the bits selected by constantMask. */
+	private long constantValue = 0;
+
+	/** For a compiled pattern, the chunks which are integers. */
+	private ChunkInfo[] integerChunks;
+
+	/** For a compiled pattern, the chunks which must be decoded by their own type. */
+	private ChunkInfo[] otherChunks;
+
 	/** Construct pattern from XML.
 	 * @param ctx the context of this pattern
 	 * @param element this pattern as an XML element
@@ -103,6 +125,9 @@ public class Pattern {
 			}
 			child = child.getNextSibling();
 		}
+		if (ctx.getArchitecture().isCompiled()) {
+			compile();
+		}
 	}
 
 	private void add(Element element, String name, MemberInfo member) throws CpudlParseException {
@@ -110,7 +135,8 @@ public class Pattern {
 			throw new CpudlParseException(element, "too many pattern references to fragment member");
 		}
 		boolean isFinal = (member.chunk + 1 == member.type.getChunkCount());
-		ChunkInfo chunkInfo = new ChunkInfo(name, member.type, member.chunk, member.buffer, isFinal);
+		long offset = (variableWidth) ? -1 : fixedWidth;
+		ChunkInfo chunkInfo = new ChunkInfo(name, member.type, member.chunk, member.buffer, isFinal, offset);
 		chunks.add(chunkInfo);
 		if (!variableWidth) {
 			long fragFixedWidth = member.type.getFixedWidth(member.chunk);
@@ -125,6 +151,47 @@ public class Pattern {
 		member.chunk += 1;
 	}
 
+	/** Compile this pattern, if it is suitable for compilation.
+	 * A pattern is suitable if every chunk is the only chunk of its
+	 * fragment member, if only the last chunk is variable-width, and if
+	 * the fixed-width region is no more than 64 bits wide. The whole
+	 * fixed-width region can then be read at once: constants are checked
+	 * using a single mask, and integers extracted using shifts, leaving
+	 * only the remaining chunks to be decoded by their own types.
+	 */
+	private void compile() {
+		if (fixedWidth > 64) return;
+		ArrayList<ChunkInfo> integers = new ArrayList<ChunkInfo>();
+		ArrayList<ChunkInfo> others = new ArrayList<ChunkInfo>();
+		for (ChunkInfo chunkInfo: chunks) {
+			if (!chunkInfo.isFinal || (chunkInfo.index != 0) || (chunkInfo.offset < 0)) return;
+			if (chunkInfo.type instanceof ConstantType) {
+				BitString content = ((ConstantType)chunkInfo.type).getContent();
+				long length = content.length();
+				long mask = (length < 64) ? ((1L << length) - 1) : -1;
+				constantMask |= mask << chunkInfo.offset;
+				constantValue |= content.getBits(0, length, false) << chunkInfo.offset;
+				if (chunkInfo.name != null) {
+					others.add(chunkInfo);
+				}
+			} else if ((chunkInfo.type instanceof IntegerType) && (chunkInfo.name != null)) {
+				integers.add(chunkInfo);
+			} else {
+				others.add(chunkInfo);
+			}
+		}
+		integerChunks = integers.toArray(new ChunkInfo[integers.size()]);
+		otherChunks = others.toArray(new ChunkInfo[others.size()]);
+		compiled = true;
+	}
+
+	/** Determine whether this pattern has been compiled.
+	 * @return true if compiled, otherwise false
+	 */
+	boolean isCompiled() {
+		return compiled;
+	}
+
 	/** Return the width of the initial fixed-width region of this pattern.
 	 * @return the width, in bits
 	 */
@@ -165,7 +232,12 @@ public class Pattern {
 	 * @return true if the sequence matched, otherwise false
 	 */
 	public boolean decode(BitReader reader, FeatureSet features, ArrayList<ArrayList<BitReader>> buffers, Fragment frag) {
-		for (ChunkInfo chunkInfo: chunks) {
+		if (compiled) {
+			return decodeCompiled(reader, features, frag);
+		}
+		DecodeContext ctx = null;
+		for (int i = 0; i != chunks.size(); ++i) {
+			ChunkInfo chunkInfo = chunks.get(i);
 			if (chunkInfo.isFinal) {
 				buffers.get(chunkInfo.buffer).add(reader);
 				Expression expr = chunkInfo.type.decode(buffers.get(chunkInfo.buffer), features);
@@ -174,8 +246,16 @@ public class Pattern {
 					frag.put(chunkInfo.name, expr);
 				}
 			} else {
+				// The bits are not copied: the buffer refers to them in place
+				// using a window reader, which is valid until the decode
+				// context is released by the caller.
+				if (ctx == null) {
+					ctx = DecodeContext.get();
+				}
 				long count = chunkInfo.type.getFixedWidth(chunkInfo.index);
-				buffers.get(chunkInfo.buffer).add(new BitStringReader(reader.read(count)));
+				long start = reader.tell();
+				count = reader.skip(count);
+				buffers.get(chunkInfo.buffer).add(ctx.allocateWindow(reader, start, count));
 			}
 			if (chunkInfo.buffer == 0) {
 				buffers.get(0).clear();
@@ -183,4 +263,78 @@ public class Pattern {
 		}
 		return true;
 	}
+
+	/** Test whether this pattern can be seen not to match a bit sequence
+	 * without decoding it. This is only possible for compiled patterns,
+	 * by inspecting the bits which must match constants. A result of false
+	 * does not imply that the sequence will match. The position of the
+	 * reader is unchanged.
+	 * @param reader a source of bits
+	 * @return true if the sequence cannot match, otherwise false
+	 */
+	boolean rejects(BitReader reader) {
+		return compiled && ((peekFixedWidth(reader) & constantMask) != constantValue);
+	}
+
+	/** Inspect the fixed-width region of a compiled pattern without consuming it.
+	 * Bits beyond the end of the source are presented as zeros.
+	 * @param reader a source of bits
+	 * @return the bits, as a little-endian integer
+	 */
+	private long peekFixedWidth(BitReader reader) {
+		if (fixedWidth <= 57) {
+			return reader.peek(0, (int)fixedWidth);
+		}
+		long low = reader.peek(0, 32);
+		long high = reader.peek(32, (int)fixedWidth - 32);
+		return low | (high << 32);
+	}
+
+	/** Attempt to decode a bit sequence to match this pattern, once compiled.
+	 * This function has the same semantics as decode, except that it does
+	 * not make use of any assembly buffers.
+	 * @param reader a source of bits
+	 * @param features the features enabled at the time of decoding
+	 * @param frag a fragment for recording the result
+	 * @return true if the sequence matched, otherwise false
+	 */
+	private boolean decodeCompiled(BitReader reader, FeatureSet features, Fragment frag) {
+		long start = reader.tell();
+		long bits = peekFixedWidth(reader);
+		if ((bits & constantMask) != constantValue) return false;
+		if (reader.skip(fixedWidth) < fixedWidth) return false;
+
+		for (ChunkInfo chunkInfo: integerChunks) {
+			IntegerType type = (IntegerType)chunkInfo.type;
+			int size = type.getSize();
+			long mask = (size < 64) ? ((1L << size) - 1) : -1;
+			frag.put(chunkInfo.name, type.decode((bits >>> chunkInfo.offset) & mask));
+		}
+
+		if (otherChunks.length != 0) {
+			DecodeContext ctx = DecodeContext.get();
+			long mark = ctx.mark();
+			try {
+				List<BitReader> readers = ctx.allocateReaderList(reader);
+				for (ChunkInfo chunkInfo: otherChunks) {
+					reader.seek(start + chunkInfo.offset);
+					Expression expr = chunkInfo.type.decode(readers, features);
+					if (expr == null) return false;
+					if (chunkInfo.name != null) {
+						frag.put(chunkInfo.name, expr);
+					}
+				}
+			} finally {
+				ctx.release(mark);
+			}
+		}
+
+		// Unless the final chunk was variable-width (in which case decoding
+		// it will have left the reader in the right place), position the
+		// reader at the end of the fixed-width region.
+		if (!variableWidth) {
+			reader.seek(start + fixedWidth);
+		}
+		return true;
+	}
 }
@@ -43,6 +43,15 @@ public class Phrase {
 	/** The pieces that are matched by this phrase, in the order they occur. */
 	private final ArrayList<PieceInfo> pieces = new ArrayList<PieceInfo>();
 
+	/** The fixed text which precedes each field, followed by the fixed text
+	 * which follows the last field. Adjacent literals are merged into a
+	 * single run so that they can be appended in one operation. */
+	private final String[] literals;
+
+	/** The pieces which must be unparsed each time the phrase is used,
+	 * in the order they occur. */
+	private final PieceInfo[] fields;
+
 	/** Construct phrase from XML.
 	 * @param ctx the context of this phrase
 	 * @param element this phrase as an XML element
@@ -73,6 +82,23 @@ public class Phrase {
 			}
 			child = child.getNextSibling();
 		}
+
+		// Compile the pieces into a template of literal runs and fields.
+		ArrayList<String> literalList = new ArrayList<String>();
+		ArrayList<PieceInfo> fieldList = new ArrayList<PieceInfo>();
+		StringBuilder literal = new StringBuilder();
+		for (PieceInfo pieceInfo: pieces) {
+			if (pieceInfo.type instanceof LiteralType) {
+				literal.append(((LiteralType)pieceInfo.type).getContent());
+			} else {
+				literalList.add(literal.toString());
+				fieldList.add(pieceInfo);
+				literal.setLength(0);
+			}
+		}
+		literalList.add(literal.toString());
+		literals = literalList.toArray(new String[literalList.size()]);
+		fields = fieldList.toArray(new PieceInfo[fieldList.size()]);
 	}
 
 	private void add(Element element, String name, MemberInfo member) throws CpudlParseException {
@@ -84,21 +110,22 @@ public class Phrase {
 		member.piece += 1;
 	}
 
-	/** Construct a piece of assembly language to match this phrase.
+	/** Append a piece of assembly language to match this phrase to a string builder.
+	 * @param out the string builder to which the phrase is appended
 	 * @param expr the expression to be expressed as assembly language
-	 * @return the phrase as a string
 	 */
-	String unparse(Expression expr) {
+	void unparse(StringBuilder out, Expression expr) {
 		if (!(expr instanceof Fragment)) {
 			throw new IllegalArgumentException("fragment expected");
 		}
 		Fragment fragExpr = (Fragment)expr;
 
-		String source = new String();
-		for (PieceInfo pieceInfo: pieces) {
-			source = source + pieceInfo.type.unparse(
-				pieceInfo.index, fragExpr.get(pieceInfo.name));
+		for (int i = 0; i != fields.length; ++i) {
+			out.append(literals[i]);
+			PieceInfo pieceInfo = fields[i];
+			pieceInfo.type.unparse(out, pieceInfo.index,
+				(pieceInfo.name != null) ? fragExpr.get(pieceInfo.name) : null);
 		}
-		return source;
+		out.append(literals[fields.length]);
 	}
 }
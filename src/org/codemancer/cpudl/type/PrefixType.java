@@ -27,6 +27,10 @@ public class PrefixType extends ConstantType {
 	public PrefixType(Context ctx, Element element) throws CpudlParseException {
 		super(ctx, element);
 		featureName = Context.parseStringAttribute("name", element);
+
+		// Define the feature now, so that the set of features is fixed
+		// by the time any instruction is decoded.
+		ctx.getArchitecture().getFeatureId(featureName);
 	}
 
 	/** Get feature name.
@@ -75,6 +75,19 @@ public abstract class Type {
 	 * @return the corresponding string
 	 */
 	public String unparse(int piece, Expression expr) {
+		StringBuilder out = new StringBuilder();
+		unparse(out, piece, expr);
+		return out.toString();
+	}
+
+	/** Append a piece of assembly language to match this fragment to a string builder.
+	 * It is an error if piece < 0 or piece >= getPieceCount().
+	 * If this function is not overridden, every piece number is invalid.
+	 * @param out the string builder to which the piece is appended
+	 * @param piece the piece number
+	 * @param expr the expression to be unparsed
+	 */
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		throw new IllegalArgumentException("invalid piece number");
 	}
 }
@@ -29,10 +29,10 @@ public class Whitespace extends Type {
 		return 1;
 	}
 
-	public String unparse(int piece, Expression expr) {
+	public void unparse(StringBuilder out, int piece, Expression expr) {
 		if (piece != 0) {
 			throw new IllegalArgumentException("invalid piece number");
 		}
-		return style.get("whitespace", "");
+		out.append(style.get("whitespace", ""));
 	}
 }
@@ -0,0 +1,97 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import org.codemancer.cpudl.BitString;
+import org.codemancer.cpudl.BitReader;
+
+/** A class for reading from a fixed range of bits within another reader.
+ * This has the same behaviour as a BitStringReader constructed from the
+ * bits within the range, but does not copy them. It can be reused for a
+ * different range by calling set. Positions are relative to the start of
+ * the range, and the position of the underlying reader is left unchanged.
+ */
+class WindowReader implements BitReader {
+	/** The underlying reader. */
+	private BitReader reader = null;
+
+	/** The absolute position of the start of the range within the underlying reader. */
+	private long start = 0;
+
+	/** The number of bits in the range. */
+	private long length = 0;
+
+	/** The current position within the range. */
+	private long position = 0;
+
+	/** Set the range to be read.
+	 * @param reader the underlying reader
+	 * @param start the absolute position of the start of the range
+	 * @param length the number of bits in the range
+	 */
+	final void set(BitReader reader, long start, long length) {
+		this.reader = reader;
+		this.start = start;
+		this.length = length;
+		this.position = 0;
+	}
+
+	public final BitString read(long count) {
+		if (count > length - position) {
+			count = length - position;
+		}
+		long saved = reader.tell();
+		reader.seek(start + position);
+		BitString result = reader.read(count);
+		reader.seek(saved);
+		position += count;
+		return result;
+	}
+
+	public final long skip(long count) {
+		if (count > length - position) {
+			count = length - position;
+		}
+		position += count;
+		return count;
+	}
+
+	public final int peek(long offset) {
+		long index = position + offset;
+		if ((index < 0) || (index >= length)) {
+			return 0;
+		}
+		long saved = reader.tell();
+		reader.seek(start);
+		int bit = reader.peek(index);
+		reader.seek(saved);
+		return bit;
+	}
+
+	public final long peek(long offset, int count) {
+		long index = position + offset;
+		if ((index < 0) || (index >= length)) {
+			return 0;
+		}
+		long saved = reader.tell();
+		reader.seek(start);
+		long bits = reader.peek(index, count);
+		reader.seek(saved);
+		long valid = length - index;
+		if (valid < count) {
+			bits &= (1L << valid) - 1;
+		}
+		return bits;
+	}
+
+	public final void seek(long position) {
+		this.position = position;
+	}
+
+	public final long tell() {
+		return position;
+	}
+}
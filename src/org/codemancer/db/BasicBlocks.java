@@ -49,7 +49,7 @@ public interface BasicBlocks {
 
 	/** Get unprocessed basic blocks.
 	 * @param requiredLevel the required level of processing to be omitted from the result
-	 * @return a list of unprocessed basic blocks
+	 * @return a list of unprocessed basic blocks, in order of address
 	 */
 	List<BasicBlock> getUnprocessed(int requiredLevel);
 
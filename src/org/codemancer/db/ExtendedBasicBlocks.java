@@ -28,7 +28,7 @@ public interface ExtendedBasicBlocks {
 
 	/** Get unprocessed extended basic blocks.
 	 * @param requiredLevel the required level of processing to be omitted from the result
-	 * @return a list of unprocessed extended basic blocks
+	 * @return a list of unprocessed extended basic blocks, in order of entry address
 	 */
 	List<ExtendedBasicBlock> getUnprocessed(int requiredLevel);
 
@@ -53,4 +53,11 @@ public interface Fact {
 	 * @param processedLevel the level that has not been completed
 	 */
 	void setNotProcessed(int notProcessedLevel);
+
+	/** Mark that this fact is not applicable to any revision after a given one.
+	 * This is used when a fact has been superseded, and has no effect if
+	 * the fact has already been retired.
+	 * @param maxRev the highest database revision to which this fact is applicable
+	 */
+	void retire(long maxRev);
 }
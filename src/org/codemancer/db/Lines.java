@@ -44,7 +44,7 @@ public interface Lines {
 
 	/** Get unprocessed lines of disassembled code.
 	 * @param requiredLevel the required level of processing to be omitted from the result
-	 * @return a list of unprocessed lines
+	 * @return a list of unprocessed lines, in order of address
 	 */
 	List<Line> getUnprocessed(int requiredLevel);
 
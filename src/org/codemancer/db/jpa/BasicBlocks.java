@@ -34,7 +34,7 @@ class BasicBlocks implements org.codemancer.db.BasicBlocks {
 
 	public final org.codemancer.db.BasicBlock getContaining(long addr) {
 		List<BasicBlock> blocks = em.createQuery(
-			"FROM BasicBlock WHERE minAddr <= :addr AND maxAddr >= :addr", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 AND minAddr <= :addr AND maxAddr >= :addr", BasicBlock.class)
 			.setParameter("addr", addr)
 			.getResultList();
 		if (blocks.size() == 0) {
@@ -48,7 +48,7 @@ class BasicBlocks implements org.codemancer.db.BasicBlocks {
 
 	public final org.codemancer.db.BasicBlock getPrevious(long addr) {
 		List<BasicBlock> blocks = em.createQuery(
-			"FROM BasicBlock WHERE maxAddr = :maxAddr", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 AND maxAddr = :maxAddr", BasicBlock.class)
 			.setParameter("maxAddr", addr - 1)
 			.getResultList();
 		if (blocks.size() == 0) {
@@ -62,14 +62,14 @@ class BasicBlocks implements org.codemancer.db.BasicBlocks {
 
 	public final List<org.codemancer.db.BasicBlock> get() {
 		List<BasicBlock> bbs = em.createQuery(
-			"FROM BasicBlock ORDER BY minAddr", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 ORDER BY minAddr", BasicBlock.class)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.BasicBlock>(bbs);
 	}
 
 	public final List<org.codemancer.db.BasicBlock> getMembersOf(org.codemancer.db.ExtendedBasicBlock ebb) {
 		List<BasicBlock> bbs = em.createQuery(
-			"FROM BasicBlock WHERE ebb = :ebb", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 AND ebb = :ebb ORDER BY minAddr", BasicBlock.class)
 			.setParameter("ebb", ebb)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.BasicBlock>(bbs);
@@ -77,7 +77,7 @@ class BasicBlocks implements org.codemancer.db.BasicBlocks {
 
 	public final List<org.codemancer.db.BasicBlock> getMembersOf(org.codemancer.db.Subroutine sub) {
 		List<BasicBlock> bbs = em.createQuery(
-			"FROM BasicBlock WHERE ebb.id IN (SELECT id FROM ExtendedBasicBlock WHERE subroutine = :sub)", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 AND ebb.id IN (SELECT id FROM ExtendedBasicBlock WHERE subroutine = :sub)", BasicBlock.class)
 			.setParameter("sub", sub)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.BasicBlock>(bbs);
@@ -85,7 +85,7 @@ class BasicBlocks implements org.codemancer.db.BasicBlocks {
 
 	public final List<org.codemancer.db.BasicBlock> getUnprocessed(int requiredLevel) {
 		List<BasicBlock> bbs = em.createQuery(
-			"FROM BasicBlock WHERE processedLevel < :requiredLevel", BasicBlock.class)
+			"FROM BasicBlock WHERE maxRev = -1 AND processedLevel < :requiredLevel ORDER BY minAddr", BasicBlock.class)
 			.setParameter("requiredLevel", requiredLevel)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.BasicBlock>(bbs);
@@ -34,7 +34,7 @@ class Comments implements org.codemancer.db.Comments {
 
 	public final List<org.codemancer.db.Comment> get(long addr) {
 		List<Comment> comments = em.createQuery(
-			"FROM Comment WHERE addr = :addr", Comment.class)
+			"FROM Comment WHERE maxRev = -1 AND addr = :addr", Comment.class)
 			.setParameter("addr", addr)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.Comment>(comments);
@@ -34,7 +34,7 @@ class ExtendedBasicBlocks implements org.codemancer.db.ExtendedBasicBlocks {
 
 	public final List<org.codemancer.db.ExtendedBasicBlock> get() {
 		List<ExtendedBasicBlock> ebbs = em.createQuery(
-			"FROM ExtendedBasicBlock ORDER BY entryAddr", ExtendedBasicBlock.class)
+			"FROM ExtendedBasicBlock WHERE maxRev = -1 ORDER BY entryAddr", ExtendedBasicBlock.class)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.ExtendedBasicBlock>(ebbs);
 
@@ -42,7 +42,7 @@ class ExtendedBasicBlocks implements org.codemancer.db.ExtendedBasicBlocks {
 
 	public final List<org.codemancer.db.ExtendedBasicBlock> getMembersOf(org.codemancer.db.Subroutine sub) {
 		List<ExtendedBasicBlock> ebbs = em.createQuery(
-			"FROM ExtendedBasicBlock WHERE subroutine = :sub", ExtendedBasicBlock.class)
+			"FROM ExtendedBasicBlock WHERE maxRev = -1 AND subroutine = :sub", ExtendedBasicBlock.class)
 			.setParameter("sub", sub)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.ExtendedBasicBlock>(ebbs);
@@ -50,7 +50,7 @@ class ExtendedBasicBlocks implements org.codemancer.db.ExtendedBasicBlocks {
 
 	public final List<org.codemancer.db.ExtendedBasicBlock> getUnprocessed(int requiredLevel) {
 		List<ExtendedBasicBlock> ebbs = em.createQuery(
-			"FROM ExtendedBasicBlock WHERE processedLevel < :requiredLevel", ExtendedBasicBlock.class)
+			"FROM ExtendedBasicBlock WHERE maxRev = -1 AND processedLevel < :requiredLevel ORDER BY entryAddr", ExtendedBasicBlock.class)
 			.setParameter("requiredLevel", requiredLevel)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.ExtendedBasicBlock>(ebbs);
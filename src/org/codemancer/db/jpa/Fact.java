@@ -103,4 +103,15 @@ public class Fact {
 			this.processedLevel = notProcessedLevel - 1;
 		}
 	}
+
+	/** Mark that this fact is not applicable to any revision after a given one.
+	 * This is used when a fact has been superseded, and has no effect if
+	 * the fact has already been retired.
+	 * @param maxRev the highest database revision to which this fact is applicable
+	 */
+	public final void retire(long maxRev) {
+		if (this.maxRev == -1) {
+			this.maxRev = maxRev;
+		}
+	}
 }
@@ -65,7 +65,7 @@ class Lines implements org.codemancer.db.Lines {
 
 	public final List<org.codemancer.db.Line> getUnprocessed(int requiredLevel) {
 		List<Line> lines = em.createQuery(
-			"FROM Line WHERE processedLevel < :requiredLevel", Line.class)
+			"FROM Line WHERE maxRev = -1 AND processedLevel < :requiredLevel ORDER BY minAddr", Line.class)
 			.setParameter("requiredLevel", requiredLevel)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.Line>(lines);
@@ -35,7 +35,7 @@ class References implements org.codemancer.db.References {
 
 	public final List<org.codemancer.db.Reference> getByDstAddr(long minAddr, long maxAddr) {
 		List<Reference> references = em.createQuery(
-			"FROM Reference WHERE (dstAddr >= :minAddr) AND (dstAddr <= :maxAddr) ORDER BY minAddr", Reference.class)
+			"FROM Reference WHERE (maxRev = -1) AND (dstAddr >= :minAddr) AND (dstAddr <= :maxAddr) ORDER BY minAddr", Reference.class)
 			.setParameter("minAddr", minAddr)
 			.setParameter("maxAddr", maxAddr)
 			.getResultList();
@@ -44,7 +44,7 @@ class References implements org.codemancer.db.References {
 
 	public final List<org.codemancer.db.Reference> getUnprocessed(int requiredLevel) {
 		List<Reference> references = em.createQuery(
-			"FROM Reference WHERE processedLevel < :requiredLevel", Reference.class)
+			"FROM Reference WHERE maxRev = -1 AND processedLevel < :requiredLevel", Reference.class)
 			.setParameter("requiredLevel", requiredLevel)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.Reference>(references);
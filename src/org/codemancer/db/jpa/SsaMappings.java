@@ -34,7 +34,7 @@ class SsaMappings implements org.codemancer.db.SsaMappings {
 
 	public final List<org.codemancer.db.SsaMapping> get(long addr) {
 		List<SsaMapping> mappings = em.createQuery(
-			"FROM SsaMapping WHERE addr = :addr", SsaMapping.class)
+			"FROM SsaMapping WHERE maxRev = -1 AND addr = :addr", SsaMapping.class)
 			.setParameter("addr", addr)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.SsaMapping>(mappings);
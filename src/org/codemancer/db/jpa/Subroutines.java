@@ -49,7 +49,7 @@ class Subroutines implements org.codemancer.db.Subroutines {
 
 	public final List<org.codemancer.db.Subroutine> get() {
 		List<Subroutine> subroutines = em.createQuery(
-			"FROM Subroutine ORDER BY entryAddr", Subroutine.class)
+			"FROM Subroutine WHERE maxRev = -1 ORDER BY entryAddr", Subroutine.class)
 			.getResultList();
 		return new ArrayList<org.codemancer.db.Subroutine>(subroutines);
 	}
@@ -0,0 +1,572 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.emulator;
+
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.IntegerType;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.CompiledSum;
+import org.codemancer.cpudl.expr.Constant;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.cpudl.expr.Temporary;
+import org.codemancer.cpudl.expr.Memory;
+import org.codemancer.cpudl.expr.Fragment;
+import org.codemancer.cpudl.expr.Prefix;
+import org.codemancer.cpudl.expr.Assignment;
+import org.codemancer.cpudl.expr.Sequence;
+import org.codemancer.cpudl.expr.Conditional;
+import org.codemancer.cpudl.expr.Addition;
+import org.codemancer.cpudl.expr.Subtraction;
+import org.codemancer.cpudl.expr.Multiplication;
+import org.codemancer.cpudl.expr.BinaryExpression;
+import org.codemancer.cpudl.expr.BitwiseAnd;
+import org.codemancer.cpudl.expr.BitwiseOr;
+import org.codemancer.cpudl.expr.BitwiseXor;
+import org.codemancer.cpudl.expr.Comparison;
+import org.codemancer.cpudl.expr.Shift;
+import org.codemancer.cpudl.expr.Slice;
+import org.codemancer.cpudl.expr.Extension;
+import org.codemancer.cpudl.expr.SizeOf;
+
+/** A class to represent an instruction which has been compiled for concrete execution.
+ * The effect of the instruction is compiled into a tree of nodes which
+ * operate directly on the register file and memory of an emulator, using
+ * primitive values in place of expressions.
+ *
+ * Arithmetic follows the rules by which expressions are simplified when
+ * every operand is a constant. In particular, nested sums are flattened
+ * and the result masked according to the type of the left-hand operand,
+ * comparisons act on the difference between their operands, and bitwise
+ * operations and multiplications are not masked. Values are additionally
+ * masked to the size of a register, temporary or memory location when
+ * assigned to it. A memory location of unspecified size is taken to be
+ * a single byte.
+ */
+final class CompiledInstruction {
+	/** An abstract class to represent a node within a compiled effect. */
+	private static abstract class Node {
+		/** Evaluate this node.
+		 * @param emu the emulator on which to act
+		 * @return the value of this node
+		 */
+		abstract long evaluate(Emulator emu);
+
+		/** Assign a value to this node.
+		 * This is supported only by nodes which represent l-values.
+		 * @param emu the emulator on which to act
+		 * @param value the value to be assigned
+		 */
+		void assign(Emulator emu, long value) {
+			throw new IllegalArgumentException("not an l-value");
+		}
+	}
+
+	/** A node to represent a constant. */
+	private static class ConstantNode extends Node {
+		private final long value;
+
+		ConstantNode(long value) {
+			this.value = value;
+		}
+
+		long evaluate(Emulator emu) {
+			return value;
+		}
+	}
+
+	/** A node to represent a register. */
+	private static class RegisterNode extends Node {
+		/** The index of the register within the register file. */
+		private final int slot;
+
+		/** The mask to be applied to values assigned to the register. */
+		private final long mask;
+
+		RegisterNode(int slot, long mask) {
+			this.slot = slot;
+			this.mask = mask;
+		}
+
+		long evaluate(Emulator emu) {
+			return emu.registers[slot];
+		}
+
+		void assign(Emulator emu, long value) {
+			emu.registers[slot] = value & mask;
+		}
+	}
+
+	/** A node to represent the program counter.
+	 * This differs from other registers in that assigning to it is recorded,
+	 * so that the emulator can tell whether to continue with the following
+	 * instruction.
+	 */
+	private static class ProgramCounterNode extends RegisterNode {
+		ProgramCounterNode(int slot, long mask) {
+			super(slot, mask);
+		}
+
+		void assign(Emulator emu, long value) {
+			super.assign(emu, value);
+			emu.pcAssigned = true;
+		}
+	}
+
+	/** A node to represent a temporary value. */
+	private static class TemporaryNode extends Node {
+		/** The index of the temporary within the emulator. */
+		private final int slot;
+
+		/** The mask to be applied to values assigned to the temporary. */
+		private final long mask;
+
+		TemporaryNode(int slot, long mask) {
+			this.slot = slot;
+			this.mask = mask;
+		}
+
+		long evaluate(Emulator emu) {
+			return emu.temporaries[slot];
+		}
+
+		void assign(Emulator emu, long value) {
+			emu.temporaries[slot] = value & mask;
+		}
+	}
+
+	/** A node to represent a memory location. */
+	private static class MemoryNode extends Node {
+		private final Node address;
+
+		private final int byteCount;
+
+		private final boolean bigEndian;
+
+		private final long mask;
+
+		MemoryNode(Node address, int byteCount, boolean bigEndian, long mask) {
+			this.address = address;
+			this.byteCount = byteCount;
+			this.bigEndian = bigEndian;
+			this.mask = mask;
+		}
+
+		long evaluate(Emulator emu) {
+			return emu.memory.read(address.evaluate(emu), byteCount, bigEndian) & mask;
+		}
+
+		void assign(Emulator emu, long value) {
+			emu.memory.write(address.evaluate(emu), byteCount, bigEndian, value & mask);
+		}
+	}
+
+	/** A node to represent an assignment. */
+	private static class AssignmentNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		AssignmentNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			long value = rhs.evaluate(emu);
+			lhs.assign(emu, value);
+			return value;
+		}
+	}
+
+	/** A node to represent a sequence of two expressions. */
+	private static class SequenceNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		SequenceNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			lhs.evaluate(emu);
+			return rhs.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a conditional expression. */
+	private static class ConditionalNode extends Node {
+		private final Node condition;
+
+		private final Node whenTrue;
+
+		private final Node whenFalse;
+
+		ConditionalNode(Node condition, Node whenTrue, Node whenFalse) {
+			this.condition = condition;
+			this.whenTrue = whenTrue;
+			this.whenFalse = whenFalse;
+		}
+
+		long evaluate(Emulator emu) {
+			return (condition.evaluate(emu) != 0) ? whenTrue.evaluate(emu) : whenFalse.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a flattened sum of terms, as collected by a CompiledSum. */
+	private static class SumNode extends Node {
+		/** The non-constant terms. */
+		private final Node[] terms;
+
+		/** The multiplier for each term. */
+		private final long[] multipliers;
+
+		/** The constant term. */
+		private final long constantTerm;
+
+		/** The mask for the type of the accumulator. */
+		private final long mask;
+
+		SumNode(CompiledSum<Node> sum, long mask) {
+			this.terms = sum.getTerms().toArray(new Node[sum.getTerms().size()]);
+			this.multipliers = sum.getMultipliers();
+			this.constantTerm = sum.getConstantTerm();
+			this.mask = mask;
+		}
+
+		long evaluate(Emulator emu) {
+			long sum = constantTerm;
+			for (int i = 0; i != terms.length; ++i) {
+				sum += multipliers[i] * terms[i].evaluate(emu);
+			}
+			return sum & mask;
+		}
+	}
+
+	/** A node to represent a comparison between two values. */
+	private static class ComparisonNode extends Node {
+		private final Comparison comparison;
+
+		private final SumNode diff;
+
+		ComparisonNode(Comparison comparison, SumNode diff) {
+			this.comparison = comparison;
+			this.diff = diff;
+		}
+
+		long evaluate(Emulator emu) {
+			return (comparison.compare(diff.evaluate(emu))) ? 1 : 0;
+		}
+	}
+
+	/** A node to represent a multiplication. */
+	private static class ProductNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		ProductNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			return lhs.evaluate(emu) * rhs.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a bitwise AND operation. */
+	private static class AndNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		AndNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			return lhs.evaluate(emu) & rhs.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a bitwise OR operation. */
+	private static class OrNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		OrNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			return lhs.evaluate(emu) | rhs.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a bitwise XOR operation. */
+	private static class XorNode extends Node {
+		private final Node lhs;
+
+		private final Node rhs;
+
+		XorNode(Node lhs, Node rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			return lhs.evaluate(emu) ^ rhs.evaluate(emu);
+		}
+	}
+
+	/** A node to represent a logical shift, an arithmetic shift or a rotation. */
+	private static class ShiftNode extends Node {
+		private final int width;
+
+		private final int method;
+
+		private final Node lhs;
+
+		private final Node rhs;
+
+		ShiftNode(int width, int method, Node lhs, Node rhs) {
+			this.width = width;
+			this.method = method;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		long evaluate(Emulator emu) {
+			long mask = (width < 64) ? ((1L << width) - 1L) : -1L;
+			long value = lhs.evaluate(emu) & mask;
+			long distance = rhs.evaluate(emu);
+			switch (method) {
+			case Shift.ARITHMETIC:
+				if (distance < 0) {
+					// Shift right, copying the sign bit.
+					long signed = (value << (64 - width)) >> (64 - width);
+					return (signed >> Math.min(-distance, 63)) & mask;
+				}
+				return (distance < 64) ? ((value << distance) & mask) : 0;
+			case Shift.ROTATION:
+				long reduced = distance % width;
+				if (reduced < 0) reduced += width;
+				return ((value << reduced) | (value >>> (width - reduced))) & mask;
+			default:
+				if (distance < 0) {
+					return (-distance < 64) ? ((value >>> -distance) & mask) : 0;
+				}
+				return (distance < 64) ? ((value << distance) & mask) : 0;
+			}
+		}
+	}
+
+	/** A node to represent a slice. */
+	private static class SliceNode extends Node {
+		private final Node operand;
+
+		private final int index;
+
+		private final long mask;
+
+		private final int offset;
+
+		SliceNode(Node operand, int index, int size, int offset) {
+			this.operand = operand;
+			this.index = index;
+			this.mask = (size < 64) ? ((1L << size) - 1) : -1L;
+			this.offset = offset;
+		}
+
+		long evaluate(Emulator emu) {
+			return ((operand.evaluate(emu) >> index) & mask) << offset;
+		}
+	}
+
+	/** The address of this instruction. */
+	final long address;
+
+	/** The length of this instruction, in bytes. */
+	final long length;
+
+	/** The compiled effect of this instruction, or null if it has no effect. */
+	private final Node effect;
+
+	/** Construct compiled instruction.
+	 * @param address the address of the instruction
+	 * @param length the length of the instruction, in bytes
+	 * @param effect the compiled effect, or null if none
+	 */
+	private CompiledInstruction(long address, long length, Node effect) {
+		this.address = address;
+		this.length = length;
+		this.effect = effect;
+	}
+
+	/** Execute this instruction.
+	 * @param emu the emulator on which to act
+	 */
+	final void execute(Emulator emu) {
+		if (effect != null) {
+			effect.evaluate(emu);
+		}
+	}
+
+	/** Compile an instruction.
+	 * @param address the address of the instruction
+	 * @param length the length of the instruction, in bytes
+	 * @param instr the instruction, with references resolved
+	 * @param emu the emulator for which the instruction is to be compiled
+	 * @return the compiled instruction, or null if it cannot be compiled
+	 */
+	static CompiledInstruction compile(long address, long length, Expression instr, Emulator emu) {
+		if (instr instanceof Prefix) {
+			return new CompiledInstruction(address, length, null);
+		}
+		Expression effect = (instr instanceof Fragment) ? ((Fragment)instr).getEffect() : instr;
+		if (effect == null) {
+			return new CompiledInstruction(address, length, null);
+		}
+		Node root = compile(effect, emu);
+		return (root != null) ? new CompiledInstruction(address, length, root) : null;
+	}
+
+	/** Get the mask corresponding to a type.
+	 * @param type the type
+	 * @return the mask, or -1 if values of the type are not masked
+	 */
+	private static long getMask(Type type) {
+		if (type instanceof IntegerType) {
+			int size = ((IntegerType)type).getSize();
+			if (size < 64) {
+				return (1L << size) - 1;
+			}
+		}
+		return -1L;
+	}
+
+	/** Compile an expression to a node.
+	 * @param expr the expression to be compiled
+	 * @param emu the emulator for which the expression is to be compiled
+	 * @return the node, or null if the expression cannot be compiled
+	 */
+	private static Node compile(Expression expr, Emulator emu) {
+		if (expr instanceof Constant) {
+			return new ConstantNode(((Constant)expr).getValue());
+		} else if (expr instanceof Register) {
+			Register register = (Register)expr;
+			int slot = emu.getSlot(register);
+			long mask = getMask(register.getType());
+			return (slot == emu.pcSlot) ? new ProgramCounterNode(slot, mask) : new RegisterNode(slot, mask);
+		} else if (expr instanceof Temporary) {
+			Temporary temporary = (Temporary)expr;
+			return new TemporaryNode(emu.getSlot(temporary), getMask(temporary.getType()));
+		} else if (expr instanceof Memory) {
+			// Memory of unspecified size is taken to be a single byte.
+			Memory memory = (Memory)expr;
+			Node address = compile(memory.getAddress(), emu);
+			if (address == null) return null;
+			if (memory.getType() == null) {
+				return new MemoryNode(address, 1, false, 0xff);
+			}
+			if (!(memory.getType() instanceof IntegerType)) return null;
+			IntegerType type = (IntegerType)memory.getType();
+			if ((type.getSize() <= 0) || (type.getSize() > 64)) return null;
+			return new MemoryNode(address, (type.getSize() + 7) / 8, type.isBigEndian(), getMask(type));
+		} else if (expr instanceof Fragment) {
+			Expression effect = ((Fragment)expr).getEffect();
+			return (effect != null) ? compile(effect, emu) : new ConstantNode(0);
+		} else if (expr instanceof Assignment) {
+			Assignment assignment = (Assignment)expr;
+			Expression lhs = assignment.getLhs();
+			if (!(lhs instanceof Register) && !(lhs instanceof Temporary) && !(lhs instanceof Memory)) {
+				return null;
+			}
+			Node lhsNode = compile(lhs, emu);
+			Node rhsNode = compile(assignment.getRhs(), emu);
+			return ((lhsNode != null) && (rhsNode != null)) ? new AssignmentNode(lhsNode, rhsNode) : null;
+		} else if (expr instanceof Sequence) {
+			Sequence sequence = (Sequence)expr;
+			Node lhs = compile(sequence.getLhs(), emu);
+			Node rhs = compile(sequence.getRhs(), emu);
+			return ((lhs != null) && (rhs != null)) ? new SequenceNode(lhs, rhs) : null;
+		} else if (expr instanceof Conditional) {
+			Conditional conditional = (Conditional)expr;
+			Node condition = compile(conditional.getCondition(), emu);
+			Node whenTrue = compile(conditional.getWhenTrue(), emu);
+			Node whenFalse = compile(conditional.getWhenFalse(), emu);
+			if ((condition == null) || (whenTrue == null) || (whenFalse == null)) return null;
+			return new ConditionalNode(condition, whenTrue, whenFalse);
+		} else if ((expr instanceof Addition) || (expr instanceof Subtraction)) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			return compileSum(binary.getLhs(), binary.getRhs(), (expr instanceof Subtraction) ? -1 : 1, emu);
+		} else if (expr instanceof Comparison) {
+			Comparison comparison = (Comparison)expr;
+			SumNode diff = compileSum(comparison.getLhs(), comparison.getRhs(), -1, emu);
+			return (diff != null) ? new ComparisonNode(comparison, diff) : null;
+		} else if (expr instanceof Multiplication) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			Node lhs = compile(binary.getLhs(), emu);
+			Node rhs = compile(binary.getRhs(), emu);
+			return ((lhs != null) && (rhs != null)) ? new ProductNode(lhs, rhs) : null;
+		} else if ((expr instanceof BitwiseAnd) || (expr instanceof BitwiseOr) || (expr instanceof BitwiseXor)) {
+			BinaryExpression binary = (BinaryExpression)expr;
+			Node lhs = compile(binary.getLhs(), emu);
+			Node rhs = compile(binary.getRhs(), emu);
+			if ((lhs == null) || (rhs == null)) return null;
+			if (expr instanceof BitwiseAnd) {
+				return new AndNode(lhs, rhs);
+			} else if (expr instanceof BitwiseOr) {
+				return new OrNode(lhs, rhs);
+			} else {
+				return new XorNode(lhs, rhs);
+			}
+		} else if (expr instanceof Shift) {
+			// A rotation through carry cannot be compiled, because the
+			// carry is not recorded as part of the expression.
+			Shift shift = (Shift)expr;
+			if ((shift.getMethod() == Shift.EXTENDED) || (shift.getWidth() == 0)) return null;
+			Node lhs = compile(shift.getLhs(), emu);
+			Node rhs = compile(shift.getRhs(), emu);
+			if ((lhs == null) || (rhs == null)) return null;
+			return new ShiftNode(shift.getWidth(), shift.getMethod(), lhs, rhs);
+		} else if (expr instanceof Slice) {
+			Slice slice = (Slice)expr;
+			Node operand = compile(slice.getOperand(), emu);
+			if (operand == null) return null;
+			return new SliceNode(operand, slice.getIndex(), slice.getSize(), slice.getOffset());
+		} else if (expr instanceof Extension) {
+			return compile(((Extension)expr).getArg(), emu);
+		} else if (expr instanceof SizeOf) {
+			Expression size = expr.simplify();
+			return (size instanceof Constant) ? new ConstantNode(((Constant)size).getValue()) : null;
+		}
+		return null;
+	}
+
+	/** Compile the sum or difference of two expressions.
+	 * The result is masked according to the type of the left-hand operand.
+	 * @param lhs the left-hand operand
+	 * @param rhs the right-hand operand
+	 * @param sign 1 for an addition, -1 for a subtraction
+	 * @param emu the emulator for which the expression is to be compiled
+	 * @return the node, or null if the expression cannot be compiled
+	 */
+	private static SumNode compileSum(Expression lhs, Expression rhs, long sign, final Emulator emu) {
+		CompiledSum<Node> sum = new CompiledSum<Node>() {
+			protected Node compileTerm(Expression expr) {
+				return compile(expr, emu);
+			}
+		};
+		if (!sum.collect(lhs, rhs, sign)) return null;
+		return new SumNode(sum, getMask(lhs.getType()));
+	}
+}
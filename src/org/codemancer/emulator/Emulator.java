@@ -0,0 +1,281 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.cpudl.expr.Temporary;
+
+/** A class for executing instructions concretely.
+ * Each instruction is decoded from memory when it is first executed,
+ * then its effect is compiled into a form which acts directly on a dense
+ * register file and a paged memory image. Compiled instructions are
+ * cached by address, and discarded if any byte from which they were
+ * decoded is subsequently written. Writes to other addresses, even within
+ * the same page, leave the cache intact.
+ *
+ * Within the effect of an instruction, the register PC (if defined)
+ * refers to the address of the instruction and the register PC+ (if
+ * defined) to the address of the following instruction. Execution
+ * continues at the following instruction unless PC is assigned.
+ *
+ * Instructions are executed only if every part of their effect can be
+ * evaluated concretely. In particular, unresolved references, named
+ * values and rotations through carry cannot be executed.
+ */
+public class Emulator {
+	/** The number of entries in the instruction cache, which must be a power of two. */
+	private static final int CACHE_SIZE = 4096;
+
+	/** The maximum length of an instruction, in bytes. */
+	private static final int MAX_LENGTH = 16;
+
+	/** The architecture being emulated. */
+	private final Architecture arch;
+
+	/** The content of memory. */
+	final MemoryImage memory;
+
+	/** The values of the registers, indexed by slot. */
+	long[] registers = new long[16];
+
+	/** The values of the temporaries, indexed by slot. */
+	long[] temporaries = new long[16];
+
+	/** The slot of each register which has been used, indexed by register. */
+	private final Map<Register, Integer> registerSlots = new HashMap<Register, Integer>();
+
+	/** The slot of each temporary which has been used, indexed by temporary. */
+	private final Map<Temporary, Integer> temporarySlots = new HashMap<Temporary, Integer>();
+
+	/** The slot for the register PC, or -1 if it is not defined. */
+	final int pcSlot;
+
+	/** The slot for the register PC+, or -1 if it is not defined. */
+	private final int nextPcSlot;
+
+	/** True if the current instruction has assigned to PC, otherwise false. */
+	boolean pcAssigned = false;
+
+	/** The address of the next instruction to be executed. */
+	private long pc = 0;
+
+	/** The number of instructions executed. */
+	private long instructionCount = 0;
+
+	/** The number of instructions decoded and compiled. */
+	private long fetchCount = 0;
+
+	/** The compiled instructions, indexed by the low-order bits of their address. */
+	private final CompiledInstruction[] cache = new CompiledInstruction[CACHE_SIZE];
+
+	/** The feature set used when decoding instructions. */
+	private final FeatureSet features;
+
+	/** A buffer into which instructions are copied in order to be decoded. */
+	private final byte[] window = new byte[MAX_LENGTH];
+
+	/** A reader for the content of the window. */
+	private final BitReader windowReader;
+
+	/** A list containing the window reader, as required for decoding. */
+	private final List<BitReader> windowReaders = new ArrayList<BitReader>();
+
+	/** Construct emulator.
+	 * @param arch the architecture to be emulated
+	 * @param memory the content of memory
+	 */
+	public Emulator(Architecture arch, MemoryImage memory) {
+		this.arch = arch;
+		this.memory = memory;
+		this.features = new FeatureSet(arch);
+		this.windowReader = new ByteBufferReader(ByteBuffer.wrap(window), arch.isBigEndian());
+		this.windowReaders.add(windowReader);
+		Register pcRegister = arch.getRegister("PC");
+		Register nextPcRegister = arch.getRegister("PC+");
+		this.pcSlot = (pcRegister != null) ? getSlot(pcRegister) : -1;
+		this.nextPcSlot = (nextPcRegister != null) ? getSlot(nextPcRegister) : -1;
+	}
+
+	/** Get the content of memory.
+	 * @return the memory image
+	 */
+	public final MemoryImage getMemory() {
+		return memory;
+	}
+
+	/** Get the address of the next instruction to be executed.
+	 * @return the address
+	 */
+	public final long getPC() {
+		return pc;
+	}
+
+	/** Set the address of the next instruction to be executed.
+	 * @param pc the required address
+	 */
+	public final void setPC(long pc) {
+		this.pc = pc;
+	}
+
+	/** Get the number of instructions executed.
+	 * @return the instruction count
+	 */
+	public final long getInstructionCount() {
+		return instructionCount;
+	}
+
+	/** Get the value of a register.
+	 * @param name the name of the register
+	 * @return the value of the register
+	 */
+	public final long getRegister(String name) {
+		return registers[getSlot(Register.make(arch, name))];
+	}
+
+	/** Set the value of a register.
+	 * @param name the name of the register
+	 * @param value the required value
+	 */
+	public final void setRegister(String name, long value) {
+		registers[getSlot(Register.make(arch, name))] = value;
+	}
+
+	/** Get the slot for a register, allocating one if necessary.
+	 * @param register the register
+	 * @return the slot
+	 */
+	final int getSlot(Register register) {
+		Integer slot = registerSlots.get(register);
+		if (slot == null) {
+			slot = registerSlots.size();
+			registerSlots.put(register, slot);
+			if (slot == registers.length) {
+				registers = Arrays.copyOf(registers, slot * 2);
+			}
+		}
+		return slot;
+	}
+
+	/** Get the slot for a temporary, allocating one if necessary.
+	 * @param temporary the temporary
+	 * @return the slot
+	 */
+	final int getSlot(Temporary temporary) {
+		Integer slot = temporarySlots.get(temporary);
+		if (slot == null) {
+			slot = temporarySlots.size();
+			temporarySlots.put(temporary, slot);
+			if (slot == temporaries.length) {
+				temporaries = Arrays.copyOf(temporaries, slot * 2);
+			}
+		}
+		return slot;
+	}
+
+	/** Decode and compile the instruction at a given address.
+	 * @param addr the address of the instruction
+	 * @return the compiled instruction
+	 */
+	private CompiledInstruction fetch(long addr) {
+		memory.read(addr, window);
+		windowReader.seek(0);
+		Expression instr = arch.getDecodeCache().decode(windowReaders, features);
+		long bitCount = windowReader.tell();
+		if ((instr == null) || (bitCount == 0) || ((bitCount & 7) != 0)) {
+			throw new IllegalArgumentException("invalid instruction at address " + Long.toHexString(addr));
+		}
+		long length = bitCount >> 3;
+		CompiledInstruction compiled = CompiledInstruction.compile(addr, length,
+			instr.resolveReferences(null, null), this);
+		if (compiled == null) {
+			throw new IllegalArgumentException("cannot execute instruction at address " + Long.toHexString(addr));
+		}
+		memory.markCode(addr, length);
+		cache[(int)addr & (CACHE_SIZE - 1)] = compiled;
+		fetchCount += 1;
+		return compiled;
+	}
+
+	/** Get the number of instructions decoded and compiled.
+	 * This is the number of times the instruction cache has missed.
+	 * @return the number of instructions
+	 */
+	final long getFetchCount() {
+		return fetchCount;
+	}
+
+	/** Discard any compiled instructions which were decoded from a given address.
+	 * An instruction which covers the address must begin no more than
+	 * MAX_LENGTH - 1 bytes before it, so only the cache entries for those
+	 * addresses need be checked.
+	 * @param modifiedAddr the address which has been written
+	 */
+	private void discard(long modifiedAddr) {
+		for (long addr = modifiedAddr - (MAX_LENGTH - 1); addr <= modifiedAddr; ++addr) {
+			int index = (int)addr & (CACHE_SIZE - 1);
+			CompiledInstruction instr = cache[index];
+			if ((instr != null) && (instr.address <= modifiedAddr) &&
+				(modifiedAddr < instr.address + instr.length)) {
+
+				cache[index] = null;
+			}
+		}
+	}
+
+	/** Discard all compiled instructions. */
+	public final void invalidate() {
+		Arrays.fill(cache, null);
+		memory.clearCode();
+	}
+
+	/** Execute one instruction. */
+	public final void step() {
+		long addr = pc;
+		CompiledInstruction instr = cache[(int)addr & (CACHE_SIZE - 1)];
+		if ((instr == null) || (instr.address != addr)) {
+			instr = fetch(addr);
+		}
+		long nextAddr = addr + instr.length;
+		if (pcSlot >= 0) {
+			registers[pcSlot] = addr;
+		}
+		if (nextPcSlot >= 0) {
+			registers[nextPcSlot] = nextAddr;
+		}
+		pcAssigned = false;
+		instr.execute(this);
+		pc = (pcAssigned) ? registers[pcSlot] : nextAddr;
+		instructionCount += 1;
+		int modifiedCount = memory.getModifiedCount();
+		if (modifiedCount != 0) {
+			for (int i = 0; i != modifiedCount; ++i) {
+				discard(memory.getModified(i));
+			}
+			memory.clearModified();
+		}
+	}
+
+	/** Execute a given number of instructions.
+	 * @param count the number of instructions to be executed
+	 */
+	public final void run(long count) {
+		for (long i = 0; i != count; ++i) {
+			step();
+		}
+	}
+}
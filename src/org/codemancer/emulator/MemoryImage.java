@@ -0,0 +1,233 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.codemancer.loader.ObjectFile;
+import org.codemancer.loader.Segment;
+
+/** A class to represent the content of memory during emulation.
+ * Memory is byte-addressed and divided into pages, which are allocated
+ * when first written. Locations which have never been written read as
+ * zero.
+ *
+ * Bytes from which instructions have been fetched are marked as holding
+ * code. Writing to any such byte is recorded, so that an emulator can
+ * discard the instructions which it has already decoded and compiled and
+ * which have since been overwritten. Writes to other bytes, including
+ * data which shares a page with code, are not recorded.
+ */
+public final class MemoryImage {
+	/** The base 2 logarithm of the page size. */
+	private static final int PAGE_BITS = 12;
+
+	/** The page size, in bytes. */
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/** A mask for the offset of an address within a page. */
+	private static final long OFFSET_MASK = PAGE_SIZE - 1;
+
+	/** A class to represent one page of memory. */
+	private static final class Page {
+		/** The content of this page. */
+		final byte[] data = new byte[PAGE_SIZE];
+
+		/** A flag for each byte of this page, true if an instruction has been
+		 * fetched from it, or null if no instructions have been fetched from
+		 * this page. */
+		boolean[] code = null;
+	}
+
+	/** The pages which have been allocated, indexed by page number. */
+	private final HashMap<Long, Page> pages = new HashMap<Long, Page>();
+
+	/** The number of the most recently accessed page, if any. */
+	private long lastNumber = -1;
+
+	/** The most recently accessed page, or null if none. */
+	private Page lastPage = null;
+
+	/** The addresses of the bytes holding code which have been written
+	 * since the record of modifications was last cleared. */
+	private long[] modified = new long[16];
+
+	/** The number of entries in use at the start of the modified array. */
+	private int modifiedCount = 0;
+
+	/** Load the mapped segments of an object file into memory.
+	 * @param obj the object file to be loaded
+	 */
+	public void load(ObjectFile obj) throws IOException {
+		for (Segment segment: obj.getAddressMap().values()) {
+			if (segment.isMapped()) {
+				ByteBuffer content = segment.getContent();
+				if (content != null) {
+					load(segment.getAddress(), content);
+				}
+			}
+		}
+	}
+
+	/** Load the content of a buffer into memory.
+	 * The whole of the buffer is loaded, from index 0 to its limit.
+	 * @param address the address at which the content is to be loaded
+	 * @param content the content to be loaded
+	 */
+	public void load(long address, ByteBuffer content) {
+		int limit = content.limit();
+		for (int i = 0; i != limit; ++i) {
+			writeByte(address + i, content.get(i));
+		}
+	}
+
+	/** Find the page containing a given address.
+	 * @param address the address
+	 * @param create true if the page should be allocated if it does not exist
+	 * @return the page, or null if it does not exist and create was false
+	 */
+	private Page getPage(long address, boolean create) {
+		long number = address >>> PAGE_BITS;
+		if (number == lastNumber) {
+			return lastPage;
+		}
+		Page page = pages.get(number);
+		if (page == null) {
+			if (!create) {
+				return null;
+			}
+			page = new Page();
+			pages.put(number, page);
+		}
+		lastNumber = number;
+		lastPage = page;
+		return page;
+	}
+
+	/** Read one byte from memory.
+	 * @param address the address to be read
+	 * @return the value of the byte, from 0 to 255
+	 */
+	public final int readByte(long address) {
+		Page page = getPage(address, false);
+		return (page != null) ? (page.data[(int)(address & OFFSET_MASK)] & 0xff) : 0;
+	}
+
+	/** Write one byte to memory.
+	 * @param address the address to be written
+	 * @param value the value to be written, of which only the least significant 8 bits are used
+	 */
+	public final void writeByte(long address, int value) {
+		Page page = getPage(address, true);
+		int offset = (int)(address & OFFSET_MASK);
+		if ((page.code != null) && page.code[offset]) {
+			page.code[offset] = false;
+			if (modifiedCount == modified.length) {
+				modified = Arrays.copyOf(modified, modifiedCount * 2);
+			}
+			modified[modifiedCount++] = address;
+		}
+		page.data[offset] = (byte)value;
+	}
+
+	/** Read a multi-byte value from memory.
+	 * @param address the address of the first byte
+	 * @param byteCount the number of bytes to be read, from 1 to 8
+	 * @param bigEndian true if the value is big-endian, false if little-endian
+	 * @return the value
+	 */
+	public final long read(long address, int byteCount, boolean bigEndian) {
+		long value = 0;
+		if (bigEndian) {
+			for (int i = 0; i != byteCount; ++i) {
+				value = (value << 8) | readByte(address + i);
+			}
+		} else {
+			for (int i = byteCount - 1; i >= 0; --i) {
+				value = (value << 8) | readByte(address + i);
+			}
+		}
+		return value;
+	}
+
+	/** Write a multi-byte value to memory.
+	 * @param address the address of the first byte
+	 * @param byteCount the number of bytes to be written, from 1 to 8
+	 * @param bigEndian true if the value is big-endian, false if little-endian
+	 * @param value the value to be written
+	 */
+	public final void write(long address, int byteCount, boolean bigEndian, long value) {
+		if (bigEndian) {
+			for (int i = byteCount - 1; i >= 0; --i) {
+				writeByte(address + i, (int)value);
+				value >>>= 8;
+			}
+		} else {
+			for (int i = 0; i != byteCount; ++i) {
+				writeByte(address + i, (int)value);
+				value >>>= 8;
+			}
+		}
+	}
+
+	/** Read a sequence of bytes from memory into an array.
+	 * @param address the address of the first byte
+	 * @param buffer the array into which the bytes are to be read
+	 */
+	public final void read(long address, byte[] buffer) {
+		for (int i = 0; i != buffer.length; ++i) {
+			buffer[i] = (byte)readByte(address + i);
+		}
+	}
+
+	/** Mark a range of addresses as holding code.
+	 * @param address the first address in the range
+	 * @param byteCount the number of bytes in the range
+	 */
+	final void markCode(long address, long byteCount) {
+		for (long i = 0; i != byteCount; ++i) {
+			Page page = getPage(address + i, true);
+			if (page.code == null) {
+				page.code = new boolean[PAGE_SIZE];
+			}
+			page.code[(int)((address + i) & OFFSET_MASK)] = true;
+		}
+	}
+
+	/** Get the number of bytes holding code which have been written since
+	 * the record of modifications was last cleared.
+	 * A byte is counted once for each time it was written while marked as
+	 * holding code. It is then no longer so marked unless fetched again.
+	 * @return the number of bytes
+	 */
+	final int getModifiedCount() {
+		return modifiedCount;
+	}
+
+	/** Get the address of a byte holding code which has been written.
+	 * @param index the index of the byte, from 0 to getModifiedCount() - 1
+	 * @return the address of the byte
+	 */
+	final long getModified(int index) {
+		return modified[index];
+	}
+
+	/** Clear the record of which bytes holding code have been written. */
+	final void clearModified() {
+		modifiedCount = 0;
+	}
+
+	/** Clear the record of which bytes hold code, and of which have been written. */
+	final void clearCode() {
+		for (Page page: pages.values()) {
+			page.code = null;
+		}
+		modifiedCount = 0;
+	}
+}
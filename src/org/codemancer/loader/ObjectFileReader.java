@@ -44,11 +44,10 @@ public class ObjectFileReader {
 		this.map = obj.getAddressMap();
 	}
 
-	/** Read byte.
-	 * The current address is incremented after the byte has been read.
-	 * @return the byte read from the current address
+	/** Select the segment which contains the current address.
+	 * This has no effect if a segment has already been selected.
 	 */
-	public final byte get() {
+	private final void selectSegment() {
 		if (segment == null) {
 			Map.Entry<Long, Segment> entry = map.floorEntry(curAddr);
 			if (entry != null) {
@@ -65,7 +64,14 @@ public class ObjectFileReader {
 					"address %08X not mapped to a segment", curAddr));
 			}
 		}
+	}
 
+	/** Read byte.
+	 * The current address is incremented after the byte has been read.
+	 * @return the byte read from the current address
+	 */
+	public final byte get() {
+		selectSegment();
 		byte b = content.get((int)(curAddr - minAddr));
 		if (curAddr == maxAddr) {
 			segment = null;
@@ -74,6 +80,62 @@ public class ObjectFileReader {
 		return b;
 	}
 
+	/** Read a sequence of bytes.
+	 * The bytes are copied in bulk from each segment, rather than one at a time.
+	 * As with get(), reading may continue from one segment into the next
+	 * provided that there is no gap between them.
+	 * The current address is incremented by the number of bytes read.
+	 * @param dst the array into which the bytes are to be written
+	 * @param offset the index within the array of the first byte to be written
+	 * @param length the number of bytes to be read
+	 */
+	public final void get(byte[] dst, int offset, int length) {
+		while (length > 0) {
+			selectSegment();
+			int count = (int)Math.min(length, maxAddr - curAddr + 1);
+			ByteBuffer view = content.duplicate();
+			view.position((int)(curAddr - minAddr));
+			view.get(dst, offset, count);
+			offset += count;
+			length -= count;
+			curAddr += count;
+			if (curAddr > maxAddr) {
+				segment = null;
+			}
+		}
+	}
+
+	/** Get the content of a given address range without copying it.
+	 * The result is a view onto the content of the segment which contains
+	 * the first address. It ends at the last address or at the end of that
+	 * segment, whichever is sooner, and is empty if the last address precedes
+	 * the first. The current address is not changed.
+	 * @param firstAddr the first address to be included
+	 * @param lastAddr the last address to be included
+	 * @return the content, as a ByteBuffer with its position set to zero
+	 */
+	public final ByteBuffer getContent(long firstAddr, long lastAddr) {
+		Map.Entry<Long, Segment> entry = map.floorEntry(firstAddr);
+		Segment segment = (entry != null) ? entry.getValue() : null;
+		long segMinAddr = (segment != null) ? segment.getAddress() : 0;
+		long segMaxAddr = (segment != null) ? segMinAddr + segment.getSize() - 1 : 0;
+		if ((segment == null) || (firstAddr < segMinAddr) || (firstAddr > segMaxAddr)) {
+			throw new IndexOutOfBoundsException(String.format(
+				"address %08X not mapped to a segment", firstAddr));
+		}
+
+		ByteBuffer view = segment.getContent();
+		long start = firstAddr - segMinAddr;
+		long end = Math.min(lastAddr, segMaxAddr) - segMinAddr + 1;
+		end = Math.min(Math.max(end, start), view.limit());
+		start = Math.min(start, end);
+		view.position((int)start);
+		view.limit((int)end);
+		ByteBuffer result = view.slice();
+		result.order(view.order());
+		return result;
+	}
+
 	/** Seek to a given address.
 	 * @param addr the address to which to seek
 	 */
@@ -7,6 +7,9 @@ package org.codemancer.test;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -23,21 +26,23 @@ import org.codemancer.db.Line;
 import org.codemancer.db.BasicBlock;
 import org.codemancer.db.ExtendedBasicBlock;
 import org.codemancer.db.Subroutine;
-import org.codemancer.analysis.IterativeDisassembler;
-import org.codemancer.analysis.BasicBlockDetector;
-import org.codemancer.analysis.ExtendedBasicBlockDetector;
-import org.codemancer.analysis.SubroutineDetector;
-import org.codemancer.analysis.SsaMapper;
-import org.codemancer.analysis.CommentGenerator;
+import org.codemancer.analysis.DecodedInstructionStore;
+import org.codemancer.analysis.FactDependencies;
+import org.codemancer.analysis.LinearSweep;
+import org.codemancer.analysis.AnalysisPipeline;
 
 class Analyse {
+	/** The minimum interval between commits while analysing, in milliseconds. */
+	private static final long COMMIT_INTERVAL = 1000;
+
 	public static final void main(String args[]) throws Exception {
 		String projName = args[0];
 		String architectureName = args[1];
 		String imagePathname = args[2];
+		boolean sweep = (args.length > 3) && args[3].equals("sweep");
 
 		// Parse description for required architecture.
-		Architecture arch = Architecture.makeArchitecture(architectureName);
+		Architecture arch = Architecture.makeArchitecture(architectureName, true);
 
 		// Open connection to database.
 		String dbUrl = "jdbc:derby:" + projName + ";create=true";
@@ -59,53 +64,45 @@ class Analyse {
 			}
 		}
 		db.getNextRevision().commit();
-
-		// Run iterative disassembler.
-		System.err.printf("Starting iterative disassembler.\n");
-		IterativeDisassembler disasm = new IterativeDisassembler(obj, db, arch);
 		Register pc = Register.make(arch, "PC");
 		List<Expression> links = new ArrayList<Expression>();
-		while (!disasm.process(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Iterative disassembly complete.\n");
-		System.err.printf("%d instructions disassembled.\n" ,db.getLines().count(db.getCurrentRevision().get()));
 
-		// Run basic block detector.
-		System.err.printf("Starting basic block detector.\n");
-		BasicBlockDetector bbDetector = new BasicBlockDetector(obj, db, arch);
-		while (!bbDetector.detectNext(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Basic block detection complete.\n");
-		System.err.printf("%d blocks detected.\n", db.getBasicBlocks().count(db.getCurrentRevision().get()));
-
-		// Run extended basic block detector.
-		System.err.printf("Starting extended basic block detector.\n");
-		ExtendedBasicBlockDetector ebbDetector = new ExtendedBasicBlockDetector(obj, db, arch);
-		while (!ebbDetector.detectNext(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Extended basic block detection complete.\n");
-		System.err.printf("%d extended basic blocks detected.\n", db.getExtendedBasicBlocks().count(db.getCurrentRevision().get()));
+		// If requested, seed further references by sweeping every offset.
+		if (sweep) {
+			System.err.printf("Starting linear sweep.\n");
+			LinearSweep sweeper = new LinearSweep(obj, db, arch);
+			ForkJoinPool pool = new ForkJoinPool();
+			try {
+				int count = sweeper.seed(pc, links, pool);
+				System.err.printf("%d chains found.\n", count);
+			} finally {
+				pool.shutdown();
+			}
+			db.getNextRevision().commit();
+		}
 
-		// Run subroutine detector.
-		System.err.printf("Starting subroutine detector.\n");
-		SubroutineDetector subDetector = new SubroutineDetector(obj, db, arch);
-		while (!subDetector.detectNext(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Subroutine detection complete.\n");
-		System.err.printf("%d subroutines detected.\n", db.getSubroutines().count(db.getCurrentRevision().get()));
+		// Create a store for sharing decoded instructions between passes,
+		// and a record of the dependencies between the facts they make.
+		DecodedInstructionStore store = new DecodedInstructionStore(obj, arch);
+		FactDependencies deps = new FactDependencies(db);
 
-		// Run register tracer.
-		System.err.printf("Starting register tracing.\n");
-		SsaMapper mapper = new SsaMapper(obj, db, arch);
-		while (!mapper.mapNext(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Register tracing complete.\n");
+		// Run the analysis passes as a pipeline, so that results for each
+		// region of code become visible as soon as that region has been
+		// analysed. Instructions are decoded with one thread per processor.
+		System.err.printf("Starting analysis pipeline.\n");
+		AnalysisPipeline pipeline = new AnalysisPipeline(obj, db, arch, store, deps);
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			pipeline.run(pc, links, executor, COMMIT_INTERVAL);
+		} finally {
+			executor.shutdown();
+		}
+		System.err.printf("Analysis complete after %d revisions.\n", pipeline.getCommitCount());
 
-		// Run comment generator.
-		System.err.printf("Starting comment generation.\n");
-		CommentGenerator commenter = new CommentGenerator(obj, db, arch);
-		while (!commenter.commentNext(pc, links));
-		db.getNextRevision().commit();
-		System.err.printf("Comment generation complete.\n");
+		long rev = db.getCurrentRevision().get();
+		System.err.printf("%d instructions disassembled.\n", db.getLines().count(rev));
+		System.err.printf("%d blocks detected.\n", db.getBasicBlocks().count(rev));
+		System.err.printf("%d extended basic blocks detected.\n", db.getExtendedBasicBlocks().count(rev));
+		System.err.printf("%d subroutines detected.\n", db.getSubroutines().count(rev));
 	}
 }
@@ -0,0 +1,102 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.test;
+
+import java.io.RandomAccessFile;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.Choice;
+import org.codemancer.cpudl.type.DecoderStatistics;
+import org.codemancer.cpudl.type.DecoderProfile;
+import org.codemancer.cpudl.expr.Expression;
+
+public class DecoderStats {
+	/** Print statistics for the decoder trie belonging to a type.
+	 * @param name the name of the type
+	 * @param type the type
+	 * @param dynamic true if dynamic counts should be printed, otherwise false
+	 */
+	private static void print(String name, Type type, boolean dynamic) {
+		DecoderStatistics stats = new DecoderStatistics(type);
+		System.out.printf("%s\tnodes=%d leaves=%d depth=%d avgdepth=%.2f fanout=%.2f maxleaf=%d worst=%d\n",
+			name, stats.getNodeCount(), stats.getLeafCount(), stats.getMaxDepth(),
+			stats.getAverageLeafDepth(), stats.getAverageFanOut(),
+			stats.getMaxLeafSize(), stats.getWorstCaseCandidates());
+		if (dynamic && (stats.getDecodes() != 0)) {
+			long matches = Math.max(stats.getMatches(), 1);
+			long leafVisits = Math.max(stats.getLeafVisits(), 1);
+			System.out.printf("\tdecodes=%d matches=%d visits/decode=%.2f backtracks=%d candidates/leaf=%.2f attempts/match=%.2f decoded/match=%.2f\n",
+				stats.getDecodes(), stats.getMatches(),
+				(double)stats.getVisits() / stats.getDecodes(),
+				stats.getBacktracks(),
+				(double)stats.getCandidates() / leafVisits,
+				(double)stats.getAttempts() / matches,
+				(double)stats.getDecoded() / matches);
+		}
+	}
+
+	/** Print decoder trie statistics from the command line.
+	 * Usage: java org.codemancer.test.DecoderStats <architecture> [<pathname> [<profile>]]
+	 * The static shape of the decoder trie is printed for the start type
+	 * and for each named type which is a choice. If a raw binary file is
+	 * given then it is decoded from start to finish, in the same manner
+	 * as Disassemble, and the dynamic counts are printed too. If a decoder
+	 * profile is given then it is used when constructing the tries.
+	 */
+	public static final void main(String args[]) throws Exception {
+		String architectureName = args[0];
+		String pathname = (args.length > 1) ? args[1] : null;
+		DecoderProfile profile = null;
+		if (args.length > 2) {
+			FileReader in = new FileReader(args[2]);
+			profile = new DecoderProfile(in);
+			in.close();
+		}
+
+		Architecture arch = Architecture.makeArchitecture(architectureName, false, profile);
+		Type start = arch.getStart();
+		FeatureSet features = new FeatureSet(arch);
+
+		if (pathname != null) {
+			DecoderStatistics.setEnabled(true);
+			RandomAccessFile file = new RandomAccessFile(pathname, "r");
+			ByteBuffer image = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			BitReader codeReader = new ByteBufferReader(image, arch.isBigEndian());
+			List<BitReader> codeReaders = new ArrayList<BitReader>();
+			codeReaders.add(codeReader);
+			long addr = 0;
+			while (addr < image.limit()) {
+				codeReader.seek(addr << 3);
+				Expression expr = start.decode(codeReaders, features);
+				long bitCount = codeReader.tell() - (addr << 3);
+				if ((expr != null) && (bitCount % 8 == 0) && (bitCount != 0)) {
+					addr += bitCount / 8;
+				} else {
+					addr += 1;
+				}
+			}
+			DecoderStatistics.setEnabled(false);
+			file.close();
+		}
+
+		print("<start>", start, pathname != null);
+		for (String typeName: arch.getTypeNames()) {
+			Type type = arch.getType(typeName);
+			if ((type instanceof Choice) && (type != start)) {
+				print(typeName, type, pathname != null);
+			}
+		}
+	}
+}
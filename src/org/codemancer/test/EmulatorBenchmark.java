@@ -0,0 +1,51 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.emulator.Emulator;
+import org.codemancer.emulator.MemoryImage;
+
+public class EmulatorBenchmark {
+	/** Measure the speed of concrete execution from the command line.
+	 * Usage: java org.codemancer.test.EmulatorBenchmark <architecture> <pathname> <start> [<count>]
+	 * A raw binary file is loaded at address zero, then the given number
+	 * of instructions are executed from the start address. The number of
+	 * instructions executed per second is printed, followed by the
+	 * address at which execution stopped.
+	 */
+	public static final void main(String args[]) throws Exception {
+		String architectureName = args[0];
+		String pathname = args[1];
+		long start = Long.decode(args[2]);
+		long count = (args.length > 3) ? Long.parseLong(args[3]) : 10000000;
+
+		Architecture arch = Architecture.makeArchitecture(architectureName, true);
+		RandomAccessFile file = new RandomAccessFile(pathname, "r");
+		ByteBuffer image = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		MemoryImage memory = new MemoryImage();
+		memory.load(0, image);
+		file.close();
+
+		Emulator emu = new Emulator(arch, memory);
+		emu.setPC(start);
+		long t0 = System.nanoTime();
+		try {
+			emu.run(count);
+		} catch (IllegalArgumentException ex) {
+			System.out.println(ex.getMessage());
+		}
+		long t1 = System.nanoTime();
+
+		long executed = emu.getInstructionCount();
+		System.out.printf("%s\tinstructions=%d rate=%.2fM/s pc=%X\n", architectureName, executed,
+			executed * 1000.0 / Math.max(t1 - t0, 1), emu.getPC());
+	}
+}
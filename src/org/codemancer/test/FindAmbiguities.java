@@ -0,0 +1,51 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.test;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.Choice;
+import org.codemancer.cpudl.type.AmbiguityReport;
+
+public class FindAmbiguities {
+	/** Print the possibly ambiguous alternatives of a type.
+	 * @param name the name of the type
+	 * @param type the type
+	 * @return the number of pairs printed
+	 */
+	private static int print(String name, Type type) {
+		AmbiguityReport report = new AmbiguityReport(type);
+		for (Choice.TypeInfo[] pair: report.getPairs()) {
+			System.out.printf("%s\tpriority=%d\n\t%s\n\t%s\n", name, pair[0].priority,
+				AmbiguityReport.describe(pair[0].type),
+				AmbiguityReport.describe(pair[1].type));
+		}
+		return report.getPairs().size();
+	}
+
+	/** Find possibly ambiguous alternatives from the command line.
+	 * Usage: java org.codemancer.test.FindAmbiguities <architecture>
+	 * Pairs of alternatives which have equal priority and are not
+	 * distinguished by any fixed bit are written to stdout, for the
+	 * start type and for each named type which is a choice. The first
+	 * alternative of each pair is the one which would be chosen if both
+	 * matched.
+	 */
+	public static final void main(String args[]) throws Exception {
+		String architectureName = args[0];
+		Architecture arch = Architecture.makeArchitecture(architectureName);
+		Type start = arch.getStart();
+
+		int count = print("<start>", start);
+		for (String typeName: arch.getTypeNames()) {
+			Type type = arch.getType(typeName);
+			if ((type instanceof Choice) && (type != start)) {
+				count += print(typeName, type);
+			}
+		}
+		System.out.printf("%d possibly ambiguous pairs\n", count);
+	}
+}
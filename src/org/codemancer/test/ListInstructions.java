@@ -52,8 +52,7 @@ public class ListInstructions {
 			} else {
 				Map<String, Expression> registers = new HashMap<String, Expression>();
 				registers.put("PC", new Constant(null, 0));
-				expr = expr.resolveReferences(null, null);
-				expr = expr.resolveRegisters(registers).simplify();
+				expr = expr.resolve(null, null, registers);
 				System.out.printf("%X\t%s\t%s\n", opcode, start.unparse(0, expr), start.unparse(1, expr));
 			}
 			opcode += step;
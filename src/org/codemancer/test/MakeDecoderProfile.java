@@ -0,0 +1,67 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.test;
+
+import java.io.RandomAccessFile;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.type.DecoderStatistics;
+import org.codemancer.cpudl.type.DecoderProfile;
+import org.codemancer.cpudl.expr.Expression;
+
+public class MakeDecoderProfile {
+	/** Make decoder profile from the command line.
+	 * Usage: java org.codemancer.test.MakeDecoderProfile <architecture> <profile> <pathname>...
+	 * Each raw binary file is decoded from start to finish, in the same
+	 * manner as Disassemble, and the number of times that each alternative
+	 * of each choice was matched is written to the given profile.
+	 */
+	public static final void main(String args[]) throws Exception {
+		String architectureName = args[0];
+		String profileName = args[1];
+
+		Architecture arch = Architecture.makeArchitecture(architectureName);
+		Type start = arch.getStart();
+		FeatureSet features = new FeatureSet(arch);
+
+		DecoderStatistics.setEnabled(true);
+		for (int i = 2; i < args.length; ++i) {
+			RandomAccessFile file = new RandomAccessFile(args[i], "r");
+			ByteBuffer image = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			BitReader codeReader = new ByteBufferReader(image, arch.isBigEndian());
+			List<BitReader> codeReaders = new ArrayList<BitReader>();
+			codeReaders.add(codeReader);
+			long addr = 0;
+			while (addr < image.limit()) {
+				codeReader.seek(addr << 3);
+				Expression expr = start.decode(codeReaders, features);
+				long bitCount = codeReader.tell() - (addr << 3);
+				if ((expr != null) && (bitCount % 8 == 0) && (bitCount != 0)) {
+					addr += bitCount / 8;
+				} else {
+					addr += 1;
+				}
+			}
+			file.close();
+		}
+		DecoderStatistics.setEnabled(false);
+
+		DecoderProfile profile = new DecoderProfile();
+		profile.gather(arch);
+		FileWriter out = new FileWriter(profileName);
+		profile.write(out);
+		out.close();
+	}
+}
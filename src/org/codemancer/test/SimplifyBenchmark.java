@@ -0,0 +1,115 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Constant;
+import org.codemancer.cpudl.expr.Fragment;
+
+public class SimplifyBenchmark {
+	/** Measure the cost of simplifying instructions from the command line.
+	 * Usage: java org.codemancer.test.SimplifyBenchmark <architecture> <pathname> [<repeats>]
+	 * A raw binary file is decoded from start to finish, in the same manner
+	 * as Disassemble, and references and registers are resolved within each
+	 * instruction. Each instruction is then simplified, its effect is
+	 * materialised, and the effect is simplified again as it would be by
+	 * InstructionClassifier. The same work is then timed using the fused
+	 * resolve method. The best time per instruction over the given number
+	 * of repeats is printed.
+	 */
+	public static final void main(String args[]) throws Exception {
+		String architectureName = args[0];
+		String pathname = args[1];
+		int repeats = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+		Architecture arch = Architecture.makeArchitecture(architectureName, true);
+		Type start = arch.getStart();
+		FeatureSet features = new FeatureSet(arch);
+
+		RandomAccessFile file = new RandomAccessFile(pathname, "r");
+		ByteBuffer image = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		BitReader codeReader = new ByteBufferReader(image, arch.isBigEndian());
+		List<BitReader> codeReaders = new ArrayList<BitReader>();
+		codeReaders.add(codeReader);
+
+		// Decode the instructions in advance, so that only simplification is timed.
+		List<Expression> decoded = new ArrayList<Expression>();
+		List<Long> addrs = new ArrayList<Long>();
+		long addr = 0;
+		while (addr < image.limit()) {
+			codeReader.seek(addr << 3);
+			Expression expr = start.decode(codeReaders, features);
+			long bitCount = codeReader.tell() - (addr << 3);
+			if ((expr != null) && (bitCount % 8 == 0) && (bitCount != 0)) {
+				decoded.add(expr);
+				addrs.add(addr);
+				addr += bitCount / 8;
+			} else {
+				addr += 1;
+			}
+		}
+		file.close();
+
+		long best = Long.MAX_VALUE;
+		long resolveBest = Long.MAX_VALUE;
+		long fusedBest = Long.MAX_VALUE;
+		int count = decoded.size();
+		for (int repeat = 0; repeat != repeats; ++repeat) {
+			// Resolve each instruction afresh, so that no work is carried
+			// over from the previous repeat.
+			long resolveTotal = 0;
+			long simplifyTotal = 0;
+			long fusedTotal = 0;
+			for (int i = 0; i != count; ++i) {
+				long t0 = System.nanoTime();
+				Map<String, Expression> registers = new HashMap<String, Expression>();
+				registers.put("PC", new Constant(null, addrs.get(i)));
+				Expression expr = decoded.get(i).resolveReferences(null, null);
+				expr = expr.resolveRegisters(registers);
+				long t1 = System.nanoTime();
+				expr = expr.simplify();
+				if (expr instanceof Fragment) {
+					Expression effect = ((Fragment)expr).getEffect();
+					if (effect != null) {
+						effect.simplify();
+					}
+				}
+				long t2 = System.nanoTime();
+				resolveTotal += t1 - t0;
+				simplifyTotal += t2 - t1;
+
+				long t3 = System.nanoTime();
+				registers = new HashMap<String, Expression>();
+				registers.put("PC", new Constant(null, addrs.get(i)));
+				expr = decoded.get(i).resolve(null, null, registers);
+				if (expr instanceof Fragment) {
+					((Fragment)expr).getEffect();
+				}
+				fusedTotal += System.nanoTime() - t3;
+			}
+			resolveBest = Math.min(resolveBest, resolveTotal);
+			best = Math.min(best, simplifyTotal);
+			fusedBest = Math.min(fusedBest, fusedTotal);
+		}
+
+		System.out.printf("%s\tinstructions=%d resolve=%.0fns simplify=%.0fns fused=%.0fns (per instruction)\n",
+			architectureName, count, (double)resolveBest / Math.max(count, 1),
+			(double)best / Math.max(count, 1), (double)fusedBest / Math.max(count, 1));
+	}
+}
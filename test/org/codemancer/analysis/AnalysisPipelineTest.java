@@ -0,0 +1,164 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.db.Fact;
+import org.codemancer.db.Line;
+import org.codemancer.db.BasicBlock;
+import org.codemancer.db.ExtendedBasicBlock;
+import org.codemancer.db.Subroutine;
+import org.codemancer.db.Database;
+
+public class AnalysisPipelineTest {
+	/** The number of subroutines in the test program. */
+	private static final int SUB_COUNT = 128;
+
+	/** The number of subroutines which are the subject of an external reference.
+	 * The remainder can only be reached by jumps, so are found late. */
+	private static final int ENTRY_COUNT = 16;
+
+	/** Make a database containing an external reference to each of the first
+	 * ENTRY_COUNT subroutines of the test program.
+	 * @return the database
+	 */
+	private static TestDatabase makeDatabase() {
+		TestDatabase db = new TestDatabase();
+		for (int i = 0; i != ENTRY_COUNT; ++i) {
+			db.getReferences().make(-1, i * TestObjectFile.SUBROUTINE_SIZE, false, false, true, true);
+		}
+		db.getNextRevision().commit();
+		return db;
+	}
+
+	/** Describe the current lines, blocks and subroutines in a database.
+	 * Which subroutine a block shared by more than one is assigned to
+	 * depends on the order in which blocks are found, so only whether a
+	 * block has been assigned to one is described.
+	 * @param db the database
+	 * @return a description of each line, then of each basic block
+	 */
+	private static List<String> describe(Database db) {
+		List<String> result = new ArrayList<String>();
+		for (Line line: db.getLines().getChanges(0, Long.MAX_VALUE, 0, Long.MAX_VALUE)) {
+			result.add(line.getMinAddr() + " " + line.getInstruction());
+		}
+		for (BasicBlock block: db.getBasicBlocks().get()) {
+			ExtendedBasicBlock ebb = block.getExtendedBasicBlock();
+			Subroutine sub = block.getSubroutine();
+			result.add(block.getMinAddr() + "-" + block.getMaxAddr() +
+				" ebb " + ((ebb != null) ? ebb.getEntryAddr() : "none") +
+				((sub != null) ? "" : " no subroutine") +
+				(block.isProcessed(Fact.DONE_COMMENT_GENERATOR) ? "" : " unprocessed"));
+		}
+		return result;
+	}
+
+	/** Analyse the test program by running each pass in turn until it has nothing left to do.
+	 * @param obj the object file containing the program
+	 * @return a description of the result
+	 */
+	private static List<String> analyseSequentially(TestObjectFile obj) throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Register pc = Register.make(arch, "PC");
+		List<Expression> links = new ArrayList<Expression>();
+		TestDatabase db = makeDatabase();
+		DecodedInstructionStore store = new DecodedInstructionStore(obj, arch);
+		FactDependencies deps = new FactDependencies(db);
+
+		// A pass which has reached the end of its pending work may have
+		// added to it, so each is run again until it makes no progress.
+		boolean progress = true;
+		IterativeDisassembler disasm = new IterativeDisassembler(obj, db, arch, store, deps);
+		while (progress) {
+			progress = false;
+			while (!disasm.process(pc, links)) progress = true;
+		}
+		progress = true;
+		BasicBlockDetector bbDetector = new BasicBlockDetector(obj, db, arch, store, deps);
+		while (progress) {
+			progress = false;
+			while (!bbDetector.detectNext(pc, links)) progress = true;
+		}
+		progress = true;
+		ExtendedBasicBlockDetector ebbDetector = new ExtendedBasicBlockDetector(obj, db, arch, deps);
+		while (progress) {
+			progress = false;
+			while (!ebbDetector.detectNext(pc, links)) progress = true;
+		}
+		progress = true;
+		SubroutineDetector subDetector = new SubroutineDetector(obj, db, arch, deps);
+		while (progress) {
+			progress = false;
+			while (!subDetector.detectNext(pc, links)) progress = true;
+		}
+		progress = true;
+		SsaMapper mapper = new SsaMapper(obj, db, arch, store, deps);
+		while (progress) {
+			progress = false;
+			while (!mapper.mapNext(pc, links)) progress = true;
+		}
+		progress = true;
+		CommentGenerator commenter = new CommentGenerator(obj, db, arch, store, deps);
+		while (progress) {
+			progress = false;
+			while (!commenter.commentNext(pc, links)) progress = true;
+		}
+		return describe(db);
+	}
+
+	/** Analyse the test program using the pipeline.
+	 * @param obj the object file containing the program
+	 * @param threadCount the number of threads with which to decode, or 0
+	 *  to decode on the calling thread
+	 * @return a description of the result
+	 */
+	private static List<String> analyseWithPipeline(TestObjectFile obj, int threadCount) throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Register pc = Register.make(arch, "PC");
+		List<Expression> links = new ArrayList<Expression>();
+		TestDatabase db = makeDatabase();
+		DecodedInstructionStore store = new DecodedInstructionStore(obj, arch);
+		AnalysisPipeline pipeline = new AnalysisPipeline(obj, db, arch, store, new FactDependencies(db));
+		ExecutorService executor = (threadCount != 0) ? Executors.newFixedThreadPool(threadCount) : null;
+		try {
+			pipeline.run(pc, links, executor, Long.MAX_VALUE);
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		return describe(db);
+	}
+
+	@Test
+	public void testSequential() throws Exception {
+		TestObjectFile obj = TestObjectFile.makeZ80Program(3, SUB_COUNT);
+		List<String> expected = analyseSequentially(obj);
+		assertTrue(expected.size() > SUB_COUNT);
+		for (String fact: expected) {
+			assertTrue(fact, !fact.endsWith("unprocessed"));
+		}
+		assertEquals(expected, analyseWithPipeline(obj, 0));
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		TestObjectFile obj = TestObjectFile.makeZ80Program(4, SUB_COUNT);
+		assertEquals(analyseSequentially(obj), analyseWithPipeline(obj, 4));
+	}
+}
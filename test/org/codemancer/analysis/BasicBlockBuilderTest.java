@@ -0,0 +1,124 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import org.codemancer.db.Fact;
+import org.codemancer.db.Line;
+import org.codemancer.db.BasicBlock;
+import org.codemancer.db.Database;
+
+import org.codemancer.analysis.TestDatabase.TestFact;
+
+public class BasicBlockBuilderTest {
+	/** A line which is not stored in any database. */
+	private static class TestLine extends TestFact implements Line {
+		private final long minAddr;
+		private final long maxAddr;
+
+		TestLine(long minAddr, long maxAddr) {
+			super(Fact.DONE_ITERATIVE_DISASSEMBLER);
+			this.minAddr = minAddr;
+			this.maxAddr = maxAddr;
+		}
+
+		public long getMinAddr() {
+			return minAddr;
+		}
+
+		public long getMaxAddr() {
+			return maxAddr;
+		}
+
+		public String getInstruction() {
+			return "";
+		}
+
+		public String asJSON() {
+			return "";
+		}
+	}
+
+	/** Describe the blocks which are current.
+	 * @param db the database in which the blocks were made
+	 * @return a description of each current block, in order of address
+	 */
+	private static String describe(Database db) {
+		StringBuilder out = new StringBuilder();
+		for (BasicBlock block: db.getBasicBlocks().get()) {
+			if (out.length() != 0) out.append(' ');
+			out.append(block.getMinAddr()).append('-').append(block.getMaxAddr());
+			out.append(block.canFallThrough() ? "+" : "");
+		}
+		return out.toString();
+	}
+
+	@Test
+	public void testBranch() throws Exception {
+		TestDatabase db = new TestDatabase(1);
+		BasicBlockBuilder builder = new BasicBlockBuilder(db, new FactDependencies(db));
+		TestLine line0 = new TestLine(0, 1);
+		builder.addDestination(0);
+		builder.addLine(line0, true, false);
+		builder.addLine(new TestLine(2, 3), true, true);
+		builder.addLine(new TestLine(4, 4), false, true);
+		builder.endChain(5, null);
+		assertEquals("0-3+ 4-4", describe(db));
+		assertTrue(line0.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+	}
+
+	@Test
+	public void testSplit() throws Exception {
+		TestDatabase db = new TestDatabase(1);
+		BasicBlockBuilder builder = new BasicBlockBuilder(db, new FactDependencies(db));
+		builder.addDestination(0);
+		builder.addLine(new TestLine(0, 1), true, false);
+		builder.addLine(new TestLine(2, 3), true, false);
+		builder.addLine(new TestLine(4, 4), false, true);
+		builder.endChain(5, null);
+
+		// A chain which reaches the destination of a reference ends its
+		// block there, and a later reference to the middle of a block
+		// splits it.
+		builder.addDestination(8);
+		builder.addLine(new TestLine(8, 8), true, false);
+		builder.addLine(new TestLine(9, 9), true, false);
+		builder.endChain(10, null);
+		builder.addDestination(6);
+		builder.addLine(new TestLine(6, 7), true, false);
+		builder.endChain(8, 8L);
+		builder.addDestination(2);
+		builder.addDestination(9);
+		assertEquals("0-1+ 2-4 6-7+ 8-8+ 9-9+", describe(db));
+	}
+
+	@Test
+	public void testOverlap() throws Exception {
+		TestDatabase db = new TestDatabase(1);
+		BasicBlockBuilder builder = new BasicBlockBuilder(db, new FactDependencies(db));
+		TestLine line0 = new TestLine(0, 1);
+		TestLine line2 = new TestLine(2, 4);
+		builder.addDestination(0);
+		builder.addLine(line0, true, false);
+		builder.addLine(line2, false, true);
+		builder.endChain(5, null);
+		builder.addDestination(8);
+		builder.addLine(new TestLine(8, 9), false, true);
+		builder.endChain(10, null);
+
+		// A reference to the middle of an instruction leaves the lines
+		// around it for the basic block detector, but does not affect
+		// lines elsewhere.
+		builder.addDestination(3);
+		assertEquals("8-9", describe(db));
+		assertFalse(line0.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+		assertFalse(line2.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+	}
+}
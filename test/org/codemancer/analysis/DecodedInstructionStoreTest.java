@@ -0,0 +1,97 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+
+public class DecodedInstructionStoreTest {
+	// JP 1234h; JP 1234h; an undecodable sequence; NOP
+	private final byte[] content = {
+		(byte)0xC3, (byte)0x34, (byte)0x12, (byte)0xC3,
+		(byte)0x34, (byte)0x12, (byte)0xCB, (byte)0x30,
+		(byte)0x00};
+
+	private final Architecture arch;
+	private final Register pc;
+	private final List<Expression> links = new ArrayList<Expression>();
+	private final DecodedInstructionStore store;
+
+	public DecodedInstructionStoreTest() throws Exception {
+		arch = Architecture.makeArchitecture("z80");
+		pc = Register.make(arch, "PC");
+		store = new DecodedInstructionStore(new TestObjectFile(0, content), arch);
+	}
+
+	@Test
+	public void testDecodeOnce() {
+		DecodedInstructionStore.Instruction first = store.get(0, pc, links);
+		assertEquals(0, first.getAddr());
+		assertEquals(3, first.getLength());
+		assertTrue(store.get(0, pc, links) == first);
+		assertEquals(1, store.getDecodeCount());
+	}
+
+	@Test
+	public void testPurge() {
+		DecodedInstructionStore.Instruction first = store.get(8, pc, links);
+		assertEquals(1, first.getLength());
+		store.clear(8);
+		DecodedInstructionStore.Instruction second = store.get(8, pc, links);
+		assertTrue(second != first);
+		assertEquals(1, second.getLength());
+		assertEquals(2, store.getDecodeCount());
+	}
+
+	@Test
+	public void testUndecodable() {
+		assertTrue(store.get(6, pc, links) == null);
+		assertTrue(store.get(6, pc, links) == null);
+		assertEquals(1, store.getDecodeCount());
+
+		// The placeholder is held in the same way as a decoded instruction,
+		// so the address is decoded again once it has been cleared.
+		store.clear(6);
+		assertTrue(store.get(6, pc, links) == null);
+		assertEquals(2, store.getDecodeCount());
+
+		// An unmapped address is not decoded at all.
+		assertTrue(store.get(0x100, pc, links) == null);
+		assertEquals(2, store.getDecodeCount());
+	}
+
+	@Test
+	public void testReclassify() {
+		DecodedInstructionStore.Instruction first = store.get(0, pc, links);
+		List<Expression> otherLinks = new ArrayList<Expression>();
+		DecodedInstructionStore.Instruction second = store.get(0, pc, otherLinks);
+		assertTrue(second != first);
+		assertTrue(second.getClassifier() != first.getClassifier());
+		assertTrue(second.getInstruction() == first.getInstruction());
+		assertEquals(first.getLength(), second.getLength());
+		assertEquals(1, store.getDecodeCount());
+		assertTrue(store.get(0, pc, otherLinks) == second);
+	}
+
+	@Test
+	public void testInterner() {
+		DecodedInstructionStore.Instruction first = store.get(0, pc, links);
+		DecodedInstructionStore.Instruction second = store.get(3, pc, links);
+		List<Expression> firstDests = first.getClassifier().getDestinationAddresses();
+		List<Expression> secondDests = second.getClassifier().getDestinationAddresses();
+		assertEquals(1, firstDests.size());
+		assertEquals(1, secondDests.size());
+		assertTrue(firstDests.get(0) == secondDests.get(0));
+	}
+}
@@ -0,0 +1,136 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import org.codemancer.db.Fact;
+
+import org.codemancer.analysis.TestDatabase.TestFact;
+
+public class FactDependenciesTest {
+	/** The revision at which facts are retired. */
+	private static final long CURRENT_REV = 7;
+
+	/** The length of the chains of dependencies in testLongChain, which
+	 * is enough to overflow the stack if they are followed recursively. */
+	private static final int CHAIN_LENGTH = 100000;
+
+	@Test
+	public void testRetire() throws Exception {
+		FactDependencies deps = new FactDependencies(new TestDatabase(CURRENT_REV));
+		TestFact line1 = new TestFact(Fact.DONE_BASIC_BLOCK_DETECTOR);
+		TestFact line2 = new TestFact(Fact.DONE_BASIC_BLOCK_DETECTOR);
+		TestFact block = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+		TestFact ebb = new TestFact(Fact.DONE_SSA_MAPPER);
+		TestFact mapping = new TestFact(Fact.DONE_NOTHING);
+		TestFact comment = new TestFact(Fact.DONE_NOTHING);
+		deps.addDerived(line1, block, Fact.DONE_BASIC_BLOCK_DETECTOR);
+		deps.addDerived(line2, block, Fact.DONE_BASIC_BLOCK_DETECTOR);
+		deps.addDerived(block, ebb, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		deps.addDerived(ebb, mapping, Fact.DONE_SSA_MAPPER);
+		deps.addDerived(block, comment, Fact.DONE_COMMENT_GENERATOR);
+		assertTrue(deps.isTracked(block));
+
+		// Retiring the block retires everything derived from it, and
+		// requires the lines to be made into blocks again.
+		deps.retire(block);
+		assertEquals(CURRENT_REV, block.getMaxRev());
+		assertEquals(CURRENT_REV, ebb.getMaxRev());
+		assertEquals(CURRENT_REV, mapping.getMaxRev());
+		assertEquals(CURRENT_REV, comment.getMaxRev());
+		assertEquals(-1, line1.getMaxRev());
+		assertTrue(line1.isProcessed(Fact.DONE_ITERATIVE_DISASSEMBLER));
+		assertFalse(line1.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+		assertFalse(line2.isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+		assertFalse(deps.isTracked(block));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		FactDependencies deps = new FactDependencies(new TestDatabase(CURRENT_REV));
+		TestFact block1 = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+		TestFact block2 = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+		TestFact block3 = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+		TestFact other = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+		TestFact ebb = new TestFact(Fact.DONE_SSA_MAPPER);
+		TestFact comment1 = new TestFact(Fact.DONE_NOTHING);
+		TestFact comment3 = new TestFact(Fact.DONE_NOTHING);
+		deps.addDerived(block1, ebb, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		deps.addUse(block1, block2, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		deps.addUse(block2, block3, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		deps.addDerived(block1, comment1, Fact.DONE_COMMENT_GENERATOR);
+		deps.addDerived(block3, comment3, Fact.DONE_COMMENT_GENERATOR);
+
+		// Reprocessing the first block from the comment generator onwards
+		// affects only its own comment.
+		deps.invalidate(block1, Fact.DONE_COMMENT_GENERATOR);
+		assertFalse(block1.isProcessed(Fact.DONE_COMMENT_GENERATOR));
+		assertTrue(block1.isProcessed(Fact.DONE_SSA_MAPPER));
+		assertEquals(CURRENT_REV, comment1.getMaxRev());
+		assertEquals(-1, ebb.getMaxRev());
+		assertTrue(block2.isProcessed(Fact.DONE_COMMENT_GENERATOR));
+
+		// Reprocessing it from the extended basic block detector onwards
+		// retires the EBB, and affects the blocks which followed from it.
+		deps.invalidate(block1, Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		assertEquals(CURRENT_REV, ebb.getMaxRev());
+		assertFalse(block1.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR));
+		assertFalse(block2.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR));
+		assertFalse(block3.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR));
+		assertEquals(CURRENT_REV, comment3.getMaxRev());
+		assertTrue(other.isProcessed(Fact.DONE_COMMENT_GENERATOR));
+	}
+
+	@Test
+	public void testRetireUsed() throws Exception {
+		FactDependencies deps = new FactDependencies(new TestDatabase(CURRENT_REV));
+		TestFact entry = new TestFact(Fact.DONE_SSA_MAPPER);
+		TestFact member = new TestFact(Fact.DONE_SSA_MAPPER);
+		TestFact sub = new TestFact(Fact.DONE_NOTHING);
+		TestFact mapping = new TestFact(Fact.DONE_NOTHING);
+		deps.addDerived(entry, sub, Fact.DONE_SUBROUTINE_DETECTOR);
+		deps.addUse(sub, member, Fact.DONE_SUBROUTINE_DETECTOR);
+		deps.addDerived(member, mapping, Fact.DONE_SSA_MAPPER);
+
+		// Retiring the subroutine requires both of its EBBs to be
+		// reprocessed, and retires the mappings made from them.
+		deps.retire(sub);
+		assertFalse(entry.isProcessed(Fact.DONE_SUBROUTINE_DETECTOR));
+		assertTrue(entry.isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR));
+		assertFalse(member.isProcessed(Fact.DONE_SUBROUTINE_DETECTOR));
+		assertEquals(CURRENT_REV, mapping.getMaxRev());
+		assertEquals(-1, entry.getMaxRev());
+		assertEquals(-1, member.getMaxRev());
+	}
+
+	@Test
+	public void testLongChain() throws Exception {
+		FactDependencies deps = new FactDependencies(new TestDatabase(CURRENT_REV));
+		TestFact[] blocks = new TestFact[CHAIN_LENGTH];
+		TestFact[] comments = new TestFact[CHAIN_LENGTH];
+		for (int i = 0; i != CHAIN_LENGTH; ++i) {
+			blocks[i] = new TestFact(Fact.DONE_COMMENT_GENERATOR);
+			comments[i] = new TestFact(Fact.DONE_NOTHING);
+			if (i != 0) {
+				deps.addUse(blocks[i - 1], blocks[i], Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+				deps.addDerived(comments[i - 1], comments[i], Fact.DONE_COMMENT_GENERATOR);
+			}
+		}
+
+		// Each block used the one before it, so all must be reprocessed.
+		deps.invalidate(blocks[0], Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR);
+		assertFalse(blocks[CHAIN_LENGTH - 1].isProcessed(Fact.DONE_EXTENDED_BASIC_BLOCK_DETECTOR));
+		assertTrue(blocks[CHAIN_LENGTH - 1].isProcessed(Fact.DONE_BASIC_BLOCK_DETECTOR));
+
+		// Each comment was derived from the one before it, so all are retired.
+		deps.retire(comments[0]);
+		assertEquals(CURRENT_REV, comments[CHAIN_LENGTH - 1].getMaxRev());
+	}
+}
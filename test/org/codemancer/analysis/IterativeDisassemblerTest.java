@@ -0,0 +1,81 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+import org.codemancer.db.Line;
+import org.codemancer.db.Reference;
+
+public class IterativeDisassemblerTest {
+	/** The number of subroutines in the test program. */
+	private static final int SUB_COUNT = 48;
+
+	/** Disassemble the test program, and describe the lines and references made.
+	 * @param obj the object file containing the program
+	 * @param threadCount the number of threads with which to decode, or 0
+	 *  to decode sequentially
+	 * @param batchSize the maximum number of references in each batch
+	 * @return a description of the lines in order of address, followed by
+	 *  the references in order of creation
+	 */
+	private static List<String> disassemble(TestObjectFile obj, int threadCount, int batchSize) throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		TestDatabase db = new TestDatabase();
+		db.getReferences().make(-1, 0, false, false, true, true);
+		db.getNextRevision().commit();
+		IterativeDisassembler disasm = new IterativeDisassembler(obj, db, arch);
+		Register pc = Register.make(arch, "PC");
+		List<Expression> links = new ArrayList<Expression>();
+		if (threadCount == 0) {
+			while (!disasm.process(pc, links));
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			try {
+				while (!disasm.process(pc, links, executor, batchSize));
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		List<String> result = new ArrayList<String>();
+		for (Line line: db.getLines().getChanges(0, Long.MAX_VALUE, 0, Long.MAX_VALUE)) {
+			result.add(line.getMinAddr() + "-" + line.getMaxAddr() + " " + line.getInstruction());
+		}
+		for (Reference ref: db.getReferences().getByDstAddr(Long.MIN_VALUE, Long.MAX_VALUE)) {
+			result.add(ref.getSrcAddr() + "->" + ref.getDstAddr() + (ref.isSubRef() ? " sub" : ""));
+		}
+		return result;
+	}
+
+	@Test
+	public void testThreadCount() throws Exception {
+		TestObjectFile obj = TestObjectFile.makeZ80Program(1, SUB_COUNT);
+		List<String> expected = disassemble(obj, 0, 0);
+		assertTrue(expected.size() > SUB_COUNT);
+		assertEquals(expected, disassemble(obj, 1, Integer.MAX_VALUE));
+		assertEquals(expected, disassemble(obj, 4, Integer.MAX_VALUE));
+		assertEquals(expected, disassemble(obj, 8, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testBatchSize() throws Exception {
+		TestObjectFile obj = TestObjectFile.makeZ80Program(2, SUB_COUNT);
+		List<String> expected = disassemble(obj, 0, 0);
+		assertEquals(expected, disassemble(obj, 4, 1));
+		assertEquals(expected, disassemble(obj, 4, 5));
+	}
+}
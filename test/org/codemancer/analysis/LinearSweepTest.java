@@ -0,0 +1,86 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.nio.ByteBuffer;
+
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Register;
+
+public class LinearSweepTest {
+	/** Sweep a Z80 program.
+	 * @param addr the address of the program
+	 * @param program the machine code of the program
+	 * @param threadCount the number of threads with which to decode
+	 * @return the result of the sweep
+	 */
+	private static LinearSweep.Result sweep(long addr, int[] program, int threadCount) throws Exception {
+		byte[] bytes = new byte[program.length];
+		for (int i = 0; i != program.length; ++i) {
+			bytes[i] = (byte)program[i];
+		}
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Register pc = Register.make(arch, "PC");
+		List<Expression> links = new ArrayList<Expression>();
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
+		try {
+			return LinearSweep.sweep(arch, addr, ByteBuffer.wrap(bytes), pc, links, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testChains() throws Exception {
+		// LD A,5; RET; NOP; RET; JR (truncated)
+		LinearSweep.Result result = sweep(0x100, new int[] {0x3e, 0x05, 0xc9, 0x00, 0xc9, 0x18}, 1);
+		assertEquals(2, result.getLength(0x100));
+		assertEquals(1, result.getLength(0x101));
+		assertEquals(1, result.getLength(0x102));
+		assertEquals(0, result.getLength(0x105));
+		assertTrue(result.canFallThrough(0x100));
+		assertFalse(result.canFallThrough(0x102));
+		assertTrue(result.isViable(0x100));
+		assertTrue(result.isViable(0x101));
+		assertTrue(result.isViable(0x103));
+		assertFalse(result.isViable(0x105));
+		assertEquals(Arrays.asList(0x100L, 0x103L), result.getChainStarts());
+	}
+
+	@Test
+	public void testFallOffEnd() throws Exception {
+		// NOP; NOP; JR (truncated)
+		LinearSweep.Result result = sweep(0, new int[] {0x00, 0x00, 0x18}, 1);
+		assertFalse(result.isViable(0));
+		assertFalse(result.isViable(1));
+		assertEquals(new ArrayList<Long>(), result.getChainStarts());
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		// Repeated NOP; NOP; NOP; RET, spanning several tasks.
+		int[] program = new int[40000];
+		for (int i = 0; i != program.length; ++i) {
+			program[i] = ((i & 3) == 3) ? 0xc9 : 0x00;
+		}
+		LinearSweep.Result result = sweep(0, program, 4);
+		List<Long> starts = result.getChainStarts();
+		assertEquals(program.length / 4, starts.size());
+		for (int i = 0; i != starts.size(); ++i) {
+			assertEquals(i * 4L, (long)starts.get(i));
+		}
+	}
+}
@@ -0,0 +1,791 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.codemancer.db.Fact;
+import org.codemancer.db.Line;
+import org.codemancer.db.Reference;
+import org.codemancer.db.BasicBlock;
+import org.codemancer.db.ExtendedBasicBlock;
+import org.codemancer.db.Subroutine;
+import org.codemancer.db.SsaExpression;
+import org.codemancer.db.SsaMapping;
+import org.codemancer.db.Comment;
+import org.codemancer.db.AddressRangeSet;
+import org.codemancer.db.Database;
+import org.codemancer.db.Revision;
+import org.codemancer.db.Lines;
+import org.codemancer.db.Comments;
+import org.codemancer.db.References;
+import org.codemancer.db.BasicBlocks;
+import org.codemancer.db.ExtendedBasicBlocks;
+import org.codemancer.db.Subroutines;
+import org.codemancer.db.SsaExpressions;
+import org.codemancer.db.SsaMappings;
+
+/** A database which holds its facts in memory, for use in tests.
+ * The queries behave as those of the JPA database, but are answered by
+ * searching every fact of the relevant kind, so this is only suitable
+ * for small object files. Committing a revision makes it current.
+ */
+class TestDatabase implements Database {
+	/** A fact which is not stored in any database. */
+	static class TestFact implements Fact {
+		private final long minRev;
+		private long maxRev = -1;
+		private int processedLevel;
+
+		/** Construct test fact, current from revision 0.
+		 * @param processedLevel the level to which the fact has been processed
+		 */
+		TestFact(int processedLevel) {
+			this(0, processedLevel);
+		}
+
+		/** Construct test fact.
+		 * @param minRev the revision in which the fact was made
+		 * @param processedLevel the level to which the fact has been processed
+		 */
+		TestFact(long minRev, int processedLevel) {
+			this.minRev = minRev;
+			this.processedLevel = processedLevel;
+		}
+
+		public long getMinRev() {
+			return minRev;
+		}
+
+		public long getMaxRev() {
+			return maxRev;
+		}
+
+		public boolean isProcessed(int requiredLevel) {
+			return processedLevel >= requiredLevel;
+		}
+
+		public void setProcessed(int processedLevel) {
+			this.processedLevel = processedLevel;
+		}
+
+		public void setNotProcessed(int notProcessedLevel) {
+			if (processedLevel >= notProcessedLevel) {
+				processedLevel = notProcessedLevel - 1;
+			}
+		}
+
+		public void retire(long maxRev) {
+			if (this.maxRev == -1) {
+				this.maxRev = maxRev;
+			}
+		}
+
+		/** Test whether this fact is current.
+		 * @return true if it has not been retired, otherwise false
+		 */
+		final boolean isCurrent() {
+			return maxRev == -1;
+		}
+
+		/** Test whether this fact existed at a given revision.
+		 * @param rev the revision
+		 * @return true if it existed, otherwise false
+		 */
+		final boolean existsAt(long rev) {
+			return (minRev <= rev) && ((maxRev >= rev) || (maxRev == -1));
+		}
+	}
+
+	/** A line held in memory. */
+	private class TestLine extends TestFact implements Line {
+		private final long minAddr;
+		private final long maxAddr;
+		private final String instruction;
+
+		TestLine(long minAddr, long maxAddr, String instruction) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.minAddr = minAddr;
+			this.maxAddr = maxAddr;
+			this.instruction = instruction;
+		}
+
+		public long getMinAddr() {
+			return minAddr;
+		}
+
+		public long getMaxAddr() {
+			return maxAddr;
+		}
+
+		public String getInstruction() {
+			return instruction;
+		}
+
+		public String asJSON() {
+			return "";
+		}
+	}
+
+	/** A reference held in memory. */
+	private class TestReference extends TestFact implements Reference {
+		private final long srcAddr;
+		private final long dstAddr;
+		private final boolean internal;
+		private final boolean dataRef;
+		private final boolean codeRef;
+		private final boolean subRef;
+
+		TestReference(long srcAddr, long dstAddr, boolean internal, boolean dataRef, boolean codeRef,
+			boolean subRef) {
+
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.srcAddr = srcAddr;
+			this.dstAddr = dstAddr;
+			this.internal = internal;
+			this.dataRef = dataRef;
+			this.codeRef = codeRef;
+			this.subRef = subRef;
+		}
+
+		public long getSrcAddr() {
+			return srcAddr;
+		}
+
+		public long getDstAddr() {
+			return dstAddr;
+		}
+
+		public boolean isInternal() {
+			return internal;
+		}
+
+		public boolean isDataRef() {
+			return dataRef;
+		}
+
+		public boolean isCodeRef() {
+			return codeRef;
+		}
+
+		public boolean isSubRef() {
+			return subRef;
+		}
+	}
+
+	/** A basic block held in memory. */
+	private class TestBasicBlock extends TestFact implements BasicBlock {
+		private final long minAddr;
+		private final long maxAddr;
+		private final boolean fallThrough;
+		private ExtendedBasicBlock ebb = null;
+
+		TestBasicBlock(long minAddr, long maxAddr, boolean fallThrough) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.minAddr = minAddr;
+			this.maxAddr = maxAddr;
+			this.fallThrough = fallThrough;
+		}
+
+		public long getMinAddr() {
+			return minAddr;
+		}
+
+		public long getMaxAddr() {
+			return maxAddr;
+		}
+
+		public boolean canFallThrough() {
+			return fallThrough;
+		}
+
+		public ExtendedBasicBlock getExtendedBasicBlock() {
+			return ebb;
+		}
+
+		public void setExtendedBasicBlock(ExtendedBasicBlock ebb) {
+			this.ebb = ebb;
+		}
+
+		public Subroutine getSubroutine() {
+			return (ebb != null) ? ebb.getSubroutine() : null;
+		}
+	}
+
+	/** An extended basic block held in memory. */
+	private class TestExtendedBasicBlock extends TestFact implements ExtendedBasicBlock {
+		private final long entryAddr;
+		private Subroutine subroutine = null;
+
+		TestExtendedBasicBlock(long entryAddr) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.entryAddr = entryAddr;
+		}
+
+		public long getEntryAddr() {
+			return entryAddr;
+		}
+
+		public boolean canFallThrough() {
+			return false;
+		}
+
+		public Subroutine getSubroutine() {
+			return subroutine;
+		}
+
+		public void setSubroutine(Subroutine subroutine) {
+			this.subroutine = subroutine;
+		}
+	}
+
+	/** A subroutine held in memory. */
+	private class TestSubroutine extends TestFact implements Subroutine {
+		private final long entryAddr;
+		private int nextSsaName = 0;
+
+		TestSubroutine(long entryAddr) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.entryAddr = entryAddr;
+		}
+
+		public long getEntryAddr() {
+			return entryAddr;
+		}
+
+		public String allocateSsaName() {
+			String name = String.format("v%d", nextSsaName);
+			nextSsaName += 1;
+			return name;
+		}
+	}
+
+	/** An SSA expression held in memory. */
+	private class TestSsaExpression extends TestFact implements SsaExpression {
+		private final Subroutine subroutine;
+		private final String name;
+
+		TestSsaExpression(Subroutine subroutine, String name) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.subroutine = subroutine;
+			this.name = name;
+		}
+
+		public Subroutine getSubroutine() {
+			return subroutine;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/** An SSA mapping held in memory. */
+	private class TestSsaMapping extends TestFact implements SsaMapping {
+		private final long addr;
+		private final boolean inbound;
+		private final String name;
+		private final SsaExpression value;
+
+		TestSsaMapping(long addr, boolean inbound, String name, SsaExpression value) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.addr = addr;
+			this.inbound = inbound;
+			this.name = name;
+			this.value = value;
+		}
+
+		public long getAddr() {
+			return addr;
+		}
+
+		public boolean isInbound() {
+			return inbound;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public SsaExpression getValue() {
+			return value;
+		}
+	}
+
+	/** A comment held in memory. */
+	private class TestComment extends TestFact implements Comment {
+		private final long addr;
+		private final boolean auto;
+		private final String content;
+
+		TestComment(long addr, boolean auto, String content) {
+			super(getNextRevision().get(), Fact.DONE_NOTHING);
+			this.addr = addr;
+			this.auto = auto;
+			this.content = content;
+		}
+
+		public long getAddr() {
+			return addr;
+		}
+
+		public boolean getAuto() {
+			return auto;
+		}
+
+		public String getContent() {
+			return content;
+		}
+	}
+
+	/** Orders lines and basic blocks by their first address. */
+	private static final Comparator<Fact> BY_MIN_ADDR = new Comparator<Fact>() {
+		public int compare(Fact a, Fact b) {
+			return Long.compare(minAddr(a), minAddr(b));
+		}
+	};
+
+	/** Orders extended basic blocks and subroutines by their entry address. */
+	private static final Comparator<Fact> BY_ENTRY_ADDR = new Comparator<Fact>() {
+		public int compare(Fact a, Fact b) {
+			return Long.compare(entryAddr(a), entryAddr(b));
+		}
+	};
+
+	/** The lines made, in order of creation. */
+	private final List<TestLine> lineList = new ArrayList<TestLine>();
+
+	/** The references made, in order of creation. */
+	private final List<TestReference> referenceList = new ArrayList<TestReference>();
+
+	/** The basic blocks made, in order of creation. */
+	private final List<TestBasicBlock> blockList = new ArrayList<TestBasicBlock>();
+
+	/** The extended basic blocks made, in order of creation. */
+	private final List<TestExtendedBasicBlock> ebbList = new ArrayList<TestExtendedBasicBlock>();
+
+	/** The subroutines made, in order of creation. */
+	private final List<TestSubroutine> subroutineList = new ArrayList<TestSubroutine>();
+
+	/** The SSA expressions made, in order of creation. */
+	private final List<TestSsaExpression> ssaExpressionList = new ArrayList<TestSsaExpression>();
+
+	/** The SSA mappings made, in order of creation. */
+	private final List<TestSsaMapping> ssaMappingList = new ArrayList<TestSsaMapping>();
+
+	/** The comments made, in order of creation. */
+	private final List<TestComment> commentList = new ArrayList<TestComment>();
+
+	/** The current revision. */
+	private long currentRev;
+
+	/** Construct test database, with revision 0 current. */
+	TestDatabase() {
+		this(0);
+	}
+
+	/** Construct test database.
+	 * @param currentRev the current revision
+	 */
+	TestDatabase(long currentRev) {
+		this.currentRev = currentRev;
+	}
+
+	/** Get the first address of a line or basic block.
+	 * @param fact the line or basic block
+	 * @return the first address
+	 */
+	private static long minAddr(Fact fact) {
+		return (fact instanceof Line) ? ((Line)fact).getMinAddr() : ((BasicBlock)fact).getMinAddr();
+	}
+
+	/** Get the entry address of an extended basic block or subroutine.
+	 * @param fact the extended basic block or subroutine
+	 * @return the entry address
+	 */
+	private static long entryAddr(Fact fact) {
+		return (fact instanceof Subroutine) ? ((Subroutine)fact).getEntryAddr() :
+			((ExtendedBasicBlock)fact).getEntryAddr();
+	}
+
+	/** Find the current facts in a list which have not been processed to a given level.
+	 * @param facts the facts to be searched
+	 * @param requiredLevel the required level
+	 * @param order the order in which the result should be sorted, or null for order of creation
+	 * @return the unprocessed facts
+	 */
+	private static <T extends Fact> List<T> getUnprocessed(List<? extends T> facts, int requiredLevel,
+		Comparator<Fact> order) {
+
+		List<T> result = new ArrayList<T>();
+		for (T fact: facts) {
+			if ((fact.getMaxRev() == -1) && !fact.isProcessed(requiredLevel)) {
+				result.add(fact);
+			}
+		}
+		if (order != null) {
+			Collections.sort(result, order);
+		}
+		return result;
+	}
+
+	/** Count the facts in a list which existed at a given revision.
+	 * @param facts the facts to be counted
+	 * @param rev the revision
+	 * @return the number of facts
+	 */
+	private static long count(List<? extends TestFact> facts, long rev) {
+		long count = 0;
+		for (TestFact fact: facts) {
+			if (fact.existsAt(rev)) {
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	public Revision getRevision(final long rev) {
+		return new Revision() {
+			public long get() { return rev; }
+			public void await() {}
+			public void commit() { currentRev = Math.max(currentRev, rev); }
+		};
+	}
+
+	public Revision getCurrentRevision() { return getRevision(currentRev); }
+
+	public Revision getNextRevision() { return getRevision(currentRev + 1); }
+
+	public Lines getLines() {
+		return new Lines() {
+			public Line make(long minAddr, long maxAddr, String instruction) {
+				TestLine line = new TestLine(minAddr, maxAddr, instruction);
+				lineList.add(line);
+				return line;
+			}
+
+			public List<Line> getMembersOf(BasicBlock bb) {
+				List<Line> result = new ArrayList<Line>();
+				for (TestLine line: lineList) {
+					if (line.isCurrent() && (line.getMinAddr() >= bb.getMinAddr()) &&
+						(line.getMinAddr() <= bb.getMaxAddr())) {
+
+						result.add(line);
+					}
+				}
+				Collections.sort(result, BY_MIN_ADDR);
+				return result;
+			}
+
+			public List<Line> getChanges(long minRev, long maxRev, long minAddr, long maxAddr) {
+				List<Line> result = new ArrayList<Line>();
+				for (TestLine line: lineList) {
+					if (line.isCurrent() && (line.getMinRev() >= minRev) && (line.getMinRev() <= maxRev) &&
+						(line.getMinAddr() >= minAddr) && (line.getMaxAddr() <= maxAddr)) {
+
+						result.add(line);
+					}
+				}
+				Collections.sort(result, BY_MIN_ADDR);
+				return result;
+			}
+
+			public List<Line> getChanges(long minRev, long maxRev, AddressRangeSet ranges) {
+				throw new UnsupportedOperationException();
+			}
+
+			public List<Line> getUnprocessed(int requiredLevel) {
+				return TestDatabase.<Line>getUnprocessed(lineList, requiredLevel, BY_MIN_ADDR);
+			}
+
+			public Long findFirstAddr(long addr) {
+				Long first = null;
+				for (TestLine line: lineList) {
+					if (line.isCurrent() && (line.getMinAddr() >= addr) &&
+						((first == null) || (line.getMinAddr() < first))) {
+
+						first = line.getMinAddr();
+					}
+				}
+				return first;
+			}
+
+			public long count(long rev) {
+				return TestDatabase.count(lineList, rev);
+			}
+		};
+	}
+
+	public Comments getComments() {
+		return new Comments() {
+			public Comment make(long addr, boolean auto, String content) {
+				TestComment comment = new TestComment(addr, auto, content);
+				commentList.add(comment);
+				return comment;
+			}
+
+			public List<Comment> get(long addr) {
+				List<Comment> result = new ArrayList<Comment>();
+				for (TestComment comment: commentList) {
+					if (comment.isCurrent() && (comment.getAddr() == addr)) {
+						result.add(comment);
+					}
+				}
+				return result;
+			}
+		};
+	}
+
+	public References getReferences() {
+		return new References() {
+			public Reference make(long srcAddr, long dstAddr, boolean internal, boolean dataRef,
+				boolean codeRef, boolean subRef) {
+
+				TestReference reference = new TestReference(srcAddr, dstAddr, internal, dataRef, codeRef, subRef);
+				referenceList.add(reference);
+				return reference;
+			}
+
+			public List<Reference> getByDstAddr(long minAddr, long maxAddr) {
+				List<Reference> result = new ArrayList<Reference>();
+				for (TestReference reference: referenceList) {
+					if (reference.isCurrent() && (reference.getDstAddr() >= minAddr) &&
+						(reference.getDstAddr() <= maxAddr)) {
+
+						result.add(reference);
+					}
+				}
+				return result;
+			}
+
+			public List<Reference> getUnprocessed(int requiredLevel) {
+				return TestDatabase.<Reference>getUnprocessed(referenceList, requiredLevel, null);
+			}
+
+			public Long findNextDestination(long addr) {
+				Long next = null;
+				for (TestReference reference: referenceList) {
+					if (reference.isCurrent() && (reference.getDstAddr() > addr) &&
+						((next == null) || (reference.getDstAddr() < next))) {
+
+						next = reference.getDstAddr();
+					}
+				}
+				return next;
+			}
+		};
+	}
+
+	public BasicBlocks getBasicBlocks() {
+		return new BasicBlocks() {
+			public BasicBlock make(long minAddr, long maxAddr, boolean fallThrough) {
+				TestBasicBlock block = new TestBasicBlock(minAddr, maxAddr, fallThrough);
+				blockList.add(block);
+				return block;
+			}
+
+			public BasicBlock getContaining(long addr) {
+				BasicBlock found = null;
+				for (TestBasicBlock block: blockList) {
+					if (block.isCurrent() && (block.getMinAddr() <= addr) && (block.getMaxAddr() >= addr)) {
+						if (found != null) {
+							throw new IllegalStateException("multiple basic blocks found ending at the same start address");
+						}
+						found = block;
+					}
+				}
+				return found;
+			}
+
+			public BasicBlock getPrevious(long addr) {
+				BasicBlock found = null;
+				for (TestBasicBlock block: blockList) {
+					if (block.isCurrent() && (block.getMaxAddr() == addr - 1)) {
+						if (found != null) {
+							throw new IllegalStateException("multiple basic blocks found ending at the same end address");
+						}
+						found = block;
+					}
+				}
+				return found;
+			}
+
+			public List<BasicBlock> get() {
+				List<BasicBlock> result = new ArrayList<BasicBlock>();
+				for (TestBasicBlock block: blockList) {
+					if (block.isCurrent()) {
+						result.add(block);
+					}
+				}
+				Collections.sort(result, BY_MIN_ADDR);
+				return result;
+			}
+
+			public List<BasicBlock> getMembersOf(ExtendedBasicBlock ebb) {
+				List<BasicBlock> result = new ArrayList<BasicBlock>();
+				for (TestBasicBlock block: blockList) {
+					if (block.isCurrent() && (block.getExtendedBasicBlock() == ebb)) {
+						result.add(block);
+					}
+				}
+				Collections.sort(result, BY_MIN_ADDR);
+				return result;
+			}
+
+			public List<BasicBlock> getMembersOf(Subroutine sub) {
+				List<BasicBlock> result = new ArrayList<BasicBlock>();
+				for (TestBasicBlock block: blockList) {
+					if (block.isCurrent() && (block.getExtendedBasicBlock() != null) &&
+						(block.getSubroutine() == sub)) {
+
+						result.add(block);
+					}
+				}
+				return result;
+			}
+
+			public List<BasicBlock> getUnprocessed(int requiredLevel) {
+				return TestDatabase.<BasicBlock>getUnprocessed(blockList, requiredLevel, BY_MIN_ADDR);
+			}
+
+			public long count(long rev) {
+				return TestDatabase.count(blockList, rev);
+			}
+		};
+	}
+
+	public ExtendedBasicBlocks getExtendedBasicBlocks() {
+		return new ExtendedBasicBlocks() {
+			public ExtendedBasicBlock make(long entryAddr) {
+				TestExtendedBasicBlock ebb = new TestExtendedBasicBlock(entryAddr);
+				ebbList.add(ebb);
+				return ebb;
+			}
+
+			public List<ExtendedBasicBlock> get() {
+				List<ExtendedBasicBlock> result = new ArrayList<ExtendedBasicBlock>();
+				for (TestExtendedBasicBlock ebb: ebbList) {
+					if (ebb.isCurrent()) {
+						result.add(ebb);
+					}
+				}
+				Collections.sort(result, BY_ENTRY_ADDR);
+				return result;
+			}
+
+			public List<ExtendedBasicBlock> getMembersOf(Subroutine sub) {
+				List<ExtendedBasicBlock> result = new ArrayList<ExtendedBasicBlock>();
+				for (TestExtendedBasicBlock ebb: ebbList) {
+					if (ebb.isCurrent() && (ebb.getSubroutine() == sub)) {
+						result.add(ebb);
+					}
+				}
+				return result;
+			}
+
+			public List<ExtendedBasicBlock> getUnprocessed(int requiredLevel) {
+				return TestDatabase.<ExtendedBasicBlock>getUnprocessed(ebbList, requiredLevel, BY_ENTRY_ADDR);
+			}
+
+			public long count(long rev) {
+				return TestDatabase.count(ebbList, rev);
+			}
+		};
+	}
+
+	public Subroutines getSubroutines() {
+		return new Subroutines() {
+			public Subroutine make(long entryAddr) {
+				TestSubroutine subroutine = new TestSubroutine(entryAddr);
+				subroutineList.add(subroutine);
+				return subroutine;
+			}
+
+			public Subroutine getStarting(long entryAddr, long rev) {
+				for (TestSubroutine subroutine: subroutineList) {
+					if ((subroutine.getEntryAddr() == entryAddr) && subroutine.existsAt(rev)) {
+						return subroutine;
+					}
+				}
+				return null;
+			}
+
+			public List<Subroutine> get() {
+				List<Subroutine> result = new ArrayList<Subroutine>();
+				for (TestSubroutine subroutine: subroutineList) {
+					if (subroutine.isCurrent()) {
+						result.add(subroutine);
+					}
+				}
+				Collections.sort(result, BY_ENTRY_ADDR);
+				return result;
+			}
+
+			public Map<Long, Subroutine> getChanged(long minRev, long maxRev) {
+				Map<Long, Subroutine> result = new HashMap<Long, Subroutine>();
+				for (TestSubroutine subroutine: subroutineList) {
+					long subMinRev = subroutine.getMinRev();
+					long subMaxRev = subroutine.getMaxRev();
+					if (((subMinRev >= minRev) && (subMinRev <= maxRev)) ||
+						((subMaxRev >= minRev) && (subMaxRev <= maxRev))) {
+
+						boolean exists = (subMaxRev >= maxRev) || (subMaxRev == -1);
+						result.put(subroutine.getEntryAddr(), (exists) ? subroutine : null);
+					}
+				}
+				return result;
+			}
+
+			public long count(long rev) {
+				return TestDatabase.count(subroutineList, rev);
+			}
+		};
+	}
+
+	public SsaExpressions getSsaExpressions() {
+		return new SsaExpressions() {
+			public SsaExpression make(Subroutine subroutine, String name) {
+				TestSsaExpression expr = new TestSsaExpression(subroutine, name);
+				ssaExpressionList.add(expr);
+				return expr;
+			}
+
+			public SsaExpression get(Subroutine subroutine, String name) {
+				for (TestSsaExpression expr: ssaExpressionList) {
+					if ((expr.getSubroutine() == subroutine) && expr.getName().equals(name)) {
+						return expr;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	public SsaMappings getSsaMappings() {
+		return new SsaMappings() {
+			public SsaMapping make(long addr, boolean inbound, String name, SsaExpression value) {
+				TestSsaMapping mapping = new TestSsaMapping(addr, inbound, name, value);
+				ssaMappingList.add(mapping);
+				return mapping;
+			}
+
+			public List<SsaMapping> get(long addr) {
+				List<SsaMapping> result = new ArrayList<SsaMapping>();
+				for (TestSsaMapping mapping: ssaMappingList) {
+					if (mapping.isCurrent() && (mapping.getAddr() == addr)) {
+						result.add(mapping);
+					}
+				}
+				return result;
+			}
+		};
+	}
+}
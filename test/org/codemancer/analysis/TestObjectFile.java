@@ -0,0 +1,145 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.analysis;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Random;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+import org.codemancer.loader.ObjectFile;
+import org.codemancer.loader.Segment;
+import org.codemancer.loader.Symbol;
+
+/** An object file with one mapped segment, held in memory, for use in tests. */
+class TestObjectFile implements ObjectFile {
+	/** The offset within each subroutine of its second entry point. */
+	static final int MIDDLE_OFFSET = 0x10;
+
+	/** The size of each subroutine, in bytes. */
+	static final int SUBROUTINE_SIZE = 0x40;
+
+	/** The address of the segment. */
+	private final long address;
+
+	/** The content of the segment. */
+	private final byte[] content;
+
+	/** Construct test object file.
+	 * @param address the address of the segment
+	 * @param content the content of the segment
+	 */
+	TestObjectFile(long address, byte[] content) {
+		this.address = address;
+		this.content = content;
+	}
+
+	/** Make a Z80 program consisting of randomly generated subroutines.
+	 * Subroutine i is located at address i * SUBROUTINE_SIZE. Each one
+	 * loads and adds constants, conditionally skips instructions, and
+	 * conditionally jumps to other subroutines, either to their start or
+	 * to their second entry point (MIDDLE_OFFSET bytes from the start),
+	 * before returning. A jump to the second entry point of a subroutine
+	 * which has already been analysed requires its blocks to be reassigned.
+	 * @param seed the seed for the random number generator
+	 * @param subCount the number of subroutines
+	 * @return the object file
+	 */
+	static TestObjectFile makeZ80Program(long seed, int subCount) {
+		Random random = new Random(seed);
+		byte[] content = new byte[subCount * SUBROUTINE_SIZE];
+		for (int i = 0; i != subCount; ++i) {
+			int base = i * SUBROUTINE_SIZE;
+			int end = emit(random, content, base, base + MIDDLE_OFFSET, subCount);
+			while (end != base + MIDDLE_OFFSET) {
+				content[end++] = 0x00;
+			}
+			end = emit(random, content, end, base + SUBROUTINE_SIZE - 1, subCount);
+			content[end] = (byte)0xc9;
+		}
+		return new TestObjectFile(0, content);
+	}
+
+	/** Emit a random sequence of Z80 instructions.
+	 * @param random the random number generator
+	 * @param content the array into which the instructions are written
+	 * @param addr the address of the first instruction
+	 * @param limit the address which the instructions must not reach
+	 * @param subCount the number of subroutines to which jumps may be made
+	 * @return the address following the last instruction
+	 */
+	private static int emit(Random random, byte[] content, int addr, int limit, int subCount) {
+		int count = 1 + random.nextInt(5);
+		for (int i = 0; (i != count) && (addr + 3 <= limit); ++i) {
+			switch (random.nextInt(5)) {
+			case 0:
+				// LD A,n
+				content[addr++] = 0x3e;
+				content[addr++] = (byte)random.nextInt(256);
+				break;
+			case 1:
+				// ADD A,n
+				content[addr++] = (byte)0xc6;
+				content[addr++] = (byte)random.nextInt(256);
+				break;
+			case 2:
+				// JR NZ,$+3; INC A
+				content[addr++] = 0x20;
+				content[addr++] = 0x01;
+				content[addr++] = 0x3c;
+				break;
+			default:
+				// JP NZ,nn, to the start or the second entry point of a subroutine
+				int dstAddr = random.nextInt(subCount) * SUBROUTINE_SIZE;
+				if (random.nextBoolean()) {
+					dstAddr += MIDDLE_OFFSET;
+				}
+				content[addr++] = (byte)0xc2;
+				content[addr++] = (byte)dstAddr;
+				content[addr++] = (byte)(dstAddr >> 8);
+				break;
+			}
+		}
+		return addr;
+	}
+
+	public List<Symbol> getSymbols() {
+		return new ArrayList<Symbol>();
+	}
+
+	public NavigableMap<Long, Segment> getAddressMap() {
+		TreeMap<Long, Segment> map = new TreeMap<Long, Segment>();
+		map.put(address, new Segment() {
+			public String getName() {
+				return "test";
+			}
+
+			public long getAddress() {
+				return address;
+			}
+
+			public long getSize() {
+				return content.length;
+			}
+
+			public boolean isMapped() {
+				return true;
+			}
+
+			public ByteBuffer getContent() {
+				return ByteBuffer.wrap(content);
+			}
+
+			public void dump(PrintWriter out) {}
+		});
+		return map;
+	}
+
+	public void dump(PrintWriter out) {}
+}
@@ -107,6 +107,19 @@ public class BitStringReaderTest {
 		assertEquals(0, bits.peek(0));
 	}
 
+	@Test
+	public void testPeekBeyondEnd() {
+		BitString sub = new LongBitString(longContent, 256).substring(60, 72);
+		BitReader bits = new BitStringReader(sub);
+		bits.seek(4);
+		assertEquals(0x44, bits.peek(0, 8));
+		assertEquals(0x44, bits.peek(0, 16));
+		assertEquals(0x04, bits.peek(4, 8));
+		assertEquals(0, bits.peek(8, 8));
+		assertEquals(1, bits.peek(6));
+		assertEquals(0, bits.peek(8));
+	}
+
 	@Test
 	public void testSeek() {
 		BitReader bits = new BitStringReader(new LongBitString(longContent, 256));
@@ -0,0 +1,104 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.codemancer.cpudl.ShortBitString;
+import org.codemancer.cpudl.BitStringReader;
+import org.codemancer.cpudl.ByteBufferReader;
+
+public class ByteBufferReaderTest {
+	private final byte[] content = {
+		(byte)0x24, (byte)0x3F, (byte)0x6A, (byte)0x88,
+		(byte)0x85, (byte)0xA3, (byte)0x08, (byte)0xD3,
+		(byte)0x13, (byte)0x19, (byte)0x8A, (byte)0x2E,
+		(byte)0x03, (byte)0x70, (byte)0x73, (byte)0x44,
+		(byte)0xA4, (byte)0x09, (byte)0x38, (byte)0x22,
+		(byte)0x29, (byte)0x9F, (byte)0x31, (byte)0xD0};
+
+	private BitReader makeReference(boolean bigEndian) {
+		BitString bits = new ShortBitString();
+		for (int i = 0; i != content.length; ++i) {
+			bits = bits.concat(new ShortBitString(content[i], 8, bigEndian));
+		}
+		return new BitStringReader(bits);
+	}
+
+	private void checkRead(boolean bigEndian, ByteOrder order) {
+		long size = content.length * 8;
+		for (int count = 1; count <= 160; ++count) {
+			for (long start = 0; start < size; start += 3) {
+				BitReader expected = makeReference(bigEndian);
+				BitReader actual = new ByteBufferReader(
+					ByteBuffer.wrap(content).order(order), bigEndian);
+				expected.seek(start);
+				actual.seek(start);
+				assertEquals(expected.read(count), actual.read(count));
+				assertEquals(expected.tell(), actual.tell());
+			}
+		}
+	}
+
+	@Test
+	public void testReadBigEndian() {
+		checkRead(true, ByteOrder.BIG_ENDIAN);
+		checkRead(true, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void testReadLittleEndian() {
+		checkRead(false, ByteOrder.BIG_ENDIAN);
+		checkRead(false, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void testReadBeyondEnd() {
+		BitReader bits = new ByteBufferReader(ByteBuffer.wrap(content, 0, 6).slice(), false);
+		bits.read(40);
+		assertEquals(new ShortBitString(0xA3, 8, false), bits.read(16));
+		assertEquals(48, bits.tell());
+	}
+
+	@Test
+	public void testPeek() {
+		for (int e = 0; e != 2; ++e) {
+			boolean bigEndian = (e != 0);
+			BitReader expected = makeReference(bigEndian);
+			BitReader actual = new ByteBufferReader(ByteBuffer.wrap(content), bigEndian);
+			int size = content.length * 8;
+			for (int i = 0; i != size; ++i) {
+				for (int j = 0; (j != 16) && (i + j < size); ++j) {
+					assertEquals(expected.peek(j), actual.peek(j));
+				}
+				expected.read(1);
+				actual.read(1);
+			}
+			assertEquals(0, actual.peek(0));
+		}
+	}
+
+	@Test
+	public void testPeekMultiple() {
+		for (int e = 0; e != 2; ++e) {
+			boolean bigEndian = (e != 0);
+			BitReader expected = makeReference(bigEndian);
+			BitReader actual = new ByteBufferReader(ByteBuffer.wrap(content), bigEndian);
+			int size = content.length * 8;
+			for (int i = 0; i != size; ++i) {
+				for (int count = 0; count <= 57; ++count) {
+					assertEquals(expected.peek(0, count), actual.peek(0, count));
+				}
+				expected.read(1);
+				actual.read(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import org.codemancer.cpudl.type.Type;
+import org.codemancer.cpudl.expr.Expression;
+import org.codemancer.cpudl.expr.Constant;
+import org.codemancer.cpudl.expr.Prefix;
+
+/** A stress test for decoding with one architecture from many threads at once.
+ * Each thread decodes the whole of a CPU test corpus, starting at a
+ * different point, using the start type, the specialised start type and
+ * the decode cache of a single newly-constructed architecture. The
+ * results must match those expected by the corpus.
+ */
+public class ConcurrentDecodeTest {
+	/** The number of threads to decode with. */
+	private static final int THREAD_COUNT = 8;
+
+	/** A class to represent one line of a test corpus. */
+	private static class Case {
+		/** The line, for use in failure messages. */
+		final String line;
+
+		/** The machine code, followed by padding. */
+		final BitString code;
+
+		/** The address of the instruction. */
+		final long pc;
+
+		/** The expected disassembly, or null if the code should not decode. */
+		final String expected;
+
+		Case(String line, BitString code, long pc, String expected) {
+			this.line = line;
+			this.code = code;
+			this.pc = pc;
+			this.expected = expected;
+		}
+	}
+
+	private static int parseHexValue(char c) {
+		return Character.digit(c, 16);
+	}
+
+	/** Read the cases from a test corpus.
+	 * @param arch the architecture to which the corpus refers
+	 * @param pathname the pathname of the corpus
+	 * @return the cases
+	 */
+	private static List<Case> readCases(Architecture arch, String pathname) throws Exception {
+		List<Case> cases = new ArrayList<Case>();
+		int pieceCount = arch.getStart().getPieceCount();
+		int width = 8;
+		long pc = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(pathname));
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			if (line.length() == 0) continue;
+			switch (line.charAt(0)) {
+			case ';':
+			case '!':
+				continue;
+			case '+':
+				width = Integer.parseInt(line.substring(1, line.length()));
+				continue;
+			case '@':
+				pc = Long.parseLong(line.substring(1, line.length()), 16);
+				continue;
+			}
+
+			String text = line;
+			int f = text.indexOf("\t?");
+			if (f != -1) {
+				text = text.substring(0, f);
+			}
+			String[] fields = text.split("\t");
+
+			BitString code = new ShortBitString();
+			int mask = (arch.isBigEndian()) ? 0 : ((width >> 2) - 1);
+			for (int i = 0; i < fields[0].length(); ++i) {
+				int v = parseHexValue(fields[0].charAt(i ^ mask));
+				code = code.concat(new ShortBitString(v, 4, arch.isBigEndian()));
+			}
+			code = code.concat(new ShortBitString(0, 64, false));
+			code = code.concat(new ShortBitString(0, 64, false));
+
+			String expected = null;
+			if (fields.length > 1) {
+				StringBuilder out = new StringBuilder();
+				for (int i = 0; i != pieceCount; ++i) {
+					if (i != 0) out.append('\t');
+					if (i + 1 < fields.length) out.append(fields[i + 1]);
+				}
+				expected = out.toString();
+			}
+			cases.add(new Case(line, code, pc, expected));
+		}
+		reader.close();
+		return cases;
+	}
+
+	/** Disassemble an expression returned by decoding.
+	 * @param start the start type used to decode the expression
+	 * @param expr the expression
+	 * @param pc the address of the instruction
+	 * @param length the length of the instruction, in bits
+	 * @return the disassembly, or null if the expression is not an instruction
+	 */
+	private static String disassemble(Type start, Expression expr, long pc, long length) {
+		if ((expr == null) || (expr instanceof Prefix)) {
+			return null;
+		}
+		Map<String, Expression> registers = new HashMap<String, Expression>();
+		registers.put("PC", new Constant(null, pc));
+		registers.put("PC+", new Constant(null, pc + (length / 8)));
+		expr = expr.resolveReferences(null, null).resolveRegisters(registers).simplify();
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i != start.getPieceCount(); ++i) {
+			if (i != 0) out.append('\t');
+			out.append(start.unparse(i, expr));
+		}
+		return out.toString();
+	}
+
+	/** Decode one case in each of the available ways.
+	 * @param arch the architecture
+	 * @param cpuName the name of the CPU
+	 * @param c the case to be decoded
+	 * @param failures a list to which any failures are to be added
+	 */
+	private static void decode(Architecture arch, String cpuName, Case c, List<String> failures) {
+		FeatureSet features = arch.getFeatureSet(cpuName);
+		List<BitReader> readers = new ArrayList<BitReader>();
+		for (int way = 0; way != 3; ++way) {
+			BitReader reader = new BitStringReader(c.code);
+			readers.clear();
+			readers.add(reader);
+			Type start = (way == 1) ? arch.getStart(cpuName) : arch.getStart();
+			Expression expr = (way == 2) ?
+				arch.getDecodeCache().decode(readers, features) :
+				start.decode(readers, features);
+			String actual = disassemble(start, expr, c.pc, reader.tell());
+			boolean match = (c.expected == null) ? (actual == null) : c.expected.equals(actual);
+			if (!match) {
+				failures.add(cpuName + "(" + way + "): " + c.line + " -> " + actual);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentDecode() throws Exception {
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		File[] testFiles = new File("testdata/cpus").listFiles();
+		for (File testFile: testFiles) {
+			String fileName = testFile.getName();
+			if (!fileName.endsWith(".test")) continue;
+			final String cpuName = fileName.substring(0, fileName.length() - 5);
+			final Architecture arch = Architecture.makeArchitecture(cpuName);
+			final List<Case> cases = readCases(arch, testFile.getPath());
+
+			// Hold every thread at the starting line until all have been
+			// created, so that they all begin with the architecture in its
+			// newly-constructed state.
+			final CountDownLatch ready = new CountDownLatch(1);
+			Thread[] threads = new Thread[THREAD_COUNT];
+			for (int t = 0; t != THREAD_COUNT; ++t) {
+				final int offset = t * cases.size() / THREAD_COUNT;
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							ready.await();
+							for (int i = 0; i != cases.size(); ++i) {
+								decode(arch, cpuName, cases.get((offset + i) % cases.size()), failures);
+							}
+						} catch (Throwable ex) {
+							failures.add(cpuName + ": " + ex);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			ready.countDown();
+			for (Thread thread: threads) {
+				thread.join();
+			}
+		}
+		assertEquals(new ArrayList<String>(), new ArrayList<String>(failures));
+	}
+}
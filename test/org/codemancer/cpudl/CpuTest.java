@@ -39,6 +39,7 @@ import org.codemancer.cpudl.expr.Prefix;
 @RunWith(Parameterized.class)
 public class CpuTest {
 	Architecture arch;
+	Architecture compiledArch;
 	String cpuName;
 	Type start;
 	BitString code;
@@ -82,8 +83,9 @@ public class CpuTest {
 		return new Constant(null, Long.parseLong(s, 16));
 	}
 
-	public CpuTest(Architecture arch, String cpuName, String line, String setup, Long pc, Integer width) throws Exception {
+	public CpuTest(Architecture arch, Architecture compiledArch, String cpuName, String line, String setup, Long pc, Integer width) throws Exception {
 		this.arch = arch;
+		this.compiledArch = compiledArch;
 		this.cpuName = cpuName;
 		this.start = arch.getStart();
 
@@ -167,6 +169,58 @@ public class CpuTest {
 		}
 	}
 
+	@Test
+	public void compiledDecode() throws Exception {
+		BitReader reader = new BitStringReader(code);
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+		Expression expr = start.decode(readers, arch.getFeatureSet(cpuName));
+
+		Type compiledStart = compiledArch.getStart();
+		BitReader compiledReader = new BitStringReader(code);
+		List<BitReader> compiledReaders = new ArrayList<BitReader>();
+		compiledReaders.add(compiledReader);
+		Expression compiledExpr = compiledStart.decode(compiledReaders, compiledArch.getFeatureSet(cpuName));
+
+		assertEquals(expr == null, compiledExpr == null);
+		if (expr == null) return;
+		assertEquals(reader.tell(), compiledReader.tell());
+		assertEquals(expr instanceof Prefix, compiledExpr instanceof Prefix);
+		if (expr instanceof Prefix) return;
+
+		expr = expr.resolveReferences(null, null);
+		compiledExpr = compiledExpr.resolveReferences(null, null);
+		for (int i = 0; i != start.getPieceCount(); ++i) {
+			assertEquals(start.unparse(i, expr), compiledStart.unparse(i, compiledExpr));
+		}
+	}
+
+	@Test
+	public void specialisedDecode() throws Exception {
+		BitReader reader = new BitStringReader(code);
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+		Expression expr = start.decode(readers, arch.getFeatureSet(cpuName));
+
+		Type specialisedStart = arch.getStart(cpuName);
+		BitReader specialisedReader = new BitStringReader(code);
+		List<BitReader> specialisedReaders = new ArrayList<BitReader>();
+		specialisedReaders.add(specialisedReader);
+		Expression specialisedExpr = specialisedStart.decode(specialisedReaders, arch.getFeatureSet(cpuName));
+
+		assertEquals(expr == null, specialisedExpr == null);
+		if (expr == null) return;
+		assertEquals(reader.tell(), specialisedReader.tell());
+		assertEquals(expr instanceof Prefix, specialisedExpr instanceof Prefix);
+		if (expr instanceof Prefix) return;
+
+		expr = expr.resolveReferences(null, null);
+		specialisedExpr = specialisedExpr.resolveReferences(null, null);
+		for (int i = 0; i != start.getPieceCount(); ++i) {
+			assertEquals(start.unparse(i, expr), specialisedStart.unparse(i, specialisedExpr));
+		}
+	}
+
 	@Parameters
 	public static Collection<Object[]> getParameters() throws Exception {
 		Collection<Object[]> params = new ArrayList<Object[]>();
@@ -180,6 +234,7 @@ public class CpuTest {
 			if (fileName.endsWith(".test")) {
 				String cpuName = fileName.substring(0, fileName.length() - 5);
 				Architecture arch = Architecture.makeArchitecture(cpuName);
+				Architecture compiledArch = Architecture.makeArchitecture(cpuName, true);
 				String testDataPath = "testdata/cpus/" + cpuName + ".test";
 				BufferedReader reader = new BufferedReader(new FileReader(testDataPath));
 				String line = null;
@@ -201,7 +256,7 @@ public class CpuTest {
 						pc = Long.parseLong(line.substring(1, line.length()), 16);
 						continue;
 					default:
-						params.add(new Object[] {arch, cpuName, line, setup, pc, width});
+						params.add(new Object[] {arch, compiledArch, cpuName, line, setup, pc, width});
 					}
 				}
 			}
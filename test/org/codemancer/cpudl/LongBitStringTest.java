@@ -159,6 +159,9 @@ public class LongBitStringTest {
 		assertEquals(new LongBitString(content, 1).hashCode(), new LongBitString(content, 1).hashCode());
 		assertEquals(new LongBitString(content, 64).hashCode(), new LongBitString(content, 64).hashCode());
 		assertEquals(new LongBitString(content, 256).hashCode(), new LongBitString(content, 256).hashCode());
+		assertEquals(new LongBitString(content, 60).hashCode(), new ShortBitString(content[0], 60, false).hashCode());
+		long[] swappedContent = {(content[0] >>> 32) | (content[0] << 32)};
+		assertFalse(new LongBitString(content, 64).hashCode() == new LongBitString(swappedContent, 64).hashCode());
 	}
 
 	@Test
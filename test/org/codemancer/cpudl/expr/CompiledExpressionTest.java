@@ -0,0 +1,110 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import org.codemancer.cpudl.type.IntegerType;
+
+public class CompiledExpressionTest {
+	private static final IntegerType u8 = new IntegerType(8, IntegerType.UNSIGNED, false, null);
+
+	private static final IntegerType u16 = new IntegerType(16, IntegerType.UNSIGNED, false, null);
+
+	/** Check that a compiled expression agrees with symbolic simplification.
+	 * @param expr the expression
+	 * @param frag the fragment against which references are resolved
+	 */
+	private static void check(Expression expr, Fragment frag) {
+		CompiledExpression compiled = CompiledExpression.compile(expr);
+		assertTrue(compiled != null);
+		assertTrue(compiled.canEvaluate(frag));
+		Expression expected = expr.resolveReferences(frag, null).simplify();
+		assertTrue(expected instanceof Constant);
+		assertEquals(((Constant)expected).getValue(), compiled.evaluate(frag));
+	}
+
+	/** Make a fragment with members a (8 bits) and b (16 bits).
+	 * @param a the value of a
+	 * @param b the value of b
+	 * @return the fragment
+	 */
+	private static Fragment makeFragment(long a, long b) {
+		Fragment frag = new Fragment(null, new String[] {"a", "b"});
+		frag.put("a", new Constant(u8, a));
+		frag.put("b", new Constant(u16, b));
+		return frag;
+	}
+
+	@Test
+	public void testSum() {
+		Reference a = new Reference(null, "a", null);
+		Reference b = new Reference(null, "b", null);
+		Expression sum = new Subtraction(u16, new Addition(u16, a, new Constant(null, 0x80)), b);
+		Expression product = new Multiplication(u16, new Constant(null, 3), a);
+		for (long av = 0; av < 0x100; av += 0x33) {
+			for (long bv = 0; bv < 0x10000; bv += 0x1357) {
+				Fragment frag = makeFragment(av, bv);
+				check(sum, frag);
+				check(new Addition(u16, b, sum), frag);
+				check(product, frag);
+				check(new IsEqual(sum, new Constant(null, 0)), frag);
+				check(new IsLess(b, a), frag);
+			}
+		}
+	}
+
+	@Test
+	public void testBitwise() {
+		Reference a = new Reference(null, "a", null);
+		Reference b = new Reference(null, "b", null);
+		for (long av = 0; av < 0x100; av += 0x11) {
+			for (long bv = 0; bv < 0x10000; bv += 0x1111) {
+				Fragment frag = makeFragment(av, bv);
+				check(new BitwiseAnd(u16, a, b), frag);
+				check(new BitwiseOr(u16, a, b), frag);
+				check(new BitwiseXor(u16, a, b), frag);
+				check(new Shift(u8, 8, Shift.LOGICAL, a, new Constant(null, 3)), frag);
+				check(new Shift(u8, 8, Shift.LOGICAL, a, new Constant(null, -3)), frag);
+				check(new Shift(u8, 8, Shift.ROTATION, a, new Constant(null, 5)), frag);
+				check(new Slice(b, 4, 8, 0), frag);
+				check(new Addition(u8, new Slice(b, 8, 8, 0), a), frag);
+			}
+		}
+	}
+
+	@Test
+	public void testConstant() {
+		Fragment frag = makeFragment(0x12, 0x3456);
+		CompiledExpression compiled = CompiledExpression.compile(new Reference(null, "a", null));
+		assertSame(frag.get("a"), compiled.getConstant(frag));
+		compiled = CompiledExpression.compile(new Addition(u16, new Reference(null, "b", null), new Constant(null, 1)));
+		Constant value = compiled.getConstant(frag);
+		assertEquals(0x3457, value.getValue());
+		assertSame(u16, value.getType());
+	}
+
+	@Test
+	public void testNotCompilable() {
+		Register pc = new Register(u16, "pc");
+		assertNull(CompiledExpression.compile(new Addition(u16, pc, new Reference(null, "a", null))));
+		assertNull(CompiledExpression.compile(new Reference(null, "a.b", null)));
+	}
+
+	@Test
+	public void testMissingMember() {
+		Fragment frag = new Fragment(null, new String[] {"a", "b"});
+		frag.put("a", new Constant(u8, 1));
+		CompiledExpression compiled = CompiledExpression.compile(
+			new Addition(u16, new Reference(null, "a", null), new Reference(null, "b", null)));
+		assertFalse(compiled.canEvaluate(frag));
+	}
+}
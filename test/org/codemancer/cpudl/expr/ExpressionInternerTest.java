@@ -0,0 +1,74 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import org.codemancer.cpudl.type.IntegerType;
+
+public class ExpressionInternerTest {
+	private static final IntegerType u16 = new IntegerType(16, IntegerType.UNSIGNED, false, null);
+
+	/** Make an expression which refers to a register and memory.
+	 * Each call constructs a new, structurally equal instance.
+	 * @param offset a constant offset
+	 * @return the expression
+	 */
+	private static Expression make(long offset) {
+		Register hl = new Register(u16, "hl");
+		return new Addition(u16, new Memory(u16, hl), new Constant(u16, offset));
+	}
+
+	@Test
+	public void testEquality() {
+		Expression a = make(1);
+		Expression b = make(1);
+		assertNotSame(a, b);
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertFalse(a.equals(make(2)));
+		assertFalse(new Constant(u16, 1).equals(new Constant(null, 1)));
+		assertFalse(new Addition(u16, new Constant(u16, 1), new Constant(u16, 2)).equals(
+			new Subtraction(u16, new Constant(u16, 1), new Constant(u16, 2))));
+		assertFalse(new Shift(u16, 16, Shift.LOGICAL, a, b).equals(
+			new Shift(u16, 16, Shift.ROTATION, a, b)));
+	}
+
+	@Test
+	public void testIntern() {
+		ExpressionInterner interner = new ExpressionInterner();
+		Expression a = interner.intern(make(1));
+		Expression b = interner.intern(make(1));
+		assertSame(a, b);
+
+		// Subexpressions are shared with other interned expressions.
+		Expression c = interner.intern(make(2));
+		assertNotSame(a, c);
+		assertSame(((BinaryExpression)a).getLhs(), ((BinaryExpression)c).getLhs());
+	}
+
+	@Test
+	public void testFragment() {
+		ExpressionInterner interner = new ExpressionInterner();
+		Fragment frag = new Fragment(null, new String[] {"a"});
+		assertSame(frag, interner.intern(frag));
+		assertFalse(frag.equals(new Fragment(null, new String[] {"a"})));
+		assertEquals(0, interner.size());
+	}
+
+	@Test
+	public void testAccumulate() {
+		// Structurally equal terms cancel even if they are distinct instances.
+		Expression diff = new Subtraction(u16, make(3), make(1)).simplify();
+		assertTrue(diff instanceof Constant);
+		assertEquals(2, ((Constant)diff).getValue());
+	}
+}
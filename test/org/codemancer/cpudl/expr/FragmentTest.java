@@ -0,0 +1,58 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.HashMap;
+
+public class FragmentTest {
+	@Test
+	public void testMembers() {
+		Fragment frag = new Fragment(null, new String[] {"a", "b"});
+		assertNull(frag.get("a"));
+		frag.put("b", new Constant(null, 2));
+		frag.put("c", new Constant(null, 3));
+		assertNull(frag.get("a"));
+		assertEquals(2, ((Constant)frag.get("b")).getValue());
+		assertEquals(3, ((Constant)frag.get("c")).getValue());
+		assertNull(frag.get("d"));
+
+		// Adding an unlisted member must not affect other fragments sharing the same names.
+		Fragment other = new Fragment(null, new String[] {"a", "b"});
+		other.put("d", new Constant(null, 4));
+		assertNull(frag.get("d"));
+	}
+
+	@Test
+	public void testDeferredEffect() {
+		Fragment frag = new Fragment(null, new String[] {"x"});
+		frag.put("x", new Constant(null, 5));
+		frag.setEffect(new Reference(null, "x", null));
+
+		Map<String, Expression> registers = new HashMap<String, Expression>();
+		Fragment resolved = (Fragment)frag.resolveReferences(null, null);
+		resolved = (Fragment)resolved.resolveRegisters(registers).simplify();
+		assertEquals(5, ((Constant)resolved.get("x")).getValue());
+		assertTrue(resolved.getEffect() instanceof Constant);
+		assertEquals(5, ((Constant)resolved.getEffect()).getValue());
+
+		// The source fragment is not altered by materialisation.
+		assertTrue(frag.getEffect() instanceof Reference);
+	}
+
+	@Test
+	public void testNoEffect() {
+		Fragment frag = new Fragment(null, new String[] {"x"});
+		frag.put("x", new Constant(null, 5));
+		Fragment resolved = (Fragment)frag.resolveReferences(null, null).simplify();
+		assertNull(resolved.getEffect());
+	}
+}
@@ -0,0 +1,79 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import org.codemancer.cpudl.type.IntegerType;
+
+public class SimplifyTest {
+	private static final IntegerType u16 = new IntegerType(16, IntegerType.UNSIGNED, false, null);
+
+	@Test
+	public void testMemo() {
+		Register hl = new Register(u16, "hl");
+		Expression expr = new Addition(u16, new Addition(u16, hl, new Constant(u16, 1)), new Constant(u16, 2));
+		assertFalse(expr.isSimplified());
+		Expression simple = expr.simplify();
+		assertTrue(simple.isSimplified());
+		assertSame(simple, expr.simplify());
+		assertSame(simple, simple.simplify());
+		assertEquals(new Addition(u16, hl, new Constant(u16, 3)), simple);
+	}
+
+	@Test
+	public void testSubtree() {
+		// A subtree which has already been simplified is used as it is.
+		Register hl = new Register(u16, "hl");
+		Expression inner = new Memory(u16, new Addition(u16, hl, new Constant(u16, 0))).simplify();
+		Expression outer = new Subtraction(u16, inner, new Constant(u16, 1)).simplify();
+		assertSame(inner, ((BinaryExpression)outer).getLhs());
+	}
+
+	@Test
+	public void testResolve() {
+		// Resolving is equivalent to resolving references and registers then simplifying.
+		Map<String, Expression> registers = new HashMap<String, Expression>();
+		registers.put("PC", new Constant(u16, 0x100));
+		Register pc = new Register(u16, "PC");
+		Register hl = new Register(u16, "hl");
+		Expression expr = new Assignment(hl,
+			new Addition(u16, new Addition(u16, pc, new Constant(u16, 2)), new Constant(u16, 3)));
+		Expression expected = expr.resolveReferences(null, null).resolveRegisters(registers).simplify();
+		assertEquals(expected, expr.resolve(null, null, registers));
+
+		// Subtrees which are unchanged by substitution are shared.
+		Expression mem = new Memory(u16, hl).simplify();
+		Expression resolved = new Addition(u16, mem, pc).resolve(null, null, registers);
+		assertSame(mem, ((BinaryExpression)resolved).getLhs());
+		assertTrue(resolved.isSimplified());
+	}
+
+	@Test
+	public void testResolveFragment() {
+		// Registers are applied once to members which are referred to by the effect.
+		Map<String, Expression> registers = new HashMap<String, Expression>();
+		registers.put("PC", new Addition(u16, new Register(u16, "PC"), new Constant(u16, 1)));
+		Register pc = new Register(u16, "PC");
+		Register hl = new Register(u16, "hl");
+		Fragment frag = new Fragment(null, new String[] {"dst"});
+		frag.put("dst", new Addition(u16, pc, new Constant(u16, 4)));
+		frag.setEffect(new Assignment(hl, new Reference(u16, "dst", null)));
+
+		Fragment expected = (Fragment)frag.resolveReferences(null, null).resolveRegisters(registers).simplify();
+		Fragment resolved = (Fragment)frag.resolve(null, null, registers);
+		assertTrue(resolved.isSimplified());
+		assertEquals(expected.get("dst"), resolved.get("dst"));
+		assertEquals(expected.getEffect(), resolved.getEffect());
+	}
+}
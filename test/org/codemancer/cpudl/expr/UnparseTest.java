@@ -0,0 +1,36 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.expr;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import org.codemancer.cpudl.Style;
+import org.codemancer.cpudl.type.IntegerType;
+
+public class UnparseTest {
+	private static final IntegerType u16 = new IntegerType(16, IntegerType.UNSIGNED, false, null);
+
+	@Test
+	public void testAppend() {
+		Style style = new Style();
+		Expression expr = new Addition(u16,
+			new Memory(u16, new Register(u16, "hl")),
+			new Slice(new Constant(null, -42), 0, 8, 4));
+		StringBuilder out = new StringBuilder("x=");
+		expr.unparse(out, style);
+		assertEquals("x=[hl]+-42[0:8:4]", out.toString());
+		assertEquals("[hl]+-42[0:8:4]", expr.unparse(style));
+	}
+
+	@Test
+	public void testFragment() {
+		Fragment frag = new Fragment(null, new String[] {"a", "b", "c"});
+		frag.put("a", new Constant(null, 1));
+		frag.put("c", new Constant(null, 3));
+		assertEquals("{a:1;c:3}", frag.unparse(new Style()));
+	}
+}
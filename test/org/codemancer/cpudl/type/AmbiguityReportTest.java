@@ -0,0 +1,61 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+import org.codemancer.cpudl.Architecture;
+
+public class AmbiguityReportTest {
+	/** Check that every leaf of a decoder trie lists its candidates by descending priority.
+	 * @param node the root of the trie
+	 */
+	private static void checkLeafOrder(Decoder node) {
+		for (int i = 1; i < node.types.size(); ++i) {
+			assertTrue(node.types.get(i - 1).priority >= node.types.get(i).priority);
+		}
+		for (Decoder branch: node.branches) {
+			if (branch != null) {
+				checkLeafOrder(branch);
+			}
+		}
+	}
+
+	@Test
+	public void testLeafOrder() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("x86");
+		checkLeafOrder(((Choice)arch.getStart()).decoder);
+	}
+
+	@Test
+	public void testPairs() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Choice start = (Choice)arch.getStart();
+		AmbiguityReport report = new AmbiguityReport(start);
+		assertFalse(report.getPairs().isEmpty());
+		for (Choice.TypeInfo[] pair: report.getPairs()) {
+			assertEquals(pair[0].priority, pair[1].priority);
+			assertTrue(start.infos.indexOf(pair[0]) < start.infos.indexOf(pair[1]));
+
+			// No fixed bit may distinguish the pair.
+			String lhs = AmbiguityReport.describe(pair[0].type);
+			String rhs = AmbiguityReport.describe(pair[1].type);
+			for (int i = 0; (i < lhs.length()) && (i < rhs.length()); ++i) {
+				char lhsBit = lhs.charAt(i);
+				char rhsBit = rhs.charAt(i);
+				assertFalse((lhsBit == '0') && (rhsBit == '1'));
+				assertFalse((lhsBit == '1') && (rhsBit == '0'));
+			}
+		}
+
+		for (Choice.TypeInfo info: start.infos) {
+			assertTrue(new AmbiguityReport(info.type).getPairs().isEmpty() || (info.type instanceof Choice));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+
+public class DecodeAllocationTest {
+	private final byte[] content = {
+		(byte)0x00, (byte)0x3E, (byte)0x12, (byte)0xCB,
+		(byte)0x00, (byte)0xDD, (byte)0x21, (byte)0x34,
+		(byte)0x12, (byte)0xC9};
+
+	/** The maximum number of bytes which may be allocated per instruction decoded.
+	 * This allows for the result, but not for per-decode scratch structures. */
+	private final long maxBytesPerInstruction = 1024;
+
+	/** Decode the content repeatedly.
+	 * @param start the type to decode
+	 * @param features the features enabled at the time of decoding
+	 * @param readers the readers from which to decode
+	 * @param repeats the number of times to decode the whole content
+	 * @return the number of instructions decoded
+	 */
+	private long decodeAll(Type start, FeatureSet features, List<BitReader> readers, int repeats) {
+		BitReader reader = readers.get(0);
+		long count = 0;
+		for (int i = 0; i != repeats; ++i) {
+			reader.seek(0);
+			while (reader.tell() != content.length * 8) {
+				assertTrue(start.decode(readers, features) != null);
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	/** Get the number of bytes allocated by the current thread.
+	 * @return the number of bytes, or -1 if this cannot be measured
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+		if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void testBytesPerInstruction() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Type start = arch.getStart();
+		FeatureSet features = new FeatureSet(arch);
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+
+		// Warm up, so that the scratch structures held by the decode context
+		// have reached their working size.
+		decodeAll(start, features, readers, 1000);
+
+		long before = allocatedBytes();
+		long count = decodeAll(start, features, readers, 1000);
+		long after = allocatedBytes();
+		assumeTrue("per-thread allocation cannot be measured", (before >= 0) && (after >= 0));
+		long bytesPerInstruction = (after - before) / count;
+		assertTrue("allocated " + bytesPerInstruction + " bytes per instruction",
+			bytesPerInstruction <= maxBytesPerInstruction);
+	}
+}
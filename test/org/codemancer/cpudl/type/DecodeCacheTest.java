@@ -0,0 +1,108 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+public class DecodeCacheTest {
+	private final byte[] content = {
+		(byte)0x00, (byte)0x3E, (byte)0x12, (byte)0x3E,
+		(byte)0x12, (byte)0x3E, (byte)0x34, (byte)0xCB,
+		(byte)0x30, (byte)0xCB, (byte)0x30, (byte)0x00};
+
+	private Expression decode(DecodeCache cache, BitReader reader, FeatureSet features) {
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+		return cache.decode(readers, features);
+	}
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		FeatureSet features = new FeatureSet(arch);
+		DecodeCache cache = new DecodeCache(arch.getStart(), 16);
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+
+		// NOP, then the same LD A,n twice, then a different LD A,n.
+		assertTrue(decode(cache, reader, features) != null);
+		assertEquals(8, reader.tell());
+		Expression first = decode(cache, reader, features);
+		assertEquals(24, reader.tell());
+		Expression second = decode(cache, reader, features);
+		assertEquals(40, reader.tell());
+		assertTrue(first == second);
+		Expression third = decode(cache, reader, features);
+		assertEquals(56, reader.tell());
+		assertTrue(first != third);
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		// An undecodable sequence, twice, which should leave the reader unmoved.
+		assertTrue(decode(cache, reader, features) == null);
+		assertEquals(56, reader.tell());
+		reader.seek(72);
+		assertTrue(decode(cache, reader, features) == null);
+		assertEquals(72, reader.tell());
+		assertEquals(1, cache.getNegativeHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		FeatureSet features = new FeatureSet(arch);
+		DecodeCache cache = new DecodeCache(arch.getStart(), 1);
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+
+		decode(cache, reader, features);
+		decode(cache, reader, features);
+		reader.seek(0);
+		decode(cache, reader, features);
+		assertEquals(0, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.getEvictions());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testTruncatedInput() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		FeatureSet features = new FeatureSet(arch);
+		DecodeCache cache = new DecodeCache(arch.getStart(), 16);
+
+		// NOP, so that an extent of one byte is held by the cache.
+		byte[] nop = {(byte)0x00};
+		assertTrue(decode(cache, new ByteBufferReader(ByteBuffer.wrap(nop), arch.isBigEndian()), features) != null);
+
+		// The first byte of LD BC,nn on its own, which cannot be decoded.
+		byte[] truncated = {(byte)0x01};
+		assertTrue(decode(cache, new ByteBufferReader(ByteBuffer.wrap(truncated), arch.isBigEndian()), features) == null);
+
+		// The whole instruction must still decode, both before and after
+		// it has been cached.
+		byte[] complete = {(byte)0x01, (byte)0x34, (byte)0x12};
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(complete), arch.isBigEndian());
+		assertTrue(decode(cache, reader, features) != null);
+		assertEquals(24, reader.tell());
+		reader.seek(0);
+		assertTrue(decode(cache, reader, features) != null);
+		assertEquals(24, reader.tell());
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getNegativeHits());
+	}
+}
@@ -0,0 +1,62 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+public class DecoderDagTest {
+	private int checkArchitecture(String architectureName) throws Exception {
+		Architecture arch = Architecture.makeArchitecture(architectureName);
+		FeatureSet features = new FeatureSet(arch);
+		Random random = new Random(1);
+		byte[] content = new byte[16];
+		int count = 0;
+		for (Choice choice: arch.getChoices()) {
+			if ((choice.dag == null) || (choice.getChunkCount() != 1)) continue;
+			count += 1;
+			for (int i = 0; i != 2000; ++i) {
+				random.nextBytes(content);
+				BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+				List<BitReader> readers = new ArrayList<BitReader>();
+				readers.add(reader);
+
+				Expression expected = choice.decoder.decode(readers, features);
+				long expectedLength = reader.tell();
+				reader.seek(0);
+				Expression actual = choice.dag.decode(readers, features);
+				assertEquals(expected == null, actual == null);
+				if (expected != null) {
+					assertTrue(expected.getType() == actual.getType());
+				}
+				assertEquals(expectedLength, reader.tell());
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testArm() throws Exception {
+		assertTrue(checkArchitecture("arm") > 0);
+	}
+
+	@Test
+	public void testZ80() throws Exception {
+		assertTrue(checkArchitecture("z80") > 0);
+	}
+}
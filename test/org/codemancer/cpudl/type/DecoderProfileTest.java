@@ -0,0 +1,93 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+import org.codemancer.cpudl.expr.Expression;
+
+public class DecoderProfileTest {
+	private String decode(Architecture arch, byte[] content) {
+		Type start = arch.getStart();
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+		Expression expr = start.decode(readers, new FeatureSet(arch));
+		if (expr == null) {
+			return "(null)";
+		}
+		expr = expr.resolveReferences(null, null);
+		return start.unparse(0, expr) + "\t" + start.unparse(1, expr) + "\t" + reader.tell();
+	}
+
+	@Test
+	public void testReadWrite() throws Exception {
+		String text = "0 1 2 3\n# comment\n\n7 0 5\n";
+		DecoderProfile profile = new DecoderProfile(new StringReader(text));
+		assertEquals(2, profile.getCount(0, 1));
+		assertEquals(5, profile.getCount(7, 1));
+		assertEquals(0, profile.getCount(3, 0));
+		StringWriter out = new StringWriter();
+		profile.write(out);
+		assertEquals("0 1 2 3\n7 0 5\n", out.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalid() throws Exception {
+		new DecoderProfile(new StringReader("0 1 x\n"));
+	}
+
+	@Test
+	public void testProfiledDecoding() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		byte[] content = new byte[4];
+
+		// Gather a profile in which LD r,r' is heavily favoured.
+		DecoderStatistics.setEnabled(true);
+		try {
+			for (int i = 0x40; i != 0x80; ++i) {
+				content[0] = (byte)i;
+				decode(arch, content);
+			}
+		} finally {
+			DecoderStatistics.setEnabled(false);
+		}
+		DecoderProfile profile = new DecoderProfile();
+		profile.gather(arch);
+		StringWriter out = new StringWriter();
+		profile.write(out);
+		profile = new DecoderProfile(new StringReader(out.toString()));
+
+		// The profile must not change the result of decoding.
+		Architecture profiledArch = Architecture.makeArchitecture("z80", false, profile);
+		assertTrue(profiledArch.getDecoderProfile() == profile);
+		assertEquals(arch.getChoices().size(), profiledArch.getChoices().size());
+		for (int i = 0; i < 0x10000; i += 3) {
+			content[0] = (byte)(i >> 8);
+			content[1] = (byte)i;
+			assertEquals(decode(arch, content), decode(profiledArch, content));
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testChoicesFixed() throws Exception {
+		// Choice numbers must not change once the architecture is constructed.
+		Architecture arch = Architecture.makeArchitecture("z80");
+		arch.addChoice(arch.getChoices().get(0));
+	}
+}
@@ -0,0 +1,78 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.ByteBufferReader;
+import org.codemancer.cpudl.Architecture;
+import org.codemancer.cpudl.FeatureSet;
+
+public class DecoderStatisticsTest {
+	private final byte[] content = {
+		(byte)0x00, (byte)0x3E, (byte)0x12, (byte)0xCB,
+		(byte)0x00, (byte)0xDD, (byte)0x21, (byte)0x34,
+		(byte)0x12, (byte)0xC9};
+
+	@Test
+	public void testStaticShape() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		DecoderStatistics stats = new DecoderStatistics(arch.getStart());
+		assertTrue(stats.getLeafCount() > 0);
+		assertTrue(stats.getNodeCount() > stats.getLeafCount());
+		assertTrue(stats.getMaxDepth() > 0);
+		assertTrue(stats.getMaxLeafSize() > 0);
+		assertTrue(stats.getWorstCaseCandidates() >= stats.getMaxLeafSize());
+		assertEquals(0, stats.getDecodes());
+	}
+
+	@Test
+	public void testDynamicCounts() throws Exception {
+		Architecture arch = Architecture.makeArchitecture("z80");
+		Type start = arch.getStart();
+		FeatureSet features = new FeatureSet(arch);
+		BitReader reader = new ByteBufferReader(ByteBuffer.wrap(content), arch.isBigEndian());
+		List<BitReader> readers = new ArrayList<BitReader>();
+		readers.add(reader);
+
+		// Counts are not collected unless enabled.
+		assertTrue(start.decode(readers, features) != null);
+		assertEquals(0, new DecoderStatistics(start).getVisits());
+		reader.seek(0);
+
+		DecoderStatistics.setEnabled(true);
+		try {
+			int count = 0;
+			while ((reader.tell() != content.length * 8) && (count != content.length)) {
+				assertTrue(start.decode(readers, features) != null);
+				count += 1;
+			}
+
+			// The DD prefix is decoded as a separate match.
+			DecoderStatistics stats = new DecoderStatistics(start);
+			assertEquals(5, count);
+			assertEquals(6, stats.getDecodes());
+			assertEquals(6, stats.getMatches());
+			assertTrue(stats.getVisits() >= stats.getDecodes());
+			assertTrue(stats.getLeafVisits() >= stats.getMatches());
+			assertTrue(stats.getCandidates() >= stats.getAttempts());
+			assertTrue(stats.getAttempts() >= stats.getDecoded());
+			assertTrue(stats.getDecoded() >= stats.getMatches());
+
+			DecoderStatistics.reset(start);
+			assertEquals(0, new DecoderStatistics(start).getVisits());
+		} finally {
+			DecoderStatistics.setEnabled(false);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.cpudl.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import org.codemancer.cpudl.BitReader;
+import org.codemancer.cpudl.BitStringReader;
+import org.codemancer.cpudl.ShortBitString;
+
+public class WindowReaderTest {
+	private final long content = 0x243F6A8885A308D3L;
+
+	@Test
+	public void testMatchesBitStringReader() {
+		for (int start = 0; start < 64; start += 7) {
+			for (int length = 0; start + length <= 64; length += 5) {
+				BitReader reader = new BitStringReader(new ShortBitString(content, 64, false));
+				reader.seek(start + length);
+				WindowReader window = new WindowReader();
+				window.set(reader, start, length);
+				long bits = (content >>> start) & ((length < 64) ? (1L << length) - 1 : -1L);
+				BitReader expected = new BitStringReader(new ShortBitString(bits, length, false));
+				for (int offset = 0; offset != 12; ++offset) {
+					assertEquals(expected.peek(offset), window.peek(offset));
+					assertEquals(expected.peek(offset, 9), window.peek(offset, 9));
+				}
+				assertEquals(expected.read(3), window.read(3));
+				assertEquals(expected.skip(4), window.skip(4));
+				assertEquals(expected.tell(), window.tell());
+				assertEquals(expected.read(64), window.read(64));
+				assertEquals(expected.tell(), window.tell());
+				assertEquals(start + length, reader.tell());
+			}
+		}
+	}
+
+	@Test
+	public void testContextReuse() {
+		DecodeContext ctx = DecodeContext.get();
+		BitReader reader = new BitStringReader(new ShortBitString(content, 64, false));
+		long mark = ctx.mark();
+		List<BitReader> readers = ctx.allocateReaderList(reader);
+		ArrayList<ArrayList<BitReader>> buffers = ctx.allocateBuffers(2);
+		buffers.get(0).add(ctx.allocateWindow(reader, 0, 8));
+		ctx.release(mark);
+		assertEquals(mark, ctx.mark());
+
+		assertSame(readers, ctx.allocateReaderList(reader));
+		ArrayList<ArrayList<BitReader>> reused = ctx.allocateBuffers(2);
+		assertSame(buffers, reused);
+		assertEquals(0, reused.get(0).size());
+		ctx.release(mark);
+	}
+}
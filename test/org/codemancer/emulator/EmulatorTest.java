@@ -0,0 +1,120 @@
+// This file is part of Codemancer.
+// Copyright 2016 Graham Shaw.
+// Distribution and modification are permitted within the terms of the
+// GNU General Public License (version 3 or any later version).
+
+package org.codemancer.emulator;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import org.codemancer.cpudl.Architecture;
+
+public class EmulatorTest {
+	/** Make an emulator for the Z80 with a given program loaded at address zero.
+	 * @param program the machine code of the program
+	 * @return the emulator
+	 */
+	private static Emulator makeEmulator(int[] program) throws Exception {
+		byte[] bytes = new byte[program.length];
+		for (int i = 0; i != program.length; ++i) {
+			bytes[i] = (byte)program[i];
+		}
+		MemoryImage memory = new MemoryImage();
+		memory.load(0, ByteBuffer.wrap(bytes));
+		return new Emulator(Architecture.makeArchitecture("z80"), memory);
+	}
+
+	@Test
+	public void testLoop() throws Exception {
+		// LD A,5; ADD A,3; LD B,4; loop: ADD A,2; DJNZ loop; LD (8000h),A; JR $
+		Emulator emu = makeEmulator(new int[] {
+			0x3e, 0x05, 0xc6, 0x03, 0x06, 0x04, 0xc6, 0x02, 0x10, 0xfc,
+			0x32, 0x00, 0x80, 0x18, 0xfe});
+		emu.run(14);
+		assertEquals(16, emu.getRegister("A"));
+		assertEquals(0, emu.getRegister("B"));
+		assertEquals(16, emu.getMemory().readByte(0x8000));
+		assertEquals(0x0d, emu.getPC());
+		assertEquals(14, emu.getInstructionCount());
+	}
+
+	@Test
+	public void testWrap() throws Exception {
+		// LD A,FFh; ADD A,2
+		Emulator emu = makeEmulator(new int[] {0x3e, 0xff, 0xc6, 0x02});
+		emu.run(2);
+		assertEquals(1, emu.getRegister("A"));
+	}
+
+	@Test
+	public void testCall() throws Exception {
+		// LD SP,9000h; CALL 0010h; LD (8000h),A; JR $
+		// 0010h: LD A,42h; RET
+		int[] program = new int[0x13];
+		int[] main = {0x31, 0x00, 0x90, 0xcd, 0x10, 0x00, 0x32, 0x00, 0x80, 0x18, 0xfe};
+		System.arraycopy(main, 0, program, 0, main.length);
+		program[0x10] = 0x3e;
+		program[0x11] = 0x42;
+		program[0x12] = 0xc9;
+		Emulator emu = makeEmulator(program);
+		emu.run(2);
+		assertEquals(0x10, emu.getPC());
+		assertEquals(0x8ffe, emu.getRegister("SP"));
+		assertEquals(0x0006, emu.getMemory().read(0x8ffe, 2, false));
+		emu.run(3);
+		assertEquals(0x09, emu.getPC());
+		assertEquals(0x9000, emu.getRegister("SP"));
+		assertEquals(0x42, emu.getMemory().readByte(0x8000));
+	}
+
+	@Test
+	public void testSelfModifying() throws Exception {
+		// LD SP,9000h; CALL 0020h; LD A,7; LD (0021h),A; LD A,0; CALL 0020h; JR $
+		// 0020h: LD A,1; RET
+		int[] program = new int[0x23];
+		int[] main = {0x31, 0x00, 0x90, 0xcd, 0x20, 0x00, 0x3e, 0x07, 0x32, 0x21, 0x00,
+			0x3e, 0x00, 0xcd, 0x20, 0x00, 0x18, 0xfe};
+		System.arraycopy(main, 0, program, 0, main.length);
+		program[0x20] = 0x3e;
+		program[0x21] = 0x01;
+		program[0x22] = 0xc9;
+		Emulator emu = makeEmulator(program);
+		emu.run(4);
+		assertEquals(1, emu.getRegister("A"));
+
+		// The instruction at 0020h has been overwritten since it was
+		// compiled, so must be decoded again.
+		emu.run(6);
+		assertEquals(0x10, emu.getPC());
+		assertEquals(7, emu.getRegister("A"));
+	}
+
+	@Test
+	public void testDataInCodePage() throws Exception {
+		// LD B,4; loop: LD (0100h),A; INC A; DJNZ loop; JR $
+		Emulator emu = makeEmulator(new int[] {
+			0x06, 0x04, 0x32, 0x00, 0x01, 0x3c, 0x10, 0xfa, 0x18, 0xfe});
+		emu.run(15);
+		assertEquals(3, emu.getMemory().readByte(0x0100));
+		assertEquals(0x08, emu.getPC());
+
+		// Writing data to the same page as the code should not cause
+		// any instruction to be decoded a second time.
+		assertEquals(5, emu.getFetchCount());
+	}
+
+	@Test
+	public void testMemoryImage() {
+		MemoryImage memory = new MemoryImage();
+		assertEquals(0, memory.readByte(0x12345));
+		memory.write(0x1ffe, 4, false, 0x12345678L);
+		assertEquals(0x78, memory.readByte(0x1ffe));
+		assertEquals(0x12, memory.readByte(0x2001));
+		assertEquals(0x78563412L, memory.read(0x1ffe, 4, true));
+		memory.write(0x3000, 2, true, 0xabcd);
+		assertEquals(0xcd, memory.readByte(0x3001));
+	}
+}